@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.authentication.Oauth2User;
+import fr.paris.lutece.portal.service.security.LuteceUser;
+
+/**
+ * Throughput of the creation of the users from the claims of a userinfo document : the projection against the mapping it replaced.
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class Oauth2UserProjectionBenchmark
+{
+    private static final String [ ] USER_KEY_CLAIMS = {
+            "sub", "preferred_username"
+    };
+    private static final String IDENTITY_KEY_CLAIM = "uid";
+
+    private Map<String, Object> _mapClaims;
+    private Oauth2UserProjection _projection;
+    private Oauth2LegacyUserMapping _legacyMapping;
+
+    /**
+     * Compile the mapping and build a userinfo document of a usual size
+     */
+    @Setup
+    public void setUp( )
+    {
+        Map<String, List<String>> mapAttributes = new HashMap<>( );
+        mapAttributes.put( "given_name", Collections.singletonList( "user.name.given" ) );
+        mapAttributes.put( "family_name", Collections.singletonList( "user.name.family" ) );
+        mapAttributes.put( "email", Arrays.asList( LuteceUser.HOME_INFO_ONLINE_EMAIL, "user.email" ) );
+        mapAttributes.put( "phone_number", Collections.singletonList( "user.home-info.telecom.telephone.number" ) );
+        mapAttributes.put( "birthdate", Collections.singletonList( "user.bdate" ) );
+        mapAttributes.put( "groups", Arrays.asList( "user.groups", "user.roles" ) );
+        _projection = new Oauth2UserProjection( USER_KEY_CLAIMS, mapAttributes, IDENTITY_KEY_CLAIM );
+        _legacyMapping = new Oauth2LegacyUserMapping( USER_KEY_CLAIMS, mapAttributes, IDENTITY_KEY_CLAIM );
+
+        _mapClaims = new HashMap<>( );
+        _mapClaims.put( "sub", "248289761001" );
+        _mapClaims.put( "preferred_username", "jdoe" );
+        _mapClaims.put( IDENTITY_KEY_CLAIM, "f5f3a6b2-3c1e-4a9b-8d1f-0e6c2b7a9d44" );
+        _mapClaims.put( "given_name", "Jane" );
+        _mapClaims.put( "family_name", "Doe" );
+        _mapClaims.put( "email", "jane.doe@example.org" );
+        _mapClaims.put( "email_verified", Boolean.TRUE );
+        _mapClaims.put( "phone_number", "+33 1 23 45 67 89" );
+        _mapClaims.put( "birthdate", "1980-01-01" );
+        _mapClaims.put( "locale", "fr-FR" );
+        _mapClaims.put( "groups", new ArrayList<>( Arrays.asList( "citizens", "associations", "newsletter" ) ) );
+    }
+
+    /**
+     * @return the user created by the projection
+     */
+    @Benchmark
+    public Oauth2User projection( )
+    {
+        return _projection.createUser( _mapClaims, null, null );
+    }
+
+    /**
+     * @return the user created by the former mapping
+     */
+    @Benchmark
+    public Oauth2User legacyMapping( )
+    {
+        return _legacyMapping.createUser( _mapClaims );
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.web;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Lightweight GET request for the benchmarks.
+ * <p>
+ * Only the methods read by the filter are implemented, without allocating; the others fail, so that a new call on the hot path is noticed rather than
+ * measured against a default value.
+ * </p>
+ */
+final class BenchmarkHttpServletRequest extends HttpServletRequestWrapper
+{
+    private static final String METHOD_GET = "GET";
+    private static final String SCHEME = "https";
+    private static final String SERVER_NAME = "portal.example.org";
+    private static final int SERVER_PORT = 443;
+    private static final String CONTEXT_PATH = "/lutece";
+    private static final String REMOTE_ADDR = "192.0.2.1";
+
+    private final String _strServletPath;
+    private final String _strQueryString;
+    private final Map<String, String> _mapParameters = new HashMap<>( );
+    private final Map<String, String> _mapHeaders = new TreeMap<>( String.CASE_INSENSITIVE_ORDER );
+    private final Map<String, Object> _mapAttributes = new HashMap<>( );
+    private final BenchmarkHttpSession _session;
+    private final boolean _bSessionStarted;
+    private boolean _bSessionCreated;
+
+    /**
+     * Constructor
+     *
+     * @param strServletPath
+     *            the servlet path, starting with a slash
+     * @param strQueryString
+     *            the query string, or null
+     * @param session
+     *            the session of the visitor
+     * @param bSessionStarted
+     *            true for a returning visitor, false for a visitor whose session is created by the request
+     */
+    BenchmarkHttpServletRequest( String strServletPath, String strQueryString, BenchmarkHttpSession session, boolean bSessionStarted )
+    {
+        super( unsupported( HttpServletRequest.class ) );
+        _strServletPath = strServletPath;
+        _strQueryString = strQueryString;
+        _session = session;
+        _bSessionStarted = bSessionStarted;
+        _bSessionCreated = bSessionStarted;
+
+        if ( strQueryString != null )
+        {
+            for ( String strParameter : strQueryString.split( "&" ) )
+            {
+                int nEqual = strParameter.indexOf( '=' );
+                _mapParameters.put( ( nEqual >= 0 ) ? strParameter.substring( 0, nEqual ) : strParameter,
+                        ( nEqual >= 0 ) ? strParameter.substring( nEqual + 1 ) : "" );
+            }
+        }
+    }
+
+    /**
+     * Create an object whose methods all fail
+     *
+     * @param <T>
+     *            the interface
+     * @param clazz
+     *            the interface
+     * @return the object
+     */
+    static <T> T unsupported( Class<T> clazz )
+    {
+        return clazz.cast( Proxy.newProxyInstance( clazz.getClassLoader( ), new Class<?> [ ] {
+                clazz
+        }, ( proxy, method, args ) -> {
+            throw new UnsupportedOperationException( "not implemented by the benchmark stand-in : " + method );
+        } ) );
+    }
+
+    /**
+     * Set a header
+     *
+     * @param strName
+     *            the header name
+     * @param strValue
+     *            the header value
+     * @return this request
+     */
+    BenchmarkHttpServletRequest header( String strName, String strValue )
+    {
+        _mapHeaders.put( strName, strValue );
+
+        return this;
+    }
+
+    /**
+     * Restore the state of the request before the filter, so that every invocation processes the same request
+     */
+    void reset( )
+    {
+        if ( !_mapAttributes.isEmpty( ) )
+        {
+            _mapAttributes.clear( );
+        }
+
+        if ( !_bSessionStarted )
+        {
+            _session.clear( );
+            _bSessionCreated = false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getMethod( )
+    {
+        return METHOD_GET;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getScheme( )
+    {
+        return SCHEME;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getServerName( )
+    {
+        return SERVER_NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getServerPort( )
+    {
+        return SERVER_PORT;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isSecure( )
+    {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getContextPath( )
+    {
+        return CONTEXT_PATH;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getServletPath( )
+    {
+        return _strServletPath;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getPathInfo( )
+    {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getRequestURI( )
+    {
+        return CONTEXT_PATH + _strServletPath;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public StringBuffer getRequestURL( )
+    {
+        return new StringBuffer( SCHEME ).append( "://" ).append( SERVER_NAME ).append( getRequestURI( ) );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getQueryString( )
+    {
+        return _strQueryString;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getParameter( String strName )
+    {
+        return _mapParameters.get( strName );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getHeader( String strName )
+    {
+        return _mapHeaders.get( strName );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cookie [ ] getCookies( )
+    {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getRemoteAddr( )
+    {
+        return REMOTE_ADDR;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object getAttribute( String strName )
+    {
+        return _mapAttributes.get( strName );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setAttribute( String strName, Object value )
+    {
+        _mapAttributes.put( strName, value );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeAttribute( String strName )
+    {
+        _mapAttributes.remove( strName );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public HttpSession getSession( boolean bCreate )
+    {
+        _bSessionCreated |= bCreate;
+
+        return _bSessionCreated ? _session : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public HttpSession getSession( )
+    {
+        return getSession( true );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isAsyncSupported( )
+    {
+        // the asynchronous authentication only applies to the calls to the identity provider, which are not benchmarked
+        return false;
+    }
+}
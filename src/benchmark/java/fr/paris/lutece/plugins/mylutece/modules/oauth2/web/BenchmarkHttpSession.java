@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.web;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Lightweight session for the benchmarks : a map of attributes, never expired.
+ */
+@SuppressWarnings( "deprecation" )
+final class BenchmarkHttpSession implements HttpSession
+{
+    private final String _strId;
+    private final Map<String, Object> _mapAttributes = new HashMap<>( );
+    private final long _lCreationTime = System.currentTimeMillis( );
+
+    /**
+     * Constructor
+     *
+     * @param strId
+     *            the session id
+     */
+    BenchmarkHttpSession( String strId )
+    {
+        _strId = strId;
+    }
+
+    /**
+     * Remove the attributes set by the previous invocation
+     */
+    void clear( )
+    {
+        if ( !_mapAttributes.isEmpty( ) )
+        {
+            _mapAttributes.clear( );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCreationTime( )
+    {
+        return _lCreationTime;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getId( )
+    {
+        return _strId;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLastAccessedTime( )
+    {
+        return _lCreationTime;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ServletContext getServletContext( )
+    {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setMaxInactiveInterval( int nInterval )
+    {
+        // never expired
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMaxInactiveInterval( )
+    {
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public javax.servlet.http.HttpSessionContext getSessionContext( )
+    {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object getAttribute( String strName )
+    {
+        return _mapAttributes.get( strName );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object getValue( String strName )
+    {
+        return getAttribute( strName );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Enumeration<String> getAttributeNames( )
+    {
+        return Collections.enumeration( _mapAttributes.keySet( ) );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String [ ] getValueNames( )
+    {
+        return _mapAttributes.keySet( ).toArray( new String [ _mapAttributes.size( )] );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setAttribute( String strName, Object value )
+    {
+        if ( value == null )
+        {
+            _mapAttributes.remove( strName );
+        }
+        else
+        {
+            _mapAttributes.put( strName, value );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putValue( String strName, Object value )
+    {
+        setAttribute( strName, value );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeAttribute( String strName )
+    {
+        _mapAttributes.remove( strName );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeValue( String strName )
+    {
+        removeAttribute( strName );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invalidate( )
+    {
+        _mapAttributes.clear( );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isNew( )
+    {
+        return false;
+    }
+}
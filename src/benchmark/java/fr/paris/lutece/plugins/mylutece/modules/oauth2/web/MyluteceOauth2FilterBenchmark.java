@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.web;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.authentication.Oauth2User;
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2LuteceUserSessionService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+import fr.paris.lutece.test.LuteceTestCase;
+
+/**
+ * Benchmark of the hot path of the Oauth2 filter, run on every GET of the portal.
+ * <p>
+ * Run with <code>mvn -P benchmark test-compile exec:exec</code> : the throughput and the allocation per operation (GC profiler) are reported for each
+ * scenario and each white list size. The url matching of the white list, formerly <code>matchUrl</code> and <code>getResquestedUrl</code>, is measured
+ * through <code>isUsePomptNoneForRequest</code>. The Lutece services are started once per fork from the test webapp, as for the tests of the plugins.
+ * </p>
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class MyluteceOauth2FilterBenchmark
+{
+    private static final String PROPERTY_USE_PROMPT_NONE = "mylutece-oauth2.usePromptNone";
+    private static final String PROPERTY_USE_PROMPT_NONE_WHITE_LISTING_URLS = "mylutece-oauth2.usePromptNoneWhiteListingUrls";
+    private static final String ATTRIBUTE_LUTECE_USER = "lutece_user";
+    private static final String PORTAL_PATH = "/jsp/site/Portal.jsp";
+    private static final String PORTAL_QUERY = "page_id=3";
+    private static final String HEADER_REQUESTED_WITH = "X-Requested-With";
+    private static final String XML_HTTP_REQUEST = "XMLHttpRequest";
+
+    private static boolean _bLuteceStarted;
+
+    /**
+     * Traffic of the benchmark
+     */
+    public enum Scenario
+    {
+        /** returning visitor, not authenticated, prompt=none disabled */
+        ANONYMOUS,
+        /** returning visitor, authenticated */
+        AUTHENTICATED,
+        /** new visitor, redirected to the identity provider with prompt=none */
+        PROMPT_NONE_REDIRECT,
+        /** new visitor on a white listed url, prompt=none enabled */
+        PROMPT_NONE_WHITE_LISTED
+    }
+
+    @Param
+    public Scenario scenario;
+
+    @Param( {
+            "0", "10", "100", "1000"
+    } )
+    public int whiteListSize;
+
+    private MyluteceOauth2Filter _filter;
+    private BenchmarkHttpServletRequest _request;
+    private BenchmarkHttpServletResponse _response;
+    private FilterChain _chain;
+    private long _lChainCount;
+
+    /**
+     * Start the Lutece services and configure the filter for the scenario
+     *
+     * @throws Exception
+     *             if the services can not be started
+     */
+    @Setup( Level.Trial )
+    public void setUp( ) throws Exception
+    {
+        startLutece( );
+
+        boolean bPromptNone = scenario == Scenario.PROMPT_NONE_REDIRECT || scenario == Scenario.PROMPT_NONE_WHITE_LISTED;
+        AppPropertiesService.putProperty( PROPERTY_USE_PROMPT_NONE, String.valueOf( bPromptNone ) );
+        AppPropertiesService.putProperty( PROPERTY_USE_PROMPT_NONE_WHITE_LISTING_URLS, String.join( ",", getWhiteListedUrls( whiteListSize ) ) );
+
+        _filter = new MyluteceOauth2Filter( );
+        _filter.init( null );
+        _response = new BenchmarkHttpServletResponse( );
+        _chain = ( request, response ) -> _lChainCount++;
+        _request = createRequest( );
+
+        // the scenario must take the expected path
+        doFilter( );
+
+        if ( ( _response.getRedirectLocation( ) != null ) != ( scenario == Scenario.PROMPT_NONE_REDIRECT ) )
+        {
+            throw new IllegalStateException( "The scenario " + scenario + " is not reproduced, redirection : " + _response.getRedirectLocation( ) );
+        }
+    }
+
+    /**
+     * Stop the filter
+     */
+    @TearDown( Level.Trial )
+    public void tearDown( )
+    {
+        _filter.destroy( );
+    }
+
+    /**
+     * Filter a request
+     *
+     * @return the redirection, if any
+     * @throws IOException
+     *             if the filter fails
+     * @throws ServletException
+     *             if the filter fails
+     */
+    @Benchmark
+    public String doFilter( ) throws IOException, ServletException
+    {
+        _request.reset( );
+        _response.reset( );
+        _filter.doFilter( _request, _response, _chain );
+
+        return _response.getRedirectLocation( );
+    }
+
+    /**
+     * Check if prompt=none applies to a request : the white list is matched when prompt=none is enabled
+     *
+     * @return true if the prompt=none authentication would be attempted
+     */
+    @Benchmark
+    public boolean isUsePomptNoneForRequest( )
+    {
+        return _filter.isUsePomptNoneForRequest( _request );
+    }
+
+    /**
+     * Create the request of the scenario
+     *
+     * @return the request
+     */
+    private BenchmarkHttpServletRequest createRequest( )
+    {
+        BenchmarkHttpSession session = new BenchmarkHttpSession( "benchmark-" + scenario );
+
+        switch( scenario )
+        {
+            case AUTHENTICATED:
+                session.setAttribute( ATTRIBUTE_LUTECE_USER, new Oauth2User( "benchmark", null, null ) );
+                Oauth2LuteceUserSessionService.getInstance( ).addLuteceUserSession( "benchmark", session.getId( ) );
+
+                return new BenchmarkHttpServletRequest( PORTAL_PATH, PORTAL_QUERY, session, true );
+            case PROMPT_NONE_REDIRECT:
+                return new BenchmarkHttpServletRequest( PORTAL_PATH, PORTAL_QUERY, session, false );
+            case PROMPT_NONE_WHITE_LISTED:
+                if ( whiteListSize == 0 )
+                {
+                    // no url to match : white listed by the header of the default configuration
+                    return new BenchmarkHttpServletRequest( PORTAL_PATH, PORTAL_QUERY, session, false ).header( HEADER_REQUESTED_WITH, XML_HTTP_REQUEST );
+                }
+
+                // the last pattern, the worst case of a linear matching
+                int nLast = whiteListSize - 1;
+
+                return new BenchmarkHttpServletRequest( "/jsp/site/plugins/benchmark" + nLast + "/Page.jsp", "id=" + nLast, session, false );
+            default:
+                return new BenchmarkHttpServletRequest( PORTAL_PATH, PORTAL_QUERY, session, true );
+        }
+    }
+
+    /**
+     * Build a white list mixing exact urls with a query and url prefixes
+     *
+     * @param nSize
+     *            the number of urls
+     * @return the urls, relative to the webapp root
+     */
+    private static List<String> getWhiteListedUrls( int nSize )
+    {
+        List<String> listUrls = new ArrayList<>( nSize );
+
+        for ( int i = 0; i < nSize; i++ )
+        {
+            listUrls.add( ( i % 2 == 0 ) ? ( "jsp/site/plugins/benchmark" + i + "/Page.jsp?id=" + i ) : ( "jsp/site/plugins/benchmark" + i + "/*" ) );
+        }
+
+        return listUrls;
+    }
+
+    /**
+     * Start the Lutece services once per fork
+     *
+     * @throws Exception
+     *             if the services can not be started
+     */
+    private static synchronized void startLutece( ) throws Exception
+    {
+        if ( !_bLuteceStarted )
+        {
+            new LuteceContext( ).start( );
+            _bLuteceStarted = true;
+        }
+    }
+
+    /**
+     * Lutece services of the test webapp
+     */
+    private static final class LuteceContext extends LuteceTestCase
+    {
+        /**
+         * Start the services
+         *
+         * @throws Exception
+         *             if the services can not be started
+         */
+        void start( ) throws Exception
+        {
+            setUp( );
+        }
+    }
+}
@@ -34,20 +34,19 @@
 package fr.paris.lutece.plugins.mylutece.modules.oauth2.authentication;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 
 import org.apache.commons.lang3.StringUtils;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2HttpClient;
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2PromptNoneNegativeCache;
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2PromptNoneState;
 import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2Service;
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2UserInfoCache;
 import fr.paris.lutece.plugins.mylutece.modules.oauth2.web.MyluteceOauth2Filter;
 import fr.paris.lutece.plugins.oauth2.business.Token;
 import fr.paris.lutece.plugins.oauth2.dataclient.AbstractDataClient;
@@ -68,13 +67,10 @@ public class AuthDataClient extends AbstractDataClient
     public static final String SESSION_ERROR_LOGIN = "session_error_login";
     public static final String PARAM_ERROR_LOGIN = "error_login";
     public static final String PARAM_NEXT_URL = "next_url";
-    private static ObjectMapper _mapper;
-
-    static
-    {
-        _mapper = new ObjectMapper( );
-        _mapper.disable( DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES );
-    }
+    private static final String HEADER_AUTHORIZATION = "Authorization";
+    private static final String BEARER = "Bearer ";
+    private static final String METHOD_POST = "POST";
+    private static final String CONTENT_TYPE_FORM = "application/x-www-form-urlencoded";
 
     /**
      * {@inheritDoc }
@@ -84,7 +80,7 @@ public class AuthDataClient extends AbstractDataClient
     {
         try
         {
-            Map<String, Object> mapUserInfo = parse( getData( token ) );
+            Map<String, Object> mapUserInfo = getUserInfo( token );
             Oauth2Service.getInstance( ).processAuthentication( request, mapUserInfo, token );
             Oauth2Service.redirect( request, response );
 
@@ -96,28 +92,64 @@ public class AuthDataClient extends AbstractDataClient
     }
 
     /**
-     * parse the JSON for a token
-     * 
-     * @param strJson
-     *            The JSON
+     * {@inheritDoc }
+     */
+    @Override
+    public String getData( Token token )
+    {
+        return Oauth2UserInfoCache.getInstance( ).getUserInfo( getDataServerUri( ), token, this::fetchData );
+    }
+
+    /**
+     * Fetch the userinfo document of a token from the data server
+     *
+     * @param token
+     *            The token
+     * @return The document, or null if it could not be fetched
+     */
+    private String fetchData( Token token )
+    {
+        Oauth2HttpClient httpClient = Oauth2HttpClient.getInstance( );
+
+        if ( !httpClient.isUserInfoEnabled( ) )
+        {
+            return super.getData( token );
+        }
+
+        Map<String, String> mapHeaders = Collections.singletonMap( HEADER_AUTHORIZATION, BEARER + token.getAccessToken( ) );
+
+        try
+        {
+            return METHOD_POST.equalsIgnoreCase( getTokenMethod( ) ) ? httpClient.doPost( getDataServerUri( ), mapHeaders, CONTENT_TYPE_FORM, "" )
+                    : httpClient.doGet( getDataServerUri( ), mapHeaders );
+        }
+        catch( IOException e )
+        {
+            _logger.error( "Error getting UserInfo ", e );
+
+            return null;
+        }
+    }
+
+    /**
+     * Get the claims of a user, from the id token when it holds them all, from the userinfo document otherwise
+     *
+     * @param token
+     *            The token
      * @return The UserInfo
      * @throws java.io.IOException
      *             if an error occurs
      */
-    Map<String, Object> parse( String strJson ) throws IOException
+    Map<String, Object> getUserInfo( Token token ) throws IOException
     {
-        TypeReference<HashMap<String, Object>> typeRef = new TypeReference<HashMap<String, Object>>( )
-        {
-        };
-
-        return _mapper.readValue( strJson, typeRef );
+        return Oauth2Service.getInstance( ).getUserInfo( token, this::getData );
     }
 
     @Override
     public void handleError( HttpServletRequest request, HttpServletResponse response, String strError )
     {
 
-        HttpSession session = request.getSession( true );
+        Oauth2PromptNoneState promptNoneState = Oauth2PromptNoneState.getInstance( );
       
 
         if ( AuthDataClient.ERROR_TYPE_LOGIN_REQUIRED.equals( strError ) )
@@ -155,7 +187,7 @@ public class AuthDataClient extends AbstractDataClient
                 
                 strLoginNextUrl = response.encodeRedirectURL( strLoginNextUrl );
                 // if SESSION_ERROR_LOGIN attribute is not store in session added this information in the redirect url
-                if ( strLoginNextUrl != null && session.getAttribute( AuthDataClient.SESSION_ERROR_LOGIN ) == null )
+                if ( strLoginNextUrl != null && promptNoneState.getErrorLogin( request ) == null )
                 {
                     if ( strLoginNextUrl.contains( "?" ) )
                     {
@@ -169,7 +201,8 @@ public class AuthDataClient extends AbstractDataClient
                     strLoginNextUrl += AuthDataClient.PARAM_ERROR_LOGIN + "=" + AuthDataClient.ERROR_TYPE_LOGIN_REQUIRED;
                 }
                 
-                session.setAttribute( SESSION_ERROR_LOGIN, strError );
+                promptNoneState.setErrorLogin( request, response, strError );
+                Oauth2PromptNoneNegativeCache.getInstance( ).recordLoginRequired( request );
                 response.sendRedirect( strLoginNextUrl );
             }
             catch( IOException e )
@@ -34,16 +34,11 @@
 package fr.paris.lutece.plugins.mylutece.modules.oauth2.authentication;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2Service;
 import fr.paris.lutece.plugins.oauth2.business.Token;
 import fr.paris.lutece.plugins.oauth2.dataclient.AbstractDataClient;
@@ -57,13 +52,6 @@ import fr.paris.lutece.util.json.JsonUtil;
  */
 public class AuthDataClientJson extends AbstractDataClient
 {
-    private static ObjectMapper _mapper;
-
-    static
-    {
-        _mapper = new ObjectMapper( );
-        _mapper.disable( DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES );
-    }
 
     /**
      * {@inheritDoc }
@@ -73,7 +61,7 @@ public class AuthDataClientJson extends AbstractDataClient
     {
         try
         {
-            Map<String, Object> mapUserInfo = parse( getData( token ) );
+            Map<String, Object> mapUserInfo = Oauth2Service.getInstance( ).getUserInfo( token, this::getData );
             Oauth2Service.getInstance( ).processAuthentication( request, mapUserInfo, token );
 
             LuteceUser user = SecurityService.getInstance( ).getRegisteredUser( request );
@@ -88,22 +76,4 @@ public class AuthDataClientJson extends AbstractDataClient
             _logger.error( "Error parsing UserInfo ", ex );
         }
     }
-
-    /**
-     * parse the JSON for a token
-     * 
-     * @param strJson
-     *            The JSON
-     * @return The UserInfo
-     * @throws java.io.IOException
-     *             if an error occurs
-     */
-    Map<String, Object> parse( String strJson ) throws IOException
-    {
-        TypeReference<HashMap<String, Object>> typeRef = new TypeReference<HashMap<String, Object>>( )
-        {
-        };
-
-        return _mapper.readValue( strJson, typeRef );
-    }
 }
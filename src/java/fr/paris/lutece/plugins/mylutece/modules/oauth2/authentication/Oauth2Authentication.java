@@ -52,7 +52,8 @@ import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2Service;
 import fr.paris.lutece.plugins.mylutece.service.MyLutecePlugin;
 import fr.paris.lutece.plugins.oauth2.business.Token;
 import fr.paris.lutece.plugins.oauth2.service.DataClientService;
-import fr.paris.lutece.plugins.oauth2.service.TokenService;
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2TokenRefresher;
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2TokenRefreshScheduler;
 import fr.paris.lutece.portal.business.role.RoleHome;
 import fr.paris.lutece.portal.service.plugin.Plugin;
 import fr.paris.lutece.portal.service.plugin.PluginService;
@@ -130,6 +131,10 @@ public class Oauth2Authentication extends PortalAuthentication implements Serial
     @Override
     public void logout( LuteceUser user )
     {
+        if ( user instanceof Oauth2User )
+        {
+            Oauth2TokenRefreshScheduler.getInstance( ).untrack( (Oauth2User) user );
+        }
     }
 
     /**
@@ -203,10 +208,10 @@ public class Oauth2Authentication extends PortalAuthentication implements Serial
             {
 
                 AuthDataClient authDataClient = (AuthDataClient) DataClientService.instance( ).getClient( authDataClientName );
-                Token token = TokenService.getService( ).getTokenByRefreshToken( userOauth.getToken( ).getRefreshToken( ) );
+                Token token = Oauth2TokenRefresher.getInstance( ).refresh( userOauth.getToken( ).getRefreshToken( ) );
                 try
                 {
-                    Map<String, Object> mapUserInfo = authDataClient.parse( authDataClient.getData( token ) );
+                    Map<String, Object> mapUserInfo = authDataClient.getUserInfo( token );
                     return Oauth2Service.getInstance( ).processAuthentication( request, mapUserInfo, token );
 
                 }
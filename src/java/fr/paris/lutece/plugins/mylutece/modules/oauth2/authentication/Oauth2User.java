@@ -58,6 +58,12 @@ public class Oauth2User extends LuteceUser implements Serializable
     /** The token. */
     private Token _token;
 
+    /** The time at which the access token expires, 0 if unknown. */
+    private volatile long _lTokenExpiryTime;
+
+    /** The time before which the refresh token is not validated again. */
+    private volatile long _lNextValidationTime;
+
     /**
      * Constructor.
      *
@@ -72,7 +78,7 @@ public class Oauth2User extends LuteceUser implements Serializable
     {
         super( strUserName, authenticationService );
         this.setLuteceAuthenticationService( authenticationService );
-        this._token = token;
+        this.setToken( token );
     }
 
     /**
@@ -116,6 +122,38 @@ public class Oauth2User extends LuteceUser implements Serializable
     public void setToken( Token token )
     {
         _token = token;
+        _lTokenExpiryTime = ( token != null && token.getExpiresIn( ) > 0 ) ? ( System.currentTimeMillis( ) + token.getExpiresIn( ) * 1000L ) : 0L;
+    }
+
+    /**
+     * Gets the time at which the access token expires.
+     *
+     * @return the expiry time in milliseconds, 0 if unknown
+     */
+    public long getTokenExpiryTime( )
+    {
+        return _lTokenExpiryTime;
+    }
+
+    /**
+     * Gets the time before which the refresh token is not validated again.
+     *
+     * @return the time in milliseconds
+     */
+    public long getNextValidationTime( )
+    {
+        return _lNextValidationTime;
+    }
+
+    /**
+     * Sets the time before which the refresh token is not validated again.
+     *
+     * @param lNextValidationTime
+     *            the time in milliseconds
+     */
+    public void setNextValidationTime( long lNextValidationTime )
+    {
+        _lNextValidationTime = lNextValidationTime;
     }
 
 }
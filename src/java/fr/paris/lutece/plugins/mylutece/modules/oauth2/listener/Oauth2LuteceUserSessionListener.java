@@ -37,6 +37,7 @@ import javax.servlet.http.HttpSessionEvent;
 import javax.servlet.http.HttpSessionListener;
 
 import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2LuteceUserSessionService;
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2TokenRefreshScheduler;
 
 /**
  * Oauth2LuteceUserSessionListener
@@ -58,5 +59,6 @@ public final class Oauth2LuteceUserSessionListener implements HttpSessionListene
     public void sessionDestroyed( HttpSessionEvent sessionEvent )
     {
         Oauth2LuteceUserSessionService.getInstance( ).removeLuteceUserSession( sessionEvent.getSession( ).getId( ) );
+        Oauth2TokenRefreshScheduler.getInstance( ).untrack( sessionEvent.getSession( ).getId( ) );
     }
 }
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.invalidation.IOauth2InvalidationBus;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Base class of the session registries.
+ * <p>
+ * A user update notified to the registry is applied locally, then published on the invalidation bus when one is configured, so that the other nodes of the
+ * cluster apply it too. Updates received from the bus are only applied locally.
+ * </p>
+ * <p>
+ * When a journal is configured, the session additions, removals, user updates and their acknowledgements are recorded in it and replayed when the plugin starts, so that the
+ * registry survives a restart of the node.
+ * </p>
+ * <p>
+ * The registry counts its updates, and {@link #getStatistics()} completes these counters with the figures collected by the implementation.
+ * </p>
+ */
+public abstract class AbstractOauth2LuteceUserSessionService implements IOauth2LuteceUserSessionService
+{
+    private static final String STATISTICS_NAME = "registry";
+    private IOauth2InvalidationBus _invalidationBus;
+    private Oauth2LuteceUserSessionJournal _journal;
+    private final long _lStartTime = System.currentTimeMillis( );
+    private final LongAdder _lAddedCount = new LongAdder( );
+    private final LongAdder _lRemovedCount = new LongAdder( );
+    private final LongAdder _lNotifiedCount = new LongAdder( );
+
+    /**
+     * Constructor
+     */
+    protected AbstractOauth2LuteceUserSessionService( )
+    {
+        Oauth2StatisticsService.register( STATISTICS_NAME, this::getStatistics );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isLuteceUserUpToDate( String strSession )
+    {
+        boolean bUpToDate = checkLuteceUserSession( strSession );
+
+        if ( !bUpToDate && _journal != null )
+        {
+            _journal.appendAcknowledge( strSession );
+        }
+
+        return bUpToDate;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addLuteceUserSession( String strLuteceUserName, String strSession )
+    {
+        registerLuteceUserSession( strLuteceUserName, strSession );
+        _lAddedCount.increment( );
+
+        if ( _journal != null )
+        {
+            _journal.appendAdd( strLuteceUserName, strSession );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeLuteceUserSession( String strSession )
+    {
+        // most destroyed sessions never had a user : only the tracked ones are recorded
+        if ( unregisterLuteceUserSession( strSession ) )
+        {
+            recordLuteceUserSessionRemoval( strSession );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void notifyLuteceUserUpdating( String strLuteceUserName )
+    {
+        updateLuteceUser( strLuteceUserName );
+
+        if ( _invalidationBus != null )
+        {
+            _invalidationBus.publish( strLuteceUserName );
+        }
+    }
+
+    /**
+     * Record the removal of a session, in the statistics and in the journal
+     *
+     * @param strSession
+     *            the session id
+     */
+    protected void recordLuteceUserSessionRemoval( String strSession )
+    {
+        _lRemovedCount.increment( );
+
+        if ( _journal != null )
+        {
+            _journal.appendRemove( strSession );
+        }
+    }
+
+    /**
+     * Record the eviction of a session known only by its key, in the statistics and in the journal
+     *
+     * @param lKey
+     *            the session key
+     */
+    protected void recordLuteceUserSessionEviction( long lKey )
+    {
+        _lRemovedCount.increment( );
+
+        if ( _journal != null )
+        {
+            _journal.appendEvict( lKey );
+        }
+    }
+
+    /**
+     * Apply a user update on this node, without publishing it
+     *
+     * @param strLuteceUserName
+     *            the lutece user name
+     */
+    private void updateLuteceUser( String strLuteceUserName )
+    {
+        applyLuteceUserUpdating( strLuteceUserName );
+        _lNotifiedCount.increment( );
+
+        if ( _journal != null )
+        {
+            _journal.appendNotify( strLuteceUserName );
+        }
+    }
+
+    /**
+     * Check if a session has seen the last update of its user, and acknowledge the update if not. Only one caller gets the stale state for a given update.
+     *
+     * @param strSession
+     *            the session id
+     * @return false if the session was stale
+     */
+    protected abstract boolean checkLuteceUserSession( String strSession );
+
+    /**
+     * Register a session of a user
+     *
+     * @param strLuteceUserName
+     *            the lutece user name
+     * @param strSession
+     *            the session id
+     */
+    protected abstract void registerLuteceUserSession( String strLuteceUserName, String strSession );
+
+    /**
+     * Unregister a session
+     *
+     * @param strSession
+     *            the session id
+     * @return true if the session was registered
+     */
+    protected abstract boolean unregisterLuteceUserSession( String strSession );
+
+    /**
+     * Unregister a session known only by its key, for the registries which do not keep the session ids
+     *
+     * @param lKey
+     *            the session key
+     * @return true if the session was registered
+     */
+    protected boolean unregisterLuteceUserSessionKey( long lKey )
+    {
+        return false;
+    }
+
+    /**
+     * Mark the sessions of a user as stale on this node only
+     *
+     * @param strLuteceUserName
+     *            the lutece user name
+     */
+    protected abstract void applyLuteceUserUpdating( String strLuteceUserName );
+
+    /**
+     * Collect the figures of the registry, without blocking its updates
+     *
+     * @return the statistics filled with the numbers of sessions, users and stale sessions and the estimated size
+     */
+    protected abstract Oauth2LuteceUserSessionStatistics collectStatistics( );
+
+    /**
+     * Get the statistics of the registry. They are computed without locking the registry, so they can be polled in production.
+     *
+     * @return a snapshot of the statistics
+     */
+    public Oauth2LuteceUserSessionStatistics getStatistics( )
+    {
+        Oauth2LuteceUserSessionStatistics statistics = collectStatistics( );
+        statistics.setAddedCount( _lAddedCount.sum( ) );
+        statistics.setRemovedCount( _lRemovedCount.sum( ) );
+        statistics.setNotifiedCount( _lNotifiedCount.sum( ) );
+        statistics.setUptime( System.currentTimeMillis( ) - _lStartTime );
+
+        return statistics;
+    }
+
+    /**
+     * Open the journal and replay it into the registry
+     */
+    public void openJournal( )
+    {
+        if ( _journal != null )
+        {
+            try
+            {
+                _journal.open( this );
+            }
+            catch( IOException e )
+            {
+                AppLogService.error( "Oauth2 - unable to open the session journal, the sessions will not be journaled", e );
+                _journal = null;
+            }
+        }
+    }
+
+    /**
+     * Set the bus propagating the user updates to the other nodes
+     *
+     * @param invalidationBus
+     *            the invalidation bus
+     */
+    public void setInvalidationBus( IOauth2InvalidationBus invalidationBus )
+    {
+        _invalidationBus = invalidationBus;
+        _invalidationBus.setListener( listLuteceUserNames -> listLuteceUserNames.forEach( this::updateLuteceUser ) );
+    }
+
+    /**
+     * @return the invalidation bus, or null if the updates are not propagated
+     */
+    public IOauth2InvalidationBus getInvalidationBus( )
+    {
+        return _invalidationBus;
+    }
+
+    /**
+     * Set the journal recording the registry updates
+     *
+     * @param journal
+     *            the journal
+     */
+    public void setJournal( Oauth2LuteceUserSessionJournal journal )
+    {
+        _journal = journal;
+    }
+}
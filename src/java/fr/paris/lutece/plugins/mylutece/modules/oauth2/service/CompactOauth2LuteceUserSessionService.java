@@ -0,0 +1,842 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Memory optimized registry of the sessions opened by the Oauth2 Lutece users.
+ * <p>
+ * Sessions are not stored as objects: each session id is hashed to a 64 bits key stored in an open addressing table made of primitive arrays, along with
+ * the id of its user, the user epoch it last saw and its last access time, in seconds. User names are interned once into an int id, whatever the number of
+ * their sessions. A table slot costs 20 bytes and the table is kept between 37% and 75% full, so a tracked session costs between 27 and 54 bytes of heap
+ * (about 37 bytes on average), to be compared to about 200 bytes with {@link Oauth2LuteceUserSessionService}.
+ * </p>
+ * <p>
+ * The registry can be bounded like {@link Oauth2LuteceUserSessionService}, for the sessions whose destruction is never notified. The idle sessions are
+ * expired by a background sweep of the table: each tick sweeps a slice of the table, by chunks, the lock being released between the chunks, so that the whole
+ * table is swept several times per idle timeout. Beyond the maximum number of sessions, each registration evicts the least recently used of a few sessions
+ * sampled from a clock hand going round the table. The evicted sessions are journaled by key, the session ids not being kept.
+ * </p>
+ * <p>
+ * Two session ids colliding on the same 64 bits hash would share their state: with 400 000 sessions, the probability of such a collision is below 1 in
+ * 100 million.
+ * </p>
+ * <p>
+ * Lookups are optimistic and never block, updates are serialized by a single lock.
+ * </p>
+ */
+public class CompactOauth2LuteceUserSessionService extends AbstractOauth2LuteceUserSessionService
+{
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int INITIAL_USER_CAPACITY = 256;
+    private static final long EMPTY_KEY = 0L;
+    private static final int NO_USER = -1;
+    private static final int STATISTICS_ATTEMPTS = 3;
+    // estimated heap size of an interned user : node and boxed id in the user map, string and character array headers
+    private static final long USER_SIZE = 88L;
+    private static final String THREAD_NAME = "mylutece-oauth2-session-expiry";
+    private static final long DEFAULT_TICK_DURATION = 1000L;
+    private static final int SWEEPS_PER_IDLE_TIMEOUT = 8;
+    private static final int SWEEP_CHUNK = 4096;
+    private static final int EVICTION_SAMPLES = 8;
+    private static final long MILLISECONDS_PER_SECOND = 1000L;
+
+    private final StampedLock _lock = new StampedLock( );
+
+    // open addressing table of the sessions, with linear probing
+    private long [ ] _keys = new long [ INITIAL_CAPACITY];
+    private int [ ] _sessionUserIds = new int [ INITIAL_CAPACITY];
+    private int [ ] _sessionSeenEpochs = new int [ INITIAL_CAPACITY];
+    private int [ ] _sessionAccessTimes = new int [ INITIAL_CAPACITY];
+    private int _nSessionCount;
+
+    // interned users
+    private final Map<String, Integer> _mapUserIds = new HashMap<>( );
+    private String [ ] _userNames = new String [ INITIAL_USER_CAPACITY];
+    private int [ ] _userEpochs = new int [ INITIAL_USER_CAPACITY];
+    private int [ ] _userSessionCounts = new int [ INITIAL_USER_CAPACITY];
+    private int [ ] _freeUserIds = new int [ INITIAL_USER_CAPACITY];
+    private int _nFreeUserIdCount;
+    private int _nUserIdCount;
+
+    // bounds of the registry
+    private final long _lTimeOrigin = System.currentTimeMillis( );
+    private long _lIdleTimeout;
+    private int _nMaxSessions;
+    private long _lTickDuration = DEFAULT_TICK_DURATION;
+    private int _nSweepCursor;
+    private int _nClockHand;
+    private volatile boolean _bBounded;
+    private volatile ScheduledExecutorService _expiryScheduler;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean checkLuteceUserSession( String strSession )
+    {
+        long lKey = hash( strSession );
+        long lStamp = _lock.tryOptimisticRead( );
+        boolean bUpToDate = isUpToDate( lKey );
+
+        if ( !_lock.validate( lStamp ) )
+        {
+            lStamp = _lock.readLock( );
+
+            try
+            {
+                bUpToDate = isUpToDate( lKey );
+            }
+            finally
+            {
+                _lock.unlockRead( lStamp );
+            }
+        }
+
+        if ( bUpToDate )
+        {
+            return true;
+        }
+
+        // acknowledge the update: only one caller gets the stale state
+        lStamp = _lock.writeLock( );
+
+        try
+        {
+            int nSlot = findSlot( _keys, lKey );
+
+            if ( nSlot < 0 )
+            {
+                return true;
+            }
+
+            int nUserEpoch = _userEpochs [_sessionUserIds [nSlot]];
+
+            if ( _sessionSeenEpochs [nSlot] == nUserEpoch )
+            {
+                return true;
+            }
+
+            _sessionSeenEpochs [nSlot] = nUserEpoch;
+
+            return false;
+        }
+        finally
+        {
+            _lock.unlockWrite( lStamp );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void registerLuteceUserSession( String strLuteceUserName, String strSession )
+    {
+        long lKey = hash( strSession );
+        long lEvictedKey = EMPTY_KEY;
+
+        if ( _bBounded )
+        {
+            startExpiry( );
+        }
+
+        long lStamp = _lock.writeLock( );
+
+        try
+        {
+            int nUserId = internUser( strLuteceUserName );
+            _userSessionCounts [nUserId]++;
+
+            int nSlot = findSlot( _keys, lKey );
+
+            if ( nSlot >= 0 )
+            {
+                // the session was already bound, possibly to another user
+                releaseUser( _sessionUserIds [nSlot] );
+            }
+            else
+            {
+                if ( ( _nSessionCount + 1 ) * 4 > _keys.length * 3 )
+                {
+                    resize( _keys.length * 2 );
+                }
+
+                nSlot = insertionSlot( _keys, lKey );
+                _keys [nSlot] = lKey;
+                _nSessionCount++;
+            }
+
+            _sessionUserIds [nSlot] = nUserId;
+            _sessionSeenEpochs [nSlot] = _userEpochs [nUserId];
+            _sessionAccessTimes [nSlot] = now( );
+
+            if ( _nMaxSessions > 0 && _nSessionCount > _nMaxSessions )
+            {
+                lEvictedKey = evictLeastRecentlyUsed( lKey );
+            }
+        }
+        finally
+        {
+            _lock.unlockWrite( lStamp );
+        }
+
+        // recorded once the lock is released : the journal replays its records into the registry under its own lock
+        if ( lEvictedKey != EMPTY_KEY )
+        {
+            recordLuteceUserSessionEviction( lEvictedKey );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void touchLuteceUserSession( String strSession )
+    {
+        if ( !_bBounded )
+        {
+            return;
+        }
+
+        long lKey = hash( strSession );
+        int nNow = now( );
+        long lStamp = _lock.tryOptimisticRead( );
+        int nSlot = findSlot( _keys, lKey );
+        int [ ] sessionAccessTimes = _sessionAccessTimes;
+
+        // the access time is only written once per second and per session
+        if ( _lock.validate( lStamp ) && ( nSlot < 0 || nSlot >= sessionAccessTimes.length || sessionAccessTimes [nSlot] == nNow ) )
+        {
+            return;
+        }
+
+        // the slots are not moved under the read lock, and concurrent readers write the same time
+        lStamp = _lock.readLock( );
+
+        try
+        {
+            nSlot = findSlot( _keys, lKey );
+
+            if ( nSlot >= 0 )
+            {
+                _sessionAccessTimes [nSlot] = nNow;
+            }
+        }
+        finally
+        {
+            _lock.unlockRead( lStamp );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean unregisterLuteceUserSession( String strSession )
+    {
+        return unregisterLuteceUserSessionKey( hash( strSession ) );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean unregisterLuteceUserSessionKey( long lKey )
+    {
+        long lStamp = _lock.writeLock( );
+
+        try
+        {
+            int nSlot = findSlot( _keys, lKey );
+
+            if ( nSlot < 0 )
+            {
+                return false;
+            }
+
+            removeSlot( nSlot );
+
+            return true;
+        }
+        finally
+        {
+            _lock.unlockWrite( lStamp );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void applyLuteceUserUpdating( String strLuteceUserName )
+    {
+        long lStamp = _lock.writeLock( );
+
+        try
+        {
+            Integer nUserId = _mapUserIds.get( strLuteceUserName );
+
+            if ( nUserId != null )
+            {
+                _userEpochs [nUserId]++;
+            }
+        }
+        finally
+        {
+            _lock.unlockWrite( lStamp );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Oauth2LuteceUserSessionStatistics collectStatistics( )
+    {
+        // the tables are scanned optimistically, and the scan is retried a few times if an update ran meanwhile : the last figures are kept anyway, so
+        // the updates are never blocked
+        Oauth2LuteceUserSessionStatistics statistics = null;
+
+        for ( int nAttempt = 0; nAttempt < STATISTICS_ATTEMPTS; nAttempt++ )
+        {
+            long lStamp = _lock.tryOptimisticRead( );
+            statistics = scanStatistics( );
+
+            if ( lStamp != 0L && _lock.validate( lStamp ) )
+            {
+                break;
+            }
+        }
+
+        return statistics;
+    }
+
+    /**
+     * Scan the tables without lock
+     *
+     * @return the statistics of the scanned tables
+     */
+    private Oauth2LuteceUserSessionStatistics scanStatistics( )
+    {
+        Oauth2LuteceUserSessionStatistics statistics = new Oauth2LuteceUserSessionStatistics( );
+        long [ ] keys = _keys;
+        int [ ] sessionUserIds = _sessionUserIds;
+        int [ ] sessionSeenEpochs = _sessionSeenEpochs;
+        String [ ] userNames = _userNames;
+        int [ ] userEpochs = _userEpochs;
+        int [ ] userSessionCounts = _userSessionCounts;
+        long lSessionCount = 0;
+        long lStaleSessionCount = 0;
+        long lEstimatedSize = 8L * keys.length
+                + 4L * ( sessionUserIds.length + sessionSeenEpochs.length + _sessionAccessTimes.length + userNames.length + userEpochs.length
+                        + userSessionCounts.length + _freeUserIds.length );
+
+        for ( int nSlot = 0; nSlot < keys.length && nSlot < sessionUserIds.length && nSlot < sessionSeenEpochs.length; nSlot++ )
+        {
+            if ( keys [nSlot] != EMPTY_KEY )
+            {
+                lSessionCount++;
+
+                int nUserId = sessionUserIds [nSlot];
+
+                if ( nUserId >= 0 && nUserId < userEpochs.length && sessionSeenEpochs [nSlot] != userEpochs [nUserId] )
+                {
+                    lStaleSessionCount++;
+                }
+            }
+        }
+
+        for ( int nUserId = 0; nUserId < userNames.length && nUserId < userSessionCounts.length; nUserId++ )
+        {
+            String strLuteceUserName = userNames [nUserId];
+
+            if ( strLuteceUserName != null )
+            {
+                statistics.addUser( userSessionCounts [nUserId] );
+                lEstimatedSize += USER_SIZE + 2L * strLuteceUserName.length( );
+            }
+        }
+
+        statistics.setSessionCount( lSessionCount );
+        statistics.setStaleSessionCount( lStaleSessionCount );
+        statistics.setEstimatedSize( lEstimatedSize );
+
+        return statistics;
+    }
+
+    /**
+     * Check the state of a session, reading the tables without lock
+     *
+     * @param lKey
+     *            the session key
+     * @return false if the session is tracked and has not seen the last update of its user
+     */
+    private boolean isUpToDate( long lKey )
+    {
+        long [ ] keys = _keys;
+        int [ ] sessionUserIds = _sessionUserIds;
+        int [ ] sessionSeenEpochs = _sessionSeenEpochs;
+        int [ ] userEpochs = _userEpochs;
+
+        // the arrays may have been swapped by a concurrent resize
+        if ( keys.length != sessionUserIds.length || keys.length != sessionSeenEpochs.length )
+        {
+            return true;
+        }
+
+        int nSlot = findSlot( keys, lKey );
+
+        if ( nSlot < 0 )
+        {
+            return true;
+        }
+
+        int nUserId = sessionUserIds [nSlot];
+
+        return nUserId < 0 || nUserId >= userEpochs.length || sessionSeenEpochs [nSlot] == userEpochs [nUserId];
+    }
+
+    /**
+     * Find the slot of a key
+     *
+     * @param keys
+     *            the keys table
+     * @param lKey
+     *            the key
+     * @return the slot of the key, or -1 if the key is not in the table
+     */
+    private static int findSlot( long [ ] keys, long lKey )
+    {
+        int nMask = keys.length - 1;
+        int nSlot = (int) lKey & nMask;
+
+        // the probe is bounded so that a racy optimistic read always ends
+        for ( int nProbe = 0; nProbe < keys.length; nProbe++ )
+        {
+            long lSlotKey = keys [nSlot];
+
+            if ( lSlotKey == lKey )
+            {
+                return nSlot;
+            }
+
+            if ( lSlotKey == EMPTY_KEY )
+            {
+                return -1;
+            }
+
+            nSlot = ( nSlot + 1 ) & nMask;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Find the first free slot for a key which is not in the table
+     *
+     * @param keys
+     *            the keys table, with at least one free slot
+     * @param lKey
+     *            the key
+     * @return the free slot
+     */
+    private static int insertionSlot( long [ ] keys, long lKey )
+    {
+        int nMask = keys.length - 1;
+        int nSlot = (int) lKey & nMask;
+
+        while ( keys [nSlot] != EMPTY_KEY )
+        {
+            nSlot = ( nSlot + 1 ) & nMask;
+        }
+
+        return nSlot;
+    }
+
+    /**
+     * Free a slot, shifting back the following keys of the probe sequence so that no tombstone is needed
+     *
+     * @param nFreedSlot
+     *            the slot to free
+     */
+    private void deleteSlot( int nFreedSlot )
+    {
+        int nMask = _keys.length - 1;
+        int nGap = nFreedSlot;
+        int nSlot = ( nGap + 1 ) & nMask;
+
+        while ( _keys [nSlot] != EMPTY_KEY )
+        {
+            int nHome = (int) _keys [nSlot] & nMask;
+
+            // move the key into the gap if its home slot is not between the gap and the key
+            if ( ( ( nSlot - nHome ) & nMask ) >= ( ( nSlot - nGap ) & nMask ) )
+            {
+                _keys [nGap] = _keys [nSlot];
+                _sessionUserIds [nGap] = _sessionUserIds [nSlot];
+                _sessionSeenEpochs [nGap] = _sessionSeenEpochs [nSlot];
+                _sessionAccessTimes [nGap] = _sessionAccessTimes [nSlot];
+                nGap = nSlot;
+            }
+
+            nSlot = ( nSlot + 1 ) & nMask;
+        }
+
+        _keys [nGap] = EMPTY_KEY;
+        _sessionUserIds [nGap] = NO_USER;
+    }
+
+    /**
+     * Rehash the sessions into new tables
+     *
+     * @param nCapacity
+     *            the new capacity, a power of two
+     */
+    private void resize( int nCapacity )
+    {
+        long [ ] keys = new long [ nCapacity];
+        int [ ] sessionUserIds = new int [ nCapacity];
+        int [ ] sessionSeenEpochs = new int [ nCapacity];
+        int [ ] sessionAccessTimes = new int [ nCapacity];
+
+        for ( int i = 0; i < _keys.length; i++ )
+        {
+            if ( _keys [i] != EMPTY_KEY )
+            {
+                int nSlot = insertionSlot( keys, _keys [i] );
+                keys [nSlot] = _keys [i];
+                sessionUserIds [nSlot] = _sessionUserIds [i];
+                sessionSeenEpochs [nSlot] = _sessionSeenEpochs [i];
+                sessionAccessTimes [nSlot] = _sessionAccessTimes [i];
+            }
+        }
+
+        _keys = keys;
+        _sessionUserIds = sessionUserIds;
+        _sessionSeenEpochs = sessionSeenEpochs;
+        _sessionAccessTimes = sessionAccessTimes;
+    }
+
+    /**
+     * Remove the session of a slot, under the write lock
+     *
+     * @param nSlot
+     *            the slot
+     */
+    private void removeSlot( int nSlot )
+    {
+        releaseUser( _sessionUserIds [nSlot] );
+        deleteSlot( nSlot );
+        _nSessionCount--;
+    }
+
+    /**
+     * Evict the least recently used of the sessions sampled from the clock hand, under the write lock
+     *
+     * @param lProtectedKey
+     *            the key of the session being registered, which is never evicted
+     * @return the key of the evicted session, or the empty key
+     */
+    private long evictLeastRecentlyUsed( long lProtectedKey )
+    {
+        int nMask = _keys.length - 1;
+        int nVictim = -1;
+        int nSampled = 0;
+
+        for ( int nProbe = 0; nProbe < _keys.length && nSampled < EVICTION_SAMPLES; nProbe++ )
+        {
+            int nSlot = _nClockHand & nMask;
+            _nClockHand = nSlot + 1;
+
+            if ( _keys [nSlot] != EMPTY_KEY && _keys [nSlot] != lProtectedKey )
+            {
+                nSampled++;
+
+                if ( nVictim < 0 || _sessionAccessTimes [nSlot] - _sessionAccessTimes [nVictim] < 0 )
+                {
+                    nVictim = nSlot;
+                }
+            }
+        }
+
+        if ( nVictim < 0 )
+        {
+            return EMPTY_KEY;
+        }
+
+        long lKey = _keys [nVictim];
+        removeSlot( nVictim );
+
+        return lKey;
+    }
+
+    /**
+     * Expire the sessions idle for longer than the idle timeout, sweeping the slice of the table of a tick
+     */
+    private void expireIdleSessions( )
+    {
+        try
+        {
+            int nLimit = now( ) - (int) ( ( _lIdleTimeout + MILLISECONDS_PER_SECOND - 1 ) / MILLISECONDS_PER_SECOND );
+            long lSliceSize = Math.max( SWEEP_CHUNK, _keys.length * _lTickDuration * SWEEPS_PER_IDLE_TIMEOUT / _lIdleTimeout );
+            long [ ] expiredKeys = new long [ SWEEP_CHUNK];
+            int nExpiredCount = 0;
+
+            for ( long lSwept = 0; lSwept < lSliceSize; lSwept += SWEEP_CHUNK )
+            {
+                int nChunkExpiredCount = 0;
+                long lStamp = _lock.writeLock( );
+
+                try
+                {
+                    int nSlot = ( _nSweepCursor < _keys.length ) ? _nSweepCursor : 0;
+                    int nEnd = Math.min( nSlot + SWEEP_CHUNK, _keys.length );
+
+                    while ( nSlot < nEnd )
+                    {
+                        if ( _keys [nSlot] != EMPTY_KEY && _sessionAccessTimes [nSlot] - nLimit < 0 )
+                        {
+                            if ( nChunkExpiredCount == expiredKeys.length )
+                            {
+                                expiredKeys = Arrays.copyOf( expiredKeys, expiredKeys.length * 2 );
+                            }
+
+                            expiredKeys [nChunkExpiredCount++] = _keys [nSlot];
+                            // the backward shift may move another session into the slot, which is checked again
+                            removeSlot( nSlot );
+                        }
+                        else
+                        {
+                            nSlot++;
+                        }
+                    }
+
+                    _nSweepCursor = nEnd;
+                }
+                finally
+                {
+                    _lock.unlockWrite( lStamp );
+                }
+
+                for ( int i = 0; i < nChunkExpiredCount; i++ )
+                {
+                    recordLuteceUserSessionEviction( expiredKeys [i] );
+                }
+
+                nExpiredCount += nChunkExpiredCount;
+            }
+
+            if ( nExpiredCount > 0 )
+            {
+                AppLogService.debug( "Oauth2 - " + nExpiredCount + " idle sessions expired" );
+            }
+        }
+        catch( RuntimeException e )
+        {
+            AppLogService.error( "Oauth2 - error while expiring the idle sessions", e );
+        }
+    }
+
+    /**
+     * Start the expiry of the idle sessions with the first session, when an idle timeout is set
+     */
+    private void startExpiry( )
+    {
+        if ( _expiryScheduler == null && _lIdleTimeout > 0 )
+        {
+            synchronized( this )
+            {
+                if ( _expiryScheduler == null )
+                {
+                    _expiryScheduler = Executors.newSingleThreadScheduledExecutor( runnable -> {
+                        Thread thread = new Thread( runnable, THREAD_NAME );
+                        thread.setDaemon( true );
+
+                        return thread;
+                    } );
+                    _expiryScheduler.scheduleWithFixedDelay( this::expireIdleSessions, _lTickDuration, _lTickDuration, TimeUnit.MILLISECONDS );
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the current time, in seconds since the creation of the registry
+     */
+    private int now( )
+    {
+        return (int) ( ( System.currentTimeMillis( ) - _lTimeOrigin ) / MILLISECONDS_PER_SECOND );
+    }
+
+    /**
+     * Get the id of a user, allocating one if the user is not known yet
+     *
+     * @param strLuteceUserName
+     *            the lutece user name
+     * @return the user id
+     */
+    private int internUser( String strLuteceUserName )
+    {
+        Integer nExistingUserId = _mapUserIds.get( strLuteceUserName );
+
+        if ( nExistingUserId != null )
+        {
+            return nExistingUserId;
+        }
+
+        int nUserId;
+
+        if ( _nFreeUserIdCount > 0 )
+        {
+            nUserId = _freeUserIds [--_nFreeUserIdCount];
+        }
+        else
+        {
+            if ( _nUserIdCount == _userNames.length )
+            {
+                int nCapacity = _userNames.length * 2;
+                _userNames = Arrays.copyOf( _userNames, nCapacity );
+                _userEpochs = Arrays.copyOf( _userEpochs, nCapacity );
+                _userSessionCounts = Arrays.copyOf( _userSessionCounts, nCapacity );
+                _freeUserIds = Arrays.copyOf( _freeUserIds, nCapacity );
+            }
+
+            nUserId = _nUserIdCount++;
+        }
+
+        _userNames [nUserId] = strLuteceUserName;
+        _userSessionCounts [nUserId] = 0;
+        _mapUserIds.put( strLuteceUserName, nUserId );
+
+        return nUserId;
+    }
+
+    /**
+     * Release a session of a user, and the user id once the user has no more sessions
+     *
+     * @param nUserId
+     *            the user id
+     */
+    private void releaseUser( int nUserId )
+    {
+        if ( --_userSessionCounts [nUserId] == 0 )
+        {
+            _mapUserIds.remove( _userNames [nUserId] );
+            _userNames [nUserId] = null;
+            _freeUserIds [_nFreeUserIdCount++] = nUserId;
+        }
+    }
+
+    /**
+     * Set the idle time after which a session is removed from the registry
+     *
+     * @param lIdleTimeout
+     *            the idle timeout in milliseconds, 0 to keep the idle sessions
+     */
+    public void setIdleTimeout( long lIdleTimeout )
+    {
+        _lIdleTimeout = lIdleTimeout;
+        _bBounded = _lIdleTimeout > 0 || _nMaxSessions > 0;
+    }
+
+    /**
+     * Set the maximum number of sessions of the registry, beyond which the least recently used sessions are evicted
+     *
+     * @param nMaxSessions
+     *            the maximum number of sessions, 0 for no maximum
+     */
+    public void setMaxSessions( int nMaxSessions )
+    {
+        _nMaxSessions = nMaxSessions;
+        _bBounded = _lIdleTimeout > 0 || _nMaxSessions > 0;
+    }
+
+    /**
+     * Set the interval between two sweeps of the idle sessions
+     *
+     * @param lTickDuration
+     *            the interval in milliseconds
+     */
+    public void setTickDuration( long lTickDuration )
+    {
+        _lTickDuration = Math.max( 1L, lTickDuration );
+    }
+
+    /**
+     * Stop the expiry of the idle sessions
+     */
+    public synchronized void destroy( )
+    {
+        if ( _expiryScheduler != null )
+        {
+            _expiryScheduler.shutdownNow( );
+        }
+    }
+
+    /**
+     * Hash a session id to a non zero 64 bits key (FNV-1a followed by the murmur3 finalizer)
+     *
+     * @param strSession
+     *            the session id
+     * @return the key
+     */
+    static long hash( String strSession )
+    {
+        long lHash = 0xcbf29ce484222325L;
+
+        for ( int i = 0; i < strSession.length( ); i++ )
+        {
+            lHash ^= strSession.charAt( i );
+            lHash *= 0x100000001b3L;
+        }
+
+        lHash ^= ( lHash >>> 33 );
+        lHash *= 0xff51afd7ed558ccdL;
+        lHash ^= ( lHash >>> 33 );
+        lHash *= 0xc4ceb9fe1a85ec53L;
+        lHash ^= ( lHash >>> 33 );
+
+        return ( lHash == EMPTY_KEY ) ? 1L : lHash;
+    }
+}
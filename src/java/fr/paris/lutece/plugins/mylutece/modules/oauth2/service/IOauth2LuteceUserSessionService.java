@@ -33,6 +33,8 @@
  */
 package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
 
+import java.util.Collection;
+
 public interface IOauth2LuteceUserSessionService
 {
     boolean isLuteceUserUpToDate( String strSession );
@@ -42,4 +44,26 @@ public interface IOauth2LuteceUserSessionService
     void removeLuteceUserSession( String strSession );
 
     void notifyLuteceUserUpdating( String strLuteceUserName );
+
+    /**
+     * Record an access to a session, which keeps it from being expired or evicted by a bounded registry
+     * 
+     * @param strSession
+     *            the session id
+     */
+    default void touchLuteceUserSession( String strSession )
+    {
+        // the sessions are not bounded
+    }
+
+    /**
+     * Notify the update of several users
+     * 
+     * @param listLuteceUserNames
+     *            the lutece user names
+     */
+    default void notifyLuteceUsersUpdating( Collection<String> listLuteceUserNames )
+    {
+        listLuteceUserNames.forEach( this::notifyLuteceUserUpdating );
+    }
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.util.Map;
+
+/**
+ * Provider of user attributes read from another backend when a user logs in.
+ * <p>
+ * The providers declared as beans are called concurrently, each one on a thread of the enrichment pool, with a copy of the attributes read from the
+ * identity provider : a provider returns the attributes to add, which are set on the user by the login request. A provider which does not answer before
+ * its deadline is ignored for this login.
+ * </p>
+ */
+public interface IOauth2UserEnrichmentProvider
+{
+    /**
+     * @return the name of the provider, used for its deadline property and in the logs
+     */
+    String getName( );
+
+    /**
+     * Provide the attributes of a user
+     *
+     * @param strUserName
+     *            the name of the user being logged in
+     * @param mapUserInfos
+     *            the attributes read from the identity provider, not modifiable
+     * @return the attributes to add to the user, by attribute name
+     */
+    Map<String, String> provideUserInfos( String strUserName, Map<String, String> mapUserInfos );
+}
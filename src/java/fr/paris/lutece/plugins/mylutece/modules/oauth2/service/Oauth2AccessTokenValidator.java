@@ -0,0 +1,545 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ * Local validation of the JWT access tokens.
+ * <p>
+ * When the identity provider issues signed JWT access tokens, the filter can check that a user is still logged in without any call : the signature is
+ * verified with the keys of the JSON Web Key Set of the identity provider, then the expiry, the not before time, the issuer and the audience are checked.
+ * The audience is checked only when the expected audiences are configured : a token matches when its audience, or its authorized party, is one of them,
+ * since many identity providers set the resource server in the audience and the client in the authorized party.
+ * The RS256, RS384, RS512, ES256, ES384 and ES512 algorithms are supported.
+ * </p>
+ */
+public final class Oauth2AccessTokenValidator
+{
+    private static final String PROPERTY_JWKS_URI = "mylutece-oauth2.validateAccessToken.jwksUri";
+    private static final String PROPERTY_ISSUER = "mylutece-oauth2.validateAccessToken.issuer";
+    private static final String PROPERTY_AUDIENCES = "mylutece-oauth2.validateAccessToken.audiences";
+    private static final String PROPERTY_CLOCK_SKEW = "mylutece-oauth2.validateAccessToken.clockSkew";
+    private static final String PROPERTY_JWKS_MAX_AGE = "mylutece-oauth2.validateAccessToken.jwksMaxAge";
+    private static final String PROPERTY_JWKS_MIN_REFRESH_INTERVAL = "mylutece-oauth2.validateAccessToken.jwksMinRefreshInterval";
+    private static final int DEFAULT_CLOCK_SKEW = 60;
+    private static final int DEFAULT_JWKS_MAX_AGE = 3600;
+    private static final int DEFAULT_JWKS_MIN_REFRESH_INTERVAL = 60;
+    private static final String SEPARATOR = ",";
+    private static final String CLAIM_ALG = "alg";
+    private static final String CLAIM_KID = "kid";
+    private static final String CLAIM_EXP = "exp";
+    private static final String CLAIM_NBF = "nbf";
+    private static final String CLAIM_ISS = "iss";
+    private static final String CLAIM_AUD = "aud";
+    private static final String CLAIM_AZP = "azp";
+    private static final Map<String, Algorithm> ALGORITHMS = new HashMap<>( );
+    private static final String STATISTICS_NAME = "accessTokenValidation";
+
+    static
+    {
+        ALGORITHMS.put( "RS256", new Algorithm( "SHA256withRSA", "RSA", 0 ) );
+        ALGORITHMS.put( "RS384", new Algorithm( "SHA384withRSA", "RSA", 0 ) );
+        ALGORITHMS.put( "RS512", new Algorithm( "SHA512withRSA", "RSA", 0 ) );
+        ALGORITHMS.put( "ES256", new Algorithm( "SHA256withECDSA", "EC", 32 ) );
+        ALGORITHMS.put( "ES384", new Algorithm( "SHA384withECDSA", "EC", 48 ) );
+        ALGORITHMS.put( "ES512", new Algorithm( "SHA512withECDSA", "EC", 66 ) );
+    }
+
+    private static Oauth2AccessTokenValidator _singleton;
+
+    private final Oauth2JwksCache _jwksCache;
+    private final String _strIssuer;
+    private final Set<String> _setAudiences = new HashSet<>( );
+    private final long _lClockSkew;
+    private final ObjectMapper _mapper = new ObjectMapper( );
+    private final LongAdder _lValid = new LongAdder( );
+    private final LongAdder _lExpired = new LongAdder( );
+    private final LongAdder _lInvalid = new LongAdder( );
+    private final LongAdder _lUnverifiable = new LongAdder( );
+
+    /**
+     * Result of the validation of an access token
+     */
+    public enum Result
+    {
+        /** signed by the identity provider, not expired and issued for this site */
+        VALID,
+        /** signed by the identity provider but expired */
+        EXPIRED,
+        /** forged, not yet valid, or issued by another issuer or for another audience */
+        INVALID,
+        /** not a JWT, unsupported algorithm or no key of the identity provider available : only the identity provider can tell */
+        UNVERIFIABLE
+    }
+
+    /**
+     * private constructor.
+     */
+    private Oauth2AccessTokenValidator( )
+    {
+        this( createJwksCache( AppPropertiesService.getProperty( PROPERTY_JWKS_URI ) ), AppPropertiesService.getProperty( PROPERTY_ISSUER ),
+                Arrays.asList( StringUtils.defaultString( AppPropertiesService.getProperty( PROPERTY_AUDIENCES ) ).split( SEPARATOR ) ),
+                AppPropertiesService.getPropertyInt( PROPERTY_CLOCK_SKEW, DEFAULT_CLOCK_SKEW ) );
+
+        Oauth2StatisticsService.register( STATISTICS_NAME, this::getStatistics );
+    }
+
+    /**
+     * Constructor
+     *
+     * @param jwksCache
+     *            the key set of the identity provider, or null
+     * @param strIssuer
+     *            the expected issuer, or null
+     * @param audiences
+     *            the expected audiences, possibly empty
+     * @param lClockSkew
+     *            the tolerated clock difference, in seconds
+     */
+    Oauth2AccessTokenValidator( Oauth2JwksCache jwksCache, String strIssuer, Collection<String> audiences, long lClockSkew )
+    {
+        _jwksCache = jwksCache;
+        _strIssuer = StringUtils.trimToNull( strIssuer );
+        _lClockSkew = Math.max( 0, lClockSkew );
+        audiences.stream( ).map( String::trim ).filter( StringUtils::isNotEmpty ).forEach( _setAudiences::add );
+    }
+
+    /**
+     * Create the key set of the identity provider
+     *
+     * @param strJwksUri
+     *            the uri of the key set, or null
+     * @return the key set, or null if the uri is not set
+     */
+    private static Oauth2JwksCache createJwksCache( String strJwksUri )
+    {
+        if ( StringUtils.isBlank( strJwksUri ) )
+        {
+            return null;
+        }
+
+        return new Oauth2JwksCache( strJwksUri.trim( ), Math.max( 1, AppPropertiesService.getPropertyInt( PROPERTY_JWKS_MAX_AGE, DEFAULT_JWKS_MAX_AGE ) ) * 1000L,
+                Math.max( 0, AppPropertiesService.getPropertyInt( PROPERTY_JWKS_MIN_REFRESH_INTERVAL, DEFAULT_JWKS_MIN_REFRESH_INTERVAL ) ) * 1000L );
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance
+     */
+    public static synchronized Oauth2AccessTokenValidator getInstance( )
+    {
+        if ( _singleton == null )
+        {
+            _singleton = new Oauth2AccessTokenValidator( );
+        }
+
+        return _singleton;
+    }
+
+    /**
+     * @return the statistics of the validations
+     */
+    public Oauth2ComponentStatistics getStatistics( )
+    {
+        return new Oauth2ComponentStatistics( )
+                .add( "enabled", isEnabled( ) )
+                .add( "validCount", getValidCount( ) )
+                .add( "expiredCount", getExpiredCount( ) )
+                .add( "invalidCount", getInvalidCount( ) )
+                .add( "unverifiableCount", getUnverifiableCount( ) )
+                .add( "keyCount", getKeyCount( ) );
+    }
+
+    /**
+     * @return true if the key set of the identity provider is configured
+     */
+    public boolean isEnabled( )
+    {
+        return _jwksCache != null;
+    }
+
+    /**
+     * Validate an access token
+     *
+     * @param strAccessToken
+     *            the access token
+     * @return the result of the validation
+     */
+    public Result validate( String strAccessToken )
+    {
+        Result result = doValidate( strAccessToken );
+
+        switch( result )
+        {
+            case VALID:
+                _lValid.increment( );
+                break;
+            case EXPIRED:
+                _lExpired.increment( );
+                break;
+            case INVALID:
+                _lInvalid.increment( );
+                break;
+            default:
+                _lUnverifiable.increment( );
+                break;
+        }
+
+        return result;
+    }
+
+    /**
+     * Validate an access token
+     *
+     * @param strAccessToken
+     *            the access token
+     * @return the result of the validation
+     */
+    private Result doValidate( String strAccessToken )
+    {
+        if ( _jwksCache == null || strAccessToken == null )
+        {
+            return Result.UNVERIFIABLE;
+        }
+
+        int nPayload = strAccessToken.indexOf( '.' );
+        int nSignature = strAccessToken.indexOf( '.', nPayload + 1 );
+
+        if ( nPayload < 0 || nSignature < 0 || strAccessToken.indexOf( '.', nSignature + 1 ) >= 0 )
+        {
+            // opaque token
+            return Result.UNVERIFIABLE;
+        }
+
+        JsonNode header;
+        JsonNode payload;
+        byte [ ] signature;
+
+        try
+        {
+            Base64.Decoder decoder = Base64.getUrlDecoder( );
+            header = _mapper.readTree( decoder.decode( strAccessToken.substring( 0, nPayload ) ) );
+            payload = _mapper.readTree( decoder.decode( strAccessToken.substring( nPayload + 1, nSignature ) ) );
+            signature = decoder.decode( strAccessToken.substring( nSignature + 1 ) );
+        }
+        catch( IOException | IllegalArgumentException e )
+        {
+            return Result.UNVERIFIABLE;
+        }
+
+        Algorithm algorithm = ALGORITHMS.get( header.path( CLAIM_ALG ).asText( ) );
+
+        if ( algorithm == null )
+        {
+            return Result.UNVERIFIABLE;
+        }
+
+        String strKid = header.hasNonNull( CLAIM_KID ) ? header.get( CLAIM_KID ).asText( ) : null;
+        byte [ ] signedContent = strAccessToken.substring( 0, nSignature ).getBytes( StandardCharsets.US_ASCII );
+        int nVerification = verify( algorithm, _jwksCache.getKeys( strKid, algorithm._strKty ), signedContent, signature );
+
+        if ( nVerification != 1 )
+        {
+            // no key of the identity provider available, or a key of the identity provider which does not match the signature
+            return ( nVerification == 0 ) ? Result.UNVERIFIABLE : Result.INVALID;
+        }
+
+        return checkClaims( payload );
+    }
+
+    /**
+     * Verify the signature of a token
+     *
+     * @param algorithm
+     *            the algorithm of the token
+     * @param keys
+     *            the candidate keys
+     * @param signedContent
+     *            the header and the payload of the token
+     * @param signature
+     *            the signature of the token
+     * @return 1 if a key verifies the signature, -1 if none does, 0 if there is no key
+     */
+    private static int verify( Algorithm algorithm, Iterable<PublicKey> keys, byte [ ] signedContent, byte [ ] signature )
+    {
+        int nVerification = 0;
+
+        try
+        {
+            byte [ ] derSignature = ( algorithm._nEcSize > 0 ) ? toDer( signature, algorithm._nEcSize ) : signature;
+
+            for ( PublicKey key : keys )
+            {
+                Signature verifier = Signature.getInstance( algorithm._strJcaName );
+                verifier.initVerify( key );
+                verifier.update( signedContent );
+
+                if ( derSignature != null && verifier.verify( derSignature ) )
+                {
+                    return 1;
+                }
+
+                nVerification = -1;
+            }
+        }
+        catch( GeneralSecurityException e )
+        {
+            AppLogService.debug( "Oauth2 - access token signature not verified : " + e.getMessage( ) );
+
+            return -1;
+        }
+
+        return nVerification;
+    }
+
+    /**
+     * Convert a JWS ECDSA signature (R and S concatenated) to the DER encoding of the JCA
+     *
+     * @param signature
+     *            the JWS signature
+     * @param nSize
+     *            the size of R and S
+     * @return the DER signature, or null if the size of the signature is wrong
+     */
+    static byte [ ] toDer( byte [ ] signature, int nSize )
+    {
+        if ( signature.length != 2 * nSize )
+        {
+            return null;
+        }
+
+        byte [ ] r = toDerInteger( signature, 0, nSize );
+        byte [ ] s = toDerInteger( signature, nSize, nSize );
+        int nLength = r.length + s.length;
+        ByteArrayOutputStream der = new ByteArrayOutputStream( nLength + 3 );
+        der.write( 0x30 );
+
+        if ( nLength >= 0x80 )
+        {
+            der.write( 0x81 );
+        }
+
+        der.write( nLength );
+        der.write( r, 0, r.length );
+        der.write( s, 0, s.length );
+
+        return der.toByteArray( );
+    }
+
+    /**
+     * Encode an unsigned big endian integer as a DER INTEGER
+     *
+     * @param bytes
+     *            the bytes
+     * @param nOffset
+     *            the offset of the integer
+     * @param nSize
+     *            the size of the integer
+     * @return the DER INTEGER
+     */
+    private static byte [ ] toDerInteger( byte [ ] bytes, int nOffset, int nSize )
+    {
+        int nStart = nOffset;
+        int nEnd = nOffset + nSize;
+
+        while ( nStart < nEnd - 1 && bytes [nStart] == 0 )
+        {
+            nStart++;
+        }
+
+        // a leading zero keeps the integer positive
+        int nPadding = ( ( bytes [nStart] & 0x80 ) != 0 ) ? 1 : 0;
+        int nLength = nEnd - nStart + nPadding;
+        byte [ ] integer = new byte [ nLength + 2];
+        integer [0] = 0x02;
+        integer [1] = (byte) nLength;
+        System.arraycopy( bytes, nStart, integer, 2 + nPadding, nEnd - nStart );
+
+        return integer;
+    }
+
+    /**
+     * Check the claims of a token whose signature is verified
+     *
+     * @param payload
+     *            the claims
+     * @return the result of the validation
+     */
+    private Result checkClaims( JsonNode payload )
+    {
+        long lNow = System.currentTimeMillis( ) / 1000L;
+
+        if ( !payload.path( CLAIM_EXP ).canConvertToLong( ) )
+        {
+            return Result.INVALID;
+        }
+
+        if ( lNow - _lClockSkew >= payload.get( CLAIM_EXP ).asLong( ) )
+        {
+            return Result.EXPIRED;
+        }
+
+        if ( payload.hasNonNull( CLAIM_NBF ) && lNow + _lClockSkew < payload.get( CLAIM_NBF ).asLong( ) )
+        {
+            return Result.INVALID;
+        }
+
+        if ( _strIssuer != null && !_strIssuer.equals( payload.path( CLAIM_ISS ).asText( ) ) )
+        {
+            return Result.INVALID;
+        }
+
+        if ( !_setAudiences.isEmpty( ) && !hasAudience( payload.path( CLAIM_AUD ) ) && !hasAudience( payload.path( CLAIM_AZP ) ) )
+        {
+            return Result.INVALID;
+        }
+
+        return Result.VALID;
+    }
+
+    /**
+     * Check if a token is issued for one of the audiences of the site
+     *
+     * @param audience
+     *            the audience or authorized party claim, a string or an array
+     * @return true if an audience matches
+     */
+    private boolean hasAudience( JsonNode audience )
+    {
+        if ( audience.isTextual( ) )
+        {
+            return _setAudiences.contains( audience.asText( ) );
+        }
+
+        for ( JsonNode item : audience )
+        {
+            if ( _setAudiences.contains( item.asText( ) ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the number of access tokens validated
+     */
+    public long getValidCount( )
+    {
+        return _lValid.sum( );
+    }
+
+    /**
+     * @return the number of expired access tokens
+     */
+    public long getExpiredCount( )
+    {
+        return _lExpired.sum( );
+    }
+
+    /**
+     * @return the number of rejected access tokens
+     */
+    public long getInvalidCount( )
+    {
+        return _lInvalid.sum( );
+    }
+
+    /**
+     * @return the number of access tokens left to the identity provider
+     */
+    public long getUnverifiableCount( )
+    {
+        return _lUnverifiable.sum( );
+    }
+
+    /**
+     * @return the number of signing keys of the identity provider
+     */
+    public int getKeyCount( )
+    {
+        return ( _jwksCache != null ) ? _jwksCache.getSize( ) : 0;
+    }
+
+    /**
+     * Signature algorithm of the tokens
+     */
+    private static final class Algorithm
+    {
+        private final String _strJcaName;
+        private final String _strKty;
+        private final int _nEcSize;
+
+        /**
+         * Constructor
+         *
+         * @param strJcaName
+         *            the JCA name of the algorithm
+         * @param strKty
+         *            the type of the keys
+         * @param nEcSize
+         *            the size of R and S for the ECDSA algorithms, 0 otherwise
+         */
+        Algorithm( String strJcaName, String strKty, int nEcSize )
+        {
+            _strJcaName = strJcaName;
+            _strKty = strKty;
+            _nEcSize = nEcSize;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Extraction of the claims of a userinfo document.
+ * <p>
+ * The claims are read in a single pass over the JSON tokens : only the claims used by the module are materialized, the other values are skipped without
+ * being allocated. A claim is either the name of a member of the document, or, when it contains a slash, a JSON Pointer to a nested value, for instance
+ * address/locality, /address/locality or /groups/0. Such a claim is looked up both ways, so that the names of the members containing a slash (URIs)
+ * still work, the member of the document taking precedence over the value pointed to. The values are the same as those of a full deserialization :
+ * strings, numbers, booleans, lists and maps.
+ * </p>
+ */
+final class Oauth2ClaimExtractor
+{
+    private static final char POINTER_SEPARATOR = '/';
+    private static final String ESCAPED_SEPARATOR = "~1";
+    private static final String ESCAPED_TILDE = "~0";
+    private static final int MAX_INDEX_LENGTH = 9;
+
+    private final ObjectMapper _mapper;
+    private final ClaimNode _root = new ClaimNode( );
+
+    /**
+     * Constructor
+     *
+     * @param mapper
+     *            the mapper materializing the values of the claims
+     * @param claims
+     *            the claims to extract
+     */
+    Oauth2ClaimExtractor( ObjectMapper mapper, Collection<String> claims )
+    {
+        _mapper = mapper;
+
+        for ( String strClaim : claims )
+        {
+            _root.child( strClaim ).addClaim( strClaim, false );
+
+            if ( strClaim.indexOf( POINTER_SEPARATOR ) >= 0 )
+            {
+                ClaimNode node = _root;
+                String [ ] segments = strClaim.split( String.valueOf( POINTER_SEPARATOR ), -1 );
+
+                // the leading slash of an absolute pointer
+                for ( int i = ( strClaim.charAt( 0 ) == POINTER_SEPARATOR ) ? 1 : 0; i < segments.length; i++ )
+                {
+                    node = node.child( segments [i].replace( ESCAPED_SEPARATOR, String.valueOf( POINTER_SEPARATOR ) ).replace( ESCAPED_TILDE, "~" ) );
+                }
+
+                node.addClaim( strClaim, true );
+            }
+        }
+    }
+
+    /**
+     * Extract the claims of a document
+     *
+     * @param strJson
+     *            the userinfo document
+     * @return the claims found, by claim
+     * @throws IOException
+     *             if the document is not a valid JSON object
+     */
+    Map<String, Object> extract( String strJson ) throws IOException
+    {
+        Map<String, Object> mapClaims = new HashMap<>( );
+
+        try ( JsonParser parser = _mapper.getFactory( ).createParser( strJson ) )
+        {
+            if ( parser.nextToken( ) != JsonToken.START_OBJECT )
+            {
+                throw new IOException( "The userinfo document is not a JSON object" );
+            }
+
+            readObject( parser, _root, mapClaims );
+        }
+
+        return mapClaims;
+    }
+
+    /**
+     * Read the members of an object, the parser being on its start
+     *
+     * @param parser
+     *            the parser
+     * @param node
+     *            the claims of the object
+     * @param mapClaims
+     *            the claims found
+     * @throws IOException
+     *             if the document is not valid
+     */
+    private void readObject( JsonParser parser, ClaimNode node, Map<String, Object> mapClaims ) throws IOException
+    {
+        while ( parser.nextToken( ) == JsonToken.FIELD_NAME )
+        {
+            ClaimNode child = node._mapChildren.get( parser.getCurrentName( ) );
+            readValue( parser, parser.nextToken( ), child, mapClaims );
+        }
+    }
+
+    /**
+     * Read the elements of an array, the parser being on its start
+     *
+     * @param parser
+     *            the parser
+     * @param node
+     *            the claims of the array, by index
+     * @param mapClaims
+     *            the claims found
+     * @throws IOException
+     *             if the document is not valid
+     */
+    private void readArray( JsonParser parser, ClaimNode node, Map<String, Object> mapClaims ) throws IOException
+    {
+        JsonToken token;
+
+        for ( int nIndex = 0; ( token = parser.nextToken( ) ) != JsonToken.END_ARRAY; nIndex++ )
+        {
+            readValue( parser, token, node._mapChildren.get( String.valueOf( nIndex ) ), mapClaims );
+        }
+    }
+
+    /**
+     * Read a value, the parser being on its first token
+     *
+     * @param parser
+     *            the parser
+     * @param token
+     *            the first token of the value
+     * @param node
+     *            the claims of the value, or null if there is none
+     * @param mapClaims
+     *            the claims found
+     * @throws IOException
+     *             if the document is not valid
+     */
+    private void readValue( JsonParser parser, JsonToken token, ClaimNode node, Map<String, Object> mapClaims ) throws IOException
+    {
+        if ( token == null )
+        {
+            throw new IOException( "Unexpected end of the userinfo document" );
+        }
+
+        if ( node == null )
+        {
+            parser.skipChildren( );
+        }
+        else
+            if ( node.hasClaims( ) )
+            {
+                Object value = ( token == JsonToken.VALUE_NULL ) ? null : _mapper.readValue( parser, Object.class );
+                node.put( value, mapClaims );
+            }
+            else
+                if ( token == JsonToken.START_OBJECT )
+                {
+                    readObject( parser, node, mapClaims );
+                }
+                else
+                    if ( token == JsonToken.START_ARRAY )
+                    {
+                        readArray( parser, node, mapClaims );
+                    }
+                    else
+                    {
+                        parser.skipChildren( );
+                    }
+    }
+
+    /**
+     * Claims of a value of the document, and of its members
+     */
+    private static final class ClaimNode
+    {
+        private final Map<String, ClaimNode> _mapChildren = new HashMap<>( );
+        private List<String> _listClaims;
+        private List<String> _listPointerClaims;
+
+        /**
+         * Get the node of a member, created if needed
+         *
+         * @param strName
+         *            the name of the member
+         * @return the node
+         */
+        ClaimNode child( String strName )
+        {
+            return _mapChildren.computeIfAbsent( strName, x -> new ClaimNode( ) );
+        }
+
+        /**
+         * Add a claim read from this value
+         *
+         * @param strClaim
+         *            the claim
+         * @param bPointer
+         *            true if the claim points to this value, false if this value is the member named after the claim
+         */
+        void addClaim( String strClaim, boolean bPointer )
+        {
+            List<String> listClaims = bPointer ? _listPointerClaims : _listClaims;
+
+            if ( listClaims == null )
+            {
+                listClaims = new ArrayList<>( );
+
+                if ( bPointer )
+                {
+                    _listPointerClaims = listClaims;
+                }
+                else
+                {
+                    _listClaims = listClaims;
+                }
+            }
+
+            if ( !listClaims.contains( strClaim ) )
+            {
+                listClaims.add( strClaim );
+            }
+        }
+
+        /**
+         * @return true if claims are read from this value
+         */
+        boolean hasClaims( )
+        {
+            return _listClaims != null || _listPointerClaims != null;
+        }
+
+        /**
+         * Put the claims of a materialized value, and those of its members
+         *
+         * @param value
+         *            the value
+         * @param mapClaims
+         *            the claims found
+         */
+        @SuppressWarnings( "unchecked" )
+        void put( Object value, Map<String, Object> mapClaims )
+        {
+            if ( value == null )
+            {
+                return;
+            }
+
+            if ( _listClaims != null )
+            {
+                for ( String strClaim : _listClaims )
+                {
+                    mapClaims.put( strClaim, value );
+                }
+            }
+
+            if ( _listPointerClaims != null )
+            {
+                for ( String strClaim : _listPointerClaims )
+                {
+                    // the member named after the claim takes precedence, wherever it is in the document
+                    mapClaims.putIfAbsent( strClaim, value );
+                }
+            }
+
+            for ( Map.Entry<String, ClaimNode> entry : _mapChildren.entrySet( ) )
+            {
+                if ( value instanceof Map )
+                {
+                    entry.getValue( ).put( ( (Map<String, Object>) value ).get( entry.getKey( ) ), mapClaims );
+                }
+                else
+                    if ( value instanceof List )
+                    {
+                        entry.getValue( ).put( getElement( (List<Object>) value, entry.getKey( ) ), mapClaims );
+                    }
+            }
+        }
+
+        /**
+         * Get an element of a list by its index in a JSON Pointer
+         *
+         * @param list
+         *            the list
+         * @param strIndex
+         *            the index, without leading zero
+         * @return the element, or null if the index is not in the list
+         */
+        private static Object getElement( List<Object> list, String strIndex )
+        {
+            if ( strIndex.isEmpty( ) || strIndex.length( ) > MAX_INDEX_LENGTH || ( strIndex.length( ) > 1 && strIndex.charAt( 0 ) == '0' ) )
+            {
+                return null;
+            }
+
+            int nIndex = 0;
+
+            for ( int i = 0; i < strIndex.length( ); i++ )
+            {
+                char c = strIndex.charAt( i );
+
+                if ( c < '0' || c > '9' )
+                {
+                    return null;
+                }
+
+                nIndex = nIndex * 10 + ( c - '0' );
+            }
+
+            return ( nIndex < list.size( ) ) ? list.get( nIndex ) : null;
+        }
+    }
+}
@@ -0,0 +1,602 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ * Http client of the calls to the identity provider.
+ * <p>
+ * The number of concurrent calls, hence of open connections, is bounded : a call waits until another one completes, and fails once its deadline is
+ * reached. The connections are kept alive by the JVM between the calls (the responses are always fully read), so that the TCP and TLS handshakes are
+ * paid once per connection. The JVM keeps at most http.maxConnections idle connections per host (5 by default) : this system property should be set to
+ * the maximum number of concurrent calls, otherwise the connections released beyond it are closed and the next calls open new ones. Each call has a
+ * connect timeout, a read timeout, and an overall deadline covering the wait, the connection and the whole response. The concurrency and the latency of
+ * each endpoint are reported by the statistics.
+ * </p>
+ */
+public final class Oauth2HttpClient
+{
+    private static final String PROPERTY_MAX_CONNECTIONS = "mylutece-oauth2.httpClient.maxConnections";
+    private static final String PROPERTY_CONNECT_TIMEOUT = "mylutece-oauth2.httpClient.connectTimeout";
+    private static final String PROPERTY_READ_TIMEOUT = "mylutece-oauth2.httpClient.readTimeout";
+    private static final String PROPERTY_DEADLINE = "mylutece-oauth2.httpClient.deadline";
+    private static final String PROPERTY_USER_INFO = "mylutece-oauth2.httpClient.userInfo";
+    private static final int DEFAULT_MAX_CONNECTIONS = 20;
+    private static final String SYSTEM_PROPERTY_KEEP_ALIVE_CONNECTIONS = "http.maxConnections";
+    private static final int DEFAULT_KEEP_ALIVE_CONNECTIONS = 5;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 2000;
+    private static final int DEFAULT_READ_TIMEOUT = 5000;
+    private static final int DEFAULT_DEADLINE = 8000;
+    private static final String METHOD_POST = "POST";
+    private static final String HEADER_CONTENT_TYPE = "Content-Type";
+    private static final String STATISTICS_NAME = "httpClient";
+    private static final int BUFFER_SIZE = 4096;
+
+    private static Oauth2HttpClient _singleton;
+
+    private final int _nMaxConnections;
+    private final int _nConnectTimeout;
+    private final int _nReadTimeout;
+    private final long _lDeadline;
+    private final boolean _bUserInfo;
+    private final Semaphore _connections;
+    private final LongAdder _lWaits = new LongAdder( );
+    private final LongAdder _lRejections = new LongAdder( );
+    private final Map<String, EndpointStatistics> _mapEndpoints = new ConcurrentHashMap<>( );
+
+    /**
+     * private constructor.
+     */
+    private Oauth2HttpClient( )
+    {
+        _nMaxConnections = Math.max( 1, AppPropertiesService.getPropertyInt( PROPERTY_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS ) );
+        _nConnectTimeout = Math.max( 1, AppPropertiesService.getPropertyInt( PROPERTY_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT ) );
+        _nReadTimeout = Math.max( 1, AppPropertiesService.getPropertyInt( PROPERTY_READ_TIMEOUT, DEFAULT_READ_TIMEOUT ) );
+        _lDeadline = Math.max( 1, AppPropertiesService.getPropertyInt( PROPERTY_DEADLINE, DEFAULT_DEADLINE ) );
+        _bUserInfo = AppPropertiesService.getPropertyBoolean( PROPERTY_USER_INFO, true );
+        _connections = new Semaphore( _nMaxConnections );
+
+        int nKeepAliveConnections = Integer.getInteger( SYSTEM_PROPERTY_KEEP_ALIVE_CONNECTIONS, DEFAULT_KEEP_ALIVE_CONNECTIONS );
+
+        if ( nKeepAliveConnections < _nMaxConnections )
+        {
+            AppLogService.info( "Oauth2 - the JVM keeps " + nKeepAliveConnections + " idle connections per host for " + _nMaxConnections
+                    + " concurrent calls to the identity provider : set the system property " + SYSTEM_PROPERTY_KEEP_ALIVE_CONNECTIONS + "=" + _nMaxConnections
+                    + " to reuse them all" );
+        }
+
+        Oauth2StatisticsService.register( STATISTICS_NAME, this::getStatistics );
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance
+     */
+    public static synchronized Oauth2HttpClient getInstance( )
+    {
+        if ( _singleton == null )
+        {
+            _singleton = new Oauth2HttpClient( );
+        }
+
+        return _singleton;
+    }
+
+    /**
+     * @return the statistics of the calls
+     */
+    public Oauth2ComponentStatistics getStatistics( )
+    {
+        Oauth2ComponentStatistics endpoints = new Oauth2ComponentStatistics( );
+        _mapEndpoints.forEach( ( strEndpoint, statistics ) -> endpoints.add( strEndpoint, statistics.getStatistics( ) ) );
+
+        return new Oauth2ComponentStatistics( )
+                .add( "userInfoEnabled", _bUserInfo )
+                .add( "maxConnections", getMaxConnections( ) )
+                .add( "keepAliveConnections", Integer.getInteger( SYSTEM_PROPERTY_KEEP_ALIVE_CONNECTIONS, DEFAULT_KEEP_ALIVE_CONNECTIONS ) )
+                .add( "activeConnections", getActiveConnections( ) )
+                .add( "waitCount", getWaitCount( ) )
+                .add( "rejectedCount", getRejectedCount( ) )
+                .add( "endpoints", endpoints );
+    }
+
+    /**
+     * @return true if the userinfo documents are fetched by this client rather than by the oauth2 plugin
+     */
+    public boolean isUserInfoEnabled( )
+    {
+        return _bUserInfo;
+    }
+
+    /**
+     * Send a GET request
+     *
+     * @param strUri
+     *            the uri
+     * @param mapHeaders
+     *            the request headers
+     * @return the response body
+     * @throws IOException
+     *             if the call fails, times out or gets an error status
+     */
+    public String doGet( String strUri, Map<String, String> mapHeaders ) throws IOException
+    {
+        return execute( strUri, null, mapHeaders, null, null );
+    }
+
+    /**
+     * Send a POST request
+     *
+     * @param strUri
+     *            the uri
+     * @param mapHeaders
+     *            the request headers
+     * @param strContentType
+     *            the content type of the body
+     * @param strBody
+     *            the body
+     * @return the response body
+     * @throws IOException
+     *             if the call fails, times out or gets an error status
+     */
+    public String doPost( String strUri, Map<String, String> mapHeaders, String strContentType, String strBody ) throws IOException
+    {
+        return execute( strUri, METHOD_POST, mapHeaders, strContentType, strBody );
+    }
+
+    /**
+     * Send a request, once the number of concurrent calls allows it
+     *
+     * @param strUri
+     *            the uri
+     * @param strMethod
+     *            the method, or null for GET
+     * @param mapHeaders
+     *            the request headers, or null
+     * @param strContentType
+     *            the content type of the body, or null
+     * @param strBody
+     *            the body, or null
+     * @return the response body
+     * @throws IOException
+     *             if the call fails, times out or gets an error status
+     */
+    private String execute( String strUri, String strMethod, Map<String, String> mapHeaders, String strContentType, String strBody ) throws IOException
+    {
+        EndpointStatistics endpoint = getEndpoint( strUri );
+        long lStart = System.nanoTime( );
+        long lDeadline = lStart + TimeUnit.MILLISECONDS.toNanos( _lDeadline );
+
+        acquire( lDeadline );
+
+        try
+        {
+            String strResponse = send( strUri, strMethod, mapHeaders, strContentType, strBody, lDeadline, endpoint );
+            endpoint.record( System.nanoTime( ) - lStart, true );
+
+            return strResponse;
+        }
+        catch( SocketTimeoutException e )
+        {
+            endpoint._lTimeouts.increment( );
+            endpoint.record( System.nanoTime( ) - lStart, false );
+
+            throw e;
+        }
+        catch( IOException e )
+        {
+            endpoint.record( System.nanoTime( ) - lStart, false );
+
+            throw e;
+        }
+        finally
+        {
+            _connections.release( );
+        }
+    }
+
+    /**
+     * Wait until the number of concurrent calls allows a new one
+     *
+     * @param lDeadline
+     *            the deadline of the call, in nanoseconds
+     * @throws IOException
+     *             if no other call completes before the deadline
+     */
+    private void acquire( long lDeadline ) throws IOException
+    {
+        if ( _connections.tryAcquire( ) )
+        {
+            return;
+        }
+
+        _lWaits.increment( );
+
+        try
+        {
+            if ( _connections.tryAcquire( lDeadline - System.nanoTime( ), TimeUnit.NANOSECONDS ) )
+            {
+                return;
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread( ).interrupt( );
+        }
+
+        _lRejections.increment( );
+
+        throw new SocketTimeoutException( "Too many concurrent calls to the identity provider until the deadline" );
+    }
+
+    /**
+     * Send a request
+     *
+     * @param strUri
+     *            the uri
+     * @param strMethod
+     *            the method, or null for GET
+     * @param mapHeaders
+     *            the request headers, or null
+     * @param strContentType
+     *            the content type of the body, or null
+     * @param strBody
+     *            the body, or null
+     * @param lDeadline
+     *            the deadline of the call, in nanoseconds
+     * @param endpoint
+     *            the statistics of the endpoint
+     * @return the response body
+     * @throws IOException
+     *             if the call fails, times out or gets an error status
+     */
+    private String send( String strUri, String strMethod, Map<String, String> mapHeaders, String strContentType, String strBody, long lDeadline,
+            EndpointStatistics endpoint ) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL( strUri ).openConnection( );
+        connection.setConnectTimeout( getTimeout( _nConnectTimeout, lDeadline ) );
+        connection.setReadTimeout( getTimeout( _nReadTimeout, lDeadline ) );
+
+        if ( mapHeaders != null )
+        {
+            mapHeaders.forEach( connection::setRequestProperty );
+        }
+
+        byte [ ] body = ( strBody != null ) ? strBody.getBytes( StandardCharsets.UTF_8 ) : null;
+
+        if ( strMethod != null )
+        {
+            connection.setRequestMethod( strMethod );
+        }
+
+        if ( body != null )
+        {
+            connection.setDoOutput( true );
+            connection.setFixedLengthStreamingMode( body.length );
+
+            if ( strContentType != null )
+            {
+                connection.setRequestProperty( HEADER_CONTENT_TYPE, strContentType );
+            }
+        }
+
+        // a reused connection skips the TCP and TLS handshakes
+        long lConnectStart = System.nanoTime( );
+        connection.connect( );
+        endpoint._lConnectTime.add( System.nanoTime( ) - lConnectStart );
+
+        if ( body != null )
+        {
+            try ( OutputStream output = connection.getOutputStream( ) )
+            {
+                output.write( body );
+            }
+        }
+
+        connection.setReadTimeout( getTimeout( _nReadTimeout, lDeadline ) );
+
+        int nStatus = connection.getResponseCode( );
+
+        // the response is always consumed so that the connection is kept alive
+        try ( InputStream input = ( nStatus < HttpURLConnection.HTTP_BAD_REQUEST ) ? connection.getInputStream( ) : connection.getErrorStream( ) )
+        {
+            String strResponse = read( input, connection, lDeadline );
+
+            if ( nStatus < HttpURLConnection.HTTP_OK || nStatus >= HttpURLConnection.HTTP_MULT_CHOICE )
+            {
+                throw new IOException( "HTTP status " + nStatus + " from " + endpoint._strEndpoint );
+            }
+
+            return strResponse;
+        }
+    }
+
+    /**
+     * Read a response body before the deadline
+     *
+     * @param input
+     *            the body, or null
+     * @param connection
+     *            the connection, closed when the deadline is reached
+     * @param lDeadline
+     *            the deadline of the call, in nanoseconds
+     * @return the body
+     * @throws IOException
+     *             if the body can not be read before the deadline
+     */
+    private static String read( InputStream input, HttpURLConnection connection, long lDeadline ) throws IOException
+    {
+        if ( input == null )
+        {
+            return null;
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream( );
+        byte [ ] buffer = new byte [ BUFFER_SIZE];
+        int nRead;
+
+        while ( ( nRead = input.read( buffer ) ) != -1 )
+        {
+            output.write( buffer, 0, nRead );
+
+            if ( System.nanoTime( ) - lDeadline > 0 )
+            {
+                // a slow body can not hold the caller beyond the deadline
+                connection.disconnect( );
+
+                throw new SocketTimeoutException( "Response not read before the deadline" );
+            }
+        }
+
+        return new String( output.toByteArray( ), StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * Bound a timeout by the time left before the deadline
+     *
+     * @param nTimeout
+     *            the timeout, in milliseconds
+     * @param lDeadline
+     *            the deadline of the call, in nanoseconds
+     * @return the timeout, in milliseconds
+     * @throws SocketTimeoutException
+     *             if the deadline is reached
+     */
+    private static int getTimeout( int nTimeout, long lDeadline ) throws SocketTimeoutException
+    {
+        long lRemaining = TimeUnit.NANOSECONDS.toMillis( lDeadline - System.nanoTime( ) );
+
+        if ( lRemaining <= 0 )
+        {
+            throw new SocketTimeoutException( "Deadline reached" );
+        }
+
+        return (int) Math.min( nTimeout, lRemaining );
+    }
+
+    /**
+     * Get the statistics of the endpoint of an uri
+     *
+     * @param strUri
+     *            the uri
+     * @return the statistics of the uri without its query
+     */
+    private EndpointStatistics getEndpoint( String strUri )
+    {
+        int nQuery = strUri.indexOf( '?' );
+        String strEndpoint = ( nQuery >= 0 ) ? strUri.substring( 0, nQuery ) : strUri;
+
+        return _mapEndpoints.computeIfAbsent( strEndpoint, EndpointStatistics::new );
+    }
+
+    /**
+     * Record a call made to the identity provider by another client
+     *
+     * @param strEndpoint
+     *            the endpoint
+     * @param lDuration
+     *            the duration of the call, in nanoseconds
+     * @param bSuccess
+     *            true if the call succeeded
+     */
+    public void record( String strEndpoint, long lDuration, boolean bSuccess )
+    {
+        _mapEndpoints.computeIfAbsent( strEndpoint, EndpointStatistics::new ).record( lDuration, bSuccess );
+    }
+
+    /**
+     * @return the maximum number of concurrent calls
+     */
+    public int getMaxConnections( )
+    {
+        return _nMaxConnections;
+    }
+
+    /**
+     * @return the number of calls in progress
+     */
+    public int getActiveConnections( )
+    {
+        return _nMaxConnections - _connections.availablePermits( );
+    }
+
+    /**
+     * @return the number of calls which waited for another call to complete
+     */
+    public long getWaitCount( )
+    {
+        return _lWaits.sum( );
+    }
+
+    /**
+     * @return the number of calls which could not be sent before their deadline
+     */
+    public long getRejectedCount( )
+    {
+        return _lRejections.sum( );
+    }
+
+    /**
+     * @return the statistics of each endpoint
+     */
+    public Map<String, EndpointStatistics> getEndpoints( )
+    {
+        return _mapEndpoints;
+    }
+
+    /**
+     * Statistics of the calls to an endpoint
+     */
+    public static final class EndpointStatistics
+    {
+        private final String _strEndpoint;
+        private final LongAdder _lCalls = new LongAdder( );
+        private final LongAdder _lErrors = new LongAdder( );
+        private final LongAdder _lTimeouts = new LongAdder( );
+        private final LongAdder _lTime = new LongAdder( );
+        private final LongAdder _lConnectTime = new LongAdder( );
+        private final LongAccumulator _lMaxTime = new LongAccumulator( Math::max, 0L );
+
+        /**
+         * Constructor
+         *
+         * @param strEndpoint
+         *            the endpoint
+         */
+        EndpointStatistics( String strEndpoint )
+        {
+            _strEndpoint = strEndpoint;
+        }
+
+        /**
+         * Record a call
+         *
+         * @param lDuration
+         *            the duration of the call, in nanoseconds
+         * @param bSuccess
+         *            true if the call succeeded
+         */
+        void record( long lDuration, boolean bSuccess )
+        {
+            _lCalls.increment( );
+            _lTime.add( lDuration );
+            _lMaxTime.accumulate( lDuration );
+
+            if ( !bSuccess )
+            {
+                _lErrors.increment( );
+            }
+        }
+
+        /**
+         * @return the number of calls
+         */
+        public long getCallCount( )
+        {
+            return _lCalls.sum( );
+        }
+
+        /**
+         * @return the number of failed calls
+         */
+        public long getErrorCount( )
+        {
+            return _lErrors.sum( );
+        }
+
+        /**
+         * @return the number of calls which timed out
+         */
+        public long getTimeoutCount( )
+        {
+            return _lTimeouts.sum( );
+        }
+
+        /**
+         * @return the average duration of the calls, in milliseconds
+         */
+        public double getAverageTime( )
+        {
+            long lCalls = _lCalls.sum( );
+
+            return ( lCalls > 0 ) ? _lTime.sum( ) / 1e6d / lCalls : 0d;
+        }
+
+        /**
+         * @return the average duration of the connection setup (handshakes of the new connections), in milliseconds
+         */
+        public double getAverageConnectTime( )
+        {
+            long lCalls = _lCalls.sum( );
+
+            return ( lCalls > 0 ) ? _lConnectTime.sum( ) / 1e6d / lCalls : 0d;
+        }
+
+        /**
+         * @return the longest duration of a call, in milliseconds
+         */
+        public double getMaxTime( )
+        {
+            return _lMaxTime.get( ) / 1e6d;
+        }
+
+        /**
+         * @return the statistics of the endpoint
+         */
+        public Oauth2ComponentStatistics getStatistics( )
+        {
+            return new Oauth2ComponentStatistics( ).add( "callCount", getCallCount( ) ).add( "errorCount", getErrorCount( ) )
+                    .add( "timeoutCount", getTimeoutCount( ) ).add( "averageTime", getAverageTime( ) ).add( "averageConnectTime", getAverageConnectTime( ) )
+                    .add( "maxTime", getMaxTime( ) );
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Cache of the signing keys published by the identity provider (JSON Web Key Set).
+ * <p>
+ * The key set is fetched when first needed, then again when it is older than its maximum age, or when a token is signed with an unknown key id : the
+ * identity provider publishes the new keys before using them. The fetches triggered by unknown key ids are spaced by a minimum interval, so that forged
+ * key ids can not make the module flood the identity provider. The previous keys are kept when a fetch fails, including when the document holds no
+ * supported signing key (such as an error page). A single request thread fetches the key set while the others go on with the previous keys, except
+ * during the first fetch.
+ * </p>
+ */
+final class Oauth2JwksCache
+{
+    private static final String KEY_KEYS = "keys";
+    private static final String KEY_KID = "kid";
+    private static final String KEY_KTY = "kty";
+    private static final String KEY_USE = "use";
+    private static final String KTY_RSA = "RSA";
+    private static final String KTY_EC = "EC";
+    private static final String USE_SIGNATURE = "sig";
+    private static final Map<String, String> EC_CURVES = new HashMap<>( );
+
+    static
+    {
+        EC_CURVES.put( "P-256", "secp256r1" );
+        EC_CURVES.put( "P-384", "secp384r1" );
+        EC_CURVES.put( "P-521", "secp521r1" );
+    }
+
+    private final String _strJwksUri;
+    private final Fetcher _fetcher;
+    private final long _lMaxAge;
+    private final long _lMinRefreshInterval;
+    private final ObjectMapper _mapper = new ObjectMapper( );
+    private volatile List<SigningKey> _listKeys = Collections.emptyList( );
+    private volatile long _lFetchTime;
+    private final Lock _lockFetch = new ReentrantLock( );
+    private volatile long _lLastFetchAttempt;
+
+    /**
+     * Constructor
+     *
+     * @param strJwksUri
+     *            the uri of the key set
+     * @param lMaxAge
+     *            the maximum age of the key set, in milliseconds
+     * @param lMinRefreshInterval
+     *            the minimum interval between two fetches, in milliseconds
+     */
+    Oauth2JwksCache( String strJwksUri, long lMaxAge, long lMinRefreshInterval )
+    {
+        this( strJwksUri, uri -> Oauth2HttpClient.getInstance( ).doGet( uri, null ), lMaxAge, lMinRefreshInterval );
+    }
+
+    /**
+     * Constructor
+     *
+     * @param strJwksUri
+     *            the uri of the key set
+     * @param fetcher
+     *            the fetcher of the key set document
+     * @param lMaxAge
+     *            the maximum age of the key set, in milliseconds
+     * @param lMinRefreshInterval
+     *            the minimum interval between two fetches, in milliseconds
+     */
+    Oauth2JwksCache( String strJwksUri, Fetcher fetcher, long lMaxAge, long lMinRefreshInterval )
+    {
+        _strJwksUri = strJwksUri;
+        _fetcher = fetcher;
+        _lMaxAge = lMaxAge;
+        _lMinRefreshInterval = lMinRefreshInterval;
+    }
+
+    /**
+     * Get the keys which may have signed a token
+     *
+     * @param strKid
+     *            the key id of the token, or null
+     * @param strKty
+     *            the key type of the signature algorithm
+     * @return the candidate keys, possibly empty
+     */
+    List<PublicKey> getKeys( String strKid, String strKty )
+    {
+        if ( System.currentTimeMillis( ) - _lFetchTime >= _lMaxAge )
+        {
+            refresh( );
+        }
+
+        List<PublicKey> listKeys = findKeys( strKid, strKty );
+
+        if ( listKeys.isEmpty( ) && strKid != null && refresh( ) )
+        {
+            // rotated keys
+            listKeys = findKeys( strKid, strKty );
+        }
+
+        return listKeys;
+    }
+
+    /**
+     * Find the keys matching a key id and a key type
+     *
+     * @param strKid
+     *            the key id, or null for any key
+     * @param strKty
+     *            the key type
+     * @return the keys found
+     */
+    private List<PublicKey> findKeys( String strKid, String strKty )
+    {
+        List<PublicKey> listKeys = new ArrayList<>( 1 );
+
+        for ( SigningKey key : _listKeys )
+        {
+            if ( key._strKty.equals( strKty ) && ( strKid == null || strKid.equals( key._strKid ) ) )
+            {
+                listKeys.add( key._publicKey );
+            }
+        }
+
+        return listKeys;
+    }
+
+    /**
+     * Fetch the key set, unless it has been fetched during the minimum interval or it is being fetched by another thread
+     *
+     * @return true if the key set has been fetched
+     */
+    private boolean refresh( )
+    {
+        // the threads wait for the first fetch rather than failing the validation without any key
+        if ( _lLastFetchAttempt == 0L )
+        {
+            _lockFetch.lock( );
+        }
+        else
+            if ( !_lockFetch.tryLock( ) )
+            {
+                return false;
+            }
+
+        try
+        {
+            long lNow = System.currentTimeMillis( );
+
+            if ( lNow - _lLastFetchAttempt < _lMinRefreshInterval )
+            {
+                return false;
+            }
+
+            _lLastFetchAttempt = lNow;
+
+            List<SigningKey> listKeys = parse( _mapper.readTree( _fetcher.fetch( _strJwksUri ) ) );
+
+            if ( listKeys.isEmpty( ) )
+            {
+                AppLogService.error( "Oauth2 - the JSON Web Key Set " + _strJwksUri + " holds no supported signing key, the previous keys are kept" );
+
+                return false;
+            }
+
+            _listKeys = listKeys;
+            _lFetchTime = lNow;
+
+            return true;
+        }
+        catch( IOException | RuntimeException e )
+        {
+            AppLogService.error( "Oauth2 - the JSON Web Key Set " + _strJwksUri + " can not be fetched, the previous keys are kept", e );
+
+            return false;
+        }
+        finally
+        {
+            _lockFetch.unlock( );
+        }
+    }
+
+    /**
+     * Parse the signing keys of a key set
+     *
+     * @param jwks
+     *            the key set document
+     * @return the RSA and EC signing keys, the other keys being ignored
+     */
+    private static List<SigningKey> parse( JsonNode jwks )
+    {
+        List<SigningKey> listKeys = new ArrayList<>( );
+
+        for ( JsonNode jwk : jwks.path( KEY_KEYS ) )
+        {
+            String strKty = jwk.path( KEY_KTY ).asText( );
+            String strUse = jwk.path( KEY_USE ).asText( USE_SIGNATURE );
+
+            if ( !USE_SIGNATURE.equals( strUse ) )
+            {
+                continue;
+            }
+
+            try
+            {
+                PublicKey publicKey = null;
+
+                if ( KTY_RSA.equals( strKty ) )
+                {
+                    publicKey = KeyFactory.getInstance( KTY_RSA ).generatePublic( new RSAPublicKeySpec( decode( jwk, "n" ), decode( jwk, "e" ) ) );
+                }
+                else
+                    if ( KTY_EC.equals( strKty ) && EC_CURVES.containsKey( jwk.path( "crv" ).asText( ) ) )
+                    {
+                        AlgorithmParameters parameters = AlgorithmParameters.getInstance( KTY_EC );
+                        parameters.init( new ECGenParameterSpec( EC_CURVES.get( jwk.path( "crv" ).asText( ) ) ) );
+                        publicKey = KeyFactory.getInstance( KTY_EC ).generatePublic(
+                                new ECPublicKeySpec( new ECPoint( decode( jwk, "x" ), decode( jwk, "y" ) ), parameters.getParameterSpec( ECParameterSpec.class ) ) );
+                    }
+
+                if ( publicKey != null )
+                {
+                    listKeys.add( new SigningKey( jwk.hasNonNull( KEY_KID ) ? jwk.get( KEY_KID ).asText( ) : null, strKty, publicKey ) );
+                }
+            }
+            catch( GeneralSecurityException | IllegalArgumentException e )
+            {
+                AppLogService.error( "Oauth2 - invalid key in the JSON Web Key Set : " + jwk.path( KEY_KID ).asText( ), e );
+            }
+        }
+
+        return listKeys;
+    }
+
+    /**
+     * Decode a base64url unsigned integer member of a key
+     *
+     * @param jwk
+     *            the key
+     * @param strMember
+     *            the member
+     * @return the integer
+     */
+    private static BigInteger decode( JsonNode jwk, String strMember )
+    {
+        return new BigInteger( 1, Base64.getUrlDecoder( ).decode( jwk.path( strMember ).asText( ) ) );
+    }
+
+    /**
+     * @return the number of signing keys
+     */
+    int getSize( )
+    {
+        return _listKeys.size( );
+    }
+
+    /**
+     * Fetcher of the key set document
+     */
+    interface Fetcher
+    {
+        /**
+         * Fetch the key set document
+         *
+         * @param strUri
+         *            the uri of the key set
+         * @return the document
+         * @throws IOException
+         *             if the document can not be fetched
+         */
+        String fetch( String strUri ) throws IOException;
+    }
+
+    /**
+     * Signing key of the key set
+     */
+    private static final class SigningKey
+    {
+        private final String _strKid;
+        private final String _strKty;
+        private final PublicKey _publicKey;
+
+        /**
+         * Constructor
+         *
+         * @param strKid
+         *            the key id, or null
+         * @param strKty
+         *            the key type
+         * @param publicKey
+         *            the key
+         */
+        SigningKey( String strKid, String strKty, PublicKey publicKey )
+        {
+            _strKid = strKid;
+            _strKty = strKty;
+            _publicKey = publicKey;
+        }
+    }
+}
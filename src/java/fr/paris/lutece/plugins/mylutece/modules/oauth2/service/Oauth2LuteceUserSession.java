@@ -33,17 +33,50 @@
  */
 package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Session of an Oauth2 Lutece user.
+ * <p>
+ * The session records the epoch of its user that it last saw. The session is up to date as long as this epoch is the current epoch of the user, so notifying
+ * a user update only consists in incrementing the user epoch.
+ * </p>
+ */
 public class Oauth2LuteceUserSession
 {
+    private static final long EPOCH_STALE = -1L;
+    private static final AtomicLongFieldUpdater<Oauth2LuteceUserSession> SEEN_EPOCH_UPDATER = AtomicLongFieldUpdater.newUpdater( Oauth2LuteceUserSession.class,
+            "_lSeenEpoch" );
+
     private String _strIdSession;
     private String _strLuteceUserName;
-    private boolean _bUpToDate;
+    private final AtomicLong _userEpoch;
+    private volatile long _lSeenEpoch;
+    private volatile long _lLastAccess = System.currentTimeMillis( );
+
+    // links of the session in the expiry wheel, only accessed under the wheel lock
+    Oauth2LuteceUserSession _wheelPrevious;
+    Oauth2LuteceUserSession _wheelNext;
+    int _nWheelBucket = -1;
+    long _lWheelTick;
 
-    public Oauth2LuteceUserSession( String strIdSession, String strLuteceUserName, boolean bUpToDate )
+    /**
+     * Constructor
+     *
+     * @param strIdSession
+     *            the session id
+     * @param strLuteceUserName
+     *            the lutece user name
+     * @param userEpoch
+     *            the epoch shared by all the sessions of the user
+     */
+    public Oauth2LuteceUserSession( String strIdSession, String strLuteceUserName, AtomicLong userEpoch )
     {
         _strIdSession = strIdSession;
         _strLuteceUserName = strLuteceUserName;
-        _bUpToDate = bUpToDate;
+        _userEpoch = userEpoch;
+        _lSeenEpoch = userEpoch.get( );
     }
 
     public String getIdSession( )
@@ -66,13 +99,59 @@ public class Oauth2LuteceUserSession
         this._strLuteceUserName = _strLuteceUserName;
     }
 
+    /**
+     * Read only check of the session state
+     *
+     * @return true if the session has seen the last update of its user
+     */
     public boolean isUpToDate( )
     {
-        return _bUpToDate;
+        return _lSeenEpoch == _userEpoch.get( );
     }
 
+    /**
+     * Mark the session up to date, or stale until the next acknowledgement
+     *
+     * @param _bUpToDate
+     *            the session state
+     */
     public void setUpToDate( boolean _bUpToDate )
     {
-        this._bUpToDate = _bUpToDate;
+        _lSeenEpoch = _bUpToDate ? _userEpoch.get( ) : EPOCH_STALE;
+    }
+
+    /**
+     * Acknowledge the last update of the user. When several threads acknowledge the same update, only one of them wins.
+     *
+     * @return true if the caller acknowledged a pending update, false if the session was already up to date
+     */
+    public boolean acknowledgeUpdate( )
+    {
+        long lSeenEpoch = _lSeenEpoch;
+        long lUserEpoch = _userEpoch.get( );
+
+        return lSeenEpoch != lUserEpoch && SEEN_EPOCH_UPDATER.compareAndSet( this, lSeenEpoch, lUserEpoch );
+    }
+
+    /**
+     * Record an access to the session
+     *
+     * @param lNow
+     *            the access time
+     */
+    public void touch( long lNow )
+    {
+        if ( _lLastAccess != lNow )
+        {
+            _lLastAccess = lNow;
+        }
+    }
+
+    /**
+     * @return the time of the last access to the session
+     */
+    public long getLastAccess( )
+    {
+        return _lLastAccess;
     }
 }
@@ -0,0 +1,755 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPathService;
+
+/**
+ * Append only journal of the session registry, stored in a memory mapped file. It records the session additions and removals, the user updates and their
+ * acknowledgements by the sessions. The sessions evicted by the compact registry, which only keeps the keys of the sessions, are recorded by key.
+ * <p>
+ * Appending a record only copies a few bytes into the mapped file, the writing to the disk is left to the operating system. Each record is written before its
+ * length, so a record interrupted by a crash is ignored by the replay.
+ * </p>
+ * <p>
+ * The journal is compacted periodically and when it is 75% full: the records are folded into the current state of the registry, which is written into a new
+ * file replacing the journal. The compaction runs in the background, without blocking the appends: the records appended meanwhile are kept in memory, and
+ * only them are copied to the new file when it replaces the journal.
+ * </p>
+ */
+public class Oauth2LuteceUserSessionJournal
+{
+    private static final int MAGIC = 0x4f324a31;
+    private static final int HEADER_SIZE = 4;
+    private static final int RECORD_LENGTH_SIZE = 4;
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final byte RECORD_NOTIFY = 3;
+    private static final byte RECORD_ACKNOWLEDGE = 4;
+    private static final byte RECORD_EVICT = 5;
+    private static final int KEY_RADIX = 16;
+    private static final long DEFAULT_SIZE = 64L * 1024 * 1024;
+    private static final long DEFAULT_COMPACTION_INTERVAL = 60L * 60 * 1000;
+    private static final int COMPACTION_THRESHOLD_PERCENT = 75;
+    private static final String SUFFIX_COMPACTION = ".compact";
+    private static final String THREAD_NAME = "mylutece-oauth2-session-journal";
+
+    private String _strFile;
+    private long _lSize = DEFAULT_SIZE;
+    private long _lCompactionInterval = DEFAULT_COMPACTION_INTERVAL;
+    private Path _path;
+    private FileChannel _channel;
+    private MappedByteBuffer _buffer;
+    private int _nPosition;
+    private List<byte [ ]> _listPending;
+    private boolean _bCompactionScheduled;
+    private ScheduledExecutorService _scheduler;
+
+    /**
+     * Open the journal, replay its records into the registry and schedule its compaction
+     *
+     * @param service
+     *            the registry
+     * @throws IOException
+     *             if the journal can not be opened
+     */
+    public synchronized void open( AbstractOauth2LuteceUserSessionService service ) throws IOException
+    {
+        File file = new File( _strFile );
+        _path = file.isAbsolute( ) ? file.toPath( ) : Paths.get( AppPathService.getAbsolutePathFromRelativePath( _strFile ) );
+
+        long lFileSize = Files.exists( _path ) ? Files.size( _path ) : 0;
+        _channel = open( _path );
+        _buffer = map( _channel, Math.max( lFileSize, _lSize ) );
+
+        if ( lFileSize > 0 && _buffer.getInt( 0 ) == MAGIC )
+        {
+            int nCount = replay( service );
+            AppLogService.info( "Oauth2 - " + nCount + " records of the session journal replayed" );
+        }
+        else
+        {
+            _buffer.putInt( 0, MAGIC );
+            _nPosition = HEADER_SIZE;
+        }
+
+        _scheduler = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            Thread thread = new Thread( runnable, THREAD_NAME );
+            thread.setDaemon( true );
+
+            return thread;
+        } );
+        _scheduler.scheduleWithFixedDelay( this::compact, _lCompactionInterval, _lCompactionInterval, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Close the journal
+     */
+    public synchronized void destroy( )
+    {
+        if ( _scheduler != null )
+        {
+            _scheduler.shutdownNow( );
+        }
+
+        if ( _channel != null )
+        {
+            _buffer.force( );
+
+            try
+            {
+                _channel.close( );
+            }
+            catch( IOException e )
+            {
+                AppLogService.error( "Oauth2 - unable to close the session journal", e );
+            }
+        }
+    }
+
+    /**
+     * Record the addition of a session
+     *
+     * @param strLuteceUserName
+     *            the lutece user name
+     * @param strSession
+     *            the session id
+     */
+    public void appendAdd( String strLuteceUserName, String strSession )
+    {
+        append( encode( RECORD_ADD, strLuteceUserName, strSession ) );
+    }
+
+    /**
+     * Record the removal of a session
+     *
+     * @param strSession
+     *            the session id
+     */
+    public void appendRemove( String strSession )
+    {
+        append( encode( RECORD_REMOVE, strSession, null ) );
+    }
+
+    /**
+     * Record the eviction of a session known only by its key
+     *
+     * @param lKey
+     *            the session key, as hashed by the compact registry
+     */
+    public void appendEvict( long lKey )
+    {
+        append( encode( RECORD_EVICT, Long.toUnsignedString( lKey, KEY_RADIX ), null ) );
+    }
+
+    /**
+     * Record the update of a user
+     *
+     * @param strLuteceUserName
+     *            the lutece user name
+     */
+    public void appendNotify( String strLuteceUserName )
+    {
+        append( encode( RECORD_NOTIFY, strLuteceUserName, null ) );
+    }
+
+    /**
+     * Record the acknowledgement of its user update by a session
+     *
+     * @param strSession
+     *            the session id
+     */
+    public void appendAcknowledge( String strSession )
+    {
+        append( encode( RECORD_ACKNOWLEDGE, strSession, null ) );
+    }
+
+    /**
+     * Append a record, or keep it in memory during a compaction
+     *
+     * @param record
+     *            the encoded record
+     */
+    private synchronized void append( byte [ ] record )
+    {
+        if ( _buffer == null )
+        {
+            // not opened yet, the registry is being filled by the replay
+            return;
+        }
+
+        if ( _listPending != null || !write( _buffer, _nPosition, record ) )
+        {
+            if ( _listPending == null )
+            {
+                _listPending = new ArrayList<>( );
+                scheduleCompaction( );
+            }
+
+            _listPending.add( record );
+
+            return;
+        }
+
+        _nPosition += record.length;
+
+        if ( (long) _nPosition * 100 > (long) _buffer.capacity( ) * COMPACTION_THRESHOLD_PERCENT )
+        {
+            scheduleCompaction( );
+        }
+    }
+
+    /**
+     * Schedule a compaction as soon as possible
+     */
+    private void scheduleCompaction( )
+    {
+        if ( !_bCompactionScheduled && _scheduler != null )
+        {
+            _bCompactionScheduled = true;
+            _scheduler.execute( this::compact );
+        }
+    }
+
+    /**
+     * Compact the journal
+     */
+    void compact( )
+    {
+        ByteBuffer records;
+
+        synchronized( this )
+        {
+            _bCompactionScheduled = false;
+
+            if ( _listPending == null )
+            {
+                _listPending = new ArrayList<>( );
+            }
+
+            // the current file is no more written until the end of the compaction
+            records = _buffer.duplicate( );
+            records.position( HEADER_SIZE );
+            records.limit( _nPosition );
+        }
+
+        FileChannel channel = null;
+
+        try
+        {
+            List<byte [ ]> listState = fold( records );
+            Path pathCompaction = _path.resolveSibling( _path.getFileName( ) + SUFFIX_COMPACTION );
+            Files.deleteIfExists( pathCompaction );
+
+            long lStateSize = listState.stream( ).mapToLong( record -> record.length ).sum( );
+            channel = open( pathCompaction );
+
+            MappedByteBuffer buffer = map( channel, Math.max( _lSize, HEADER_SIZE + lStateSize * 2 ) );
+            buffer.putInt( 0, MAGIC );
+
+            int nPosition = HEADER_SIZE;
+
+            for ( byte [ ] record : listState )
+            {
+                write( buffer, nPosition, record );
+                nPosition += record.length;
+            }
+
+            buffer.force( );
+
+            synchronized( this )
+            {
+                // only the records appended since the start of the compaction are copied while the appends wait
+                for ( byte [ ] record : _listPending )
+                {
+                    if ( !write( buffer, nPosition, record ) )
+                    {
+                        throw new IOException( "the records appended during the compaction do not fit in the compacted journal" );
+                    }
+
+                    nPosition += record.length;
+                }
+
+                move( pathCompaction, _path );
+                _channel.close( );
+                _channel = channel;
+                _buffer = buffer;
+                _nPosition = nPosition;
+                _listPending = null;
+            }
+        }
+        catch( IOException | RuntimeException e )
+        {
+            AppLogService.error( "Oauth2 - unable to compact the session journal", e );
+            closeQuietly( channel );
+            resumeAfterFailedCompaction( );
+        }
+    }
+
+    /**
+     * Append the records kept in memory to the current file after a failed compaction, as long as they fit
+     */
+    private synchronized void resumeAfterFailedCompaction( )
+    {
+        if ( _listPending != null )
+        {
+            for ( byte [ ] record : _listPending )
+            {
+                if ( !write( _buffer, _nPosition, record ) )
+                {
+                    AppLogService.error( "Oauth2 - the session journal is full, some records are lost" );
+
+                    break;
+                }
+
+                _nPosition += record.length;
+            }
+
+            _listPending = null;
+        }
+    }
+
+    /**
+     * Replay the records of the journal into the registry
+     *
+     * @param service
+     *            the registry
+     * @return the number of records replayed
+     */
+    private int replay( AbstractOauth2LuteceUserSessionService service )
+    {
+        ByteBuffer records = _buffer.duplicate( );
+        records.position( HEADER_SIZE );
+
+        int nCount = 0;
+        String [ ] values = new String [ 2];
+        byte nType;
+
+        while ( ( nType = read( records, values ) ) != 0 )
+        {
+            switch( nType )
+            {
+                case RECORD_ADD:
+                    service.registerLuteceUserSession( values [0], values [1] );
+                    break;
+                case RECORD_REMOVE:
+                    service.unregisterLuteceUserSession( values [0] );
+                    break;
+                case RECORD_NOTIFY:
+                    service.applyLuteceUserUpdating( values [0] );
+                    break;
+                case RECORD_ACKNOWLEDGE:
+                    service.checkLuteceUserSession( values [0] );
+                    break;
+                case RECORD_EVICT:
+                    service.unregisterLuteceUserSessionKey( Long.parseUnsignedLong( values [0], KEY_RADIX ) );
+                    break;
+                default:
+                    break;
+            }
+
+            nCount++;
+        }
+
+        _nPosition = records.position( );
+
+        return nCount;
+    }
+
+    /**
+     * Fold records into the records of the resulting state: for each user, its stale sessions, the notification of the user if some sessions are stale, then
+     * its up to date sessions.
+     *
+     * @param records
+     *            the records
+     * @return the records of the resulting state
+     */
+    private static List<byte [ ]> fold( ByteBuffer records )
+    {
+        Map<String, String> mapSessionUsers = new HashMap<>( );
+        Map<String, Set<String>> mapUserSessions = new LinkedHashMap<>( );
+        Set<String> setStaleSessions = new HashSet<>( );
+        // the evicted sessions are recorded by key : the keys of the sessions are only computed once an eviction is found
+        Map<Long, String> mapKeySessions = null;
+        String [ ] values = new String [ 2];
+        byte nType;
+
+        while ( ( nType = read( records, values ) ) != 0 )
+        {
+            if ( nType == RECORD_EVICT )
+            {
+                if ( mapKeySessions == null )
+                {
+                    mapKeySessions = new HashMap<>( );
+
+                    for ( String strSession : mapSessionUsers.keySet( ) )
+                    {
+                        mapKeySessions.put( CompactOauth2LuteceUserSessionService.hash( strSession ), strSession );
+                    }
+                }
+
+                values [0] = mapKeySessions.remove( Long.parseUnsignedLong( values [0], KEY_RADIX ) );
+
+                if ( values [0] == null )
+                {
+                    continue;
+                }
+
+                nType = RECORD_REMOVE;
+            }
+            else
+                if ( mapKeySessions != null && ( nType == RECORD_ADD || nType == RECORD_REMOVE ) )
+                {
+                    String strSession = ( nType == RECORD_ADD ) ? values [1] : values [0];
+
+                    if ( nType == RECORD_ADD )
+                    {
+                        mapKeySessions.put( CompactOauth2LuteceUserSessionService.hash( strSession ), strSession );
+                    }
+                    else
+                    {
+                        mapKeySessions.remove( CompactOauth2LuteceUserSessionService.hash( strSession ) );
+                    }
+                }
+
+            if ( nType == RECORD_ADD || nType == RECORD_REMOVE )
+            {
+                String strSession = ( nType == RECORD_ADD ) ? values [1] : values [0];
+                String strPreviousUser = mapSessionUsers.remove( strSession );
+                setStaleSessions.remove( strSession );
+
+                if ( strPreviousUser != null )
+                {
+                    Set<String> setSessions = mapUserSessions.get( strPreviousUser );
+                    setSessions.remove( strSession );
+
+                    if ( setSessions.isEmpty( ) )
+                    {
+                        mapUserSessions.remove( strPreviousUser );
+                    }
+                }
+
+                if ( nType == RECORD_ADD )
+                {
+                    mapSessionUsers.put( strSession, values [0] );
+                    mapUserSessions.computeIfAbsent( values [0], strUser -> new LinkedHashSet<>( ) ).add( strSession );
+                }
+            }
+            else
+                if ( nType == RECORD_NOTIFY && mapUserSessions.containsKey( values [0] ) )
+                {
+                    setStaleSessions.addAll( mapUserSessions.get( values [0] ) );
+                }
+                else
+                    if ( nType == RECORD_ACKNOWLEDGE )
+                    {
+                        setStaleSessions.remove( values [0] );
+                    }
+        }
+
+        List<byte [ ]> listState = new ArrayList<>( mapSessionUsers.size( ) + setStaleSessions.size( ) );
+
+        for ( Map.Entry<String, Set<String>> entry : mapUserSessions.entrySet( ) )
+        {
+            boolean bStale = false;
+
+            for ( String strSession : entry.getValue( ) )
+            {
+                if ( setStaleSessions.contains( strSession ) )
+                {
+                    listState.add( encode( RECORD_ADD, entry.getKey( ), strSession ) );
+                    bStale = true;
+                }
+            }
+
+            if ( bStale )
+            {
+                listState.add( encode( RECORD_NOTIFY, entry.getKey( ), null ) );
+            }
+
+            for ( String strSession : entry.getValue( ) )
+            {
+                if ( !setStaleSessions.contains( strSession ) )
+                {
+                    listState.add( encode( RECORD_ADD, entry.getKey( ), strSession ) );
+                }
+            }
+        }
+
+        return listState;
+    }
+
+    /**
+     * Open a journal file
+     *
+     * @param path
+     *            the file path
+     * @return the file channel
+     * @throws IOException
+     *             if the file can not be opened
+     */
+    private static FileChannel open( Path path ) throws IOException
+    {
+        return FileChannel.open( path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+    }
+
+    /**
+     * Map a journal file
+     *
+     * @param channel
+     *            the file channel
+     * @param lSize
+     *            the mapped size
+     * @return the mapped buffer
+     * @throws IOException
+     *             if the file can not be mapped
+     */
+    private static MappedByteBuffer map( FileChannel channel, long lSize ) throws IOException
+    {
+        return channel.map( FileChannel.MapMode.READ_WRITE, 0, Math.min( lSize, Integer.MAX_VALUE ) );
+    }
+
+    /**
+     * Close a file channel, ignoring the errors
+     *
+     * @param channel
+     *            the channel, or null
+     */
+    private static void closeQuietly( FileChannel channel )
+    {
+        if ( channel != null )
+        {
+            try
+            {
+                channel.close( );
+            }
+            catch( IOException e )
+            {
+                AppLogService.debug( "Oauth2 - unable to close a journal file : " + e.getMessage( ) );
+            }
+        }
+    }
+
+    /**
+     * Replace the journal file by the compacted one
+     *
+     * @param pathSource
+     *            the compacted file
+     * @param pathTarget
+     *            the journal file
+     * @throws IOException
+     *             if the file can not be moved
+     */
+    private static void move( Path pathSource, Path pathTarget ) throws IOException
+    {
+        try
+        {
+            Files.move( pathSource, pathTarget, StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch( AtomicMoveNotSupportedException e )
+        {
+            Files.move( pathSource, pathTarget, StandardCopyOption.REPLACE_EXISTING );
+        }
+    }
+
+    /**
+     * Encode a record : its length, its type and its values
+     *
+     * @param nType
+     *            the record type
+     * @param strValue1
+     *            the first value
+     * @param strValue2
+     *            the second value, or null
+     * @return the record
+     */
+    private static byte [ ] encode( byte nType, String strValue1, String strValue2 )
+    {
+        byte [ ] value1 = strValue1.getBytes( StandardCharsets.UTF_8 );
+        byte [ ] value2 = ( strValue2 != null ) ? strValue2.getBytes( StandardCharsets.UTF_8 ) : null;
+        int nLength = 1 + 2 + value1.length + ( ( value2 != null ) ? ( 2 + value2.length ) : 0 );
+        ByteBuffer record = ByteBuffer.allocate( RECORD_LENGTH_SIZE + nLength );
+        record.putInt( nLength );
+        record.put( nType );
+        record.putShort( (short) value1.length );
+        record.put( value1 );
+
+        if ( value2 != null )
+        {
+            record.putShort( (short) value2.length );
+            record.put( value2 );
+        }
+
+        return record.array( );
+    }
+
+    /**
+     * Write a record, its length being written last
+     *
+     * @param buffer
+     *            the journal buffer
+     * @param nPosition
+     *            the position of the record
+     * @param record
+     *            the record
+     * @return false if the journal is full
+     */
+    private static boolean write( ByteBuffer buffer, int nPosition, byte [ ] record )
+    {
+        if ( nPosition + record.length + RECORD_LENGTH_SIZE > buffer.capacity( ) )
+        {
+            return false;
+        }
+
+        ByteBuffer target = buffer.duplicate( );
+        target.position( nPosition + RECORD_LENGTH_SIZE );
+        target.put( record, RECORD_LENGTH_SIZE, record.length - RECORD_LENGTH_SIZE );
+        buffer.putInt( nPosition, record.length - RECORD_LENGTH_SIZE );
+
+        return true;
+    }
+
+    /**
+     * Read the next record
+     *
+     * @param records
+     *            the records, positioned on the record to read
+     * @param values
+     *            the array receiving the values of the record
+     * @return the record type, or 0 at the end of the journal
+     */
+    private static byte read( ByteBuffer records, String [ ] values )
+    {
+        if ( records.remaining( ) < RECORD_LENGTH_SIZE )
+        {
+            return 0;
+        }
+
+        int nStart = records.position( );
+        int nLength = records.getInt( );
+
+        if ( nLength <= 0 || nLength > records.remaining( ) )
+        {
+            records.position( nStart );
+
+            return 0;
+        }
+
+        int nEnd = records.position( ) + nLength;
+
+        try
+        {
+            byte nType = records.get( );
+            values [0] = readValue( records );
+            values [1] = ( records.position( ) < nEnd ) ? readValue( records ) : null;
+            records.position( nEnd );
+
+            return nType;
+        }
+        catch( RuntimeException e )
+        {
+            // corrupted record: the journal ends here
+            records.position( nStart );
+
+            return 0;
+        }
+    }
+
+    /**
+     * Read a value of a record
+     *
+     * @param records
+     *            the records, positioned on the value
+     * @return the value
+     */
+    private static String readValue( ByteBuffer records )
+    {
+        byte [ ] value = new byte [ records.getShort( ) & 0xffff];
+        records.get( value );
+
+        return new String( value, StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * @param strFile
+     *            the journal file, absolute or relative to the webapp
+     */
+    public void setFile( String strFile )
+    {
+        _strFile = strFile;
+    }
+
+    /**
+     * @param lSize
+     *            the size of the journal file in bytes
+     */
+    public void setSize( long lSize )
+    {
+        _lSize = lSize;
+    }
+
+    /**
+     * @param lCompactionInterval
+     *            the interval between two compactions in milliseconds
+     */
+    public void setCompactionInterval( long lCompactionInterval )
+    {
+        _lCompactionInterval = lCompactionInterval;
+    }
+}
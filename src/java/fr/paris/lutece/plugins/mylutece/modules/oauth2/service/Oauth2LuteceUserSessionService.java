@@ -34,86 +34,349 @@
 package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
 
 import fr.paris.lutece.portal.service.spring.SpringContextService;
+import fr.paris.lutece.portal.service.util.AppLogService;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-public class Oauth2LuteceUserSessionService implements IOauth2LuteceUserSessionService
+/**
+ * Registry of the sessions opened by the Oauth2 Lutece users.
+ * <p>
+ * The registry is shared by the portal filter, the login process, the session listener and the notification filter, which all run on concurrent container
+ * threads. Lookups are lock free and the set of sessions of a user is always updated atomically.
+ * </p>
+ * <p>
+ * Each user owns an epoch which is incremented when the user is notified as updated, and each session records the last epoch it saw. Notifying a user
+ * therefore costs the same whatever the number of its sessions, and checking a session only reads the two epochs.
+ * </p>
+ * <p>
+ * The sessions are normally removed when the container destroys them, but the destruction events are lost after a failover or a crash. An idle timeout
+ * and a maximum number of sessions can be set to bound the registry anyway : the sessions idle for longer than the timeout are expired by a timer wheel,
+ * and the least recently used sessions are evicted beyond the maximum.
+ * </p>
+ */
+public class Oauth2LuteceUserSessionService extends AbstractOauth2LuteceUserSessionService
 {
     private static final String BEAN_LUTECE_USER_SESSION_SERVICE = "mylutece-oauth2.oauth2LuteceUserSessionService";
-    private static IOauth2LuteceUserSessionService _singleton;
-    private static Map<String, Oauth2LuteceUserSession> _hashSession;
-    private static Map<String, Set<String>> _hashLuteceUserName;
+    private static final String THREAD_NAME = "mylutece-oauth2-session-expiry";
+    private static final long DEFAULT_TICK_DURATION = 1000L;
+    // idle timeout of the sessions when only the number of sessions is bounded
+    private static final long NO_IDLE_TIMEOUT = Long.MAX_VALUE / 4;
+    // estimated heap sizes : session object and its nodes in the session map and in the session set of its user
+    private static final long SESSION_SIZE = 136L;
+    // user entry, its session set, epoch and node in the user map
+    private static final long USER_SIZE = 240L;
+    // string and character array headers
+    private static final long STRING_SIZE = 40L;
+    private static volatile IOauth2LuteceUserSessionService _singleton;
+    private final ConcurrentMap<String, Oauth2LuteceUserSession> _hashSession = new ConcurrentHashMap<>( );
+    private final ConcurrentMap<String, Oauth2LuteceUserEntry> _hashLuteceUserName = new ConcurrentHashMap<>( );
+    private long _lIdleTimeout;
+    private int _nMaxSessions;
+    private long _lTickDuration = DEFAULT_TICK_DURATION;
+    private volatile Oauth2SessionExpiryWheel _expiryWheel;
+    private ScheduledExecutorService _expiryScheduler;
 
     public static IOauth2LuteceUserSessionService getInstance( )
     {
         if ( _singleton == null )
         {
             _singleton = SpringContextService.getBean( BEAN_LUTECE_USER_SESSION_SERVICE );
-            _hashSession = new HashMap<String, Oauth2LuteceUserSession>( );
-            _hashLuteceUserName = new HashMap<String, Set<String>>( );
         }
 
         return _singleton;
     }
 
-    public boolean isLuteceUserUpToDate( String strSession )
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean checkLuteceUserSession( String strSession )
+    {
+        Oauth2LuteceUserSession luteceUserSession = _hashSession.get( strSession );
+
+        return luteceUserSession == null || !luteceUserSession.acknowledgeUpdate( );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void touchLuteceUserSession( String strSession )
     {
-        if ( _hashSession.containsKey( strSession ) && !_hashSession.get( strSession ).isUpToDate( ) )
+        if ( _expiryWheel != null )
         {
-            _hashSession.get( strSession ).setUpToDate( true );
+            Oauth2LuteceUserSession luteceUserSession = _hashSession.get( strSession );
+
+            if ( luteceUserSession != null )
+            {
+                luteceUserSession.touch( System.currentTimeMillis( ) );
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void registerLuteceUserSession( String strLuteceUserName, String strSession )
+    {
+        Oauth2LuteceUserEntry userEntry = _hashLuteceUserName.compute( strLuteceUserName, ( strKey, entry ) -> {
+            Oauth2LuteceUserEntry newEntry = ( entry != null ) ? entry : new Oauth2LuteceUserEntry( );
+            newEntry.getSessions( ).add( strSession );
+
+            return newEntry;
+        } );
+
+        Oauth2LuteceUserSession luteceUserSession = new Oauth2LuteceUserSession( strSession, strLuteceUserName, userEntry.getEpoch( ) );
+        Oauth2LuteceUserSession previousSession = _hashSession.put( strSession, luteceUserSession );
+
+        // the session was previously bound to another user
+        if ( previousSession != null && !strLuteceUserName.equals( previousSession.getLuteceUserName( ) ) )
+        {
+            removeUserSession( previousSession.getLuteceUserName( ), strSession );
+        }
+
+        Oauth2SessionExpiryWheel expiryWheel = getExpiryWheel( );
+
+        if ( expiryWheel != null )
+        {
+            if ( previousSession != null )
+            {
+                expiryWheel.cancel( previousSession );
+            }
+
+            expiryWheel.schedule( luteceUserSession );
 
+            while ( _nMaxSessions > 0 && expiryWheel.size( ) > _nMaxSessions )
+            {
+                Oauth2LuteceUserSession evictedSession = expiryWheel.evict( );
+
+                if ( evictedSession == null )
+                {
+                    break;
+                }
+
+                expireLuteceUserSession( evictedSession );
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean unregisterLuteceUserSession( String strSession )
+    {
+        Oauth2LuteceUserSession luteceUserSession = _hashSession.remove( strSession );
+
+        if ( luteceUserSession == null )
+        {
             return false;
         }
 
+        removeUserSession( luteceUserSession.getLuteceUserName( ), strSession );
+
+        if ( _expiryWheel != null )
+        {
+            _expiryWheel.cancel( luteceUserSession );
+        }
+
         return true;
     }
 
-    public void addLuteceUserSession( String strLuteceUserName, String strSession )
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void applyLuteceUserUpdating( String strLuteceUserName )
     {
-        if ( !_hashLuteceUserName.containsKey( strLuteceUserName ) )
+        Oauth2LuteceUserEntry userEntry = _hashLuteceUserName.get( strLuteceUserName );
+
+        if ( userEntry != null )
         {
-            _hashLuteceUserName.put( strLuteceUserName, new HashSet<String>( ) );
+            userEntry.getEpoch( ).incrementAndGet( );
         }
-
-        _hashLuteceUserName.get( strLuteceUserName ).add( strSession );
-        _hashSession.put( strSession, new Oauth2LuteceUserSession( strSession, strLuteceUserName, true ) );
     }
 
-    public void removeLuteceUserSession( String strSession )
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Oauth2LuteceUserSessionStatistics collectStatistics( )
     {
-        if ( _hashSession.containsKey( strSession ) )
+        Oauth2LuteceUserSessionStatistics statistics = new Oauth2LuteceUserSessionStatistics( );
+        long lSessionCount = 0;
+        long lStaleSessionCount = 0;
+        long lEstimatedSize = 0;
+
+        // the views of the concurrent maps are weakly consistent : the scan never blocks the registry
+        for ( Oauth2LuteceUserSession luteceUserSession : _hashSession.values( ) )
         {
-            String strLuteceUserName = _hashSession.get( strSession ).getLuteceUserName( );
-            _hashSession.remove( strSession );
+            lSessionCount++;
 
-            if ( _hashLuteceUserName.containsKey( strLuteceUserName ) )
+            if ( !luteceUserSession.isUpToDate( ) )
             {
-                _hashLuteceUserName.get( strLuteceUserName ).remove( strSession );
-
-                if ( _hashLuteceUserName.get( strLuteceUserName ).isEmpty( ) )
-                {
-                    _hashLuteceUserName.remove( strLuteceUserName );
-                }
+                lStaleSessionCount++;
             }
+
+            lEstimatedSize += SESSION_SIZE + getStringSize( luteceUserSession.getIdSession( ) );
+        }
+
+        for ( Map.Entry<String, Oauth2LuteceUserEntry> entry : _hashLuteceUserName.entrySet( ) )
+        {
+            statistics.addUser( entry.getValue( ).getSessions( ).size( ) );
+            lEstimatedSize += USER_SIZE + getStringSize( entry.getKey( ) );
+        }
+
+        statistics.setSessionCount( lSessionCount );
+        statistics.setStaleSessionCount( lStaleSessionCount );
+        statistics.setEstimatedSize( lEstimatedSize );
+
+        return statistics;
+    }
+
+    /**
+     * @param str
+     *            a string
+     * @return the estimated heap size of the string, in bytes
+     */
+    static long getStringSize( String str )
+    {
+        return STRING_SIZE + 2L * str.length( );
+    }
+
+    /**
+     * Remove a session from the sessions of a user, and the user itself once it has no more sessions
+     * 
+     * @param strLuteceUserName
+     *            the lutece user name
+     * @param strSession
+     *            the session id
+     */
+    private void removeUserSession( String strLuteceUserName, String strSession )
+    {
+        _hashLuteceUserName.computeIfPresent( strLuteceUserName, ( strKey, entry ) -> {
+            entry.getSessions( ).remove( strSession );
+
+            return entry.getSessions( ).isEmpty( ) ? null : entry;
+        } );
+    }
+
+    /**
+     * Remove an expired or evicted session, unless it was registered again meanwhile
+     *
+     * @param luteceUserSession
+     *            the session
+     */
+    private void expireLuteceUserSession( Oauth2LuteceUserSession luteceUserSession )
+    {
+        String strSession = luteceUserSession.getIdSession( );
+
+        if ( _hashSession.remove( strSession, luteceUserSession ) )
+        {
+            removeUserSession( luteceUserSession.getLuteceUserName( ), strSession );
+            recordLuteceUserSessionRemoval( strSession );
         }
     }
 
-    public void notifyLuteceUserUpdating( String strLuteceUserName )
+    /**
+     * Expire the idle sessions
+     */
+    private void expireIdleSessions( )
     {
-        if ( _hashLuteceUserName.containsKey( strLuteceUserName ) )
+        try
+        {
+            List<Oauth2LuteceUserSession> listExpired = _expiryWheel.advance( System.currentTimeMillis( ) );
+            listExpired.forEach( this::expireLuteceUserSession );
+
+            if ( !listExpired.isEmpty( ) )
+            {
+                AppLogService.debug( "Oauth2 - " + listExpired.size( ) + " idle sessions expired" );
+            }
+        }
+        catch( RuntimeException e )
         {
-            Set<String> setSession = _hashLuteceUserName.get( strLuteceUserName );
+            AppLogService.error( "Oauth2 - error while expiring the idle sessions", e );
+        }
+    }
 
-            for ( String strSession : setSession )
+    /**
+     * Get the expiry wheel, created with the first session when the sessions are bounded
+     *
+     * @return the expiry wheel, or null if the sessions are not bounded
+     */
+    private Oauth2SessionExpiryWheel getExpiryWheel( )
+    {
+        if ( _expiryWheel == null && ( _lIdleTimeout > 0 || _nMaxSessions > 0 ) )
+        {
+            synchronized( this )
             {
-                if ( _hashSession.containsKey( strSession ) )
+                if ( _expiryWheel == null )
                 {
-                    _hashSession.get( strSession ).setUpToDate( false );
+                    Oauth2SessionExpiryWheel expiryWheel = new Oauth2SessionExpiryWheel( _lTickDuration, ( _lIdleTimeout > 0 ) ? _lIdleTimeout : NO_IDLE_TIMEOUT,
+                            System.currentTimeMillis( ) );
+                    _expiryScheduler = Executors.newSingleThreadScheduledExecutor( runnable -> {
+                        Thread thread = new Thread( runnable, THREAD_NAME );
+                        thread.setDaemon( true );
+
+                        return thread;
+                    } );
+                    _expiryWheel = expiryWheel;
+                    _expiryScheduler.scheduleWithFixedDelay( this::expireIdleSessions, _lTickDuration, _lTickDuration, TimeUnit.MILLISECONDS );
                 }
             }
         }
+
+        return _expiryWheel;
+    }
+
+    /**
+     * Set the idle time after which a session is removed from the registry
+     *
+     * @param lIdleTimeout
+     *            the idle timeout in milliseconds, 0 to keep the idle sessions
+     */
+    public void setIdleTimeout( long lIdleTimeout )
+    {
+        _lIdleTimeout = lIdleTimeout;
+    }
+
+    /**
+     * Set the maximum number of sessions of the registry, beyond which the least recently used sessions are evicted
+     *
+     * @param nMaxSessions
+     *            the maximum number of sessions, 0 for no maximum
+     */
+    public void setMaxSessions( int nMaxSessions )
+    {
+        _nMaxSessions = nMaxSessions;
+    }
+
+    /**
+     * Set the precision of the idle timeout
+     *
+     * @param lTickDuration
+     *            the duration of a tick of the expiry wheel in milliseconds
+     */
+    public void setTickDuration( long lTickDuration )
+    {
+        _lTickDuration = Math.max( 1L, lTickDuration );
+    }
+
+    /**
+     * Stop the expiry of the idle sessions
+     */
+    public synchronized void destroy( )
+    {
+        if ( _expiryScheduler != null )
+        {
+            _expiryScheduler.shutdownNow( );
+        }
     }
 }
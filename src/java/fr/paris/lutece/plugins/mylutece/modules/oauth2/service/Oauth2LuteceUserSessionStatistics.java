@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Snapshot of the statistics of a session registry.
+ * <p>
+ * The figures are collected while the registry keeps running, so they may be slightly inconsistent with each other under load. The retained size is an
+ * estimate for a 64 bits JVM with compressed references.
+ * </p>
+ */
+public class Oauth2LuteceUserSessionStatistics
+{
+    private static final int [ ] SESSIONS_PER_USER_BOUNDS = {
+            1, 2, 5, 10, 50
+    };
+
+    private final long [ ] _sessionsPerUser = new long [ SESSIONS_PER_USER_BOUNDS.length + 1];
+    private long _lSessionCount;
+    private long _lUserCount;
+    private long _lStaleSessionCount;
+    private long _lMaxSessionsPerUser;
+    private long _lEstimatedSize;
+    private long _lAddedCount;
+    private long _lRemovedCount;
+    private long _lNotifiedCount;
+    private long _lUptime;
+
+    /**
+     * Record a user in the distribution of the sessions per user
+     *
+     * @param lSessionCount
+     *            the number of sessions of the user
+     */
+    public void addUser( long lSessionCount )
+    {
+        int nBucket = 0;
+
+        while ( nBucket < SESSIONS_PER_USER_BOUNDS.length && lSessionCount > SESSIONS_PER_USER_BOUNDS [nBucket] )
+        {
+            nBucket++;
+        }
+
+        _sessionsPerUser [nBucket]++;
+        _lUserCount++;
+        _lMaxSessionsPerUser = Math.max( _lMaxSessionsPerUser, lSessionCount );
+    }
+
+    /**
+     * @return the number of users by range of sessions per user
+     */
+    public Map<String, Long> getSessionsPerUser( )
+    {
+        Map<String, Long> mapSessionsPerUser = new LinkedHashMap<>( );
+        int nLowerBound = 1;
+
+        for ( int i = 0; i < SESSIONS_PER_USER_BOUNDS.length; i++ )
+        {
+            int nUpperBound = SESSIONS_PER_USER_BOUNDS [i];
+            mapSessionsPerUser.put( ( nLowerBound == nUpperBound ) ? String.valueOf( nUpperBound ) : ( nLowerBound + "-" + nUpperBound ), _sessionsPerUser [i] );
+            nLowerBound = nUpperBound + 1;
+        }
+
+        mapSessionsPerUser.put( nLowerBound + "+", _sessionsPerUser [SESSIONS_PER_USER_BOUNDS.length] );
+
+        return mapSessionsPerUser;
+    }
+
+    /**
+     * @return the number of tracked sessions
+     */
+    public long getSessionCount( )
+    {
+        return _lSessionCount;
+    }
+
+    public void setSessionCount( long lSessionCount )
+    {
+        _lSessionCount = lSessionCount;
+    }
+
+    /**
+     * @return the number of tracked users
+     */
+    public long getUserCount( )
+    {
+        return _lUserCount;
+    }
+
+    /**
+     * @return the number of sessions which have not seen the last update of their user
+     */
+    public long getStaleSessionCount( )
+    {
+        return _lStaleSessionCount;
+    }
+
+    public void setStaleSessionCount( long lStaleSessionCount )
+    {
+        _lStaleSessionCount = lStaleSessionCount;
+    }
+
+    /**
+     * @return the largest number of sessions of a user
+     */
+    public long getMaxSessionsPerUser( )
+    {
+        return _lMaxSessionsPerUser;
+    }
+
+    /**
+     * @return the estimated heap size retained by the registry, in bytes
+     */
+    public long getEstimatedSize( )
+    {
+        return _lEstimatedSize;
+    }
+
+    public void setEstimatedSize( long lEstimatedSize )
+    {
+        _lEstimatedSize = lEstimatedSize;
+    }
+
+    /**
+     * @return the number of sessions added since the registry started
+     */
+    public long getAddedCount( )
+    {
+        return _lAddedCount;
+    }
+
+    public void setAddedCount( long lAddedCount )
+    {
+        _lAddedCount = lAddedCount;
+    }
+
+    /**
+     * @return the number of sessions removed since the registry started
+     */
+    public long getRemovedCount( )
+    {
+        return _lRemovedCount;
+    }
+
+    public void setRemovedCount( long lRemovedCount )
+    {
+        _lRemovedCount = lRemovedCount;
+    }
+
+    /**
+     * @return the number of user updates applied since the registry started
+     */
+    public long getNotifiedCount( )
+    {
+        return _lNotifiedCount;
+    }
+
+    public void setNotifiedCount( long lNotifiedCount )
+    {
+        _lNotifiedCount = lNotifiedCount;
+    }
+
+    /**
+     * @return the time since the registry started, in milliseconds
+     */
+    public long getUptime( )
+    {
+        return _lUptime;
+    }
+
+    public void setUptime( long lUptime )
+    {
+        _lUptime = lUptime;
+    }
+
+    /**
+     * @return the average number of user updates applied per second
+     */
+    public double getNotifyRate( )
+    {
+        return getRate( _lNotifiedCount );
+    }
+
+    /**
+     * @return the average number of sessions removed per second
+     */
+    public double getRemovalRate( )
+    {
+        return getRate( _lRemovedCount );
+    }
+
+    /**
+     * @param lCount
+     *            a count since the registry started
+     * @return the count per second
+     */
+    private double getRate( long lCount )
+    {
+        return ( _lUptime > 0 ) ? ( lCount * 1000d / _lUptime ) : 0d;
+    }
+}
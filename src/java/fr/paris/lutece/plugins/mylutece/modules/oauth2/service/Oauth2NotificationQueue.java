@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ * Bounded queue of the user update notifications.
+ * <p>
+ * A notification waits in the queue during the coalescing window, and the notifications of the same user received meanwhile are merged into it. A background
+ * drainer then applies the notifications by batches. Offering a notification never blocks: when the queue is full, the notification is either rejected or
+ * replaces the oldest pending one, depending on the overflow policy.
+ * </p>
+ */
+public final class Oauth2NotificationQueue
+{
+    /**
+     * Behavior of the queue when it is full
+     */
+    public enum OverflowPolicy
+    {
+        /** the new notification is rejected */
+        REJECT,
+        /** the oldest pending notification is dropped */
+        DROP_OLDEST
+    }
+
+    private static final String PROPERTY_ENABLED = "mylutece-oauth2.notificationQueue.enabled";
+    private static final String PROPERTY_CAPACITY = "mylutece-oauth2.notificationQueue.capacity";
+    private static final String PROPERTY_COALESCING_WINDOW = "mylutece-oauth2.notificationQueue.coalescingWindow";
+    private static final String PROPERTY_BATCH_SIZE = "mylutece-oauth2.notificationQueue.batchSize";
+    private static final String PROPERTY_OVERFLOW_POLICY = "mylutece-oauth2.notificationQueue.overflowPolicy";
+    private static final int DEFAULT_CAPACITY = 10000;
+    private static final int DEFAULT_COALESCING_WINDOW = 1000;
+    private static final int DEFAULT_BATCH_SIZE = 500;
+    private static final long MIN_DRAIN_PERIOD = 10L;
+    private static final String STATISTICS_NAME = "notificationQueue";
+    private static final String THREAD_NAME = "mylutece-oauth2-notification-queue";
+
+    private static Oauth2NotificationQueue _singleton;
+
+    private final ConcurrentMap<String, Long> _mapPending = new ConcurrentHashMap<>( );
+    private final Queue<String> _queue = new ConcurrentLinkedQueue<>( );
+    private final AtomicInteger _nDepth = new AtomicInteger( );
+    private final LongAdder _lReceived = new LongAdder( );
+    private final LongAdder _lCoalesced = new LongAdder( );
+    private final LongAdder _lRejected = new LongAdder( );
+    private final LongAdder _lDropped = new LongAdder( );
+    private final LongAdder _lApplied = new LongAdder( );
+    private final boolean _bEnabled;
+    private final int _nCapacity;
+    private final long _lCoalescingWindow;
+    private final int _nBatchSize;
+    private final OverflowPolicy _overflowPolicy;
+    private final ScheduledExecutorService _drainer;
+
+    /**
+     * private constructor.
+     */
+    private Oauth2NotificationQueue( )
+    {
+        _bEnabled = AppPropertiesService.getPropertyBoolean( PROPERTY_ENABLED, false );
+        _nCapacity = Math.max( 1, AppPropertiesService.getPropertyInt( PROPERTY_CAPACITY, DEFAULT_CAPACITY ) );
+        _lCoalescingWindow = Math.max( 0, AppPropertiesService.getPropertyInt( PROPERTY_COALESCING_WINDOW, DEFAULT_COALESCING_WINDOW ) );
+        _nBatchSize = Math.max( 1, AppPropertiesService.getPropertyInt( PROPERTY_BATCH_SIZE, DEFAULT_BATCH_SIZE ) );
+        _overflowPolicy = OverflowPolicy.DROP_OLDEST.name( ).equalsIgnoreCase( AppPropertiesService.getProperty( PROPERTY_OVERFLOW_POLICY ) )
+                ? OverflowPolicy.DROP_OLDEST
+                : OverflowPolicy.REJECT;
+
+        if ( _bEnabled )
+        {
+            _drainer = Executors.newSingleThreadScheduledExecutor( runnable -> {
+                Thread thread = new Thread( runnable, THREAD_NAME );
+                thread.setDaemon( true );
+
+                return thread;
+            } );
+            long lPeriod = Math.max( MIN_DRAIN_PERIOD, _lCoalescingWindow / 4 );
+            _drainer.scheduleWithFixedDelay( this::drain, lPeriod, lPeriod, TimeUnit.MILLISECONDS );
+        }
+        else
+        {
+            _drainer = null;
+        }
+
+        Oauth2StatisticsService.register( STATISTICS_NAME, this::getStatistics );
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance
+     */
+    public static synchronized Oauth2NotificationQueue getInstance( )
+    {
+        if ( _singleton == null )
+        {
+            _singleton = new Oauth2NotificationQueue( );
+        }
+
+        return _singleton;
+    }
+
+    /**
+     * @return the statistics of the queue
+     */
+    public Oauth2ComponentStatistics getStatistics( )
+    {
+        return new Oauth2ComponentStatistics( )
+                .add( "enabled", _bEnabled )
+                .add( "depth", getDepth( ) )
+                .add( "receivedCount", getReceivedCount( ) )
+                .add( "coalescedCount", getCoalescedCount( ) )
+                .add( "rejectedCount", getRejectedCount( ) )
+                .add( "droppedCount", getDroppedCount( ) )
+                .add( "appliedCount", getAppliedCount( ) )
+                .add( "coalescingRatio", getCoalescingRatio( ) );
+    }
+
+    /**
+     * Stop the drainer of the instance, if the instance has been created. The pending notifications are dropped with the sessions of the stopping webapp.
+     */
+    public static synchronized void shutdown( )
+    {
+        if ( _singleton != null && _singleton._drainer != null )
+        {
+            _singleton._drainer.shutdownNow( );
+        }
+    }
+
+    /**
+     * @return true if the notifications go through the queue
+     */
+    public boolean isEnabled( )
+    {
+        return _bEnabled;
+    }
+
+    /**
+     * Offer the update notification of a user
+     *
+     * @param strLuteceUserName
+     *            the lutece user name
+     * @return false if the notification is rejected because the queue is full
+     */
+    public boolean offer( String strLuteceUserName )
+    {
+        if ( _mapPending.putIfAbsent( strLuteceUserName, System.currentTimeMillis( ) ) != null )
+        {
+            _lCoalesced.increment( );
+
+            return true;
+        }
+
+        if ( _nDepth.incrementAndGet( ) > _nCapacity )
+        {
+            if ( _overflowPolicy == OverflowPolicy.REJECT || !dropOldest( ) )
+            {
+                _nDepth.decrementAndGet( );
+                _mapPending.remove( strLuteceUserName );
+                _lRejected.increment( );
+
+                return false;
+            }
+        }
+
+        _queue.add( strLuteceUserName );
+        _lReceived.increment( );
+
+        return true;
+    }
+
+    /**
+     * Drop the oldest pending notification
+     *
+     * @return false if there was no pending notification to drop
+     */
+    private boolean dropOldest( )
+    {
+        String strOldest = _queue.poll( );
+
+        if ( strOldest == null )
+        {
+            return false;
+        }
+
+        _mapPending.remove( strOldest );
+        _nDepth.decrementAndGet( );
+        _lDropped.increment( );
+
+        return true;
+    }
+
+    /**
+     * Apply the notifications older than the coalescing window
+     */
+    void drain( )
+    {
+        try
+        {
+            long lLimit = System.currentTimeMillis( ) - _lCoalescingWindow;
+            List<String> listBatch = new ArrayList<>( );
+            String strLuteceUserName;
+
+            while ( ( strLuteceUserName = _queue.peek( ) ) != null )
+            {
+                Long lEnqueued = _mapPending.get( strLuteceUserName );
+
+                if ( lEnqueued != null && lEnqueued > lLimit )
+                {
+                    break;
+                }
+
+                if ( _queue.poll( ) == null )
+                {
+                    break;
+                }
+
+                _mapPending.remove( strLuteceUserName );
+                _nDepth.decrementAndGet( );
+                listBatch.add( strLuteceUserName );
+
+                if ( listBatch.size( ) == _nBatchSize )
+                {
+                    apply( listBatch );
+                    listBatch = new ArrayList<>( );
+                }
+            }
+
+            apply( listBatch );
+        }
+        catch( RuntimeException e )
+        {
+            AppLogService.error( "Oauth2 - error while applying the queued user notifications", e );
+        }
+    }
+
+    /**
+     * Apply a batch of notifications
+     *
+     * @param listBatch
+     *            the lutece user names
+     */
+    private void apply( List<String> listBatch )
+    {
+        if ( !listBatch.isEmpty( ) )
+        {
+            Oauth2LuteceUserSessionService.getInstance( ).notifyLuteceUsersUpdating( listBatch );
+            _lApplied.add( listBatch.size( ) );
+        }
+    }
+
+    /**
+     * @return the number of pending notifications
+     */
+    public int getDepth( )
+    {
+        return _nDepth.get( );
+    }
+
+    /**
+     * @return the number of notifications received and queued
+     */
+    public long getReceivedCount( )
+    {
+        return _lReceived.sum( );
+    }
+
+    /**
+     * @return the number of notifications merged into a pending one
+     */
+    public long getCoalescedCount( )
+    {
+        return _lCoalesced.sum( );
+    }
+
+    /**
+     * @return the number of notifications rejected because the queue was full
+     */
+    public long getRejectedCount( )
+    {
+        return _lRejected.sum( );
+    }
+
+    /**
+     * @return the number of pending notifications dropped because the queue was full
+     */
+    public long getDroppedCount( )
+    {
+        return _lDropped.sum( );
+    }
+
+    /**
+     * @return the number of notifications applied
+     */
+    public long getAppliedCount( )
+    {
+        return _lApplied.sum( );
+    }
+
+    /**
+     * @return the share of the accepted notifications which were merged into a pending one
+     */
+    public double getCoalescingRatio( )
+    {
+        long lCoalesced = getCoalescedCount( );
+        long lTotal = lCoalesced + getReceivedCount( );
+
+        return ( lTotal == 0 ) ? 0d : ( (double) lCoalesced / lTotal );
+    }
+}
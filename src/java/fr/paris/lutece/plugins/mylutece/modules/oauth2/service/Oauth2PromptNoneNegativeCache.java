@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang3.StringUtils;
+
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+import fr.paris.lutece.util.http.SecurityUtil;
+
+/**
+ * Negative cache of the prompt=none authentications.
+ * <p>
+ * When the identity provider answers login_required, the visitor is remembered as not logged in at the identity provider for a configurable period, so
+ * that the filter does not send it back to the identity provider on the next page views. The state stored in the session or in the cookie is lost when the
+ * session is lost or when the client does not keep the cookies : the visitors are therefore identified by a hash of their IP address and user agent. Two
+ * visitors behind the same proxy with the same user agent share their entry, the only effect is that the silent authentication of the second one is delayed
+ * until the entry expires.
+ * </p>
+ */
+public final class Oauth2PromptNoneNegativeCache
+{
+    private static final String PROPERTY_TTL = "mylutece-oauth2.promptNone.negativeCache.ttl";
+    private static final String PROPERTY_MAX_SIZE = "mylutece-oauth2.promptNone.negativeCache.maxSize";
+    private static final int DEFAULT_TTL = 0;
+    private static final int DEFAULT_MAX_SIZE = 100000;
+    private static final String ALGORITHM = "SHA-256";
+    private static final String STATISTICS_NAME = "promptNoneNegativeCache";
+    private static final char SEPARATOR = '\n';
+
+    private static Oauth2PromptNoneNegativeCache _singleton;
+
+    private final long _lTtl;
+    private final int _nMaxSize;
+    private final ConcurrentMap<Long, Long> _mapExpiryTimes = new ConcurrentHashMap<>( );
+    private volatile long _lNextPurgeTime;
+    private final LongAdder _lHits = new LongAdder( );
+    private final LongAdder _lRecorded = new LongAdder( );
+    private final LongAdder _lDropped = new LongAdder( );
+
+    /**
+     * private constructor.
+     */
+    private Oauth2PromptNoneNegativeCache( )
+    {
+        _lTtl = Math.max( 0, AppPropertiesService.getPropertyInt( PROPERTY_TTL, DEFAULT_TTL ) ) * 1000L;
+        _nMaxSize = Math.max( 0, AppPropertiesService.getPropertyInt( PROPERTY_MAX_SIZE, DEFAULT_MAX_SIZE ) );
+
+        Oauth2StatisticsService.register( STATISTICS_NAME, this::getStatistics );
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance
+     */
+    public static synchronized Oauth2PromptNoneNegativeCache getInstance( )
+    {
+        if ( _singleton == null )
+        {
+            _singleton = new Oauth2PromptNoneNegativeCache( );
+        }
+
+        return _singleton;
+    }
+
+    /**
+     * @return the statistics of the cache
+     */
+    public Oauth2ComponentStatistics getStatistics( )
+    {
+        return new Oauth2ComponentStatistics( )
+                .add( "enabled", isEnabled( ) )
+                .add( "size", getSize( ) )
+                .add( "hitCount", getHitCount( ) )
+                .add( "recordedCount", getRecordedCount( ) )
+                .add( "droppedCount", getDroppedCount( ) );
+    }
+
+    /**
+     * @return true if the login_required answers are remembered
+     */
+    public boolean isEnabled( )
+    {
+        return _lTtl > 0 && _nMaxSize > 0;
+    }
+
+    /**
+     * Check if the identity provider recently answered login_required for the visitor of a request
+     *
+     * @param request
+     *            the request
+     * @return true if the prompt=none authentication must not be attempted again yet
+     */
+    public boolean isLoginRequired( HttpServletRequest request )
+    {
+        if ( !isEnabled( ) || _mapExpiryTimes.isEmpty( ) )
+        {
+            return false;
+        }
+
+        Long lKey = getKey( request );
+        Long lExpiryTime = _mapExpiryTimes.get( lKey );
+
+        if ( lExpiryTime == null )
+        {
+            return false;
+        }
+
+        if ( System.currentTimeMillis( ) >= lExpiryTime )
+        {
+            _mapExpiryTimes.remove( lKey, lExpiryTime );
+
+            return false;
+        }
+
+        _lHits.increment( );
+
+        return true;
+    }
+
+    /**
+     * Remember that the identity provider answered login_required for the visitor of a request
+     *
+     * @param request
+     *            the request
+     */
+    public void recordLoginRequired( HttpServletRequest request )
+    {
+        if ( !isEnabled( ) )
+        {
+            return;
+        }
+
+        long lNow = System.currentTimeMillis( );
+
+        if ( _mapExpiryTimes.size( ) >= _nMaxSize )
+        {
+            purge( lNow );
+
+            if ( _mapExpiryTimes.size( ) >= _nMaxSize )
+            {
+                // the visitor will be sent to the identity provider as before
+                _lDropped.increment( );
+
+                return;
+            }
+        }
+
+        _mapExpiryTimes.put( getKey( request ), lNow + _lTtl );
+        _lRecorded.increment( );
+    }
+
+    /**
+     * Forget the visitor of a request, once authenticated
+     *
+     * @param request
+     *            the request
+     */
+    public void remove( HttpServletRequest request )
+    {
+        if ( isEnabled( ) && !_mapExpiryTimes.isEmpty( ) )
+        {
+            _mapExpiryTimes.remove( getKey( request ) );
+        }
+    }
+
+    /**
+     * Remove the expired entries, at most once per second
+     *
+     * @param lNow
+     *            the current time
+     */
+    private void purge( long lNow )
+    {
+        if ( lNow >= _lNextPurgeTime )
+        {
+            _lNextPurgeTime = lNow + 1000L;
+            _mapExpiryTimes.values( ).removeIf( lExpiryTime -> lExpiryTime <= lNow );
+        }
+    }
+
+    /**
+     * Compute the key of the visitor of a request
+     *
+     * @param request
+     *            the request
+     * @return the first 64 bits of the hash of the IP address and of the user agent
+     */
+    private static Long getKey( HttpServletRequest request )
+    {
+        String strClient = StringUtils.defaultString( SecurityUtil.getRealIp( request ) ) + SEPARATOR
+                + StringUtils.defaultString( request.getHeader( "User-Agent" ) );
+
+        try
+        {
+            return ByteBuffer.wrap( MessageDigest.getInstance( ALGORITHM ).digest( strClient.getBytes( StandardCharsets.UTF_8 ) ) ).getLong( );
+        }
+        catch( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * @return the number of visitors remembered
+     */
+    public int getSize( )
+    {
+        return _mapExpiryTimes.size( );
+    }
+
+    /**
+     * @return the number of prompt=none authentications skipped
+     */
+    public long getHitCount( )
+    {
+        return _lHits.sum( );
+    }
+
+    /**
+     * @return the number of login_required answers remembered
+     */
+    public long getRecordedCount( )
+    {
+        return _lRecorded.sum( );
+    }
+
+    /**
+     * @return the number of login_required answers not remembered because the cache was full
+     */
+    public long getDroppedCount( )
+    {
+        return _lDropped.sum( );
+    }
+}
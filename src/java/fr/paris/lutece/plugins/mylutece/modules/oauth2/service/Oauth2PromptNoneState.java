@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.lang3.StringUtils;
+
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.authentication.AuthDataClient;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ * State of the prompt=none authentication of an anonymous visitor.
+ * <p>
+ * The state is stored in the session by default. In lazy session mode, it is stored in a cookie signed with HMAC-SHA256 instead, so that anonymous visitors
+ * never get a session only for this state. The cookie carries its expiry time in its signed value. The nodes of a cluster must share the cookie secret :
+ * without one, each node generates its own secret and ignores the cookies signed by the other nodes.
+ * </p>
+ */
+public final class Oauth2PromptNoneState
+{
+    private static final String PROPERTY_LAZY_SESSION = "mylutece-oauth2.lazySession";
+    private static final String PROPERTY_COOKIE_SECRET = "mylutece-oauth2.lazySession.cookieSecret";
+    private static final String PROPERTY_COOKIE_MAX_AGE = "mylutece-oauth2.lazySession.cookieMaxAge";
+    private static final int DEFAULT_COOKIE_MAX_AGE = 1800;
+    private static final int GENERATED_SECRET_SIZE = 32;
+    private static final String COOKIE_NAME = "mylutece_oauth2_error_login";
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final char SEPARATOR = '.';
+    private static final String PATH_ROOT = "/";
+
+    private static Oauth2PromptNoneState _singleton;
+
+    private final boolean _bLazySession;
+    private final SecretKeySpec _secretKey;
+    private final int _nCookieMaxAge;
+
+    /**
+     * private constructor.
+     */
+    private Oauth2PromptNoneState( )
+    {
+        _bLazySession = AppPropertiesService.getPropertyBoolean( PROPERTY_LAZY_SESSION, false );
+        _nCookieMaxAge = AppPropertiesService.getPropertyInt( PROPERTY_COOKIE_MAX_AGE, DEFAULT_COOKIE_MAX_AGE );
+
+        String strSecret = AppPropertiesService.getProperty( PROPERTY_COOKIE_SECRET );
+        byte [ ] secret;
+
+        if ( StringUtils.isNotBlank( strSecret ) )
+        {
+            secret = strSecret.getBytes( StandardCharsets.UTF_8 );
+        }
+        else
+        {
+            secret = new byte [ GENERATED_SECRET_SIZE];
+            new SecureRandom( ).nextBytes( secret );
+
+            if ( _bLazySession )
+            {
+                AppLogService.info( "Oauth2 - no prompt=none cookie secret configured, a secret is generated for this node only" );
+            }
+        }
+
+        _secretKey = new SecretKeySpec( secret, ALGORITHM );
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance
+     */
+    public static synchronized Oauth2PromptNoneState getInstance( )
+    {
+        if ( _singleton == null )
+        {
+            _singleton = new Oauth2PromptNoneState( );
+        }
+
+        return _singleton;
+    }
+
+    /**
+     * @return true if the sessions must only be created to store an authentication
+     */
+    public boolean isLazySession( )
+    {
+        return _bLazySession;
+    }
+
+    /**
+     * Get the prompt=none state of a visitor
+     *
+     * @param request
+     *            the request
+     * @return the state ({@link AuthDataClient#SESSION_ERROR_LOGIN} attribute), or null if there is none
+     */
+    public String getErrorLogin( HttpServletRequest request )
+    {
+        if ( !_bLazySession )
+        {
+            HttpSession session = request.getSession( false );
+
+            return ( session != null ) ? (String) session.getAttribute( AuthDataClient.SESSION_ERROR_LOGIN ) : null;
+        }
+
+        Cookie [ ] cookies = request.getCookies( );
+
+        if ( cookies != null )
+        {
+            for ( Cookie cookie : cookies )
+            {
+                if ( COOKIE_NAME.equals( cookie.getName( ) ) )
+                {
+                    return verify( cookie.getValue( ) );
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Set the prompt=none state of a visitor
+     *
+     * @param request
+     *            the request
+     * @param response
+     *            the response
+     * @param strErrorLogin
+     *            the state
+     */
+    public void setErrorLogin( HttpServletRequest request, HttpServletResponse response, String strErrorLogin )
+    {
+        if ( !_bLazySession )
+        {
+            request.getSession( true ).setAttribute( AuthDataClient.SESSION_ERROR_LOGIN, strErrorLogin );
+
+            return;
+        }
+
+        String strValue = strErrorLogin + SEPARATOR + ( System.currentTimeMillis( ) / 1000L + _nCookieMaxAge );
+        Cookie cookie = new Cookie( COOKIE_NAME, strValue + SEPARATOR + sign( strValue ) );
+        cookie.setMaxAge( _nCookieMaxAge );
+        cookie.setPath( StringUtils.isEmpty( request.getContextPath( ) ) ? PATH_ROOT : request.getContextPath( ) );
+        cookie.setHttpOnly( true );
+        cookie.setSecure( request.isSecure( ) );
+        response.addCookie( cookie );
+    }
+
+    /**
+     * Check the signature and the expiry of a cookie value
+     *
+     * @param strCookieValue
+     *            the cookie value
+     * @return the state, or null if the value is not valid or expired
+     */
+    private String verify( String strCookieValue )
+    {
+        int nSignature = ( strCookieValue != null ) ? strCookieValue.lastIndexOf( SEPARATOR ) : -1;
+        int nExpiry = ( nSignature > 0 ) ? strCookieValue.lastIndexOf( SEPARATOR, nSignature - 1 ) : -1;
+
+        if ( nExpiry < 0 )
+        {
+            return null;
+        }
+
+        String strValue = strCookieValue.substring( 0, nSignature );
+        byte [ ] signature = strCookieValue.substring( nSignature + 1 ).getBytes( StandardCharsets.US_ASCII );
+
+        if ( !MessageDigest.isEqual( signature, sign( strValue ).getBytes( StandardCharsets.US_ASCII ) ) )
+        {
+            return null;
+        }
+
+        try
+        {
+            if ( Long.parseLong( strValue.substring( nExpiry + 1 ) ) < System.currentTimeMillis( ) / 1000L )
+            {
+                return null;
+            }
+        }
+        catch( NumberFormatException e )
+        {
+            return null;
+        }
+
+        return strValue.substring( 0, nExpiry );
+    }
+
+    /**
+     * Sign a value
+     *
+     * @param strValue
+     *            the value
+     * @return the signature, base64url encoded
+     */
+    private String sign( String strValue )
+    {
+        try
+        {
+            Mac mac = Mac.getInstance( ALGORITHM );
+            mac.init( _secretKey );
+
+            return Base64.getUrlEncoder( ).withoutPadding( ).encodeToString( mac.doFinal( strValue.getBytes( StandardCharsets.UTF_8 ) ) );
+        }
+        catch( GeneralSecurityException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+}
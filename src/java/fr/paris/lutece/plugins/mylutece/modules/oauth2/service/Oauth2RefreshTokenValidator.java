@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletRequest;
+
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.authentication.Oauth2User;
+import fr.paris.lutece.plugins.oauth2.business.Token;
+import fr.paris.lutece.portal.service.security.SecurityService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ * Validation of the refresh token of the Oauth2 users, for the validateRefreshToken mode.
+ * <p>
+ * Validating a refresh token is a round trip to the identity provider. The result is cached in the user, which lives in the session : the token is not
+ * validated again while the current access token is valid, then it is validated at most once per interval. The interval is jittered so that the sessions
+ * opened at the same time do not validate their tokens at the same time.
+ * </p>
+ */
+public final class Oauth2RefreshTokenValidator
+{
+    private static final String PROPERTY_CACHE = "mylutece-oauth2.validateRefreshToken.cache";
+    private static final String PROPERTY_INTERVAL = "mylutece-oauth2.validateRefreshToken.interval";
+    private static final String PROPERTY_JITTER = "mylutece-oauth2.validateRefreshToken.jitter";
+    private static final int DEFAULT_INTERVAL = 60;
+    private static final int DEFAULT_JITTER = 20;
+    private static final String STATISTICS_NAME = "refreshTokenValidation";
+
+    private static Oauth2RefreshTokenValidator _singleton;
+
+    private final boolean _bCache;
+    private final long _lInterval;
+    private final double _dJitter;
+    private final LongAdder _lHits = new LongAdder( );
+    private final LongAdder _lRevalidations = new LongAdder( );
+    private final LongAdder _lFailures = new LongAdder( );
+
+    /**
+     * private constructor.
+     */
+    private Oauth2RefreshTokenValidator( )
+    {
+        _bCache = AppPropertiesService.getPropertyBoolean( PROPERTY_CACHE, true );
+        _lInterval = Math.max( 0, AppPropertiesService.getPropertyInt( PROPERTY_INTERVAL, DEFAULT_INTERVAL ) ) * 1000L;
+        _dJitter = Math.min( 100, Math.max( 0, AppPropertiesService.getPropertyInt( PROPERTY_JITTER, DEFAULT_JITTER ) ) ) / 100d;
+
+        Oauth2StatisticsService.register( STATISTICS_NAME, this::getStatistics );
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance
+     */
+    public static synchronized Oauth2RefreshTokenValidator getInstance( )
+    {
+        if ( _singleton == null )
+        {
+            _singleton = new Oauth2RefreshTokenValidator( );
+        }
+
+        return _singleton;
+    }
+
+    /**
+     * @return the statistics of the validations
+     */
+    public Oauth2ComponentStatistics getStatistics( )
+    {
+        return new Oauth2ComponentStatistics( )
+                .add( "hitCount", getHitCount( ) )
+                .add( "revalidationCount", getRevalidationCount( ) )
+                .add( "failureCount", getFailureCount( ) )
+                .add( "hitRatio", getHitRatio( ) );
+    }
+
+    /**
+     * Validate the refresh token of a user, unless the last validation is still fresh. The user is logged out if the token is not valid anymore.
+     *
+     * @param request
+     *            the request
+     * @param oauth2User
+     *            the user
+     */
+    public void validate( HttpServletRequest request, Oauth2User oauth2User )
+    {
+        if ( !isValidationRequired( oauth2User ) )
+        {
+            _lHits.increment( );
+
+            return;
+        }
+
+        long lNow = System.currentTimeMillis( );
+        _lRevalidations.increment( );
+
+        if ( oauth2User.getToken( ) != null && oauth2User.getToken( ).getRefreshToken( ) != null )
+        {
+            Token token = Oauth2TokenRefresher.getInstance( ).refresh( oauth2User.getToken( ).getRefreshToken( ) );
+
+            if ( token != null )
+            {
+                oauth2User.setToken( token );
+                oauth2User.setNextValidationTime( lNow + getJitteredInterval( ) );
+
+                return;
+            }
+        }
+
+        _lFailures.increment( );
+        SecurityService.getInstance( ).logoutUser( request );
+    }
+
+    /**
+     * Check if the refresh token of a user must be sent to the identity provider
+     *
+     * @param oauth2User
+     *            the user
+     * @return false if the last validation is still fresh
+     */
+    public boolean isValidationRequired( Oauth2User oauth2User )
+    {
+        long lNow = System.currentTimeMillis( );
+
+        return !_bCache || ( lNow >= oauth2User.getTokenExpiryTime( ) && lNow >= oauth2User.getNextValidationTime( ) );
+    }
+
+    /**
+     * @return the validation interval, randomly shortened or lengthened by the jitter
+     */
+    private long getJitteredInterval( )
+    {
+        return (long) ( _lInterval * ( 1d - _dJitter + 2d * _dJitter * ThreadLocalRandom.current( ).nextDouble( ) ) );
+    }
+
+    /**
+     * @return the number of requests which skipped the validation
+     */
+    public long getHitCount( )
+    {
+        return _lHits.sum( );
+    }
+
+    /**
+     * @return the number of validations sent to the identity provider
+     */
+    public long getRevalidationCount( )
+    {
+        return _lRevalidations.sum( );
+    }
+
+    /**
+     * @return the number of validations which logged the user out
+     */
+    public long getFailureCount( )
+    {
+        return _lFailures.sum( );
+    }
+
+    /**
+     * @return the share of the requests which skipped the validation
+     */
+    public double getHitRatio( )
+    {
+        long lHits = getHitCount( );
+        long lTotal = lHits + getRevalidationCount( );
+
+        return ( lTotal == 0 ) ? 0d : ( (double) lHits / lTotal );
+    }
+}
@@ -39,7 +39,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.function.Function;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -47,6 +47,8 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import fr.paris.lutece.plugins.mylutece.authentication.MultiLuteceAuthentication;
 import fr.paris.lutece.plugins.mylutece.business.LuteceUserAttributeDescription;
 import fr.paris.lutece.plugins.mylutece.modules.oauth2.authentication.Oauth2Authentication;
@@ -54,7 +56,6 @@ import fr.paris.lutece.plugins.mylutece.modules.oauth2.authentication.Oauth2User
 import fr.paris.lutece.plugins.mylutece.service.MyLuteceUserService;
 import fr.paris.lutece.plugins.mylutece.web.MyLuteceApp;
 import fr.paris.lutece.plugins.oauth2.business.Token;
-import fr.paris.lutece.portal.service.security.LuteceUser;
 import fr.paris.lutece.portal.service.security.SecurityService;
 import fr.paris.lutece.portal.service.spring.SpringContextService;
 import fr.paris.lutece.portal.service.util.AppLogService;
@@ -86,6 +87,12 @@ public final class Oauth2Service
     /** The Constant PROPERTY_IDENTITY_ATTRIBUTE_KEY. */
     private static final String PROPERTY_IDENTITY_ATTRIBUTE_KEY = "mylutece-oauth2.attributeIdentityKey";
 
+    /** The Constant PROPERTY_ID_TOKEN_ONLY. */
+    private static final String PROPERTY_ID_TOKEN_ONLY = "mylutece-oauth2.idTokenOnly";
+
+    /** The Constant PROPERTY_ID_TOKEN_ONLY_REQUIRED_CLAIMS. */
+    private static final String PROPERTY_ID_TOKEN_ONLY_REQUIRED_CLAIMS = "mylutece-oauth2.idTokenOnly.requiredClaims";
+
     /** The Constant TOKEN_SUBJECT. */
     private static final String TOKEN_SUBJECT = "sub";
 
@@ -104,6 +111,12 @@ public final class Oauth2Service
     /** The singleton. */
     private static Oauth2Service _singleton;
 
+    /** The projection of the claims on the users. */
+    private static Oauth2UserProjection _userProjection;
+
+    /** The resolution of the claims of the users, from the id token or the userinfo document. */
+    private static Oauth2UserInfoResolver _userInfoResolver;
+
     /**
      * private constructor.
      */
@@ -147,7 +160,7 @@ public final class Oauth2Service
                         {
                             tabPropertiesValues = userProperties.split( SEPARATOR );
 
-                            for ( int n = 0; i < tabPropertiesValues.length; n++ )
+                            for ( int n = 0; n < tabPropertiesValues.length; n++ )
                             {
                                 if ( !ATTRIBUTE_USER_MAPPING.containsKey( tabPropertiesValues [n] ) )
                                 {
@@ -170,11 +183,37 @@ public final class Oauth2Service
                     }
                 }
             }
+
+            _userProjection = new Oauth2UserProjection( ATTRIBUTE_USER_KEY_NAME, ATTRIBUTE_USER_MAPPING,
+                    AppPropertiesService.getProperty( PROPERTY_IDENTITY_ATTRIBUTE_KEY ) );
+
+            String strRequiredIdTokenClaims = AppPropertiesService.getProperty( PROPERTY_ID_TOKEN_ONLY_REQUIRED_CLAIMS );
+            // every mapped claim by default : an id token missing one of them would create a user with fewer attributes
+            String [ ] requiredIdTokenClaims = StringUtils.isNotBlank( strRequiredIdTokenClaims ) ? strRequiredIdTokenClaims.split( SEPARATOR )
+                    : _userProjection.getMappedClaims( ).toArray( new String [ 0] );
+            _userInfoResolver = new Oauth2UserInfoResolver( new Oauth2ClaimExtractor( new ObjectMapper( ), _userProjection.getClaims( ) ), _userProjection,
+                    AppPropertiesService.getPropertyBoolean( PROPERTY_ID_TOKEN_ONLY, false ), requiredIdTokenClaims );
         }
 
         return _singleton;
     }
 
+    /**
+     * Get the claims of a user, from the id token when it holds them all, from the userinfo document otherwise
+     *
+     * @param token
+     *            the token
+     * @param userInfoLoader
+     *            the loader of the userinfo document of a token, only called when the id token does not suffice
+     * @return the claims read by the authentication
+     * @throws IOException
+     *             if the userinfo document is not a valid JSON object
+     */
+    public Map<String, Object> getUserInfo( Token token, Function<Token, String> userInfoLoader ) throws IOException
+    {
+        return _userInfoResolver.getUserInfo( token, userInfoLoader );
+    }
+
     /**
      * Process the authentication.
      *
@@ -195,84 +234,28 @@ public final class Oauth2Service
             mapUserInfo.put( TOKEN_SUBJECT, token.getIdToken( ).getSubject( ) );
 
         }
-        Oauth2User user = null;
-        for ( int i = 0; i < ATTRIBUTE_USER_KEY_NAME.length; i++ )
-        {
-
-            if ( mapUserInfo.containsKey( ATTRIBUTE_USER_KEY_NAME [i] ) )
-            {
-                user = new Oauth2User( (String) mapUserInfo.get( ATTRIBUTE_USER_KEY_NAME [i] ), token, _authService );
-            }
-        }
+        // user name, attributes, email and identity key
+        Oauth2User user = _userProjection.createUser( mapUserInfo, token, _authService );
 
         if ( user != null )
         {
-
-            for ( Entry<String, Object> entry : mapUserInfo.entrySet( ) )
-            {
-                if ( ATTRIBUTE_USER_MAPPING.containsKey( entry.getKey( ) ) )
-                {
-                    for ( String strUserInfo : ATTRIBUTE_USER_MAPPING.get( entry.getKey( ) ) )
-                    {
-
-                        Object val = entry.getValue( );
-                        if ( val instanceof ArrayList<?> )
-                        {
-
-                            StringBuffer strBufVal = new StringBuffer( );
-                            for ( String tabVal : (ArrayList<String>) val )
-                            {
-                                strBufVal.append( tabVal );
-                                strBufVal.append( SEPARATOR );
-                            }
-                            if ( strBufVal.length( ) > 0 )
-                            {
-                                user.setUserInfo( strUserInfo, strBufVal.substring( 0, strBufVal.length( ) - 1 ) );
-                            }
-
-                            user.setUserInfo( strUserInfo, strBufVal.toString( ) );
-
-                        }
-                        else
-                        {
-                            user.setUserInfo( strUserInfo, val.toString( ) );
-                        }
-                    }
-                }
-                // set Email in lutece User
-                if ( !StringUtils.isEmpty( user.getUserInfo( LuteceUser.HOME_INFO_ONLINE_EMAIL ) ) )
-                {
-                    user.setEmail( user.getUserInfo( LuteceUser.HOME_INFO_ONLINE_EMAIL ) );
-
-                }
-                else
-                    if ( !StringUtils.isEmpty( user.getUserInfo( LuteceUser.BUSINESS_INFO_ONLINE_EMAIL ) ) )
-                    {
-                        user.setEmail( user.getUserInfo( LuteceUser.BUSINESS_INFO_ONLINE_EMAIL ) );
-
-                    }
-
-            }
-
-            // add Identities Informations
-            // get Identity key the default key is the value of lutece user name
-            String strIdentityKey = user.getName( );
-            String strIdentityKeyAttribute = AppPropertiesService.getProperty( PROPERTY_IDENTITY_ATTRIBUTE_KEY );
-            if ( strIdentityKeyAttribute != null && mapUserInfo.containsKey( strIdentityKeyAttribute ) )
-            {
-                strIdentityKey = mapUserInfo.get( strIdentityKeyAttribute ).toString( );
-            }
-
-            user.setName( strIdentityKey );
-            MyLuteceUserService.provideUserExternalInfos( user );
+            // external infos and enrichment providers, concurrently
+            Oauth2UserEnrichmentService.getInstance( ).enrich( user );
 
             // add Oauth2LuteceUserSessionService session
             Oauth2LuteceUserSessionService.getInstance( ).addLuteceUserSession( user.getName( ), request.getSession( true ).getId( ) );
+            Oauth2PromptNoneNegativeCache.getInstance( ).remove( request );
 
         }
 
         SecurityService.getInstance( ).registerUser( request, user );
 
+        if ( user != null )
+        {
+            // tracked once registered : the refreshes check that the user is still the one of the session
+            Oauth2TokenRefreshScheduler.getInstance( ).track( request.getSession( true ), user );
+        }
+
         return user;
     }
     
@@ -293,6 +276,14 @@ public final class Oauth2Service
          {
              AppLogService.error( "Mylutece  Ouath2 Authentication not found, please check your mylutece-oauth2_context.xml configuration" );
          }
+
+         // restore the sessions registry from its journal
+         IOauth2LuteceUserSessionService sessionService = Oauth2LuteceUserSessionService.getInstance( );
+
+         if ( sessionService instanceof AbstractOauth2LuteceUserSessionService )
+         {
+             ( (AbstractOauth2LuteceUserSessionService) sessionService ).openJournal( );
+         }
     	
     }
     
@@ -307,7 +298,6 @@ public final class Oauth2Service
     
     	
     	String strUserMappingAttributes = AppPropertiesService.getProperty( PROPERTY_USER_MAPPING_ATTRIBUTES );
-        ATTRIBUTE_USER_MAPPING = new HashMap<String, List<String>>( );
 
         if ( StringUtils.isNotBlank( strUserMappingAttributes ) )
         {
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timer wheel expiring the idle sessions of the registry.
+ * <p>
+ * The wheel has 4 levels of 64 buckets : a level covers 64 times the span of the level below, so that with a tick of one second the wheel spans about 194
+ * days. A session is scheduled at the tick of its idle deadline and cascades to the lower levels as the time goes on. The accesses to the sessions do not
+ * touch the wheel : when a bucket fires, a session accessed since it was scheduled is just scheduled again at its new deadline. Scheduling, cancelling and
+ * firing a session are therefore all amortized O(1).
+ * </p>
+ * <p>
+ * The buckets are ordered by deadline, and each bucket keeps its sessions in scheduling order, so that evicting from the soonest buckets evicts the least
+ * recently used sessions first.
+ * </p>
+ */
+final class Oauth2SessionExpiryWheel
+{
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final int WHEEL_BITS = SLOT_BITS * LEVELS;
+
+    private final long _lTickDuration;
+    private final long _lIdleTimeout;
+    private final Oauth2LuteceUserSession [ ] _buckets = new Oauth2LuteceUserSession [ LEVELS * SLOTS];
+    private long _lCurrentTick;
+    private int _nSize;
+
+    /**
+     * Constructor
+     *
+     * @param lTickDuration
+     *            the duration of a tick in milliseconds
+     * @param lIdleTimeout
+     *            the idle time in milliseconds after which a session expires
+     * @param lNow
+     *            the current time
+     */
+    Oauth2SessionExpiryWheel( long lTickDuration, long lIdleTimeout, long lNow )
+    {
+        _lTickDuration = lTickDuration;
+        _lIdleTimeout = lIdleTimeout;
+        _lCurrentTick = lNow / lTickDuration;
+    }
+
+    /**
+     * Schedule the expiry of a new session
+     *
+     * @param session
+     *            the session
+     */
+    synchronized void schedule( Oauth2LuteceUserSession session )
+    {
+        if ( session._nWheelBucket < 0 )
+        {
+            _nSize++;
+            insert( session, Math.max( getDeadlineTick( session ), _lCurrentTick + 1 ) );
+        }
+    }
+
+    /**
+     * Cancel the expiry of a session
+     *
+     * @param session
+     *            the session
+     */
+    synchronized void cancel( Oauth2LuteceUserSession session )
+    {
+        if ( session._nWheelBucket >= 0 )
+        {
+            unlink( session );
+            _nSize--;
+        }
+    }
+
+    /**
+     * @return the number of scheduled sessions
+     */
+    synchronized int size( )
+    {
+        return _nSize;
+    }
+
+    /**
+     * Advance the wheel up to the current time
+     *
+     * @param lNow
+     *            the current time
+     * @return the expired sessions, removed from the wheel
+     */
+    synchronized List<Oauth2LuteceUserSession> advance( long lNow )
+    {
+        List<Oauth2LuteceUserSession> listExpired = new ArrayList<>( );
+        long lTargetTick = lNow / _lTickDuration;
+
+        while ( _lCurrentTick < lTargetTick )
+        {
+            _lCurrentTick++;
+
+            // the higher levels cascade first, on the ticks where the lower levels wrap
+            int nLevel = 0;
+
+            while ( nLevel < LEVELS - 1 && ( _lCurrentTick & ( ( 1L << ( SLOT_BITS * ( nLevel + 1 ) ) ) - 1 ) ) == 0 )
+            {
+                nLevel++;
+            }
+
+            for ( ; nLevel > 0; nLevel-- )
+            {
+                Oauth2LuteceUserSession session;
+                int nBucket = getBucket( nLevel, _lCurrentTick );
+
+                while ( ( session = _buckets [nBucket] ) != null )
+                {
+                    unlink( session );
+                    insert( session, session._lWheelTick );
+                }
+            }
+
+            Oauth2LuteceUserSession session;
+            int nBucket = getBucket( 0, _lCurrentTick );
+
+            while ( ( session = _buckets [nBucket] ) != null )
+            {
+                unlink( session );
+
+                long lDeadlineTick = getDeadlineTick( session );
+
+                if ( lDeadlineTick > _lCurrentTick )
+                {
+                    insert( session, lDeadlineTick );
+                }
+                else
+                {
+                    _nSize--;
+                    listExpired.add( session );
+                }
+            }
+        }
+
+        return listExpired;
+    }
+
+    /**
+     * Evict the least recently used session
+     *
+     * @return the evicted session, removed from the wheel, or null if the wheel is empty
+     */
+    synchronized Oauth2LuteceUserSession evict( )
+    {
+        for ( int nLevel = 0; nLevel < LEVELS; nLevel++ )
+        {
+            int nSlot = (int) ( ( _lCurrentTick >>> ( SLOT_BITS * nLevel ) ) & SLOT_MASK );
+
+            for ( ; nSlot < SLOTS; nSlot++ )
+            {
+                Oauth2LuteceUserSession session;
+                int nBucket = nLevel * SLOTS + nSlot;
+
+                while ( ( session = _buckets [nBucket] ) != null )
+                {
+                    unlink( session );
+
+                    // second chance for the sessions accessed since they were scheduled
+                    long lDeadlineTick = getDeadlineTick( session );
+
+                    if ( lDeadlineTick > session._lWheelTick )
+                    {
+                        insert( session, lDeadlineTick );
+
+                        if ( session._nWheelBucket != nBucket )
+                        {
+                            continue;
+                        }
+
+                        unlink( session );
+                    }
+
+                    _nSize--;
+
+                    return session;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param session
+     *            the session
+     * @return the tick of the idle deadline of the session
+     */
+    private long getDeadlineTick( Oauth2LuteceUserSession session )
+    {
+        return ( session.getLastAccess( ) + _lIdleTimeout ) / _lTickDuration;
+    }
+
+    /**
+     * @param nLevel
+     *            the level
+     * @param lTick
+     *            the tick
+     * @return the index of the bucket of the tick at the level
+     */
+    private static int getBucket( int nLevel, long lTick )
+    {
+        return nLevel * SLOTS + (int) ( ( lTick >>> ( SLOT_BITS * nLevel ) ) & SLOT_MASK );
+    }
+
+    /**
+     * Insert a session at the end of the bucket of its tick. A session is put in the lowest level sharing the span of its tick with the current tick.
+     *
+     * @param session
+     *            the session
+     * @param lTick
+     *            the tick
+     */
+    private void insert( Oauth2LuteceUserSession session, long lTick )
+    {
+        long lWheelTick = Math.max( lTick, _lCurrentTick );
+
+        // beyond the span of the wheel, the session fires at the end of the span and is scheduled again
+        if ( ( lWheelTick >>> WHEEL_BITS ) != ( _lCurrentTick >>> WHEEL_BITS ) )
+        {
+            lWheelTick = _lCurrentTick | ( ( 1L << WHEEL_BITS ) - 1 );
+        }
+
+        int nLevel = 0;
+
+        while ( ( lWheelTick >>> ( SLOT_BITS * ( nLevel + 1 ) ) ) != ( _lCurrentTick >>> ( SLOT_BITS * ( nLevel + 1 ) ) ) )
+        {
+            nLevel++;
+        }
+
+        int nBucket = getBucket( nLevel, lWheelTick );
+        Oauth2LuteceUserSession head = _buckets [nBucket];
+
+        if ( head == null )
+        {
+            session._wheelPrevious = session;
+            session._wheelNext = session;
+            _buckets [nBucket] = session;
+        }
+        else
+        {
+            session._wheelPrevious = head._wheelPrevious;
+            session._wheelNext = head;
+            head._wheelPrevious._wheelNext = session;
+            head._wheelPrevious = session;
+        }
+
+        session._nWheelBucket = nBucket;
+        session._lWheelTick = lWheelTick;
+    }
+
+    /**
+     * Unlink a session from its bucket
+     *
+     * @param session
+     *            the session
+     */
+    private void unlink( Oauth2LuteceUserSession session )
+    {
+        int nBucket = session._nWheelBucket;
+
+        if ( session._wheelNext == session )
+        {
+            _buckets [nBucket] = null;
+        }
+        else
+        {
+            session._wheelPrevious._wheelNext = session._wheelNext;
+            session._wheelNext._wheelPrevious = session._wheelPrevious;
+
+            if ( _buckets [nBucket] == session )
+            {
+                _buckets [nBucket] = session._wheelNext;
+            }
+        }
+
+        session._wheelPrevious = null;
+        session._wheelNext = null;
+        session._nWheelBucket = -1;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Registry of the statistics of the module components.
+ * <p>
+ * The components register the supplier of their statistics when they are created, so that reading the statistics never creates a component, nor starts
+ * its threads : a component which has not been used yet has no statistics.
+ * </p>
+ */
+public final class Oauth2StatisticsService
+{
+    private static final Map<String, Supplier<?>> _mapSuppliers = new ConcurrentHashMap<>( );
+
+    /**
+     * private constructor.
+     */
+    private Oauth2StatisticsService( )
+    {
+    }
+
+    /**
+     * Register the statistics of a component, replacing the ones registered under the same name
+     *
+     * @param strName
+     *            the name of the component
+     * @param supplier
+     *            the supplier of the statistics of the component
+     */
+    public static void register( String strName, Supplier<?> supplier )
+    {
+        _mapSuppliers.put( strName, supplier );
+    }
+
+    /**
+     * Get the statistics of the registered components
+     *
+     * @return the statistics, by component name
+     */
+    public static Map<String, Object> getStatistics( )
+    {
+        Map<String, Object> mapStatistics = new TreeMap<>( );
+
+        _mapSuppliers.forEach( ( strName, supplier ) -> {
+            try
+            {
+                mapStatistics.put( strName, supplier.get( ) );
+            }
+            catch( RuntimeException e )
+            {
+                AppLogService.error( "Oauth2 - unable to read the statistics of " + strName, e );
+            }
+        } );
+
+        return mapStatistics;
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.authentication.Oauth2User;
+import fr.paris.lutece.plugins.oauth2.business.Token;
+import fr.paris.lutece.portal.service.security.SecurityService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ * Proactive refresh of the tokens of the authenticated Oauth2 users.
+ * <p>
+ * The tokens of the tracked sessions are refreshed on a bounded pool of background threads, a little before the access token expires, so that the request
+ * threads find a valid token and do not wait for the identity provider. The refresh time is jittered so that the tokens issued at the same time are not all
+ * refreshed at the same time. A session stops being tracked when it is destroyed, when its user logs out, when it is found invalidated, idle beyond its
+ * timeout or holding another user, or when its token can not be refreshed : the request threads then handle the token as before. The sessions are
+ * weakly referenced, so that the tracking never keeps a session the container has dropped. The tracked sessions are indexed by user, so that a logout
+ * stops the tracking without scanning them.
+ * </p>
+ * <p>
+ * The new token is set in the user held by the session. When the sessions are replicated, the replicas keep the previous token until they refresh it
+ * themselves.
+ * </p>
+ */
+public final class Oauth2TokenRefreshScheduler
+{
+    private static final String PROPERTY_ENABLED = "mylutece-oauth2.tokenRefresh.enabled";
+    private static final String PROPERTY_THREADS = "mylutece-oauth2.tokenRefresh.threads";
+    private static final String PROPERTY_LEAD = "mylutece-oauth2.tokenRefresh.lead";
+    private static final String PROPERTY_JITTER = "mylutece-oauth2.tokenRefresh.jitter";
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_LEAD = 60;
+    private static final int DEFAULT_JITTER = 30;
+    private static final String STATISTICS_NAME = "tokenRefresh";
+    private static final String THREAD_NAME = "mylutece-oauth2-token-refresh";
+
+    private static Oauth2TokenRefreshScheduler _singleton;
+
+    private final boolean _bEnabled;
+    private final long _lLead;
+    private final long _lJitter;
+    private final ScheduledThreadPoolExecutor _executor;
+    private final ConcurrentMap<String, TrackedSession> _mapTrackedSessions = new ConcurrentHashMap<>( );
+    private final ConcurrentMap<Oauth2User, TrackedSession> _mapUserSessions = new ConcurrentHashMap<>( );
+    private final LongAdder _lRefreshed = new LongAdder( );
+    private final LongAdder _lFailed = new LongAdder( );
+
+    /**
+     * private constructor.
+     */
+    private Oauth2TokenRefreshScheduler( )
+    {
+        _bEnabled = AppPropertiesService.getPropertyBoolean( PROPERTY_ENABLED, false );
+        _lLead = Math.max( 0, AppPropertiesService.getPropertyInt( PROPERTY_LEAD, DEFAULT_LEAD ) ) * 1000L;
+        _lJitter = Math.max( 0, AppPropertiesService.getPropertyInt( PROPERTY_JITTER, DEFAULT_JITTER ) ) * 1000L;
+
+        if ( _bEnabled )
+        {
+            _executor = new ScheduledThreadPoolExecutor( Math.max( 1, AppPropertiesService.getPropertyInt( PROPERTY_THREADS, DEFAULT_THREADS ) ), runnable -> {
+                Thread thread = new Thread( runnable, THREAD_NAME );
+                thread.setDaemon( true );
+
+                return thread;
+            } );
+            _executor.setRemoveOnCancelPolicy( true );
+        }
+        else
+        {
+            _executor = null;
+        }
+
+        Oauth2StatisticsService.register( STATISTICS_NAME, this::getStatistics );
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance
+     */
+    public static synchronized Oauth2TokenRefreshScheduler getInstance( )
+    {
+        if ( _singleton == null )
+        {
+            _singleton = new Oauth2TokenRefreshScheduler( );
+        }
+
+        return _singleton;
+    }
+
+    /**
+     * Stop the refreshes of the instance, if the instance has been created. The sessions of the stopping webapp are no longer tracked.
+     */
+    public static synchronized void shutdown( )
+    {
+        if ( _singleton != null && _singleton._executor != null )
+        {
+            _singleton._executor.shutdownNow( );
+            _singleton._mapTrackedSessions.clear( );
+            _singleton._mapUserSessions.clear( );
+        }
+    }
+
+    /**
+     * @return the statistics of the refreshes
+     */
+    public Oauth2ComponentStatistics getStatistics( )
+    {
+        return new Oauth2ComponentStatistics( )
+                .add( "enabled", isEnabled( ) )
+                .add( "trackedCount", getTrackedCount( ) )
+                .add( "refreshedCount", getRefreshedCount( ) )
+                .add( "failedCount", getFailedCount( ) );
+    }
+
+    /**
+     * Track the token of an authenticated user, replacing the user previously tracked for the session
+     *
+     * @param session
+     *            the session of the user
+     * @param oauth2User
+     *            the user
+     */
+    public void track( HttpSession session, Oauth2User oauth2User )
+    {
+        if ( _bEnabled )
+        {
+            TrackedSession trackedSession = new TrackedSession( session, oauth2User );
+            TrackedSession previousSession = _mapTrackedSessions.put( session.getId( ), trackedSession );
+
+            if ( previousSession != null )
+            {
+                _mapUserSessions.remove( previousSession._oauth2User, previousSession );
+                previousSession.cancel( );
+            }
+
+            _mapUserSessions.put( oauth2User, trackedSession );
+
+            schedule( trackedSession );
+        }
+    }
+
+    /**
+     * Stop tracking a session
+     *
+     * @param strSessionId
+     *            the session id
+     */
+    public void untrack( String strSessionId )
+    {
+        if ( _bEnabled )
+        {
+            TrackedSession trackedSession = _mapTrackedSessions.remove( strSessionId );
+
+            if ( trackedSession != null )
+            {
+                _mapUserSessions.remove( trackedSession._oauth2User, trackedSession );
+                trackedSession.cancel( );
+            }
+        }
+    }
+
+    /**
+     * Stop tracking the sessions of a user logging out
+     *
+     * @param oauth2User
+     *            the user
+     */
+    public void untrack( Oauth2User oauth2User )
+    {
+        if ( _bEnabled )
+        {
+            TrackedSession trackedSession = _mapUserSessions.remove( oauth2User );
+
+            if ( trackedSession != null && trackedSession._oauth2User == oauth2User
+                    && _mapTrackedSessions.remove( trackedSession._strSessionId, trackedSession ) )
+            {
+                trackedSession.cancel( );
+            }
+        }
+    }
+
+    /**
+     * Schedule the next refresh of a tracked session
+     *
+     * @param trackedSession
+     *            the tracked session
+     */
+    private void schedule( TrackedSession trackedSession )
+    {
+        Oauth2User oauth2User = trackedSession._oauth2User;
+        long lExpiryTime = oauth2User.getTokenExpiryTime( );
+
+        if ( lExpiryTime == 0L || oauth2User.getToken( ) == null || oauth2User.getToken( ).getRefreshToken( ) == null )
+        {
+            stopTracking( trackedSession );
+
+            return;
+        }
+
+        long lDelay = lExpiryTime - _lLead - ThreadLocalRandom.current( ).nextLong( _lJitter + 1 ) - System.currentTimeMillis( );
+
+        try
+        {
+            trackedSession._future = _executor.schedule( ( ) -> refresh( trackedSession ), Math.max( 0L, lDelay ), TimeUnit.MILLISECONDS );
+        }
+        catch( RejectedExecutionException e )
+        {
+            // stopped with the webapp
+            stopTracking( trackedSession );
+        }
+    }
+
+    /**
+     * Refresh the token of a tracked session, then schedule the next refresh
+     *
+     * @param trackedSession
+     *            the tracked session
+     */
+    private void refresh( TrackedSession trackedSession )
+    {
+        HttpSession session = trackedSession._session.get( );
+
+        if ( _mapTrackedSessions.get( trackedSession._strSessionId ) != trackedSession || session == null || !isActive( session )
+                || !isRegistered( session, trackedSession._oauth2User ) )
+        {
+            stopTracking( trackedSession );
+
+            return;
+        }
+
+        try
+        {
+            Token token = Oauth2TokenRefresher.getInstance( ).refresh( trackedSession._oauth2User.getToken( ).getRefreshToken( ) );
+
+            if ( token == null )
+            {
+                // the user will be handled by the request threads
+                _lFailed.increment( );
+                stopTracking( trackedSession );
+
+                return;
+            }
+
+            trackedSession._oauth2User.setToken( token );
+            _lRefreshed.increment( );
+            schedule( trackedSession );
+        }
+        catch( RuntimeException e )
+        {
+            _lFailed.increment( );
+            stopTracking( trackedSession );
+            AppLogService.error( "Oauth2 - error while refreshing the token of a session", e );
+        }
+    }
+
+    /**
+     * Check if a session is still in use
+     *
+     * @param session
+     *            the session
+     * @return false if the session is invalidated or idle beyond its timeout
+     */
+    private static boolean isActive( HttpSession session )
+    {
+        try
+        {
+            long lMaxInactiveInterval = session.getMaxInactiveInterval( ) * 1000L;
+
+            return lMaxInactiveInterval <= 0 || System.currentTimeMillis( ) - session.getLastAccessedTime( ) < lMaxInactiveInterval;
+        }
+        catch( IllegalStateException e )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Check if a user is still the user registered in a session
+     *
+     * @param session
+     *            the session
+     * @param oauth2User
+     *            the tracked user
+     * @return false if the user has logged out or has been replaced by another user
+     */
+    private static boolean isRegistered( HttpSession session, Oauth2User oauth2User )
+    {
+        // the user registered in the session is read by the SecurityService, which owns its attribute, through a request of the session
+        HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance( HttpServletRequest.class.getClassLoader( ), new Class<?> [ ] {
+                HttpServletRequest.class
+        }, ( proxy, method, args ) -> {
+            if ( method.getName( ).equals( "getSession" ) )
+            {
+                return session;
+            }
+
+            throw new UnsupportedOperationException( "request of a background refresh : " + method );
+        } );
+
+        try
+        {
+            return SecurityService.getInstance( ).getRegisteredUser( request ) == oauth2User;
+        }
+        catch( IllegalStateException e )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Stop tracking a session, unless it is tracked again with another user
+     *
+     * @param trackedSession
+     *            the tracked session
+     */
+    private void stopTracking( TrackedSession trackedSession )
+    {
+        _mapTrackedSessions.remove( trackedSession._strSessionId, trackedSession );
+        _mapUserSessions.remove( trackedSession._oauth2User, trackedSession );
+    }
+
+    /**
+     * @return true if the tokens are refreshed in the background
+     */
+    public boolean isEnabled( )
+    {
+        return _bEnabled;
+    }
+
+    /**
+     * @return the number of tracked sessions
+     */
+    public int getTrackedCount( )
+    {
+        return _mapTrackedSessions.size( );
+    }
+
+    /**
+     * @return the number of tokens refreshed
+     */
+    public long getRefreshedCount( )
+    {
+        return _lRefreshed.sum( );
+    }
+
+    /**
+     * @return the number of tokens which could not be refreshed
+     */
+    public long getFailedCount( )
+    {
+        return _lFailed.sum( );
+    }
+
+    /**
+     * Session whose token is refreshed
+     */
+    private static final class TrackedSession
+    {
+        private final String _strSessionId;
+        private final WeakReference<HttpSession> _session;
+        private final Oauth2User _oauth2User;
+        private volatile ScheduledFuture<?> _future;
+
+        /**
+         * Constructor
+         *
+         * @param session
+         *            the session
+         * @param oauth2User
+         *            the user of the session
+         */
+        TrackedSession( HttpSession session, Oauth2User oauth2User )
+        {
+            _strSessionId = session.getId( );
+            _session = new WeakReference<>( session );
+            _oauth2User = oauth2User;
+        }
+
+        /**
+         * Cancel the next refresh
+         */
+        void cancel( )
+        {
+            ScheduledFuture<?> future = _future;
+
+            if ( future != null )
+            {
+                future.cancel( false );
+            }
+        }
+    }
+}
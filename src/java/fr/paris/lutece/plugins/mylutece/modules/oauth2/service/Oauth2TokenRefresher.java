@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fr.paris.lutece.plugins.oauth2.business.AuthClientConf;
+import fr.paris.lutece.plugins.oauth2.business.AuthServerConf;
+import fr.paris.lutece.plugins.oauth2.business.Token;
+import fr.paris.lutece.plugins.oauth2.service.TokenService;
+import fr.paris.lutece.portal.service.spring.SpringContextService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ * Single flight refresh of the tokens.
+ * <p>
+ * The parallel requests of a user (for instance the XHRs of a single page application) present the same refresh token at the same time. When the identity
+ * provider rotates the refresh tokens, only the first refresh succeeds and the others would log the user out. The concurrent refreshes of a refresh token
+ * are therefore merged : one call is sent to the identity provider and every waiter gets its result. The token obtained is also kept during a short grace
+ * period, for the requests which read the previous refresh token just before the refresh completed.
+ * </p>
+ * <p>
+ * The token endpoint is called through {@link Oauth2HttpClient}, with the configuration of the identity provider and of the client declared to the oauth2
+ * plugin. When it is not found, or is ambiguous (several identity providers), the refresh is left to the oauth2 plugin.
+ * </p>
+ */
+public final class Oauth2TokenRefresher
+{
+    private static final String PROPERTY_GRACE_PERIOD = "mylutece-oauth2.refreshToken.gracePeriod";
+    private static final int DEFAULT_GRACE_PERIOD = 10;
+    private static final String ENDPOINT_TOKEN = "token";
+    private static final String STATISTICS_NAME = "refreshTokenCalls";
+    private static final String PROPERTY_CLIENT_SECRET_POST = "mylutece-oauth2.refreshToken.clientSecretPost";
+    private static final String PARAMETER_GRANT_TYPE = "grant_type=refresh_token";
+    private static final String PARAMETER_REFRESH_TOKEN = "&refresh_token=";
+    private static final String PARAMETER_CLIENT_ID = "&client_id=";
+    private static final String PARAMETER_CLIENT_SECRET = "&client_secret=";
+    private static final String HEADER_AUTHORIZATION = "Authorization";
+    private static final String BASIC = "Basic ";
+    private static final String CONTENT_TYPE_FORM = "application/x-www-form-urlencoded";
+
+    private static Oauth2TokenRefresher _singleton;
+
+    private final long _lGracePeriod;
+    private final String _strTokenEndpointUri;
+    private final AuthClientConf _clientConf;
+    private final boolean _bClientSecretPost;
+    private final ObjectMapper _mapper = new ObjectMapper( ).disable( DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES );
+    private final ConcurrentMap<String, CompletableFuture<Token>> _mapInFlightRefreshes = new ConcurrentHashMap<>( );
+    private final ConcurrentMap<String, RefreshedToken> _mapRefreshedTokens = new ConcurrentHashMap<>( );
+    private volatile long _lNextPurgeTime;
+    private final LongAdder _lCalls = new LongAdder( );
+    private final LongAdder _lMerged = new LongAdder( );
+    private final LongAdder _lGraceHits = new LongAdder( );
+
+    /**
+     * private constructor.
+     */
+    private Oauth2TokenRefresher( )
+    {
+        _lGracePeriod = Math.max( 0, AppPropertiesService.getPropertyInt( PROPERTY_GRACE_PERIOD, DEFAULT_GRACE_PERIOD ) ) * 1000L;
+        _bClientSecretPost = AppPropertiesService.getPropertyBoolean( PROPERTY_CLIENT_SECRET_POST, false );
+
+        AuthServerConf serverConf = getSingleBean( AuthServerConf.class );
+        AuthClientConf clientConf = getSingleBean( AuthClientConf.class );
+
+        if ( serverConf != null && clientConf != null && StringUtils.isNotBlank( serverConf.getTokenEndpointUri( ) ) )
+        {
+            _strTokenEndpointUri = serverConf.getTokenEndpointUri( );
+            _clientConf = clientConf;
+        }
+        else
+        {
+            AppLogService.info( "Oauth2 - no single identity provider configuration found, the tokens are refreshed by the oauth2 plugin" );
+            _strTokenEndpointUri = null;
+            _clientConf = null;
+        }
+
+        Oauth2StatisticsService.register( STATISTICS_NAME, this::getStatistics );
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance
+     */
+    public static synchronized Oauth2TokenRefresher getInstance( )
+    {
+        if ( _singleton == null )
+        {
+            _singleton = new Oauth2TokenRefresher( );
+        }
+
+        return _singleton;
+    }
+
+    /**
+     * @return the statistics of the calls
+     */
+    public Oauth2ComponentStatistics getStatistics( )
+    {
+        return new Oauth2ComponentStatistics( )
+                .add( "callCount", getCallCount( ) )
+                .add( "mergedCount", getMergedCount( ) )
+                .add( "graceHitCount", getGraceHitCount( ) )
+                .add( "inFlightCount", getInFlightCount( ) );
+    }
+
+    /**
+     * Get a new token from a refresh token. The calling thread waits for the refresh of the same refresh token already in progress, if any.
+     *
+     * @param strRefreshToken
+     *            the refresh token
+     * @return the new token, or null if the refresh token is not valid anymore
+     */
+    public Token refresh( String strRefreshToken )
+    {
+        long lNow = System.currentTimeMillis( );
+        Token refreshedToken = getRefreshedToken( strRefreshToken, lNow );
+
+        if ( refreshedToken != null )
+        {
+            return refreshedToken;
+        }
+
+        CompletableFuture<Token> future = new CompletableFuture<>( );
+        CompletableFuture<Token> inFlightRefresh = _mapInFlightRefreshes.putIfAbsent( strRefreshToken, future );
+
+        if ( inFlightRefresh != null )
+        {
+            _lMerged.increment( );
+
+            return await( inFlightRefresh );
+        }
+
+        try
+        {
+            // a refresh may have completed between the lookup and the registration of this one : its token is reused
+            refreshedToken = getRefreshedToken( strRefreshToken, lNow );
+
+            if ( refreshedToken != null )
+            {
+                future.complete( refreshedToken );
+
+                return refreshedToken;
+            }
+
+            _lCalls.increment( );
+
+            Token token = requestToken( strRefreshToken );
+
+            if ( token != null && _lGracePeriod > 0 )
+            {
+                purge( lNow );
+                // kept before the in flight refresh is removed, so that no request calls the identity provider with the rotated token
+                _mapRefreshedTokens.put( strRefreshToken, new RefreshedToken( token, lNow + _lGracePeriod ) );
+            }
+
+            future.complete( token );
+
+            return token;
+        }
+        catch( RuntimeException e )
+        {
+            future.completeExceptionally( e );
+
+            throw e;
+        }
+        finally
+        {
+            _mapInFlightRefreshes.remove( strRefreshToken, future );
+        }
+    }
+
+    /**
+     * Send a refresh token to the token endpoint
+     *
+     * @param strRefreshToken
+     *            the refresh token
+     * @return the new token, or null if the refresh token is not valid anymore or the call failed
+     */
+    private Token requestToken( String strRefreshToken )
+    {
+        if ( _strTokenEndpointUri == null )
+        {
+            long lStart = System.nanoTime( );
+            Token token = TokenService.getService( ).getTokenByRefreshToken( strRefreshToken );
+            // the token endpoint is called by the oauth2 plugin : only its latency is reported
+            Oauth2HttpClient.getInstance( ).record( ENDPOINT_TOKEN, System.nanoTime( ) - lStart, token != null );
+
+            return token;
+        }
+
+        try
+        {
+            StringBuilder sbBody = new StringBuilder( PARAMETER_GRANT_TYPE ).append( PARAMETER_REFRESH_TOKEN ).append( encode( strRefreshToken ) );
+            Map<String, String> mapHeaders = Collections.emptyMap( );
+
+            if ( _bClientSecretPost )
+            {
+                sbBody.append( PARAMETER_CLIENT_ID ).append( encode( _clientConf.getClientId( ) ) );
+                sbBody.append( PARAMETER_CLIENT_SECRET ).append( encode( _clientConf.getClientSecret( ) ) );
+            }
+            else
+            {
+                // client_secret_basic : the credentials are form encoded before being joined (RFC 6749, section 2.3.1)
+                String strCredentials = encode( _clientConf.getClientId( ) ) + ":" + encode( _clientConf.getClientSecret( ) );
+                mapHeaders = Collections.singletonMap( HEADER_AUTHORIZATION,
+                        BASIC + Base64.getEncoder( ).encodeToString( strCredentials.getBytes( StandardCharsets.UTF_8 ) ) );
+            }
+
+            String strResponse = Oauth2HttpClient.getInstance( ).doPost( _strTokenEndpointUri, mapHeaders, CONTENT_TYPE_FORM, sbBody.toString( ) );
+            Token token = _mapper.readValue( strResponse, Token.class );
+
+            return ( token != null && token.getAccessToken( ) != null ) ? token : null;
+        }
+        catch( IOException e )
+        {
+            // an expired or revoked refresh token gets an error status
+            AppLogService.info( "Oauth2 - the token can not be refreshed : " + e.getMessage( ) );
+
+            return null;
+        }
+    }
+
+    /**
+     * Form encode a value
+     *
+     * @param strValue
+     *            the value, or null
+     * @return the encoded value
+     * @throws UnsupportedEncodingException
+     *             never, UTF-8 being supported
+     */
+    private static String encode( String strValue ) throws UnsupportedEncodingException
+    {
+        return URLEncoder.encode( StringUtils.defaultString( strValue ), StandardCharsets.UTF_8.name( ) );
+    }
+
+    /**
+     * Get the only bean of a type
+     *
+     * @param beanClass
+     *            the type
+     * @param <T>
+     *            the type
+     * @return the bean, or null if there is none or several
+     */
+    private static <T> T getSingleBean( Class<T> beanClass )
+    {
+        List<T> listBeans = SpringContextService.getBeansOfType( beanClass );
+
+        return ( listBeans != null && listBeans.size( ) == 1 ) ? listBeans.get( 0 ) : null;
+    }
+
+    /**
+     * Get the token obtained from a refresh token during its grace period
+     *
+     * @param strRefreshToken
+     *            the refresh token
+     * @param lNow
+     *            the current time
+     * @return the token, or null if the refresh token has not been refreshed during the grace period
+     */
+    private Token getRefreshedToken( String strRefreshToken, long lNow )
+    {
+        RefreshedToken refreshedToken = _mapRefreshedTokens.get( strRefreshToken );
+
+        if ( refreshedToken != null && lNow < refreshedToken._lExpiryTime )
+        {
+            _lGraceHits.increment( );
+
+            return refreshedToken._token;
+        }
+
+        return null;
+    }
+
+    /**
+     * Wait for the result of a refresh in progress
+     *
+     * @param future
+     *            the refresh in progress
+     * @return the new token, or null if the refresh token is not valid anymore
+     */
+    private static Token await( CompletableFuture<Token> future )
+    {
+        try
+        {
+            return future.join( );
+        }
+        catch( CompletionException e )
+        {
+            if ( e.getCause( ) instanceof RuntimeException )
+            {
+                throw (RuntimeException) e.getCause( );
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Remove the tokens whose grace period is over, at most once per grace period
+     *
+     * @param lNow
+     *            the current time
+     */
+    private void purge( long lNow )
+    {
+        if ( lNow >= _lNextPurgeTime )
+        {
+            _lNextPurgeTime = lNow + _lGracePeriod;
+            _mapRefreshedTokens.values( ).removeIf( refreshedToken -> refreshedToken._lExpiryTime <= lNow );
+        }
+    }
+
+    /**
+     * @return the number of refreshes sent to the identity provider
+     */
+    public long getCallCount( )
+    {
+        return _lCalls.sum( );
+    }
+
+    /**
+     * @return the number of refreshes merged with a refresh in progress
+     */
+    public long getMergedCount( )
+    {
+        return _lMerged.sum( );
+    }
+
+    /**
+     * @return the number of refreshes answered with a token obtained during the grace period
+     */
+    public long getGraceHitCount( )
+    {
+        return _lGraceHits.sum( );
+    }
+
+    /**
+     * @return the number of refreshes in progress
+     */
+    public int getInFlightCount( )
+    {
+        return _mapInFlightRefreshes.size( );
+    }
+
+    /**
+     * Token obtained from a refresh token
+     */
+    private static final class RefreshedToken
+    {
+        private final Token _token;
+        private final long _lExpiryTime;
+
+        /**
+         * Constructor
+         *
+         * @param token
+         *            the token
+         * @param lExpiryTime
+         *            the end of the grace period
+         */
+        RefreshedToken( Token token, long lExpiryTime )
+        {
+            _token = token;
+            _lExpiryTime = lExpiryTime;
+        }
+    }
+}
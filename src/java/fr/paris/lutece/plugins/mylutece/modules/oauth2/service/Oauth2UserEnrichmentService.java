@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.authentication.Oauth2User;
+import fr.paris.lutece.plugins.mylutece.service.MyLuteceUserService;
+import fr.paris.lutece.portal.service.spring.SpringContextService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ * Enrichment of the users being logged in.
+ * <p>
+ * The {@link IOauth2UserEnrichmentProvider} beans are called concurrently on a bounded pool of threads, while the external infos of MyLutece are provided
+ * to the user on the login request thread, as before : the login waits for the slowest provider rather than for the sum of all of them. Each provider has
+ * a deadline, counted from the start of the enrichment; the attributes of the providers which miss it are dropped and the login goes on with the others.
+ * The providers are never run on the login request thread : a call rejected by a saturated pool is dropped as well.
+ * </p>
+ */
+public final class Oauth2UserEnrichmentService
+{
+    private static final String PROPERTY_THREADS = "mylutece-oauth2.enrichment.threads";
+    private static final String PROPERTY_QUEUE_SIZE = "mylutece-oauth2.enrichment.queueSize";
+    private static final String PROPERTY_TIMEOUT = "mylutece-oauth2.enrichment.timeout";
+    private static final int DEFAULT_THREADS = 10;
+    private static final int DEFAULT_QUEUE_SIZE = 100;
+    private static final int DEFAULT_TIMEOUT = 2000;
+    private static final String THREAD_NAME = "mylutece-oauth2-enrichment";
+    private static final String STATISTICS_NAME = "userEnrichment";
+
+    private static Oauth2UserEnrichmentService _singleton;
+
+    private final List<IOauth2UserEnrichmentProvider> _listProviders;
+    private final long [ ] _timeouts;
+    private final Consumer<Oauth2User> _externalInfosProvider;
+    private final ThreadPoolExecutor _executor;
+    private final LongAdder _lEnrichments = new LongAdder( );
+    private final LongAdder _lCalls = new LongAdder( );
+    private final LongAdder _lTimeouts = new LongAdder( );
+    private final LongAdder _lFailures = new LongAdder( );
+    private final LongAdder _lRejections = new LongAdder( );
+
+    /**
+     * private constructor.
+     */
+    private Oauth2UserEnrichmentService( )
+    {
+        this( SpringContextService.getBeansOfType( IOauth2UserEnrichmentProvider.class ), MyLuteceUserService::provideUserExternalInfos );
+
+        Oauth2StatisticsService.register( STATISTICS_NAME, this::getStatistics );
+    }
+
+    /**
+     * Constructor
+     *
+     * @param listProviders
+     *            the enrichment providers, or null
+     * @param externalInfosProvider
+     *            the provider of the external infos of MyLutece
+     */
+    Oauth2UserEnrichmentService( List<IOauth2UserEnrichmentProvider> listProviders, Consumer<Oauth2User> externalInfosProvider )
+    {
+        _listProviders = ( listProviders != null ) ? new ArrayList<>( listProviders ) : Collections.emptyList( );
+        _externalInfosProvider = externalInfosProvider;
+        _timeouts = new long [ _listProviders.size( )];
+
+        int nTimeout = AppPropertiesService.getPropertyInt( PROPERTY_TIMEOUT, DEFAULT_TIMEOUT );
+
+        for ( int i = 0; i < _timeouts.length; i++ )
+        {
+            _timeouts [i] = getTimeout( _listProviders.get( i ).getName( ), nTimeout );
+        }
+
+        if ( _listProviders.isEmpty( ) )
+        {
+            _executor = null;
+        }
+        else
+        {
+            int nThreads = Math.max( 1, AppPropertiesService.getPropertyInt( PROPERTY_THREADS, DEFAULT_THREADS ) );
+            int nQueueSize = Math.max( 1, AppPropertiesService.getPropertyInt( PROPERTY_QUEUE_SIZE, DEFAULT_QUEUE_SIZE ) );
+            _executor = new ThreadPoolExecutor( nThreads, nThreads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>( nQueueSize ), runnable -> {
+                Thread thread = new Thread( runnable, THREAD_NAME );
+                thread.setDaemon( true );
+
+                return thread;
+            } );
+            _executor.allowCoreThreadTimeOut( true );
+        }
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance
+     */
+    public static synchronized Oauth2UserEnrichmentService getInstance( )
+    {
+        if ( _singleton == null )
+        {
+            _singleton = new Oauth2UserEnrichmentService( );
+        }
+
+        return _singleton;
+    }
+
+    /**
+     * Stop the pool of the instance, if the instance has been created. The pending calls are interrupted and their logins go on without their attributes.
+     */
+    public static synchronized void shutdown( )
+    {
+        if ( _singleton != null && _singleton._executor != null )
+        {
+            _singleton._executor.shutdownNow( );
+        }
+    }
+
+    /**
+     * Get the deadline of a call
+     *
+     * @param strName
+     *            the name of the provider
+     * @param nDefaultTimeout
+     *            the default deadline, in milliseconds
+     * @return the deadline, in milliseconds
+     */
+    private static long getTimeout( String strName, int nDefaultTimeout )
+    {
+        return Math.max( 0, AppPropertiesService.getPropertyInt( PROPERTY_TIMEOUT + "." + strName, nDefaultTimeout ) );
+    }
+
+    /**
+     * @return the statistics of the enrichments
+     */
+    public Oauth2ComponentStatistics getStatistics( )
+    {
+        return new Oauth2ComponentStatistics( )
+                .add( "providerCount", getProviderCount( ) )
+                .add( "enrichmentCount", getEnrichmentCount( ) )
+                .add( "callCount", getCallCount( ) )
+                .add( "timeoutCount", getTimeoutCount( ) )
+                .add( "failureCount", getFailureCount( ) )
+                .add( "rejectedCount", getRejectedCount( ) );
+    }
+
+    /**
+     * Enrich a user being logged in with the external infos of MyLutece and with the attributes of the providers
+     *
+     * @param user
+     *            the user
+     */
+    public void enrich( Oauth2User user )
+    {
+        if ( _executor == null )
+        {
+            _externalInfosProvider.accept( user );
+
+            return;
+        }
+
+        _lEnrichments.increment( );
+
+        long lStart = System.nanoTime( );
+        // the providers read a copy : the external infos are provided to the user meanwhile
+        String strUserName = user.getName( );
+        Map<String, String> mapUserInfos = Collections.unmodifiableMap( new HashMap<>( user.getUserInfos( ) ) );
+        List<FutureTask<Map<String, String>>> listTasks = new ArrayList<>( _listProviders.size( ) );
+
+        for ( IOauth2UserEnrichmentProvider provider : _listProviders )
+        {
+            listTasks.add( submit( provider.getName( ), new FutureTask<>( ( ) -> provider.provideUserInfos( strUserName, mapUserInfos ) ) ) );
+        }
+
+        // the external infos may read or set anything of the user : they are not bounded, and the attributes of the providers prevail over them
+        _externalInfosProvider.accept( user );
+
+        for ( int i = 0; i < listTasks.size( ); i++ )
+        {
+            setUserInfos( user,
+                    await( _listProviders.get( i ).getName( ), listTasks.get( i ), lStart + TimeUnit.MILLISECONDS.toNanos( _timeouts [i] ) ) );
+        }
+    }
+
+    /**
+     * Set the attributes of a provider to the user
+     *
+     * @param user
+     *            the user
+     * @param mapProvidedInfos
+     *            the attributes, or null
+     */
+    private static void setUserInfos( Oauth2User user, Map<String, String> mapProvidedInfos )
+    {
+        if ( mapProvidedInfos != null )
+        {
+            mapProvidedInfos.forEach( user::setUserInfo );
+        }
+    }
+
+    /**
+     * Submit a call to the pool
+     *
+     * @param strName
+     *            the name of the provider
+     * @param task
+     *            the call
+     * @return the call, or null if the pool rejected it
+     */
+    private FutureTask<Map<String, String>> submit( String strName, FutureTask<Map<String, String>> task )
+    {
+        _lCalls.increment( );
+
+        try
+        {
+            _executor.execute( task );
+
+            return task;
+        }
+        catch( RejectedExecutionException e )
+        {
+            // saturated or stopped pool : the call is dropped rather than run on the login request thread
+            _lRejections.increment( );
+            AppLogService.info( "Oauth2 - the enrichment pool is saturated, the attributes of the provider " + strName + " are dropped" );
+
+            return null;
+        }
+    }
+
+    /**
+     * Wait for the attributes of a call
+     *
+     * @param strName
+     *            the name of the provider
+     * @param task
+     *            the call, or null if the pool rejected it
+     * @param lDeadline
+     *            the deadline of the call, in nanoseconds
+     * @return the attributes, or null if the call was rejected, failed or missed its deadline
+     */
+    private Map<String, String> await( String strName, FutureTask<Map<String, String>> task, long lDeadline )
+    {
+        if ( task == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            return task.get( Math.max( 0, lDeadline - System.nanoTime( ) ), TimeUnit.NANOSECONDS );
+        }
+        catch( TimeoutException e )
+        {
+            _lTimeouts.increment( );
+            task.cancel( true );
+            AppLogService.info( "Oauth2 - the enrichment provider " + strName + " missed its deadline, its attributes are dropped" );
+        }
+        catch( ExecutionException | CancellationException e )
+        {
+            _lFailures.increment( );
+            AppLogService.error( "Oauth2 - the enrichment provider " + strName + " failed", e );
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread( ).interrupt( );
+            task.cancel( true );
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the number of providers
+     */
+    public int getProviderCount( )
+    {
+        return _listProviders.size( );
+    }
+
+    /**
+     * @return the number of enriched users
+     */
+    public long getEnrichmentCount( )
+    {
+        return _lEnrichments.sum( );
+    }
+
+    /**
+     * @return the number of calls to the providers
+     */
+    public long getCallCount( )
+    {
+        return _lCalls.sum( );
+    }
+
+    /**
+     * @return the number of calls which missed their deadline
+     */
+    public long getTimeoutCount( )
+    {
+        return _lTimeouts.sum( );
+    }
+
+    /**
+     * @return the number of calls which failed
+     */
+    public long getFailureCount( )
+    {
+        return _lFailures.sum( );
+    }
+
+    /**
+     * @return the number of calls dropped because the pool was saturated
+     */
+    public long getRejectedCount( )
+    {
+        return _lRejections.sum( );
+    }
+}
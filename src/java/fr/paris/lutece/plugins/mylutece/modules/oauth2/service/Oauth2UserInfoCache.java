@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fr.paris.lutece.plugins.oauth2.business.Token;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ * Cache of the userinfo documents.
+ * <p>
+ * The documents are cached by data server and access token, so that the sessions and the tabs of a user which are authenticated again at the same time
+ * do not each fetch the same document. The access tokens are not kept : the entries are keyed by a SHA-256 hash of the token. An entry never lives past
+ * the expiry of its access token, nor past the configured time to live, and the least recently used entries are evicted beyond the configured size.
+ * </p>
+ * <p>
+ * The expiry of an access token is read from its exp claim when it is a JWT, or computed from its issue time (iat claim) and its lifetime. The issue
+ * time of an opaque access token is the time it is first seen by the cache, the userinfo document being fetched as soon as the token is received : the
+ * entry is kept with this expiry once its document has expired, so that the documents fetched again later do not live past the access token either.
+ * </p>
+ */
+public final class Oauth2UserInfoCache
+{
+    private static final String PROPERTY_TTL = "mylutece-oauth2.userInfoCache.ttl";
+    private static final String PROPERTY_MAX_SIZE = "mylutece-oauth2.userInfoCache.maxSize";
+    private static final int DEFAULT_TTL = 0;
+    private static final int DEFAULT_MAX_SIZE = 10000;
+    private static final String ALGORITHM = "SHA-256";
+    private static final String STATISTICS_NAME = "userInfoCache";
+    private static final char SEPARATOR = '\n';
+    private static final String CLAIM_EXP = "exp";
+    private static final String CLAIM_IAT = "iat";
+    private static final long UNKNOWN_EXPIRY = Long.MAX_VALUE;
+
+    private static Oauth2UserInfoCache _singleton;
+
+    private final long _lTtl;
+    private final int _nMaxSize;
+    private final Map<String, CachedUserInfo> _mapUserInfos;
+    private final LongAdder _lHits = new LongAdder( );
+    private final LongAdder _lMisses = new LongAdder( );
+    private final LongAdder _lEvictions = new LongAdder( );
+    private final ObjectMapper _mapper = new ObjectMapper( );
+
+    /**
+     * private constructor.
+     */
+    private Oauth2UserInfoCache( )
+    {
+        this( Math.max( 0, AppPropertiesService.getPropertyInt( PROPERTY_TTL, DEFAULT_TTL ) ) * 1000L,
+                Math.max( 0, AppPropertiesService.getPropertyInt( PROPERTY_MAX_SIZE, DEFAULT_MAX_SIZE ) ) );
+
+        Oauth2StatisticsService.register( STATISTICS_NAME, this::getStatistics );
+    }
+
+    /**
+     * Constructor
+     *
+     * @param lTtl
+     *            the time to live of the documents, in milliseconds
+     * @param nMaxSize
+     *            the maximum number of documents
+     */
+    Oauth2UserInfoCache( long lTtl, int nMaxSize )
+    {
+        _lTtl = lTtl;
+        _nMaxSize = nMaxSize;
+        _mapUserInfos = new LinkedHashMap<String, CachedUserInfo>( 16, 0.75f, true )
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, CachedUserInfo> eldest )
+            {
+                if ( size( ) > _nMaxSize )
+                {
+                    _lEvictions.increment( );
+
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance
+     */
+    public static synchronized Oauth2UserInfoCache getInstance( )
+    {
+        if ( _singleton == null )
+        {
+            _singleton = new Oauth2UserInfoCache( );
+        }
+
+        return _singleton;
+    }
+
+    /**
+     * @return the statistics of the cache
+     */
+    public Oauth2ComponentStatistics getStatistics( )
+    {
+        return new Oauth2ComponentStatistics( )
+                .add( "enabled", isEnabled( ) )
+                .add( "size", getSize( ) )
+                .add( "hitCount", getHitCount( ) )
+                .add( "missCount", getMissCount( ) )
+                .add( "evictionCount", getEvictionCount( ) );
+    }
+
+    /**
+     * @return true if the documents are cached
+     */
+    public boolean isEnabled( )
+    {
+        return _lTtl > 0 && _nMaxSize > 0;
+    }
+
+    /**
+     * Get the userinfo document of an access token, from the cache or from the data server
+     *
+     * @param strDataServerUri
+     *            the uri of the data server
+     * @param token
+     *            the token
+     * @param loader
+     *            the call to the data server
+     * @return the document, or null if it could not be fetched
+     */
+    public String getUserInfo( String strDataServerUri, Token token, Function<Token, String> loader )
+    {
+        if ( !isEnabled( ) || token == null || token.getAccessToken( ) == null )
+        {
+            return loader.apply( token );
+        }
+
+        String strKey = getKey( strDataServerUri, token.getAccessToken( ) );
+        long lNow = System.currentTimeMillis( );
+        long lTokenExpiryTime = 0L;
+        CachedUserInfo cachedUserInfo;
+
+        synchronized( _mapUserInfos )
+        {
+            cachedUserInfo = _mapUserInfos.get( strKey );
+
+            if ( cachedUserInfo != null && lNow >= cachedUserInfo._lExpiryTime )
+            {
+                if ( cachedUserInfo._lTokenExpiryTime == UNKNOWN_EXPIRY )
+                {
+                    _mapUserInfos.remove( strKey );
+                }
+                else
+                {
+                    // the expiry of the access token, computed when it was first seen, bounds the document fetched again
+                    lTokenExpiryTime = cachedUserInfo._lTokenExpiryTime;
+                }
+
+                cachedUserInfo = null;
+            }
+        }
+
+        if ( cachedUserInfo != null )
+        {
+            _lHits.increment( );
+
+            return cachedUserInfo._strUserInfo;
+        }
+
+        _lMisses.increment( );
+
+        if ( lTokenExpiryTime == 0L )
+        {
+            lTokenExpiryTime = getTokenExpiryTime( token, lNow );
+        }
+
+        String strUserInfo = loader.apply( token );
+
+        synchronized( _mapUserInfos )
+        {
+            if ( strUserInfo != null && lNow < lTokenExpiryTime )
+            {
+                _mapUserInfos.put( strKey, new CachedUserInfo( strUserInfo, Math.min( lNow + _lTtl, lTokenExpiryTime ), lTokenExpiryTime ) );
+            }
+            else if ( lTokenExpiryTime != UNKNOWN_EXPIRY )
+            {
+                // the document is not kept, but the expiry of the access token is remembered
+                _mapUserInfos.put( strKey, new CachedUserInfo( null, 0L, lTokenExpiryTime ) );
+            }
+        }
+
+        return strUserInfo;
+    }
+
+    /**
+     * Compute the expiry time of an access token
+     *
+     * @param token
+     *            the token
+     * @param lNow
+     *            the current time, taken as the issue time of an opaque access token
+     * @return the expiry time, or UNKNOWN_EXPIRY if the access token has no known lifetime
+     */
+    private long getTokenExpiryTime( Token token, long lNow )
+    {
+        long lIssueTime = lNow;
+        String [ ] accessTokenParts = token.getAccessToken( ).split( "\\." );
+
+        if ( accessTokenParts.length == 3 )
+        {
+            try
+            {
+                JsonNode claims = _mapper.readTree( Base64.getUrlDecoder( ).decode( accessTokenParts [1] ) );
+
+                if ( claims != null && claims.path( CLAIM_EXP ).isNumber( ) )
+                {
+                    return claims.path( CLAIM_EXP ).asLong( ) * 1000L;
+                }
+
+                if ( claims != null && claims.path( CLAIM_IAT ).isNumber( ) )
+                {
+                    lIssueTime = claims.path( CLAIM_IAT ).asLong( ) * 1000L;
+                }
+            }
+            catch( IOException | IllegalArgumentException e )
+            {
+                // not a JWT : an opaque access token containing dots
+            }
+        }
+
+        return ( token.getExpiresIn( ) > 0 ) ? ( lIssueTime + token.getExpiresIn( ) * 1000L ) : UNKNOWN_EXPIRY;
+    }
+
+    /**
+     * Compute the key of an access token
+     *
+     * @param strDataServerUri
+     *            the uri of the data server
+     * @param strAccessToken
+     *            the access token
+     * @return the hash of the data server uri and of the access token
+     */
+    private static String getKey( String strDataServerUri, String strAccessToken )
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance( ALGORITHM );
+
+            return Base64.getEncoder( ).encodeToString( digest.digest( ( strDataServerUri + SEPARATOR + strAccessToken ).getBytes( StandardCharsets.UTF_8 ) ) );
+        }
+        catch( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * @return the number of cached documents
+     */
+    public int getSize( )
+    {
+        synchronized( _mapUserInfos )
+        {
+            return _mapUserInfos.size( );
+        }
+    }
+
+    /**
+     * @return the number of documents found in the cache
+     */
+    public long getHitCount( )
+    {
+        return _lHits.sum( );
+    }
+
+    /**
+     * @return the number of documents fetched from the data server
+     */
+    public long getMissCount( )
+    {
+        return _lMisses.sum( );
+    }
+
+    /**
+     * @return the number of documents evicted because the cache was full
+     */
+    public long getEvictionCount( )
+    {
+        return _lEvictions.sum( );
+    }
+
+    /**
+     * Cached userinfo document
+     */
+    private static final class CachedUserInfo
+    {
+        private final String _strUserInfo;
+        private final long _lExpiryTime;
+        private final long _lTokenExpiryTime;
+
+        /**
+         * Constructor
+         *
+         * @param strUserInfo
+         *            the document, or null if only the expiry of the access token is kept
+         * @param lExpiryTime
+         *            the expiry time of the document
+         * @param lTokenExpiryTime
+         *            the expiry time of the access token, or UNKNOWN_EXPIRY
+         */
+        CachedUserInfo( String strUserInfo, long lExpiryTime, long lTokenExpiryTime )
+        {
+            _strUserInfo = strUserInfo;
+            _lExpiryTime = lExpiryTime;
+            _lTokenExpiryTime = lTokenExpiryTime;
+        }
+    }
+}
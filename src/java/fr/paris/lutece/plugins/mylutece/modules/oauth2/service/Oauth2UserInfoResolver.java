@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+
+import fr.paris.lutece.plugins.oauth2.business.Token;
+
+/**
+ * Resolution of the claims of a user : from the id token when it holds them all, from the userinfo document otherwise. The data clients share this
+ * fallback and only provide the way the userinfo document is requested.
+ */
+final class Oauth2UserInfoResolver
+{
+    private static Logger _logger = Logger.getLogger( "lutece.oauth2" );
+
+    private final Oauth2ClaimExtractor _claimExtractor;
+    private final Oauth2UserProjection _userProjection;
+    private final boolean _bIdTokenOnly;
+    private final String [ ] _requiredIdTokenClaims;
+
+    /**
+     * Constructor
+     *
+     * @param claimExtractor
+     *            the extractor of the claims read by the authentication
+     * @param userProjection
+     *            the projection of the claims on the users
+     * @param bIdTokenOnly
+     *            true if the users are created from the id token claims when possible
+     * @param requiredIdTokenClaims
+     *            the claims which must be found in the id token to skip the userinfo request
+     */
+    Oauth2UserInfoResolver( Oauth2ClaimExtractor claimExtractor, Oauth2UserProjection userProjection, boolean bIdTokenOnly,
+            String [ ] requiredIdTokenClaims )
+    {
+        _claimExtractor = claimExtractor;
+        _userProjection = userProjection;
+        _bIdTokenOnly = bIdTokenOnly;
+        _requiredIdTokenClaims = requiredIdTokenClaims;
+    }
+
+    /**
+     * Get the claims of a user, from the id token when it holds them all, from the userinfo document otherwise
+     *
+     * @param token
+     *            the token
+     * @param userInfoLoader
+     *            the loader of the userinfo document of a token, only called when the id token does not suffice
+     * @return the claims read by the authentication
+     * @throws IOException
+     *             if the userinfo document is not a valid JSON object
+     */
+    Map<String, Object> getUserInfo( Token token, Function<Token, String> userInfoLoader ) throws IOException
+    {
+        Map<String, Object> mapUserInfo = getIdTokenClaims( token );
+
+        return ( mapUserInfo != null ) ? mapUserInfo : parseUserInfo( userInfoLoader.apply( token ) );
+    }
+
+    /**
+     * Get the claims of the id token of a token, in id token only mode
+     *
+     * @param token
+     *            the token
+     * @return the claims read by the authentication, or null if the userinfo document must be requested : mode disabled, no id token, or a required claim
+     *         missing
+     */
+    Map<String, Object> getIdTokenClaims( Token token )
+    {
+        if ( !_bIdTokenOnly || token == null || token.getIdTokenString( ) == null )
+        {
+            return null;
+        }
+
+        String [ ] idTokenParts = token.getIdTokenString( ).split( "\\." );
+
+        if ( idTokenParts.length < 2 )
+        {
+            return null;
+        }
+
+        Map<String, Object> mapClaims;
+
+        try
+        {
+            // the id token has been received from the token endpoint and validated by the oauth2 plugin
+            mapClaims = _claimExtractor.extract( new String( Base64.getUrlDecoder( ).decode( idTokenParts [1] ), StandardCharsets.UTF_8 ) );
+        }
+        catch( IOException | IllegalArgumentException e )
+        {
+            _logger.warn( "Oauth2 - the id token claims can not be read, the userinfo document is requested", e );
+
+            return null;
+        }
+
+        if ( !_userProjection.hasUserName( mapClaims ) )
+        {
+            _logger.debug( "Oauth2 - no user name claim in the id token, the userinfo document is requested" );
+
+            return null;
+        }
+
+        for ( String strClaim : _requiredIdTokenClaims )
+        {
+            if ( mapClaims.get( strClaim ) == null )
+            {
+                _logger.debug( "Oauth2 - claim " + strClaim + " missing in the id token, the userinfo document is requested" );
+
+                return null;
+            }
+        }
+
+        return mapClaims;
+    }
+
+    /**
+     * Parse a userinfo document, keeping only the claims read by the authentication
+     *
+     * @param strJson
+     *            the userinfo document
+     * @return the claims, by name or JSON Pointer
+     * @throws IOException
+     *             if the document is not a valid JSON object
+     */
+    Map<String, Object> parseUserInfo( String strJson ) throws IOException
+    {
+        return _claimExtractor.extract( strJson );
+    }
+}
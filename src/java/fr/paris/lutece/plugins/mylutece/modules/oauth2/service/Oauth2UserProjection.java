@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.authentication.Oauth2Authentication;
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.authentication.Oauth2User;
+import fr.paris.lutece.plugins.oauth2.business.Token;
+import fr.paris.lutece.portal.service.security.LuteceUser;
+
+/**
+ * Projection of the claims of a user on an {@link Oauth2User}.
+ * <p>
+ * The mapping of the claims on the Lutece user attributes is compiled once into arrays : a user is filled with one lookup per mapped claim, each value
+ * being converted to a string once whatever the number of attributes it is mapped on. The values of the list claims are joined with a comma.
+ * </p>
+ */
+final class Oauth2UserProjection
+{
+    private static final char LIST_SEPARATOR = ',';
+
+    private final String [ ] _userKeyClaims;
+    private final String [ ] _attributeClaims;
+    private final String [ ] [ ] _attributes;
+    private final String _strIdentityKeyClaim;
+
+    /**
+     * Constructor
+     *
+     * @param userKeyClaims
+     *            the claims holding the user name, the last one found being used
+     * @param mapAttributes
+     *            the Lutece user attributes of each claim
+     * @param strIdentityKeyClaim
+     *            the claim holding the identity key, or null
+     */
+    Oauth2UserProjection( String [ ] userKeyClaims, Map<String, List<String>> mapAttributes, String strIdentityKeyClaim )
+    {
+        _userKeyClaims = ( userKeyClaims != null ) ? userKeyClaims.clone( ) : new String [ 0];
+        _attributeClaims = mapAttributes.keySet( ).toArray( new String [ mapAttributes.size( )] );
+        _attributes = new String [ _attributeClaims.length] [ ];
+
+        for ( int i = 0; i < _attributeClaims.length; i++ )
+        {
+            List<String> listAttributes = mapAttributes.get( _attributeClaims [i] );
+            _attributes [i] = listAttributes.toArray( new String [ listAttributes.size( )] );
+        }
+
+        _strIdentityKeyClaim = StringUtils.isNotBlank( strIdentityKeyClaim ) ? strIdentityKeyClaim : null;
+    }
+
+    /**
+     * @return the claims read by the projection
+     */
+    Set<String> getClaims( )
+    {
+        Set<String> setClaims = new LinkedHashSet<>( );
+
+        for ( String strClaim : _userKeyClaims )
+        {
+            setClaims.add( strClaim );
+        }
+
+        for ( String strClaim : _attributeClaims )
+        {
+            setClaims.add( strClaim );
+        }
+
+        if ( _strIdentityKeyClaim != null )
+        {
+            setClaims.add( _strIdentityKeyClaim );
+        }
+
+        return setClaims;
+    }
+
+    /**
+     * @return the claims mapped on the user attributes and the identity key claim, which a set of claims must hold to create the same user as a
+     *         complete set
+     */
+    Set<String> getMappedClaims( )
+    {
+        Set<String> setClaims = new LinkedHashSet<>( );
+
+        for ( String strClaim : _attributeClaims )
+        {
+            setClaims.add( strClaim );
+        }
+
+        if ( _strIdentityKeyClaim != null )
+        {
+            setClaims.add( _strIdentityKeyClaim );
+        }
+
+        return setClaims;
+    }
+
+    /**
+     * Check if a set of claims holds a user name
+     *
+     * @param mapClaims
+     *            the claims
+     * @return true if a user can be created from the claims
+     */
+    boolean hasUserName( Map<String, Object> mapClaims )
+    {
+        for ( String strClaim : _userKeyClaims )
+        {
+            if ( mapClaims.get( strClaim ) != null )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Create the user of a set of claims
+     *
+     * @param mapClaims
+     *            the claims
+     * @param token
+     *            the token of the user
+     * @param authService
+     *            the authentication service
+     * @return the user, or null if no claim holds the user name
+     */
+    Oauth2User createUser( Map<String, Object> mapClaims, Token token, Oauth2Authentication authService )
+    {
+        Object userName = null;
+
+        for ( int i = _userKeyClaims.length - 1; i >= 0 && userName == null; i-- )
+        {
+            userName = mapClaims.get( _userKeyClaims [i] );
+        }
+
+        if ( userName == null )
+        {
+            return null;
+        }
+
+        Oauth2User user = new Oauth2User( (String) userName, token, authService );
+
+        for ( int i = 0; i < _attributeClaims.length; i++ )
+        {
+            Object value = mapClaims.get( _attributeClaims [i] );
+
+            if ( value != null )
+            {
+                String strValue = toString( value );
+
+                for ( String strAttribute : _attributes [i] )
+                {
+                    user.setUserInfo( strAttribute, strValue );
+                }
+            }
+        }
+
+        String strEmail = user.getUserInfo( LuteceUser.HOME_INFO_ONLINE_EMAIL );
+
+        if ( StringUtils.isEmpty( strEmail ) )
+        {
+            strEmail = user.getUserInfo( LuteceUser.BUSINESS_INFO_ONLINE_EMAIL );
+        }
+
+        if ( !StringUtils.isEmpty( strEmail ) )
+        {
+            user.setEmail( strEmail );
+        }
+
+        Object identityKey = ( _strIdentityKeyClaim != null ) ? mapClaims.get( _strIdentityKeyClaim ) : null;
+
+        if ( identityKey != null )
+        {
+            user.setName( identityKey.toString( ) );
+        }
+
+        return user;
+    }
+
+    /**
+     * Convert the value of a claim
+     *
+     * @param value
+     *            the value
+     * @return the value, the items of a list being joined
+     */
+    private static String toString( Object value )
+    {
+        if ( !( value instanceof List ) )
+        {
+            return value.toString( );
+        }
+
+        List<?> listValues = (List<?>) value;
+        StringBuilder sbValue = new StringBuilder( );
+
+        for ( int i = 0; i < listValues.size( ); i++ )
+        {
+            if ( i > 0 )
+            {
+                sbValue.append( LIST_SEPARATOR );
+            }
+
+            sbValue.append( listValues.get( i ) );
+        }
+
+        return sbValue.toString( );
+    }
+}
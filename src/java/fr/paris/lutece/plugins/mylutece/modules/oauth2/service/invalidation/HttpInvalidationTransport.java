@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service.invalidation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Transport posting the messages to the other nodes of the cluster, which receive them through the invalidation bus filter of the module. No broker is
+ * required: each node only has to know the base url of the other nodes. The receiver url is public, so the messages are only accepted with the secret
+ * shared by the nodes : a node without secret rejects every message.
+ */
+public class HttpInvalidationTransport implements IOauth2InvalidationTransport
+{
+    public static final String HEADER_SECRET = "X-Oauth2-Invalidation-Secret";
+    public static final String RECEIVER_PATH = "plugins/myluteceoauth2/invalidationBus";
+    private static final String CONTENT_TYPE = "application/octet-stream";
+    private static final String SEPARATOR = ",";
+    private static final int DEFAULT_TIMEOUT = 2000;
+
+    private List<String> _listPeerUrls = Collections.emptyList( );
+    private String _strSecret;
+    private int _nConnectTimeout = DEFAULT_TIMEOUT;
+    private int _nReadTimeout = DEFAULT_TIMEOUT;
+    private volatile Consumer<byte [ ]> _receiver;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void send( byte [ ] message )
+    {
+        for ( String strPeerUrl : _listPeerUrls )
+        {
+            try
+            {
+                post( strPeerUrl + RECEIVER_PATH, message );
+            }
+            catch( IOException e )
+            {
+                AppLogService.error( "Oauth2 - unable to send user updates to node " + strPeerUrl, e );
+            }
+        }
+    }
+
+    /**
+     * Post a message to a node
+     *
+     * @param strUrl
+     *            the receiver url of the node
+     * @param message
+     *            the message
+     * @throws IOException
+     *             if the message is not accepted
+     */
+    private void post( String strUrl, byte [ ] message ) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL( strUrl ).openConnection( );
+        connection.setConnectTimeout( _nConnectTimeout );
+        connection.setReadTimeout( _nReadTimeout );
+        connection.setRequestMethod( "POST" );
+        connection.setDoOutput( true );
+        connection.setFixedLengthStreamingMode( message.length );
+        connection.setRequestProperty( "Content-Type", CONTENT_TYPE );
+
+        if ( _strSecret != null )
+        {
+            connection.setRequestProperty( HEADER_SECRET, _strSecret );
+        }
+
+        try ( OutputStream output = connection.getOutputStream( ) )
+        {
+            output.write( message );
+        }
+
+        int nStatus = connection.getResponseCode( );
+
+        // consume the response so that the connection is kept alive
+        try ( InputStream input = ( nStatus < 400 ) ? connection.getInputStream( ) : connection.getErrorStream( ) )
+        {
+            if ( input != null )
+            {
+                while ( input.read( ) != -1 )
+                {
+                    // discard
+                }
+            }
+        }
+
+        if ( nStatus != HttpURLConnection.HTTP_OK )
+        {
+            throw new IOException( "HTTP status " + nStatus );
+        }
+    }
+
+    /**
+     * Receive a message posted by another node
+     *
+     * @param message
+     *            the message
+     * @param strSecret
+     *            the secret sent with the message
+     * @return false if no secret is configured or if the secret does not match
+     */
+    public boolean receive( byte [ ] message, String strSecret )
+    {
+        if ( _strSecret == null || strSecret == null
+                || !MessageDigest.isEqual( _strSecret.getBytes( StandardCharsets.UTF_8 ), strSecret.getBytes( StandardCharsets.UTF_8 ) ) )
+        {
+            return false;
+        }
+
+        Consumer<byte [ ]> receiver = _receiver;
+
+        if ( receiver != null )
+        {
+            receiver.accept( message );
+        }
+
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setReceiver( Consumer<byte [ ]> receiver )
+    {
+        if ( _strSecret == null )
+        {
+            AppLogService.error( "Oauth2 - no secret is configured for the invalidation bus : the user updates of the other nodes are rejected" );
+        }
+
+        _receiver = receiver;
+    }
+
+    /**
+     * @param strPeerUrls
+     *            the base urls of the webapps of the other nodes, separated by commas
+     */
+    public void setPeerUrls( String strPeerUrls )
+    {
+        _listPeerUrls = Arrays.stream( StringUtils.defaultString( strPeerUrls ).split( SEPARATOR ) ).map( String::trim ).filter( StringUtils::isNotEmpty )
+                .map( strUrl -> strUrl.endsWith( "/" ) ? strUrl : ( strUrl + "/" ) ).collect( Collectors.toList( ) );
+    }
+
+    /**
+     * @param strSecret
+     *            the secret shared by the nodes, required to accept a message : without secret, every message is rejected
+     */
+    public void setSecret( String strSecret )
+    {
+        _strSecret = StringUtils.isEmpty( strSecret ) ? null : strSecret;
+    }
+
+    /**
+     * @param nConnectTimeout
+     *            the connect timeout in milliseconds
+     */
+    public void setConnectTimeout( int nConnectTimeout )
+    {
+        _nConnectTimeout = nConnectTimeout;
+    }
+
+    /**
+     * @param nReadTimeout
+     *            the read timeout in milliseconds
+     */
+    public void setReadTimeout( int nReadTimeout )
+    {
+        _nReadTimeout = nReadTimeout;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service.invalidation;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * In JVM transport delivering the messages to all the loopback transports of the same JVM, to run a cluster of buses on a single machine without any broker
+ */
+public class LoopbackInvalidationTransport implements IOauth2InvalidationTransport
+{
+    private static final List<LoopbackInvalidationTransport> _listTransports = new CopyOnWriteArrayList<>( );
+    private volatile Consumer<byte [ ]> _receiver;
+
+    /**
+     * Constructor
+     */
+    public LoopbackInvalidationTransport( )
+    {
+        _listTransports.add( this );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void send( byte [ ] message )
+    {
+        for ( LoopbackInvalidationTransport transport : _listTransports )
+        {
+            Consumer<byte [ ]> receiver = transport._receiver;
+
+            if ( receiver != null )
+            {
+                receiver.accept( message );
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setReceiver( Consumer<byte [ ]> receiver )
+    {
+        _receiver = receiver;
+    }
+
+    /**
+     * Disconnect the transport from the other loopback transports
+     */
+    public void close( )
+    {
+        _listTransports.remove( this );
+    }
+}
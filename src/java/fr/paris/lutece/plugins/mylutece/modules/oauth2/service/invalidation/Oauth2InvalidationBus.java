@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service.invalidation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Invalidation bus batching and coalescing the published updates.
+ * <p>
+ * The first update published after a flush schedules the next flush after the flush delay. The updates published in the meantime are coalesced, so a user
+ * updated several times is sent once, and are sent in batches of at most the batch size. Each message carries the id of the sending node so that a node
+ * ignores its own messages.
+ * </p>
+ */
+public class Oauth2InvalidationBus implements IOauth2InvalidationBus
+{
+    private static final long DEFAULT_FLUSH_DELAY = 100L;
+    private static final int DEFAULT_BATCH_SIZE = 500;
+    private static final int MAX_BATCH_SIZE = 100000;
+    private static final int MIN_ENCODED_NAME_SIZE = 2;
+    private static final String THREAD_NAME = "mylutece-oauth2-invalidation-bus";
+
+    private final String _strNodeId = UUID.randomUUID( ).toString( );
+    private final Set<String> _setPending = ConcurrentHashMap.newKeySet( );
+    private final AtomicBoolean _bFlushScheduled = new AtomicBoolean( );
+    private IOauth2InvalidationTransport _transport;
+    private long _lFlushDelay = DEFAULT_FLUSH_DELAY;
+    private int _nBatchSize = DEFAULT_BATCH_SIZE;
+    private volatile Consumer<Collection<String>> _listener;
+    private ScheduledExecutorService _scheduler;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void publish( String strLuteceUserName )
+    {
+        _setPending.add( strLuteceUserName );
+
+        if ( _bFlushScheduled.compareAndSet( false, true ) )
+        {
+            getScheduler( ).schedule( this::flush, _lFlushDelay, TimeUnit.MILLISECONDS );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setListener( Consumer<Collection<String>> listener )
+    {
+        _listener = listener;
+    }
+
+    /**
+     * Send the pending updates
+     */
+    public void flush( )
+    {
+        _bFlushScheduled.set( false );
+
+        List<String> listBatch = new ArrayList<>( Math.min( _nBatchSize, _setPending.size( ) ) );
+        Iterator<String> iterator = _setPending.iterator( );
+
+        while ( iterator.hasNext( ) )
+        {
+            listBatch.add( iterator.next( ) );
+            iterator.remove( );
+
+            if ( listBatch.size( ) == _nBatchSize )
+            {
+                send( listBatch );
+                listBatch.clear( );
+            }
+        }
+
+        if ( !listBatch.isEmpty( ) )
+        {
+            send( listBatch );
+        }
+    }
+
+    /**
+     * Send a batch of updates
+     *
+     * @param listBatch
+     *            the lutece user names
+     */
+    private void send( List<String> listBatch )
+    {
+        try
+        {
+            _transport.send( encode( _strNodeId, listBatch ) );
+        }
+        catch( RuntimeException e )
+        {
+            AppLogService.error( "Oauth2 - unable to send " + listBatch.size( ) + " user updates on the invalidation bus", e );
+        }
+    }
+
+    /**
+     * Apply a message received from the transport
+     *
+     * @param message
+     *            the encoded message
+     */
+    private void receive( byte [ ] message )
+    {
+        try ( DataInputStream input = new DataInputStream( new ByteArrayInputStream( message ) ) )
+        {
+            if ( _strNodeId.equals( input.readUTF( ) ) )
+            {
+                return;
+            }
+
+            int nCount = input.readInt( );
+
+            // each name takes at least its length prefix : a count beyond the remaining bytes is forged
+            if ( nCount < 0 || nCount > MAX_BATCH_SIZE || nCount > input.available( ) / MIN_ENCODED_NAME_SIZE )
+            {
+                AppLogService.error( "Oauth2 - invalid message received on the invalidation bus : " + nCount + " user updates announced in "
+                        + message.length + " bytes" );
+
+                return;
+            }
+
+            List<String> listLuteceUserNames = new ArrayList<>( nCount );
+
+            for ( int i = 0; i < nCount; i++ )
+            {
+                listLuteceUserNames.add( input.readUTF( ) );
+            }
+
+            Consumer<Collection<String>> listener = _listener;
+
+            if ( listener != null )
+            {
+                listener.accept( listLuteceUserNames );
+            }
+        }
+        catch( IOException e )
+        {
+            AppLogService.error( "Oauth2 - invalid message received on the invalidation bus", e );
+        }
+    }
+
+    /**
+     * Encode a batch of updates
+     *
+     * @param strNodeId
+     *            the id of the sending node
+     * @param listLuteceUserNames
+     *            the lutece user names
+     * @return the message
+     */
+    private static byte [ ] encode( String strNodeId, List<String> listLuteceUserNames )
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream( 64 + listLuteceUserNames.size( ) * 40 );
+
+        try ( DataOutputStream output = new DataOutputStream( bytes ) )
+        {
+            output.writeUTF( strNodeId );
+            output.writeInt( listLuteceUserNames.size( ) );
+
+            for ( String strLuteceUserName : listLuteceUserNames )
+            {
+                output.writeUTF( strLuteceUserName );
+            }
+        }
+        catch( IOException e )
+        {
+            // not thrown by an in memory stream
+            throw new IllegalStateException( e );
+        }
+
+        return bytes.toByteArray( );
+    }
+
+    /**
+     * @return the scheduler of the flushes, created on first use
+     */
+    private synchronized ScheduledExecutorService getScheduler( )
+    {
+        if ( _scheduler == null )
+        {
+            _scheduler = Executors.newSingleThreadScheduledExecutor( runnable -> {
+                Thread thread = new Thread( runnable, THREAD_NAME );
+                thread.setDaemon( true );
+
+                return thread;
+            } );
+        }
+
+        return _scheduler;
+    }
+
+    /**
+     * Flush the pending updates and stop the bus
+     */
+    public synchronized void destroy( )
+    {
+        flush( );
+
+        if ( _scheduler != null )
+        {
+            _scheduler.shutdown( );
+        }
+    }
+
+    /**
+     * @return the id of this node on the bus
+     */
+    public String getNodeId( )
+    {
+        return _strNodeId;
+    }
+
+    /**
+     * @param transport
+     *            the transport of the messages
+     */
+    public void setTransport( IOauth2InvalidationTransport transport )
+    {
+        _transport = transport;
+        _transport.setReceiver( this::receive );
+    }
+
+    /**
+     * @param lFlushDelay
+     *            the delay in milliseconds between the first pending update and its sending
+     */
+    public void setFlushDelay( long lFlushDelay )
+    {
+        _lFlushDelay = lFlushDelay;
+    }
+
+    /**
+     * @param nBatchSize
+     *            the maximum number of updates per message
+     */
+    public void setBatchSize( int nBatchSize )
+    {
+        _nBatchSize = nBatchSize;
+    }
+}
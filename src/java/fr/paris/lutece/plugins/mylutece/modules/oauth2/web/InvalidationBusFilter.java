@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.invalidation.HttpInvalidationTransport;
+import fr.paris.lutece.portal.service.spring.SpringContextService;
+
+/**
+ * Filter receiving the user updates posted by the other nodes of the cluster
+ */
+public class InvalidationBusFilter implements Filter
+{
+    private static final String BEAN_INVALIDATION_TRANSPORT = "mylutece-oauth2.invalidationTransport";
+    private static final String METHOD_POST = "POST";
+    private static final int MAX_MESSAGE_SIZE = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 8192;
+
+    private HttpInvalidationTransport _transport;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy( )
+    {
+        // nothing
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void doFilter( ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain ) throws IOException, ServletException
+    {
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+
+        if ( _transport == null )
+        {
+            response.setStatus( HttpServletResponse.SC_NOT_FOUND );
+
+            return;
+        }
+
+        if ( !METHOD_POST.equals( request.getMethod( ) ) )
+        {
+            response.setStatus( HttpServletResponse.SC_METHOD_NOT_ALLOWED );
+
+            return;
+        }
+
+        byte [ ] message = readMessage( request );
+
+        if ( message == null )
+        {
+            response.setStatus( HttpServletResponse.SC_BAD_REQUEST );
+        }
+        else
+            if ( !_transport.receive( message, request.getHeader( HttpInvalidationTransport.HEADER_SECRET ) ) )
+            {
+                response.setStatus( HttpServletResponse.SC_FORBIDDEN );
+            }
+            else
+            {
+                response.setStatus( HttpServletResponse.SC_OK );
+            }
+    }
+
+    /**
+     * Read the message posted in the request body
+     *
+     * @param request
+     *            the request
+     * @return the message, or null if it is too large
+     * @throws IOException
+     *             if the body can not be read
+     */
+    private static byte [ ] readMessage( HttpServletRequest request ) throws IOException
+    {
+        ByteArrayOutputStream message = new ByteArrayOutputStream( );
+        byte [ ] buffer = new byte [ BUFFER_SIZE];
+
+        try ( InputStream input = request.getInputStream( ) )
+        {
+            int nRead;
+
+            while ( ( nRead = input.read( buffer ) ) != -1 )
+            {
+                if ( message.size( ) + nRead > MAX_MESSAGE_SIZE )
+                {
+                    return null;
+                }
+
+                message.write( buffer, 0, nRead );
+            }
+        }
+
+        return message.toByteArray( );
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void init( FilterConfig config ) throws ServletException
+    {
+        Object transport = null;
+
+        try
+        {
+            transport = SpringContextService.getBean( BEAN_INVALIDATION_TRANSPORT );
+        }
+        catch( RuntimeException e )
+        {
+            // no transport declared: the updates are not propagated
+        }
+
+        if ( transport instanceof HttpInvalidationTransport )
+        {
+            _transport = (HttpInvalidationTransport) transport;
+        }
+    }
+}
@@ -34,13 +34,26 @@
 package fr.paris.lutece.plugins.mylutece.modules.oauth2.web;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.net.URLEncoder;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -48,6 +61,7 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
@@ -57,16 +71,18 @@ import org.apache.commons.lang3.StringUtils;
 import fr.paris.lutece.plugins.mylutece.modules.oauth2.authentication.AuthDataClient;
 import fr.paris.lutece.plugins.mylutece.modules.oauth2.authentication.Oauth2Authentication;
 import fr.paris.lutece.plugins.mylutece.modules.oauth2.authentication.Oauth2User;
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2AccessTokenValidator;
 import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2LuteceUserSessionService;
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2PromptNoneNegativeCache;
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2PromptNoneState;
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2RefreshTokenValidator;
 import fr.paris.lutece.plugins.oauth2.business.Token;
-import fr.paris.lutece.plugins.oauth2.service.TokenService;
 import fr.paris.lutece.portal.service.security.LuteceUser;
 import fr.paris.lutece.portal.service.security.SecurityService;
 import fr.paris.lutece.portal.service.spring.SpringContextService;
-import fr.paris.lutece.portal.service.util.AppPathService;
+import fr.paris.lutece.portal.service.util.AppLogService;
 import fr.paris.lutece.portal.service.util.AppPropertiesService;
 import fr.paris.lutece.portal.web.PortalJspBean;
-import fr.paris.lutece.util.url.UrlItem;
 
 /**
  * ParisConnectLuteceFilters
@@ -85,16 +101,32 @@ public class MyluteceOauth2Filter implements Filter
     private static final String PROPERTY_USE_PROMPT_NONE_WHITE_LISTING_HEADERS = "mylutece-oauth2.usePromptNoneWhiteListingHeaders";
 
     private static final String PROPERTY_VALIDATE_REFRESH_TOKEN = "mylutece-oauth2.validateRefreshToken";
-    private static final String URL_INTERROGATIVE = "?";
-    private static final String URL_AMPERSAND = "&";
-    private static final String URL_EQUAL = "=";
-    private static final String URL_STAR = "*";
+    private static final String PROPERTY_VALIDATE_ACCESS_TOKEN = "mylutece-oauth2.validateAccessToken";
+    private static final String PROPERTY_ASYNC_AUTHENTICATION = "mylutece-oauth2.asyncAuthentication";
+    private static final String PROPERTY_ASYNC_AUTHENTICATION_THREADS = "mylutece-oauth2.asyncAuthentication.threads";
+    private static final String PROPERTY_ASYNC_AUTHENTICATION_QUEUE_SIZE = "mylutece-oauth2.asyncAuthentication.queueSize";
+    private static final int DEFAULT_ASYNC_AUTHENTICATION_THREADS = 20;
+    private static final String PROPERTY_ASYNC_AUTHENTICATION_TIMEOUT = "mylutece-oauth2.asyncAuthentication.timeout";
+    private static final int DEFAULT_ASYNC_AUTHENTICATION_QUEUE_SIZE = 1000;
+    private static final int DEFAULT_ASYNC_AUTHENTICATION_TIMEOUT = 10000;
+    private static final String ASYNC_AUTHENTICATION_THREAD_NAME = "mylutece-oauth2-authentication";
+    private static final String ATTRIBUTE_AUTHENTICATED = MyluteceOauth2Filter.class.getName( ) + ".authenticated";
     private static final String SEPARATOR = ",";
 
     private boolean _bUsePromptNone;
     private boolean _bValidateRefreshToken;
-    private List<String> _listUsePromptWhiteUrls;
-    private Map<String, List<String>> _mapUsePromptWhiteHeaders;
+    private boolean _bValidateAccessToken;
+    private PromptNoneWhiteList _usePromptWhiteList;
+    // resolved once, the accessors of the singletons are synchronized
+    private Oauth2PromptNoneState _promptNoneState;
+    private Oauth2RefreshTokenValidator _refreshTokenValidator;
+    private Oauth2AccessTokenValidator _accessTokenValidator;
+    private Oauth2PromptNoneNegativeCache _promptNoneNegativeCache;
+    private MyluteceOauth2FilterBypass _bypass;
+    private ThreadPoolExecutor _asyncExecutor;
+    private long _lAsyncTimeout;
+    // set when a dispatched request does not go through the filter again
+    private volatile boolean _bAsyncDisabled;
 
     /**
      *
@@ -103,7 +135,10 @@ public class MyluteceOauth2Filter implements Filter
     @Override
     public void destroy( )
     {
-        // nothing
+        if ( _asyncExecutor != null )
+        {
+            _asyncExecutor.shutdown( );
+        }
     }
 
     /**
@@ -116,19 +151,38 @@ public class MyluteceOauth2Filter implements Filter
     {
         HttpServletRequest request = (HttpServletRequest) servletRequest;
         HttpServletResponse resp = (HttpServletResponse) response;
-        if ( request != null && "GET".equals( request.getMethod( ) ) )
+        HttpSession existingSession = ( request != null ) ? request.getSession( false ) : null;
+
+        // every request of a session keeps it in a bounded registry, whatever its method and even if it is bypassed
+        if ( existingSession != null )
+        {
+            Oauth2LuteceUserSessionService.getInstance( ).touchLuteceUserSession( existingSession.getId( ) );
+        }
+
+        Object authenticated = ( request != null ) ? request.getAttribute( ATTRIBUTE_AUTHENTICATED ) : null;
+
+        if ( authenticated instanceof AsyncAuthentication )
+        {
+            ( (AsyncAuthentication) authenticated ).resume( );
+        }
+
+        // the request resumed after an asynchronous authentication has already been processed
+        if ( request != null && "GET".equals( request.getMethod( ) ) && request.getAttribute( ATTRIBUTE_AUTHENTICATED ) == null
+                && !_bypass.isBypassed( request ) )
         {
             LuteceUser user = SecurityService.getInstance( ).getRegisteredUser( request );
 
-            if ( user == null && isUsePomptNoneForRequest( request ) )
+            Oauth2PromptNoneState promptNoneState = _promptNoneState;
+            Oauth2User userToValidate = null;
+
+            if ( user == null && isUsePomptNoneForRequest( request ) && !_promptNoneNegativeCache.isLoginRequired( request ) )
             {
-                HttpSession session = request.getSession( true );
+                String strErrorLogin = promptNoneState.getErrorLogin( request );
 
-                if ( ( session.getAttribute( AuthDataClient.SESSION_ERROR_LOGIN ) == null && request.getParameter( AuthDataClient.PARAM_ERROR_LOGIN ) == null )
-                        || session.getAttribute( AuthDataClient.SESSION_ERROR_LOGIN ) != null
-                                && session.getAttribute( AuthDataClient.SESSION_ERROR_LOGIN ).equals( AuthDataClient.REINIT_ERROR_LOGIN ) )
+                if ( ( strErrorLogin == null && request.getParameter( AuthDataClient.PARAM_ERROR_LOGIN ) == null )
+                        || AuthDataClient.REINIT_ERROR_LOGIN.equals( strErrorLogin ) )
                 {
-                    session.setAttribute( AuthDataClient.SESSION_ERROR_LOGIN, "" );
+                    promptNoneState.setErrorLogin( request, resp, "" );
                     String strRedirectLoginUrl = PortalJspBean.redirectLogin( request );
                     String strNextUrl=PortalJspBean.getLoginNextUrl(request);
                     String strNextUrlEncoded=URLEncoder.encode( strNextUrl, "UTF-8" );
@@ -140,46 +194,131 @@ public class MyluteceOauth2Filter implements Filter
                     return;
                 }
 
-                session.setAttribute( AuthDataClient.SESSION_ERROR_LOGIN, AuthDataClient.REINIT_ERROR_LOGIN );
+                promptNoneState.setErrorLogin( request, resp, AuthDataClient.REINIT_ERROR_LOGIN );
             }
             else
-                if ( _bValidateRefreshToken && user instanceof Oauth2User )
+                if ( ( _bValidateRefreshToken || _bValidateAccessToken ) && user instanceof Oauth2User )
                 {
-                    Oauth2User oauth2User = (Oauth2User) user;
-                    if ( oauth2User.getToken( ) != null && oauth2User.getToken( ).getRefreshToken( ) != null )
-                    {
-                        Token token = TokenService.getService( ).getTokenByRefreshToken( oauth2User.getToken( ).getRefreshToken( ) );
-                        if ( token == null )
-                        {
-
-                            SecurityService.getInstance( ).logoutUser( request );
-                        }
-                        else
-                        {
-                            oauth2User.setToken( token );
-                        }
-                    }
-                    else
+                    userToValidate = (Oauth2User) user;
+
+                    // the access token is checked without any call, the refresh token being validated only when the access token does not tell
+                    if ( _bValidateAccessToken && !validateAccessToken( request, userToValidate ) )
                     {
-                        SecurityService.getInstance( ).logoutUser( request );
+                        userToValidate = null;
                     }
                 }
-            if ( !Oauth2LuteceUserSessionService.getInstance( ).isLuteceUserUpToDate( request.getSession( true ).getId( ) ) )
+            // in lazy session mode, a visitor without session can not have been authenticated
+            HttpSession session = request.getSession( !promptNoneState.isLazySession( ) );
+            boolean bReauthenticate = session != null && !Oauth2LuteceUserSessionService.getInstance( ).isLuteceUserUpToDate( session.getId( ) );
+
+            if ( _asyncExecutor != null && !_bAsyncDisabled && request.isAsyncSupported( )
+                    && ( bReauthenticate || ( userToValidate != null && _refreshTokenValidator.isValidationRequired( userToValidate ) ) ) )
             {
+                authenticateAsync( request, resp, userToValidate, bReauthenticate );
 
-                Oauth2Authentication oauth2Authentication = (Oauth2Authentication) SpringContextService.getBean( "mylutece-oauth2.authentication" );
-                user = oauth2Authentication.getHttpAuthenticatedUser( request );
+                return;
+            }
 
-                if ( user != null )
+            if ( userToValidate != null )
+            {
+                _refreshTokenValidator.validate( request, userToValidate );
+            }
+
+            if ( bReauthenticate )
+            {
+                reauthenticate( request );
+            }
+        }
+
+        chain.doFilter( servletRequest, response );
+    }
+
+    /**
+     * Validate locally the access token of a user. The user is logged out if the token is forged, or if it is expired and the refresh token is not
+     * validated.
+     *
+     * @param request
+     *            the request
+     * @param user
+     *            the user
+     * @return true if the refresh token of the user must be validated
+     */
+    private boolean validateAccessToken( HttpServletRequest request, Oauth2User user )
+    {
+        Token token = user.getToken( );
+        Oauth2AccessTokenValidator.Result result = _accessTokenValidator.validate( ( token != null ) ? token.getAccessToken( ) : null );
+
+        switch( result )
+        {
+            case VALID:
+                return false;
+            case UNVERIFIABLE:
+                return _bValidateRefreshToken;
+            case EXPIRED:
+                if ( _bValidateRefreshToken )
                 {
-                    SecurityService.getInstance( ).registerUser( request, user );
+                    return true;
                 }
 
-            }
+                SecurityService.getInstance( ).logoutUser( request );
 
+                return false;
+            default:
+                SecurityService.getInstance( ).logoutUser( request );
+
+                return false;
         }
+    }
 
-        chain.doFilter( servletRequest, response );
+    /**
+     * Run the calls to the identity provider on the authentication executor, the container thread being released until the request is dispatched again
+     *
+     * @param request
+     *            the request
+     * @param response
+     *            the response
+     * @param userToValidate
+     *            the user whose refresh token must be validated, or null
+     * @param bReauthenticate
+     *            true if the user of the session must be authenticated again
+     */
+    private void authenticateAsync( HttpServletRequest request, HttpServletResponse response, Oauth2User userToValidate, boolean bReauthenticate )
+    {
+        AsyncContext asyncContext = request.startAsync( request, response );
+        AsyncAuthentication authentication = new AsyncAuthentication( asyncContext, new DetachedRequest( request ), userToValidate, bReauthenticate );
+        request.setAttribute( ATTRIBUTE_AUTHENTICATED, authentication );
+        asyncContext.addListener( authentication );
+        asyncContext.setTimeout( _lAsyncTimeout );
+
+        try
+        {
+            _asyncExecutor.execute( authentication );
+        }
+        catch( RejectedExecutionException e )
+        {
+            // saturated executor : the authentication is skipped for this request rather than run by the container thread
+            if ( authentication.abandon( ) )
+            {
+                AppLogService.info( "Oauth2 - the asynchronous authentication executor is saturated, the request goes on with the current session" );
+            }
+        }
+    }
+
+    /**
+     * Authenticate again the user of a session whose user has been updated
+     *
+     * @param request
+     *            the request
+     */
+    private static void reauthenticate( HttpServletRequest request )
+    {
+        Oauth2Authentication oauth2Authentication = (Oauth2Authentication) SpringContextService.getBean( "mylutece-oauth2.authentication" );
+        LuteceUser user = oauth2Authentication.getHttpAuthenticatedUser( request );
+
+        if ( user != null )
+        {
+            SecurityService.getInstance( ).registerUser( request, user );
+        }
     }
 
     /**
@@ -191,130 +330,363 @@ public class MyluteceOauth2Filter implements Filter
     {
         _bUsePromptNone = AppPropertiesService.getPropertyBoolean( PROPERTY_USE_PROMPT_NONE, false );
         _bValidateRefreshToken = AppPropertiesService.getPropertyBoolean( PROPERTY_VALIDATE_REFRESH_TOKEN, false );
+        _promptNoneState = Oauth2PromptNoneState.getInstance( );
+        _bValidateAccessToken = AppPropertiesService.getPropertyBoolean( PROPERTY_VALIDATE_ACCESS_TOKEN, false );
+        _refreshTokenValidator = Oauth2RefreshTokenValidator.getInstance( );
+        _accessTokenValidator = _bValidateAccessToken ? Oauth2AccessTokenValidator.getInstance( ) : null;
+
+        if ( _bValidateAccessToken && !_accessTokenValidator.isEnabled( ) )
+        {
+            AppLogService.error( "Oauth2 - " + PROPERTY_VALIDATE_ACCESS_TOKEN + ".jwksUri is not set : the access tokens can not be validated locally" );
+        }
+        _promptNoneNegativeCache = Oauth2PromptNoneNegativeCache.getInstance( );
+        _bypass = MyluteceOauth2FilterBypass.getInstance( );
+
+        if ( AppPropertiesService.getPropertyBoolean( PROPERTY_ASYNC_AUTHENTICATION, false ) )
+        {
+            _lAsyncTimeout = Math.max( 1,
+                    AppPropertiesService.getPropertyInt( PROPERTY_ASYNC_AUTHENTICATION_TIMEOUT, DEFAULT_ASYNC_AUTHENTICATION_TIMEOUT ) );
+            int nThreads = Math.max( 1, AppPropertiesService.getPropertyInt( PROPERTY_ASYNC_AUTHENTICATION_THREADS, DEFAULT_ASYNC_AUTHENTICATION_THREADS ) );
+            int nQueueSize = Math.max( 1,
+                    AppPropertiesService.getPropertyInt( PROPERTY_ASYNC_AUTHENTICATION_QUEUE_SIZE, DEFAULT_ASYNC_AUTHENTICATION_QUEUE_SIZE ) );
+            _asyncExecutor = new ThreadPoolExecutor( nThreads, nThreads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>( nQueueSize ), runnable -> {
+                Thread thread = new Thread( runnable, ASYNC_AUTHENTICATION_THREAD_NAME );
+                thread.setDaemon( true );
+
+                return thread;
+            } );
+            _asyncExecutor.allowCoreThreadTimeOut( true );
+        }
 
         String strTabWhiteListingUrls = AppPropertiesService.getProperty( PROPERTY_USE_PROMPT_NONE_WHITE_LISTING_URLS );
         String strTabWhiteListingHeaders = AppPropertiesService.getProperty( PROPERTY_USE_PROMPT_NONE_WHITE_LISTING_HEADERS );
+        List<String> listUsePromptWhiteUrls = Collections.emptyList( );
+        Map<String, List<String>> mapUsePromptWhiteHeaders = new HashMap<String, List<String>>( );
         if ( StringUtils.isNotBlank( strTabWhiteListingUrls ) )
         {
-            _listUsePromptWhiteUrls = Arrays.asList( strTabWhiteListingUrls.split( SEPARATOR ) );
+            listUsePromptWhiteUrls = Arrays.asList( strTabWhiteListingUrls.split( SEPARATOR ) );
         }
         if ( StringUtils.isNotBlank( strTabWhiteListingHeaders ) )
         {
-            _mapUsePromptWhiteHeaders = new HashMap<String, List<String>>( );
-            Arrays.asList( strTabWhiteListingHeaders.split( SEPARATOR ) ).stream( ).forEach( x -> _mapUsePromptWhiteHeaders.put( x,
+            Arrays.asList( strTabWhiteListingHeaders.split( SEPARATOR ) ).stream( ).forEach( x -> mapUsePromptWhiteHeaders.put( x,
                     Arrays.asList( AppPropertiesService.getProperty( PROPERTY_USE_PROMPT_NONE_WHITE_LISTING_HEADERS + "." + x, "" ).split( SEPARATOR ) ) ) );
         }
+        _usePromptWhiteList = new PromptNoneWhiteList( listUsePromptWhiteUrls, mapUsePromptWhiteHeaders );
 
     }
 
-    private boolean isUsePomptNoneForRequest( HttpServletRequest request )
+    /**
+     * Check if the prompt=none authentication must be attempted for a request
+     * 
+     * @param request
+     *            the request
+     * @return true if the prompt=none authentication is enabled and the request is not white listed
+     */
+    boolean isUsePomptNoneForRequest( HttpServletRequest request )
     {
-        boolean bReturn = true;
-        if ( _bUsePromptNone )
+        return _bUsePromptNone && !_usePromptWhiteList.isWhiteListed( request );
+    }
+
+    /**
+     * Asynchronous authentication of a request.
+     * <p>
+     * The request is dispatched again by the first of the executor, once the calls to the identity provider are done, and of the container, once the
+     * timeout is reached : the authentication is then abandoned and the request goes on with the current state of the session, the user staying logged in.
+     * The session changes of an abandoned authentication, such as the registration or the logout of the user by a late call, are discarded. The dispatched
+     * request must go through the filter again, which requires the ASYNC dispatcher in the mapping of the Lutece filters : otherwise the asynchronous
+     * authentication is disabled at the first request, which is completed without going through the rest of the filter chain.
+     * </p>
+     */
+    private final class AsyncAuthentication implements Runnable, AsyncListener
+    {
+        private final AsyncContext _asyncContext;
+        private final DetachedRequest _request;
+        private final Oauth2User _userToValidate;
+        private final boolean _bReauthenticate;
+        private final AtomicBoolean _bDispatched = new AtomicBoolean( );
+        private volatile boolean _bResumed;
+
+        /**
+         * Constructor
+         *
+         * @param asyncContext
+         *            the asynchronous context of the request
+         * @param request
+         *            the request, detached from the container
+         * @param userToValidate
+         *            the user whose refresh token must be validated, or null
+         * @param bReauthenticate
+         *            true if the user of the session must be authenticated again
+         */
+        AsyncAuthentication( AsyncContext asyncContext, DetachedRequest request, Oauth2User userToValidate, boolean bReauthenticate )
+        {
+            _asyncContext = asyncContext;
+            _request = request;
+            _userToValidate = userToValidate;
+            _bReauthenticate = bReauthenticate;
+        }
+
+        /**
+         * Authenticate, unless the request has already been dispatched by its timeout
+         */
+        @Override
+        public void run( )
         {
-            // test headers white list
-            if ( _mapUsePromptWhiteHeaders != null && _mapUsePromptWhiteHeaders.size( ) > 0 )
+            if ( _bDispatched.get( ) )
             {
-                bReturn = !_mapUsePromptWhiteHeaders.keySet( ).stream( ).anyMatch( x -> request.getHeader( x ) != null
-                        && _mapUsePromptWhiteHeaders.get( x ).stream( ).anyMatch( v -> v.equalsIgnoreCase( request.getHeader( x ) ) ) );
+                return;
+            }
 
+            try
+            {
+                if ( _userToValidate != null )
+                {
+                    _refreshTokenValidator.validate( _request, _userToValidate );
+                }
+
+                if ( _bReauthenticate )
+                {
+                    reauthenticate( _request );
+                }
+            }
+            catch( RuntimeException e )
+            {
+                AppLogService.error( "Oauth2 - error during the asynchronous authentication", e );
             }
-            // test url white List
-            if ( bReturn && _listUsePromptWhiteUrls != null && _listUsePromptWhiteUrls.size( ) > 0 )
+            finally
+            {
+                dispatch( false );
+            }
+        }
+
+        /**
+         * Dispatch the request again, once
+         *
+         * @param bAbandoned
+         *            true if the authentication is abandoned : its later session changes are discarded
+         * @return true if the request has been dispatched by this call
+         */
+        private boolean dispatch( boolean bAbandoned )
+        {
+            if ( !_bDispatched.compareAndSet( false, true ) )
             {
-                bReturn = !_listUsePromptWhiteUrls.stream( ).anyMatch( x -> matchUrl( request, x ) );
+                return false;
             }
 
+            if ( bAbandoned )
+            {
+                _request.detach( );
+            }
+
+            _asyncContext.dispatch( );
+
+            return true;
+        }
+
+        /**
+         * Abandon the authentication : the request is dispatched again with the current state of the session
+         *
+         * @return true if the request has been dispatched by this call
+         */
+        boolean abandon( )
+        {
+            return dispatch( true );
+        }
+
+        /**
+         * Record that the dispatched request goes through the filter
+         */
+        void resume( )
+        {
+            _bResumed = true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onTimeout( AsyncEvent event )
+        {
+            if ( abandon( ) )
+            {
+                AppLogService.error( "Oauth2 - the asynchronous authentication has timed out after " + _lAsyncTimeout
+                        + " ms, the request goes on with the current session" );
+            }
         }
-        else
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onError( AsyncEvent event )
         {
-            bReturn = false;
+            if ( abandon( ) )
+            {
+                AppLogService.error( "Oauth2 - error during the asynchronous authentication, the request goes on with the current session",
+                        event.getThrowable( ) );
+            }
         }
 
-        return bReturn;
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onComplete( AsyncEvent event )
+        {
+            if ( _bDispatched.get( ) && !_bResumed && !_bAsyncDisabled )
+            {
+                _bAsyncDisabled = true;
+                AppLogService.error( "Oauth2 - the dispatched requests do not go through the filter again : the asynchronous authentication is disabled,"
+                        + " the Lutece filters must be mapped with the ASYNC dispatcher" );
+            }
+        }
 
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onStartAsync( AsyncEvent event )
+        {
+            // the listener is registered for a single asynchronous cycle
+        }
     }
 
     /**
-     * method to test if the URL matches the pattern
-     * 
-     * @param request
-     *            the request
-     * @param strUrlPatern
-     *            the pattern
-     * @return true if the URL matches the pattern
+     * Request given to the executor : the session, the headers and the remote address are read by the container thread, so that a late authentication
+     * does not read a request the container has recycled. The attributes are kept apart from the request. Once the request is detached, the changes of the
+     * session attributes are discarded.
      */
-    private boolean matchUrl( HttpServletRequest request, String strUrlPatern )
+    private static final class DetachedRequest extends HttpServletRequestWrapper
     {
-        boolean bMatch = false;
-
-        if ( strUrlPatern != null )
+        private final HttpSession _session;
+        private boolean _bDetached;
+        private final String _strRemoteAddr;
+        private final Map<String, String> _mapHeaders = new TreeMap<>( String.CASE_INSENSITIVE_ORDER );
+        private final Map<String, Object> _mapAttributes = new HashMap<>( );
+
+        /**
+         * Constructor
+         *
+         * @param request
+         *            the request
+         */
+        DetachedRequest( HttpServletRequest request )
         {
-            UrlItem url = new UrlItem( getResquestedUrl( request ) );
+            super( request );
+            _session = guard( request.getSession( true ) );
+            _strRemoteAddr = request.getRemoteAddr( );
 
-            if ( strUrlPatern.contains( URL_INTERROGATIVE ) )
+            for ( Enumeration<String> headerNames = request.getHeaderNames( ); headerNames != null && headerNames.hasMoreElements( ); )
             {
-                for ( String strParamPatternValue : strUrlPatern.substring( strUrlPatern.indexOf( URL_INTERROGATIVE ) + 1 ).split( URL_AMPERSAND ) )
+                String strHeaderName = headerNames.nextElement( );
+                _mapHeaders.put( strHeaderName, request.getHeader( strHeaderName ) );
+            }
+        }
+
+        /**
+         * Discard the later changes of the session attributes : once this method returns, the session is no longer modified through this request
+         */
+        synchronized void detach( )
+        {
+            _bDetached = true;
+        }
+
+        /**
+         * Wrap the session so that its attributes are changed only while the request is attached
+         *
+         * @param session
+         *            the session
+         * @return the guarded session
+         */
+        private HttpSession guard( HttpSession session )
+        {
+            return (HttpSession) Proxy.newProxyInstance( HttpSession.class.getClassLoader( ), new Class<?> [ ] {
+                    HttpSession.class
+            }, ( proxy, method, args ) -> {
+                boolean bChange = method.getName( ).startsWith( "set" ) || method.getName( ).startsWith( "remove" )
+                        || method.getName( ).startsWith( "put" ) || "invalidate".equals( method.getName( ) );
+
+                try
                 {
-                    String [ ] arrayPatternParamValue = strParamPatternValue.split( URL_EQUAL );
+                    if ( !bChange )
+                    {
+                        return method.invoke( session, args );
+                    }
 
-                    if ( ( arrayPatternParamValue != null ) && ( request.getParameter( arrayPatternParamValue [0] ) != null ) )
+                    synchronized( this )
                     {
-                        url.addParameter( arrayPatternParamValue [0], request.getParameter( arrayPatternParamValue [0] ) );
+                        return _bDetached ? null : method.invoke( session, args );
                     }
                 }
-            }
+                catch( InvocationTargetException e )
+                {
+                    throw e.getCause( );
+                }
+            } );
+        }
 
-            if ( strUrlPatern.contains( URL_STAR ) )
-            {
-                String strUrlPaternLeftEnd = strUrlPatern.substring( 0, strUrlPatern.indexOf( URL_STAR ) );
-                String strAbsoluteUrlPattern = getAbsoluteUrl( request, strUrlPaternLeftEnd );
-                bMatch = url.getUrl( ).startsWith( strAbsoluteUrlPattern );
-            }
-            else
-            {
-                String strAbsoluteUrlPattern = getAbsoluteUrl( request, strUrlPatern );
-                bMatch = url.getUrl( ).equals( strAbsoluteUrlPattern );
-            }
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public HttpSession getSession( boolean bCreate )
+        {
+            return _session;
         }
 
-        return bMatch;
-    }
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public HttpSession getSession( )
+        {
+            return _session;
+        }
 
-    /**
-     * Returns the absolute url corresponding to the given one, if the later was found to be relative. An url starting with "http://" is absolute. A relative
-     * url should be given relatively to the webapp root.
-     *
-     * @param request
-     *            the http request (provides the base path if needed)
-     * @param strUrl
-     *            the url to transform
-     * @return the corresonding absolute url
-     *
-     */
-    private String getAbsoluteUrl( HttpServletRequest request, String strUrl )
-    {
-        if ( ( strUrl != null ) && !strUrl.startsWith( "http://" ) && !strUrl.startsWith( "https://" ) )
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getHeader( String strName )
         {
-            return AppPathService.getBaseUrl( request ) + strUrl;
+            return _mapHeaders.get( strName );
         }
-        else
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getRemoteAddr( )
         {
-            return strUrl;
+            return _strRemoteAddr;
         }
-    }
 
-    /**
-     * Return the absolute representation of the requested url
-     *
-     * @param request
-     *            the http request (provides the base path if needed)
-     * @return the requested url has a string
-     *
-     */
-    private String getResquestedUrl( HttpServletRequest request )
-    {
-        return AppPathService.getBaseUrl( request ) + request.getServletPath( ).substring( 1 );
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized Object getAttribute( String strName )
+        {
+            return _mapAttributes.get( strName );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void setAttribute( String strName, Object value )
+        {
+            _mapAttributes.put( strName, value );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void removeAttribute( String strName )
+        {
+            _mapAttributes.remove( strName );
+        }
     }
 
 }
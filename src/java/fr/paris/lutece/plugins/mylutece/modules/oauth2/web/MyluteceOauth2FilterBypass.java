@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.web;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang3.StringUtils;
+
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2ComponentStatistics;
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2StatisticsService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ * Requests which go through {@link MyluteceOauth2Filter} without any processing : no user lookup, no session, no up to date check and no prompt=none
+ * authentication.
+ * <p>
+ * The rules are compiled once : the extensions of the requested path and the query parameters are looked up in hash sets, and the user agent is searched
+ * for a short list of lower case tokens. A query parameter rule is either a parameter name, matching whatever the value, or a name=value pair. The query
+ * string is scanned without being decoded, so that the request parameters are not parsed for the bypassed requests.
+ * </p>
+ */
+public final class MyluteceOauth2FilterBypass
+{
+    private static final String PROPERTY_EXTENSIONS = "mylutece-oauth2.filterBypass.extensions";
+    private static final String PROPERTY_PARAMETERS = "mylutece-oauth2.filterBypass.parameters";
+    private static final String PROPERTY_USER_AGENTS = "mylutece-oauth2.filterBypass.userAgents";
+    private static final String HEADER_USER_AGENT = "User-Agent";
+    private static final String SEPARATOR = ",";
+    private static final char PATH_SEPARATOR = '/';
+    private static final char PATH_PARAMETER_SEPARATOR = ';';
+    private static final char EXTENSION_SEPARATOR = '.';
+    private static final char PARAMETER_SEPARATOR = '&';
+    private static final String STATISTICS_NAME = "filterBypass";
+    private static final char VALUE_SEPARATOR = '=';
+
+    private static MyluteceOauth2FilterBypass _singleton;
+
+    private final Set<String> _setExtensions = new HashSet<>( );
+    private final Set<String> _setParameterNames = new HashSet<>( );
+    private final Map<String, Set<String>> _mapParameterValues = new HashMap<>( );
+    private final String [ ] _userAgentTokens;
+    private final boolean _bEnabled;
+    private final LongAdder _lExtensionBypasses = new LongAdder( );
+    private final LongAdder _lParameterBypasses = new LongAdder( );
+    private final LongAdder _lUserAgentBypasses = new LongAdder( );
+
+    /**
+     * private constructor.
+     */
+    private MyluteceOauth2FilterBypass( )
+    {
+        for ( String strExtension : split( PROPERTY_EXTENSIONS ) )
+        {
+            _setExtensions.add( StringUtils.removeStart( strExtension, String.valueOf( EXTENSION_SEPARATOR ) ).toLowerCase( Locale.ROOT ) );
+        }
+
+        for ( String strParameter : split( PROPERTY_PARAMETERS ) )
+        {
+            int nValue = strParameter.indexOf( VALUE_SEPARATOR );
+
+            if ( nValue < 0 )
+            {
+                _setParameterNames.add( strParameter );
+            }
+            else
+            {
+                _mapParameterValues.computeIfAbsent( strParameter.substring( 0, nValue ), x -> new HashSet<>( ) ).add( strParameter.substring( nValue + 1 ) );
+            }
+        }
+
+        _userAgentTokens = Arrays.stream( split( PROPERTY_USER_AGENTS ) ).map( x -> x.toLowerCase( Locale.ROOT ) ).toArray( String [ ]::new );
+        _bEnabled = !_setExtensions.isEmpty( ) || !_setParameterNames.isEmpty( ) || !_mapParameterValues.isEmpty( ) || _userAgentTokens.length > 0;
+
+        Oauth2StatisticsService.register( STATISTICS_NAME, this::getStatistics );
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance
+     */
+    public static synchronized MyluteceOauth2FilterBypass getInstance( )
+    {
+        if ( _singleton == null )
+        {
+            _singleton = new MyluteceOauth2FilterBypass( );
+        }
+
+        return _singleton;
+    }
+
+    /**
+     * @return the statistics of the bypass
+     */
+    public Oauth2ComponentStatistics getStatistics( )
+    {
+        return new Oauth2ComponentStatistics( )
+                .add( "enabled", _bEnabled )
+                .add( "extensionBypassCount", getExtensionBypassCount( ) )
+                .add( "parameterBypassCount", getParameterBypassCount( ) )
+                .add( "userAgentBypassCount", getUserAgentBypassCount( ) )
+                .add( "bypassCount", getBypassCount( ) );
+    }
+
+    /**
+     * Read a comma separated list property
+     *
+     * @param strProperty
+     *            the property
+     * @return the non blank trimmed items
+     */
+    private static String [ ] split( String strProperty )
+    {
+        String strValue = AppPropertiesService.getProperty( strProperty );
+
+        if ( StringUtils.isBlank( strValue ) )
+        {
+            return new String [ 0];
+        }
+
+        return Arrays.stream( strValue.split( SEPARATOR ) ).map( String::trim ).filter( StringUtils::isNotEmpty ).toArray( String [ ]::new );
+    }
+
+    /**
+     * Check if a request bypasses the filter
+     *
+     * @param request
+     *            the request
+     * @return true if the request must not be processed by the filter
+     */
+    public boolean isBypassed( HttpServletRequest request )
+    {
+        if ( !_bEnabled )
+        {
+            return false;
+        }
+
+        if ( !_setExtensions.isEmpty( ) && _setExtensions.contains( getExtension( request.getRequestURI( ) ) ) )
+        {
+            _lExtensionBypasses.increment( );
+
+            return true;
+        }
+
+        if ( ( !_setParameterNames.isEmpty( ) || !_mapParameterValues.isEmpty( ) ) && matchQuery( request.getQueryString( ) ) )
+        {
+            _lParameterBypasses.increment( );
+
+            return true;
+        }
+
+        if ( _userAgentTokens.length > 0 && matchUserAgent( request.getHeader( HEADER_USER_AGENT ) ) )
+        {
+            _lUserAgentBypasses.increment( );
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Get the extension of the last segment of a path
+     *
+     * @param strUri
+     *            the path, possibly with path parameters
+     * @return the lower case extension, or an empty string
+     */
+    private static String getExtension( String strUri )
+    {
+        if ( strUri == null )
+        {
+            return StringUtils.EMPTY;
+        }
+
+        int nEnd = strUri.indexOf( PATH_PARAMETER_SEPARATOR );
+
+        if ( nEnd < 0 )
+        {
+            nEnd = strUri.length( );
+        }
+
+        int nExtension = strUri.lastIndexOf( EXTENSION_SEPARATOR, nEnd - 1 );
+
+        if ( nExtension < 0 || strUri.lastIndexOf( PATH_SEPARATOR, nEnd - 1 ) > nExtension )
+        {
+            return StringUtils.EMPTY;
+        }
+
+        return strUri.substring( nExtension + 1, nEnd ).toLowerCase( Locale.ROOT );
+    }
+
+    /**
+     * Check if a query string contains one of the bypass parameters
+     *
+     * @param strQuery
+     *            the query string
+     * @return true if a parameter matches
+     */
+    private boolean matchQuery( String strQuery )
+    {
+        if ( strQuery == null )
+        {
+            return false;
+        }
+
+        int nStart = 0;
+
+        while ( nStart < strQuery.length( ) )
+        {
+            int nEnd = strQuery.indexOf( PARAMETER_SEPARATOR, nStart );
+
+            if ( nEnd < 0 )
+            {
+                nEnd = strQuery.length( );
+            }
+
+            int nValue = strQuery.indexOf( VALUE_SEPARATOR, nStart );
+            String strName = strQuery.substring( nStart, ( nValue >= 0 && nValue < nEnd ) ? nValue : nEnd );
+
+            if ( _setParameterNames.contains( strName ) )
+            {
+                return true;
+            }
+
+            Set<String> setValues = _mapParameterValues.get( strName );
+
+            if ( setValues != null && nValue >= 0 && nValue < nEnd && setValues.contains( strQuery.substring( nValue + 1, nEnd ) ) )
+            {
+                return true;
+            }
+
+            nStart = nEnd + 1;
+        }
+
+        return false;
+    }
+
+    /**
+     * Check if a user agent contains one of the bypass tokens
+     *
+     * @param strUserAgent
+     *            the user agent
+     * @return true if a token is found
+     */
+    private boolean matchUserAgent( String strUserAgent )
+    {
+        if ( strUserAgent == null )
+        {
+            return false;
+        }
+
+        String strLowerCaseUserAgent = strUserAgent.toLowerCase( Locale.ROOT );
+
+        for ( String strToken : _userAgentTokens )
+        {
+            if ( strLowerCaseUserAgent.contains( strToken ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return true if bypass rules are configured
+     */
+    public boolean isEnabled( )
+    {
+        return _bEnabled;
+    }
+
+    /**
+     * @return the number of requests bypassed for their extension
+     */
+    public long getExtensionBypassCount( )
+    {
+        return _lExtensionBypasses.sum( );
+    }
+
+    /**
+     * @return the number of requests bypassed for a query parameter
+     */
+    public long getParameterBypassCount( )
+    {
+        return _lParameterBypasses.sum( );
+    }
+
+    /**
+     * @return the number of requests bypassed for their user agent
+     */
+    public long getUserAgentBypassCount( )
+    {
+        return _lUserAgentBypasses.sum( );
+    }
+
+    /**
+     * @return the number of requests bypassed
+     */
+    public long getBypassCount( )
+    {
+        return getExtensionBypassCount( ) + getParameterBypassCount( ) + getUserAgentBypassCount( );
+    }
+}
@@ -47,6 +47,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.lang3.StringUtils;
 
 import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2LuteceUserSessionService;
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2NotificationQueue;
 
 /**
  * ParisConnectLuteceFilters
@@ -55,6 +56,7 @@ import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2LuteceUserS
 public class NotifyLuteceUserFilter implements Filter
 {
     private final static String PARAMETER_UID = "uid";
+    private final static int SC_TOO_MANY_REQUESTS = 429;
 
     /**
      *
@@ -80,7 +82,19 @@ public class NotifyLuteceUserFilter implements Filter
 
         if ( !StringUtils.isEmpty( strGuidParameter ) )
         {
-            Oauth2LuteceUserSessionService.getInstance( ).notifyLuteceUserUpdating( strGuidParameter );
+            Oauth2NotificationQueue queue = Oauth2NotificationQueue.getInstance( );
+
+            if ( !queue.isEnabled( ) )
+            {
+                Oauth2LuteceUserSessionService.getInstance( ).notifyLuteceUserUpdating( strGuidParameter );
+            }
+            else
+                if ( !queue.offer( strGuidParameter ) )
+                {
+                    response.setStatus( SC_TOO_MANY_REQUESTS );
+
+                    return;
+                }
         }
 
         response.setStatus( HttpServletResponse.SC_OK );
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.web;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2LuteceUserSessionService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ * Bulk variant of the {@link NotifyLuteceUserFilter}.
+ * <p>
+ * The uids of the updated users are posted in the request body, either as a JSON array when the content type is JSON, or as one uid per line. The body is
+ * parsed while it is received and the notifications are applied by batches, so the body is never buffered. The items of the JSON array which are not
+ * strings, such as null, are skipped. The response reports the number of uids of each batch :
+ * </p>
+ * 
+ * <pre>
+ * {"batches":[1000,1000,312],"total":2312}
+ * </pre>
+ */
+public class NotifyLuteceUsersFilter implements Filter
+{
+    private static final String PROPERTY_BATCH_SIZE = "mylutece-oauth2.notifyLuteceUsers.batchSize";
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final String METHOD_POST = "POST";
+    private static final String CONTENT_TYPE_JSON = "json";
+    private static final String CONTENT_TYPE_RESPONSE = "application/json";
+    private static final String FIELD_BATCHES = "batches";
+    private static final String FIELD_TOTAL = "total";
+    private static final String FIELD_ERROR = "error";
+    private static final JsonFactory _jsonFactory = new JsonFactory( );
+
+    private int _nBatchSize;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy( )
+    {
+        // nothing
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void doFilter( ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain ) throws IOException, ServletException
+    {
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+
+        if ( !METHOD_POST.equals( request.getMethod( ) ) )
+        {
+            response.setStatus( HttpServletResponse.SC_METHOD_NOT_ALLOWED );
+
+            return;
+        }
+
+        List<Integer> listBatchCounts = new ArrayList<>( );
+        String strError = null;
+
+        try
+        {
+            if ( StringUtils.containsIgnoreCase( request.getContentType( ), CONTENT_TYPE_JSON ) )
+            {
+                readJsonArray( request.getInputStream( ), listBatchCounts );
+            }
+            else
+            {
+                Charset charset = getCharset( request );
+
+                if ( charset == null )
+                {
+                    strError = "unsupported charset : " + request.getCharacterEncoding( );
+                    AppLogService.error( "Oauth2 - invalid bulk user notification : " + strError );
+                }
+                else
+                {
+                    readLines( request.getInputStream( ), charset, listBatchCounts );
+                }
+            }
+        }
+        catch( JsonProcessingException e )
+        {
+            strError = e.getOriginalMessage( );
+            AppLogService.error( "Oauth2 - invalid bulk user notification : " + strError );
+        }
+
+        response.setStatus( ( strError == null ) ? HttpServletResponse.SC_OK : HttpServletResponse.SC_BAD_REQUEST );
+        response.setContentType( CONTENT_TYPE_RESPONSE );
+        response.setCharacterEncoding( StandardCharsets.UTF_8.name( ) );
+        writeResult( response, listBatchCounts, strError );
+    }
+
+    /**
+     * Read the uids of a JSON array
+     *
+     * @param input
+     *            the request body
+     * @param listBatchCounts
+     *            the list receiving the size of each batch
+     * @throws IOException
+     *             if the body is not a JSON array of uids
+     */
+    private void readJsonArray( InputStream input, List<Integer> listBatchCounts ) throws IOException
+    {
+        List<String> listBatch = new ArrayList<>( _nBatchSize );
+
+        try ( JsonParser parser = _jsonFactory.createParser( input ) )
+        {
+            if ( parser.nextToken( ) != JsonToken.START_ARRAY )
+            {
+                throw new JsonParseException( parser, "a JSON array of uids is expected" );
+            }
+
+            JsonToken token;
+
+            while ( ( token = parser.nextToken( ) ) != JsonToken.END_ARRAY )
+            {
+                if ( token == null || !token.isScalarValue( ) )
+                {
+                    throw new JsonParseException( parser, "a JSON array of uids is expected" );
+                }
+
+                if ( token == JsonToken.VALUE_STRING )
+                {
+                    add( parser.getText( ), listBatch, listBatchCounts );
+                }
+            }
+        }
+        finally
+        {
+            flush( listBatch, listBatchCounts );
+        }
+    }
+
+    /**
+     * Get the charset of the request body
+     *
+     * @param request
+     *            the request
+     * @return the charset, UTF-8 by default, or null if the charset of the request is not supported
+     */
+    private static Charset getCharset( HttpServletRequest request )
+    {
+        String strCharset = request.getCharacterEncoding( );
+
+        if ( strCharset == null )
+        {
+            return StandardCharsets.UTF_8;
+        }
+
+        try
+        {
+            return Charset.forName( strCharset );
+        }
+        catch( IllegalCharsetNameException | UnsupportedCharsetException e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Read one uid per line
+     *
+     * @param input
+     *            the request body
+     * @param charset
+     *            the charset of the body
+     * @param listBatchCounts
+     *            the list receiving the size of each batch
+     * @throws IOException
+     *             if the body can not be read
+     */
+    private void readLines( InputStream input, Charset charset, List<Integer> listBatchCounts ) throws IOException
+    {
+        List<String> listBatch = new ArrayList<>( _nBatchSize );
+
+        try ( BufferedReader reader = new BufferedReader( new InputStreamReader( input, charset ) ) )
+        {
+            String strLine;
+
+            while ( ( strLine = reader.readLine( ) ) != null )
+            {
+                add( strLine.trim( ), listBatch, listBatchCounts );
+            }
+        }
+        finally
+        {
+            flush( listBatch, listBatchCounts );
+        }
+    }
+
+    /**
+     * Add an uid to the current batch, and apply the batch once full
+     *
+     * @param strUid
+     *            the uid
+     * @param listBatch
+     *            the current batch
+     * @param listBatchCounts
+     *            the list receiving the size of each batch
+     */
+    private void add( String strUid, List<String> listBatch, List<Integer> listBatchCounts )
+    {
+        if ( StringUtils.isNotEmpty( strUid ) )
+        {
+            listBatch.add( strUid );
+
+            if ( listBatch.size( ) >= _nBatchSize )
+            {
+                flush( listBatch, listBatchCounts );
+            }
+        }
+    }
+
+    /**
+     * Apply the notifications of the current batch
+     *
+     * @param listBatch
+     *            the current batch, cleared once applied
+     * @param listBatchCounts
+     *            the list receiving the size of each batch
+     */
+    private static void flush( List<String> listBatch, List<Integer> listBatchCounts )
+    {
+        if ( !listBatch.isEmpty( ) )
+        {
+            Oauth2LuteceUserSessionService.getInstance( ).notifyLuteceUsersUpdating( listBatch );
+            listBatchCounts.add( listBatch.size( ) );
+            listBatch.clear( );
+        }
+    }
+
+    /**
+     * Write the result of the notification
+     *
+     * @param response
+     *            the response
+     * @param listBatchCounts
+     *            the size of each batch
+     * @param strError
+     *            the error, or null
+     * @throws IOException
+     *             if the response can not be written
+     */
+    private static void writeResult( HttpServletResponse response, List<Integer> listBatchCounts, String strError ) throws IOException
+    {
+        try ( JsonGenerator generator = _jsonFactory.createGenerator( response.getOutputStream( ) ) )
+        {
+            generator.writeStartObject( );
+            generator.writeArrayFieldStart( FIELD_BATCHES );
+
+            int nTotal = 0;
+
+            for ( int nCount : listBatchCounts )
+            {
+                generator.writeNumber( nCount );
+                nTotal += nCount;
+            }
+
+            generator.writeEndArray( );
+            generator.writeNumberField( FIELD_TOTAL, nTotal );
+
+            if ( strError != null )
+            {
+                generator.writeStringField( FIELD_ERROR, strError );
+            }
+
+            generator.writeEndObject( );
+        }
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void init( FilterConfig config ) throws ServletException
+    {
+        _nBatchSize = Math.max( 1, AppPropertiesService.getPropertyInt( PROPERTY_BATCH_SIZE, DEFAULT_BATCH_SIZE ) );
+    }
+}
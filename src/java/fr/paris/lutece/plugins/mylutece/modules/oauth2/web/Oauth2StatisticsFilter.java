@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.web;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2StatisticsService;
+import fr.paris.lutece.portal.business.user.AdminUser;
+import fr.paris.lutece.portal.service.admin.AdminUserService;
+
+/**
+ * Filter serving the statistics of the components of the module as JSON, to the technical administrators only. Only the components already in use are
+ * reported: reading the statistics never creates a component.
+ */
+public class Oauth2StatisticsFilter implements Filter
+{
+    private static final String METHOD_GET = "GET";
+    private static final String CONTENT_TYPE_JSON = "application/json";
+
+    private final ObjectMapper _mapper = new ObjectMapper( );
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy( )
+    {
+        // nothing
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void doFilter( ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain ) throws IOException, ServletException
+    {
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+        AdminUser adminUser = AdminUserService.getAdminUser( request );
+
+        if ( adminUser == null )
+        {
+            response.setStatus( HttpServletResponse.SC_UNAUTHORIZED );
+
+            return;
+        }
+
+        if ( !adminUser.isAdmin( ) )
+        {
+            response.setStatus( HttpServletResponse.SC_FORBIDDEN );
+
+            return;
+        }
+
+        if ( !METHOD_GET.equals( request.getMethod( ) ) )
+        {
+            response.setStatus( HttpServletResponse.SC_METHOD_NOT_ALLOWED );
+
+            return;
+        }
+
+        Map<String, Object> mapStatistics = Oauth2StatisticsService.getStatistics( );
+
+        response.setStatus( HttpServletResponse.SC_OK );
+        response.setContentType( CONTENT_TYPE_JSON );
+        response.setCharacterEncoding( StandardCharsets.UTF_8.name( ) );
+        _mapper.writeValue( response.getOutputStream( ), mapStatistics );
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void init( FilterConfig config ) throws ServletException
+    {
+        // nothing
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.web;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+import javax.servlet.http.HttpServletRequest;
+
+import fr.paris.lutece.portal.service.util.AppPathService;
+
+/**
+ * White list of the requests for which the prompt=none authentication is not attempted.
+ * <p>
+ * The url patterns and the header values are compiled once : the relative url patterns are indexed by servlet path, the prefixes of the patterns ending
+ * with a star in their path are stored in a trie, and the values of each header are stored in a case insensitive set. Checking a request does not allocate
+ * and does not depend on the number of patterns. The absolute url patterns depend on the base url of the request : they are compiled the same way, and
+ * the base url is resolved once per request and compared in place with the start of each of them.
+ * </p>
+ */
+public final class PromptNoneWhiteList
+{
+    private static final String URL_INTERROGATIVE = "?";
+    private static final String URL_AMPERSAND = "&";
+    private static final String URL_EQUAL = "=";
+    private static final String URL_STAR = "*";
+    private static final String PREFIX_HTTP = "http://";
+    private static final String PREFIX_HTTPS = "https://";
+    private static final char PATH_SEPARATOR = '/';
+    private static final char QUERY_SEPARATOR = '?';
+    private static final char PARAMETER_SEPARATOR = '&';
+    private static final char VALUE_SEPARATOR = '=';
+
+    private final String [ ] _headerNames;
+    private final List<Set<String>> _listHeaderValues = new ArrayList<>( );
+    private final Map<String, List<QueryRule>> _mapQueryRules = new HashMap<>( );
+    private final PrefixNode _pathPrefixes = new PrefixNode( );
+    private final List<AbsoluteUrlRule> _listAbsoluteUrlRules = new ArrayList<>( );
+    private final Function<HttpServletRequest, String> _baseUrlProvider;
+
+    /**
+     * Constructor
+     *
+     * @param listUrlPatterns
+     *            the url patterns, relative to the webapp root or absolute, possibly with a query and a star
+     * @param mapHeaders
+     *            the white listed values of each header
+     */
+    public PromptNoneWhiteList( List<String> listUrlPatterns, Map<String, List<String>> mapHeaders )
+    {
+        this( listUrlPatterns, mapHeaders, AppPathService::getBaseUrl );
+    }
+
+    /**
+     * Constructor
+     *
+     * @param listUrlPatterns
+     *            the url patterns, relative to the webapp root or absolute, possibly with a query and a star
+     * @param mapHeaders
+     *            the white listed values of each header
+     * @param baseUrlProvider
+     *            the provider of the base url of a request, ending with a slash
+     */
+    PromptNoneWhiteList( List<String> listUrlPatterns, Map<String, List<String>> mapHeaders, Function<HttpServletRequest, String> baseUrlProvider )
+    {
+        _baseUrlProvider = baseUrlProvider;
+        _headerNames = mapHeaders.keySet( ).toArray( new String [ mapHeaders.size( )] );
+
+        for ( String strHeaderName : _headerNames )
+        {
+            Set<String> setValues = new TreeSet<>( String.CASE_INSENSITIVE_ORDER );
+            setValues.addAll( mapHeaders.get( strHeaderName ) );
+            _listHeaderValues.add( setValues );
+        }
+
+        for ( String strUrlPattern : listUrlPatterns )
+        {
+            compileUrlPattern( strUrlPattern );
+        }
+    }
+
+    /**
+     * Compile an url pattern
+     *
+     * @param strUrlPattern
+     *            the url pattern
+     */
+    private void compileUrlPattern( String strUrlPattern )
+    {
+        boolean bAbsolute = strUrlPattern.startsWith( PREFIX_HTTP ) || strUrlPattern.startsWith( PREFIX_HTTPS );
+
+        // the requested url is compared with the pattern after the pattern parameters found in the request are appended to it
+        String [ ] parameterNames = new String [ 0];
+        int nQuery = strUrlPattern.indexOf( URL_INTERROGATIVE );
+
+        if ( nQuery >= 0 )
+        {
+            parameterNames = Arrays.stream( strUrlPattern.substring( nQuery + 1 ).split( URL_AMPERSAND ) ).map( x -> x.split( URL_EQUAL ) )
+                    .filter( x -> x.length > 0 ).map( x -> x [0] ).toArray( String [ ]::new );
+        }
+
+        int nStar = strUrlPattern.indexOf( URL_STAR );
+        String strExpected = ( nStar >= 0 ) ? strUrlPattern.substring( 0, nStar ) : strUrlPattern;
+        int nExpectedQuery = strExpected.indexOf( URL_INTERROGATIVE );
+
+        if ( nStar >= 0 && nExpectedQuery < 0 )
+        {
+            // star in the path : the requested path starts with the pattern, whatever the parameters
+            if ( bAbsolute )
+            {
+                _listAbsoluteUrlRules.add( new AbsoluteUrlRule( strExpected, null ) );
+            }
+            else
+            {
+                _pathPrefixes.add( strExpected );
+            }
+
+            return;
+        }
+
+        String strUrl = ( nExpectedQuery >= 0 ) ? strExpected.substring( 0, nExpectedQuery ) : strExpected;
+        String strExpectedQuery = ( nExpectedQuery >= 0 ) ? strExpected.substring( nExpectedQuery ) : "";
+        QueryRule queryRule = new QueryRule( parameterNames, strExpectedQuery, nStar >= 0 );
+
+        if ( bAbsolute )
+        {
+            _listAbsoluteUrlRules.add( new AbsoluteUrlRule( strUrl, queryRule ) );
+        }
+        else
+        {
+            _mapQueryRules.computeIfAbsent( PATH_SEPARATOR + strUrl, x -> new ArrayList<>( ) ).add( queryRule );
+        }
+    }
+
+    /**
+     * Check if a request is white listed
+     *
+     * @param request
+     *            the request
+     * @return true if the request has a white listed header value or matches a white listed url
+     */
+    public boolean isWhiteListed( HttpServletRequest request )
+    {
+        for ( int i = 0; i < _headerNames.length; i++ )
+        {
+            String strHeaderValue = request.getHeader( _headerNames [i] );
+
+            if ( strHeaderValue != null && _listHeaderValues.get( i ).contains( strHeaderValue ) )
+            {
+                return true;
+            }
+        }
+
+        String strServletPath = request.getServletPath( );
+
+        if ( _pathPrefixes.matchesPrefixOf( strServletPath, 1 ) )
+        {
+            return true;
+        }
+
+        List<QueryRule> listQueryRules = _mapQueryRules.get( strServletPath );
+
+        if ( listQueryRules != null )
+        {
+            for ( int i = 0; i < listQueryRules.size( ); i++ )
+            {
+                if ( listQueryRules.get( i ).matches( request ) )
+                {
+                    return true;
+                }
+            }
+        }
+
+        if ( !_listAbsoluteUrlRules.isEmpty( ) )
+        {
+            String strBaseUrl = _baseUrlProvider.apply( request );
+
+            for ( int i = 0; i < _listAbsoluteUrlRules.size( ); i++ )
+            {
+                if ( _listAbsoluteUrlRules.get( i ).matches( request, strBaseUrl, strServletPath ) )
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Rule of an absolute url pattern : the requested url, made of the base url and of the servlet path, is compared in place with the url of the pattern
+     */
+    private static final class AbsoluteUrlRule
+    {
+        private final String _strUrl;
+        private final QueryRule _queryRule;
+
+        /**
+         * Constructor
+         *
+         * @param strUrl
+         *            the url of the pattern without its query, or its start when the star is in the path
+         * @param queryRule
+         *            the rule on the query, or null if the requested url only has to start with the url of the pattern
+         */
+        AbsoluteUrlRule( String strUrl, QueryRule queryRule )
+        {
+            _strUrl = strUrl;
+            _queryRule = queryRule;
+        }
+
+        /**
+         * Check if a request matches the pattern
+         *
+         * @param request
+         *            the request
+         * @param strBaseUrl
+         *            the base url of the request
+         * @param strServletPath
+         *            the servlet path of the request, starting with a slash
+         * @return true if the request matches
+         */
+        boolean matches( HttpServletRequest request, String strBaseUrl, String strServletPath )
+        {
+            int nUrlLength = strBaseUrl.length( ) + strServletPath.length( ) - 1;
+
+            if ( _queryRule == null )
+            {
+                return nUrlLength >= _strUrl.length( ) && startsWith( strBaseUrl, strServletPath );
+            }
+
+            return nUrlLength == _strUrl.length( ) && startsWith( strBaseUrl, strServletPath ) && _queryRule.matches( request );
+        }
+
+        /**
+         * Check if the requested url starts with the url of the pattern, without building the requested url
+         *
+         * @param strBaseUrl
+         *            the base url of the request
+         * @param strServletPath
+         *            the servlet path of the request, whose leading slash is not part of the requested url
+         * @return true if the requested url starts with the url of the pattern
+         */
+        private boolean startsWith( String strBaseUrl, String strServletPath )
+        {
+            int nBaseLength = Math.min( strBaseUrl.length( ), _strUrl.length( ) );
+
+            return _strUrl.regionMatches( 0, strBaseUrl, 0, nBaseLength )
+                    && _strUrl.regionMatches( nBaseLength, strServletPath, 1, _strUrl.length( ) - nBaseLength );
+        }
+    }
+
+    /**
+     * Rule on the query of a white listed path : the parameters of the pattern found in the request, appended in the pattern order, give the expected query
+     */
+    private static final class QueryRule
+    {
+        private final String [ ] _parameterNames;
+        private final String _strExpectedQuery;
+        private final boolean _bPrefix;
+
+        /**
+         * Constructor
+         *
+         * @param parameterNames
+         *            the names of the parameters of the pattern
+         * @param strExpectedQuery
+         *            the expected query, starting with the question mark, or empty
+         * @param bPrefix
+         *            true if the query only has to start with the expected query
+         */
+        QueryRule( String [ ] parameterNames, String strExpectedQuery, boolean bPrefix )
+        {
+            _parameterNames = parameterNames;
+            _strExpectedQuery = strExpectedQuery;
+            _bPrefix = bPrefix;
+        }
+
+        /**
+         * Compare the query of the request with the expected query, piece by piece so that the query is never built
+         *
+         * @param request
+         *            the request
+         * @return true if the query matches
+         */
+        boolean matches( HttpServletRequest request )
+        {
+            int nPosition = 0;
+            boolean bFirst = true;
+
+            for ( String strName : _parameterNames )
+            {
+                String strValue = request.getParameter( strName );
+
+                if ( strValue == null )
+                {
+                    continue;
+                }
+
+                nPosition = compare( bFirst ? QUERY_SEPARATOR : PARAMETER_SEPARATOR, nPosition );
+                nPosition = compare( strName, nPosition );
+                nPosition = compare( VALUE_SEPARATOR, nPosition );
+                nPosition = compare( strValue, nPosition );
+                bFirst = false;
+
+                if ( nPosition < 0 )
+                {
+                    return false;
+                }
+            }
+
+            return nPosition >= 0 && ( _bPrefix ? nPosition >= _strExpectedQuery.length( ) : nPosition == _strExpectedQuery.length( ) );
+        }
+
+        /**
+         * Compare a character of the query with the expected query
+         *
+         * @param c
+         *            the character
+         * @param nPosition
+         *            the position of the character in the query, or -1 after a mismatch
+         * @return the next position, or -1 on mismatch
+         */
+        private int compare( char c, int nPosition )
+        {
+            if ( nPosition < 0 || ( nPosition < _strExpectedQuery.length( ) && _strExpectedQuery.charAt( nPosition ) != c ) )
+            {
+                return -1;
+            }
+
+            return ( _bPrefix || nPosition < _strExpectedQuery.length( ) ) ? ( nPosition + 1 ) : -1;
+        }
+
+        /**
+         * Compare a piece of the query with the expected query
+         *
+         * @param strPiece
+         *            the piece
+         * @param nPosition
+         *            the position of the piece in the query, or -1 after a mismatch
+         * @return the next position, or -1 on mismatch
+         */
+        private int compare( String strPiece, int nPosition )
+        {
+            if ( nPosition < 0 )
+            {
+                return -1;
+            }
+
+            int nCompared = Math.min( strPiece.length( ), Math.max( 0, _strExpectedQuery.length( ) - nPosition ) );
+
+            if ( !strPiece.regionMatches( 0, _strExpectedQuery, nPosition, nCompared ) || ( !_bPrefix && nCompared < strPiece.length( ) ) )
+            {
+                return -1;
+            }
+
+            return nPosition + strPiece.length( );
+        }
+    }
+
+    /**
+     * Node of the trie of the path prefixes
+     */
+    private static final class PrefixNode
+    {
+        private char [ ] _keys = new char [ 0];
+        private PrefixNode [ ] _children = new PrefixNode [ 0];
+        private boolean _bTerminal;
+
+        /**
+         * Add a prefix below this node
+         *
+         * @param strPrefix
+         *            the prefix
+         */
+        void add( String strPrefix )
+        {
+            PrefixNode node = this;
+
+            for ( int i = 0; i < strPrefix.length( ); i++ )
+            {
+                node = node.getOrCreateChild( strPrefix.charAt( i ) );
+            }
+
+            node._bTerminal = true;
+        }
+
+        /**
+         * Check if a prefix below this node is a prefix of a string
+         *
+         * @param str
+         *            the string
+         * @param nStart
+         *            the index of the string matched by this node
+         * @return true if a prefix matches
+         */
+        boolean matchesPrefixOf( String str, int nStart )
+        {
+            PrefixNode node = this;
+
+            for ( int i = nStart; !node._bTerminal; i++ )
+            {
+                if ( i >= str.length( ) || ( node = node.getChild( str.charAt( i ) ) ) == null )
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * @param c
+         *            a character
+         * @return the child of the character, or null
+         */
+        private PrefixNode getChild( char c )
+        {
+            int nIndex = Arrays.binarySearch( _keys, c );
+
+            return ( nIndex >= 0 ) ? _children [nIndex] : null;
+        }
+
+        /**
+         * @param c
+         *            a character
+         * @return the child of the character, created if needed
+         */
+        private PrefixNode getOrCreateChild( char c )
+        {
+            int nIndex = Arrays.binarySearch( _keys, c );
+
+            if ( nIndex >= 0 )
+            {
+                return _children [nIndex];
+            }
+
+            int nInsertion = -nIndex - 1;
+            PrefixNode child = new PrefixNode( );
+            char [ ] keys = new char [ _keys.length + 1];
+            PrefixNode [ ] children = new PrefixNode [ _children.length + 1];
+            System.arraycopy( _keys, 0, keys, 0, nInsertion );
+            System.arraycopy( _children, 0, children, 0, nInsertion );
+            keys [nInsertion] = c;
+            children [nInsertion] = child;
+            System.arraycopy( _keys, nInsertion, keys, nInsertion + 1, _keys.length - nInsertion );
+            System.arraycopy( _children, nInsertion, children, nInsertion + 1, _children.length - nInsertion );
+            _keys = keys;
+            _children = children;
+
+            return child;
+        }
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Open addressing table of the compact registry.
+ * <p>
+ * The session ids are chosen by the home slot of their key in the initial table, so that the clusters, the wrap-around of the probe sequence and the
+ * backward shift of the deletions are exercised on purpose. A session is found tracked when the update of its own user makes it stale.
+ * </p>
+ */
+public class CompactOauth2LuteceUserSessionServiceTest
+{
+    // capacity of the initial table, which is not resized below 768 sessions
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int PARITY_OPERATIONS = 200000;
+    private static final int PARITY_SESSIONS = 3000;
+    private static final int PARITY_USERS = 200;
+
+    /**
+     * Every order of deletion of a cluster wrapping around the end of the table keeps the other sessions, which are inserted again in the reverse order
+     */
+    @Test
+    public void testDeleteAcrossWrapAround( )
+    {
+        checkDeletionOrders( sessions( INITIAL_CAPACITY - 2, INITIAL_CAPACITY - 2, INITIAL_CAPACITY - 1, 0, INITIAL_CAPACITY - 2, 0 ) );
+    }
+
+    /**
+     * Every order of deletion inside a cluster made of several home slots keeps the other sessions
+     */
+    @Test
+    public void testDeleteInsideCluster( )
+    {
+        checkDeletionOrders( sessions( 10, 10, 11, 10, 13, 12 ) );
+    }
+
+    /**
+     * The sessions are found again across several resizes, with removals in between
+     */
+    @Test
+    public void testResize( )
+    {
+        CompactOauth2LuteceUserSessionService registry = new CompactOauth2LuteceUserSessionService( );
+        int nSessions = 48 * INITIAL_CAPACITY;
+
+        for ( int i = 0; i < nSessions; i++ )
+        {
+            registry.addLuteceUserSession( "user" + i, "session" + i );
+
+            // every third session is removed while the table grows
+            if ( i % 3 == 2 )
+            {
+                registry.removeLuteceUserSession( "session" + ( i - 1 ) );
+            }
+        }
+
+        assertEquals( nSessions - nSessions / 3, registry.getStatistics( ).getSessionCount( ) );
+
+        for ( int i = 0; i < nSessions; i++ )
+        {
+            assertEquals( "session" + i, i % 3 != 1, isTracked( registry, "user" + i, "session" + i ) );
+        }
+    }
+
+    /**
+     * The optimistic reads stay consistent while the table is resized : each session of an updated user is found stale exactly once
+     *
+     * @throws Exception
+     *             if a thread fails
+     */
+    @Test
+    public void testResizeUnderLoad( ) throws Exception
+    {
+        CompactOauth2LuteceUserSessionService registry = new CompactOauth2LuteceUserSessionService( );
+        int nSessions = INITIAL_CAPACITY / 2;
+        int nReaders = Math.max( 2, Runtime.getRuntime( ).availableProcessors( ) - 1 );
+
+        for ( int i = 0; i < nSessions; i++ )
+        {
+            registry.addLuteceUserSession( "user" + i, "session" + i );
+            registry.notifyLuteceUserUpdating( "user" + i );
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( nReaders );
+        AtomicInteger nStale = new AtomicInteger( );
+        AtomicBoolean bWriting = new AtomicBoolean( true );
+
+        try
+        {
+            List<Future<?>> listReaders = new ArrayList<>( );
+
+            for ( int nReader = 0; nReader < nReaders; nReader++ )
+            {
+                listReaders.add( executor.submit( ( ) -> {
+                    do
+                    {
+                        for ( int i = 0; i < nSessions; i++ )
+                        {
+                            if ( !registry.isLuteceUserUpToDate( "session" + i ) )
+                            {
+                                nStale.incrementAndGet( );
+                            }
+                        }
+                    }
+                    while ( bWriting.get( ) );
+                } ) );
+            }
+
+            // the table is resized several times meanwhile
+            for ( int i = nSessions; i < 64 * INITIAL_CAPACITY; i++ )
+            {
+                registry.addLuteceUserSession( "user" + i, "session" + i );
+            }
+
+            bWriting.set( false );
+
+            for ( Future<?> reader : listReaders )
+            {
+                reader.get( 60, TimeUnit.SECONDS );
+            }
+        }
+        finally
+        {
+            executor.shutdownNow( );
+        }
+
+        for ( int i = 0; i < nSessions; i++ )
+        {
+            if ( !registry.isLuteceUserUpToDate( "session" + i ) )
+            {
+                nStale.incrementAndGet( );
+            }
+        }
+
+        assertEquals( "stale sessions", nSessions, nStale.get( ) );
+        assertEquals( 64 * INITIAL_CAPACITY, registry.getStatistics( ).getSessionCount( ) );
+    }
+
+    /**
+     * The sweep of the idle sessions expires a cluster wrapping around the end of the table, and keeps the active sessions moved by the backward shift
+     *
+     * @throws Exception
+     *             if the test is interrupted
+     */
+    @Test
+    public void testSweep( ) throws Exception
+    {
+        List<String> listSessions = sessions( INITIAL_CAPACITY - 1, INITIAL_CAPACITY - 1, 0, INITIAL_CAPACITY - 1, 0, 1, 0, 1 );
+        CompactOauth2LuteceUserSessionService registry = new CompactOauth2LuteceUserSessionService( );
+        registry.setIdleTimeout( 1000L );
+        registry.setTickDuration( 50L );
+
+        try
+        {
+            for ( String strSession : listSessions )
+            {
+                registry.addLuteceUserSession( user( strSession ), strSession );
+            }
+
+            long lDeadline = System.currentTimeMillis( ) + 10000L;
+
+            // the even sessions stay active
+            while ( registry.getStatistics( ).getSessionCount( ) > listSessions.size( ) / 2 && System.currentTimeMillis( ) < lDeadline )
+            {
+                for ( int i = 0; i < listSessions.size( ); i += 2 )
+                {
+                    registry.touchLuteceUserSession( listSessions.get( i ) );
+                }
+
+                Thread.sleep( 50L );
+            }
+
+            assertEquals( listSessions.size( ) / 2, registry.getStatistics( ).getSessionCount( ) );
+
+            for ( int i = 0; i < listSessions.size( ); i++ )
+            {
+                assertEquals( listSessions.get( i ), i % 2 == 0, isTracked( registry, user( listSessions.get( i ) ), listSessions.get( i ) ) );
+            }
+        }
+        finally
+        {
+            registry.destroy( );
+        }
+    }
+
+    /**
+     * The compact registry answers as the registry based on concurrent maps to the same random operations, including colliding home slots
+     */
+    @Test
+    public void testParity( )
+    {
+        CompactOauth2LuteceUserSessionService compact = new CompactOauth2LuteceUserSessionService( );
+        Oauth2LuteceUserSessionService reference = new Oauth2LuteceUserSessionService( );
+        Random random = new Random( 42 );
+        List<String> listSessions = new ArrayList<>( );
+
+        // half of the sessions share a few home slots, around the end of the table
+        for ( int i = 0; i < PARITY_SESSIONS / 2; i++ )
+        {
+            listSessions.addAll( sessions( ( INITIAL_CAPACITY - 4 + i % 8 ) % INITIAL_CAPACITY ) );
+            listSessions.add( "session" + i );
+        }
+
+        for ( int nOperation = 0; nOperation < PARITY_OPERATIONS; nOperation++ )
+        {
+            String strSession = listSessions.get( random.nextInt( listSessions.size( ) ) );
+            String strUser = "user" + random.nextInt( PARITY_USERS );
+            int nChoice = random.nextInt( 10 );
+
+            if ( nChoice < 3 )
+            {
+                compact.addLuteceUserSession( strUser, strSession );
+                reference.addLuteceUserSession( strUser, strSession );
+            }
+            else
+                if ( nChoice < 5 )
+                {
+                    compact.removeLuteceUserSession( strSession );
+                    reference.removeLuteceUserSession( strSession );
+                }
+                else
+                    if ( nChoice < 6 )
+                    {
+                        compact.notifyLuteceUserUpdating( strUser );
+                        reference.notifyLuteceUserUpdating( strUser );
+                    }
+                    else
+                    {
+                        assertEquals( "operation " + nOperation, reference.isLuteceUserUpToDate( strSession ), compact.isLuteceUserUpToDate( strSession ) );
+                    }
+
+            if ( nOperation % 1000 == 0 )
+            {
+                assertStatistics( "operation " + nOperation, reference.getStatistics( ), compact.getStatistics( ) );
+            }
+        }
+
+        assertStatistics( "end", reference.getStatistics( ), compact.getStatistics( ) );
+
+        for ( String strSession : listSessions )
+        {
+            assertEquals( strSession, reference.isLuteceUserUpToDate( strSession ), compact.isLuteceUserUpToDate( strSession ) );
+        }
+    }
+
+    /**
+     * Delete a cluster of sessions in every order, checking the remaining sessions after each deletion
+     *
+     * @param listSessions
+     *            the sessions of the cluster
+     */
+    private static void checkDeletionOrders( List<String> listSessions )
+    {
+        for ( List<String> listOrder : permutations( listSessions ) )
+        {
+            CompactOauth2LuteceUserSessionService registry = new CompactOauth2LuteceUserSessionService( );
+
+            for ( String strSession : listSessions )
+            {
+                registry.addLuteceUserSession( user( strSession ), strSession );
+            }
+
+            List<String> listRemaining = new ArrayList<>( listSessions );
+
+            for ( String strDeleted : listOrder )
+            {
+                registry.removeLuteceUserSession( strDeleted );
+                listRemaining.remove( strDeleted );
+
+                assertFalse( listOrder + " " + strDeleted, isTracked( registry, user( strDeleted ), strDeleted ) );
+
+                for ( String strSession : listRemaining )
+                {
+                    assertTrue( listOrder + " " + strSession, isTracked( registry, user( strSession ), strSession ) );
+                }
+
+                assertEquals( listRemaining.size( ), registry.getStatistics( ).getSessionCount( ) );
+            }
+
+            List<String> listReinserted = new ArrayList<>( listOrder );
+            Collections.reverse( listReinserted );
+
+            for ( String strSession : listReinserted )
+            {
+                registry.addLuteceUserSession( user( strSession ), strSession );
+            }
+
+            for ( String strSession : listSessions )
+            {
+                assertTrue( listOrder + " reinserted " + strSession, isTracked( registry, user( strSession ), strSession ) );
+            }
+        }
+    }
+
+    /**
+     * Check if a session is tracked : the update of its user makes it stale
+     *
+     * @param registry
+     *            the registry
+     * @param strUser
+     *            the user of the session, who has no other session
+     * @param strSession
+     *            the session
+     * @return true if the session is tracked
+     */
+    private static boolean isTracked( CompactOauth2LuteceUserSessionService registry, String strUser, String strSession )
+    {
+        registry.notifyLuteceUserUpdating( strUser );
+
+        return !registry.isLuteceUserUpToDate( strSession );
+    }
+
+    /**
+     * Compare the statistics of two registries
+     *
+     * @param strMessage
+     *            the message
+     * @param expected
+     *            the statistics of the reference registry
+     * @param statistics
+     *            the statistics of the compact registry
+     */
+    private static void assertStatistics( String strMessage, Oauth2LuteceUserSessionStatistics expected, Oauth2LuteceUserSessionStatistics statistics )
+    {
+        assertEquals( strMessage, expected.getSessionCount( ), statistics.getSessionCount( ) );
+        assertEquals( strMessage, expected.getUserCount( ), statistics.getUserCount( ) );
+        assertEquals( strMessage, expected.getStaleSessionCount( ), statistics.getStaleSessionCount( ) );
+        assertEquals( strMessage, expected.getRemovedCount( ), statistics.getRemovedCount( ) );
+        assertEquals( strMessage, expected.getSessionsPerUser( ), statistics.getSessionsPerUser( ) );
+    }
+
+    /**
+     * Find session ids whose keys have given home slots in the initial table
+     *
+     * @param homeSlots
+     *            the home slots, in the order of the sessions
+     * @return the session ids, all different
+     */
+    private static List<String> sessions( int... homeSlots )
+    {
+        List<String> listSessions = new ArrayList<>( homeSlots.length );
+
+        for ( int i = 0; listSessions.size( ) < homeSlots.length; i++ )
+        {
+            String strSession = "cluster" + homeSlots [listSessions.size( )] + "-" + i;
+
+            if ( ( (int) CompactOauth2LuteceUserSessionService.hash( strSession ) & ( INITIAL_CAPACITY - 1 ) ) == homeSlots [listSessions.size( )] )
+            {
+                listSessions.add( strSession );
+            }
+        }
+
+        return listSessions;
+    }
+
+    /**
+     * @param strSession
+     *            a session id
+     * @return the only user of the session
+     */
+    private static String user( String strSession )
+    {
+        return "user-" + strSession;
+    }
+
+    /**
+     * Build every order of a list
+     *
+     * @param list
+     *            the list
+     * @return the permutations
+     */
+    private static List<List<String>> permutations( List<String> list )
+    {
+        if ( list.size( ) <= 1 )
+        {
+            return Collections.singletonList( list );
+        }
+
+        List<List<String>> listPermutations = new ArrayList<>( );
+
+        for ( int i = 0; i < list.size( ); i++ )
+        {
+            List<String> listOthers = new ArrayList<>( list );
+            String strFirst = listOthers.remove( i );
+
+            for ( List<String> listPermutation : permutations( listOthers ) )
+            {
+                List<String> listOrder = new ArrayList<>( Arrays.asList( strFirst ) );
+                listOrder.addAll( listPermutation );
+                listPermutations.add( listOrder );
+            }
+        }
+
+        return listPermutations;
+    }
+}
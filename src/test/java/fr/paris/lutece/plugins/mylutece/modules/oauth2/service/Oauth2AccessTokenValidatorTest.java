@@ -0,0 +1,633 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.service.Oauth2AccessTokenValidator.Result;
+
+/**
+ * Local validation of the JWT access tokens : the tokens are signed in the test by RSA and EC (P-256, P-384, P-521) key pairs whose public keys are served
+ * as the key set of the identity provider.
+ */
+public class Oauth2AccessTokenValidatorTest
+{
+    private static final String ISSUER = "https://idp.example.org";
+    private static final String AUDIENCE = "portal";
+    private static final long CLOCK_SKEW = 60L;
+    private static final int TOKENS_PER_CURVE = 300;
+    private static final ObjectMapper MAPPER = new ObjectMapper( );
+
+    /**
+     * The tokens signed by each kind of key are valid
+     *
+     * @throws Exception
+     *             if a key can not be generated
+     */
+    @Test
+    public void testValidTokens( ) throws Exception
+    {
+        TestKey rsa = TestKey.rsa( "rsa" );
+        TestKey p256 = TestKey.ec( "p256", "P-256", "secp256r1", 32 );
+        TestKey p384 = TestKey.ec( "p384", "P-384", "secp384r1", 48 );
+        TestKey p521 = TestKey.ec( "p521", "P-521", "secp521r1", 66 );
+        Oauth2AccessTokenValidator validator = createValidator( Collections.singletonList( AUDIENCE ), jwks( rsa, p256, p384, p521 ) );
+
+        for ( String strAlgorithm : new String [ ] {
+                "RS256", "RS384", "RS512"
+        } )
+        {
+            assertEquals( strAlgorithm, Result.VALID, validator.validate( sign( rsa, strAlgorithm, claims( ) ) ) );
+        }
+
+        // many signatures, so that R and S start with a zero byte or with the high bit set
+        for ( int i = 0; i < TOKENS_PER_CURVE; i++ )
+        {
+            assertEquals( Result.VALID, validator.validate( sign( p256, "ES256", claims( ).put( "jti", i ) ) ) );
+            assertEquals( Result.VALID, validator.validate( sign( p384, "ES384", claims( ).put( "jti", i ) ) ) );
+        }
+
+        assertEquals( Result.VALID, validator.validate( sign( p521, "ES512", claims( ) ) ) );
+    }
+
+    /**
+     * The conversion of the ECDSA signatures matches the DER encoding of the JCA, whatever the leading bytes of R and S
+     */
+    @Test
+    public void testToDer( )
+    {
+        Random random = new Random( 42 );
+
+        for ( int nSize : new int [ ] {
+                32, 48, 66
+        } )
+        {
+            List<byte [ ]> listValues = new ArrayList<>( );
+            listValues.add( value( nSize, 0x00, 0x00, 0x01 ) );
+            listValues.add( value( nSize, 0x00, 0x80 ) );
+            listValues.add( value( nSize, 0x00, 0x7F ) );
+            listValues.add( value( nSize, 0x80 ) );
+            listValues.add( value( nSize, 0xFF ) );
+            listValues.add( value( nSize, 0x7F ) );
+            listValues.add( new byte [ nSize] );
+
+            for ( int i = 0; i < 1000; i++ )
+            {
+                byte [ ] bytes = new byte [ nSize];
+                random.nextBytes( bytes );
+                // a run of leading zero bytes one time in four
+                Arrays.fill( bytes, 0, ( i % 4 == 0 ) ? random.nextInt( 4 ) : 0, (byte) 0 );
+                listValues.add( bytes );
+            }
+
+            for ( int i = 0; i < listValues.size( ); i++ )
+            {
+                byte [ ] r = listValues.get( i );
+                byte [ ] s = listValues.get( listValues.size( ) - 1 - i );
+
+                assertArrayEquals( expectedDer( r, s ), Oauth2AccessTokenValidator.toDer( concat( r, s ), nSize ) );
+            }
+        }
+
+        assertNull( "wrong size", Oauth2AccessTokenValidator.toDer( new byte [ 63], 32 ) );
+    }
+
+    /**
+     * A token whose payload or signature is changed is invalid
+     *
+     * @throws Exception
+     *             if a key can not be generated
+     */
+    @Test
+    public void testTamperedTokens( ) throws Exception
+    {
+        TestKey rsa = TestKey.rsa( "rsa" );
+        TestKey p256 = TestKey.ec( "p256", "P-256", "secp256r1", 32 );
+        Oauth2AccessTokenValidator validator = createValidator( Collections.emptyList( ), jwks( rsa, p256 ) );
+        String strForgedPayload = encode( claims( ).put( "sub", "admin" ) );
+
+        for ( String strToken : new String [ ] {
+                sign( rsa, "RS256", claims( ) ), sign( p256, "ES256", claims( ) )
+        } )
+        {
+            String [ ] parts = strToken.split( "\\." );
+
+            assertEquals( "payload", Result.INVALID, validator.validate( parts [0] + "." + strForgedPayload + "." + parts [2] ) );
+            assertEquals( "signature", Result.INVALID, validator.validate( parts [0] + "." + parts [1] + "." + encode( flip( decode( parts [2] ) ) ) ) );
+            assertEquals( "truncated signature", Result.INVALID,
+                    validator.validate( parts [0] + "." + parts [1] + "." + encode( Arrays.copyOf( decode( parts [2] ), 10 ) ) ) );
+        }
+
+        // signed by a key which is not in the key set, under a known key id
+        TestKey other = TestKey.rsa( "rsa" );
+        assertEquals( "other key", Result.INVALID, validator.validate( sign( other, "RS256", claims( ) ) ) );
+    }
+
+    /**
+     * A token which is not a signed JWT, or whose key is unknown, is left to the identity provider
+     *
+     * @throws Exception
+     *             if a key can not be generated
+     */
+    @Test
+    public void testUnverifiableTokens( ) throws Exception
+    {
+        TestKey rsa = TestKey.rsa( "rsa" );
+        AtomicInteger fetches = new AtomicInteger( );
+        String strJwks = jwks( rsa );
+        Oauth2AccessTokenValidator validator = new Oauth2AccessTokenValidator( new Oauth2JwksCache( "jwks", uri -> {
+            fetches.incrementAndGet( );
+
+            return strJwks;
+        }, 3600000L, 0L ), ISSUER, Collections.emptyList( ), CLOCK_SKEW );
+
+        assertEquals( "opaque", Result.UNVERIFIABLE, validator.validate( "2YotnFZFEjr1zCsicMWpAA" ) );
+        assertEquals( "not base64", Result.UNVERIFIABLE, validator.validate( "a$b.c$d.e$f" ) );
+        assertEquals( "no token", Result.UNVERIFIABLE, validator.validate( null ) );
+        assertEquals( "unsigned", Result.UNVERIFIABLE,
+                validator.validate( encode( MAPPER.createObjectNode( ).put( "alg", "none" ) ) + "." + encode( claims( ) ) + "." ) );
+        assertEquals( "hmac", Result.UNVERIFIABLE, validator.validate( sign( rsa, "RS256", claims( ) ).replaceFirst( "^[^.]+",
+                encode( MAPPER.createObjectNode( ).put( "alg", "HS256" ).put( "kid", "rsa" ) ) ) ) );
+        assertEquals( 0, fetches.get( ) );
+
+        // an unknown key id fetches the key set again, in case of a key rotation
+        TestKey unknown = TestKey.rsa( "unknown" );
+        assertEquals( "unknown kid", Result.UNVERIFIABLE, validator.validate( sign( unknown, "RS256", claims( ) ) ) );
+        assertEquals( 2, fetches.get( ) );
+    }
+
+    /**
+     * The key set is fetched again for a rotated key, and the previous keys are kept when a fetch fails or holds no key
+     *
+     * @throws Exception
+     *             if a key can not be generated
+     */
+    @Test
+    public void testKeyRotation( ) throws Exception
+    {
+        TestKey previous = TestKey.ec( "previous", "P-256", "secp256r1", 32 );
+        TestKey rotated = TestKey.ec( "rotated", "P-256", "secp256r1", 32 );
+        List<String> listDocuments = new ArrayList<>( Arrays.asList( jwks( previous ), "{\"error\":\"unavailable\"}", "<html>unavailable</html>",
+                "{\"keys\":[{\"kty\":\"oct\",\"k\":\"c2VjcmV0\"}]}", jwks( previous, rotated ) ) );
+        Oauth2AccessTokenValidator validator = new Oauth2AccessTokenValidator( new Oauth2JwksCache( "jwks", uri -> {
+            if ( listDocuments.size( ) > 1 )
+            {
+                return listDocuments.remove( 0 );
+            }
+
+            return listDocuments.get( 0 );
+        }, 3600000L, 0L ), ISSUER, Collections.emptyList( ), CLOCK_SKEW );
+
+        assertEquals( Result.VALID, validator.validate( sign( previous, "ES256", claims( ) ) ) );
+
+        // three failed fetches, the keys being kept
+        for ( int i = 0; i < 3; i++ )
+        {
+            assertEquals( Result.UNVERIFIABLE, validator.validate( sign( rotated, "ES256", claims( ) ) ) );
+            assertEquals( "kept keys", Result.VALID, validator.validate( sign( previous, "ES256", claims( ) ) ) );
+            assertEquals( 1, validator.getKeyCount( ) );
+        }
+
+        assertEquals( "rotated key", Result.VALID, validator.validate( sign( rotated, "ES256", claims( ) ) ) );
+        assertEquals( 2, validator.getKeyCount( ) );
+    }
+
+    /**
+     * The expiry and the not before time are checked with the clock skew
+     *
+     * @throws Exception
+     *             if a key can not be generated
+     */
+    @Test
+    public void testTimes( ) throws Exception
+    {
+        TestKey rsa = TestKey.rsa( "rsa" );
+        TestKey p384 = TestKey.ec( "p384", "P-384", "secp384r1", 48 );
+        Oauth2AccessTokenValidator validator = createValidator( Collections.emptyList( ), jwks( rsa, p384 ) );
+        long lNow = System.currentTimeMillis( ) / 1000L;
+
+        assertEquals( "expired", Result.EXPIRED, validator.validate( sign( rsa, "RS256", claims( ).put( "exp", lNow - CLOCK_SKEW - 10 ) ) ) );
+        assertEquals( "expired within the skew", Result.VALID, validator.validate( sign( rsa, "RS256", claims( ).put( "exp", lNow - CLOCK_SKEW + 10 ) ) ) );
+        assertEquals( "no expiry", Result.INVALID, validator.validate( sign( rsa, "RS256", withoutExpiry( claims( ) ) ) ) );
+        assertEquals( "not yet valid", Result.INVALID, validator.validate( sign( rsa, "RS256", claims( ).put( "nbf", lNow + CLOCK_SKEW + 10 ) ) ) );
+        assertEquals( "not yet valid within the skew", Result.VALID,
+                validator.validate( sign( rsa, "RS256", claims( ).put( "nbf", lNow + CLOCK_SKEW - 10 ) ) ) );
+        assertEquals( "expired ec", Result.EXPIRED, validator.validate( sign( p384, "ES384", claims( ).put( "exp", lNow - CLOCK_SKEW - 10 ) ) ) );
+        assertEquals( "not yet valid ec", Result.INVALID, validator.validate( sign( p384, "ES384", claims( ).put( "nbf", lNow + CLOCK_SKEW + 10 ) ) ) );
+    }
+
+    /**
+     * The issuer is checked, and the audience only when the expected audiences are set, on the aud or the azp claim
+     *
+     * @throws Exception
+     *             if a key can not be generated
+     */
+    @Test
+    public void testIssuerAndAudience( ) throws Exception
+    {
+        TestKey rsa = TestKey.rsa( "rsa" );
+        Oauth2AccessTokenValidator validator = createValidator( Arrays.asList( AUDIENCE, " other " ), jwks( rsa ) );
+
+        assertEquals( "issuer", Result.INVALID, validator.validate( sign( rsa, "RS256", claims( ).put( "iss", "https://other.example.org" ) ) ) );
+        assertEquals( "audience", Result.INVALID, validator.validate( sign( rsa, "RS256", claims( ).put( "aud", "api" ) ) ) );
+        assertEquals( "trimmed audience", Result.VALID, validator.validate( sign( rsa, "RS256", claims( ).put( "aud", "other" ) ) ) );
+        assertEquals( "audience array", Result.VALID, validator.validate( sign( rsa, "RS256", withAudiences( claims( ), "api", AUDIENCE ) ) ) );
+        assertEquals( "audience array", Result.INVALID, validator.validate( sign( rsa, "RS256", withAudiences( claims( ), "api", "account" ) ) ) );
+        assertEquals( "authorized party", Result.VALID, validator.validate( sign( rsa, "RS256", claims( ).put( "aud", "api" ).put( "azp", AUDIENCE ) ) ) );
+
+        Oauth2AccessTokenValidator validatorAnyAudience = createValidator( Collections.singletonList( "" ), jwks( rsa ) );
+        assertEquals( "audience not checked", Result.VALID, validatorAnyAudience.validate( sign( rsa, "RS256", claims( ).put( "aud", "api" ) ) ) );
+    }
+
+    /**
+     * Create a validator
+     *
+     * @param listAudiences
+     *            the expected audiences
+     * @param strJwks
+     *            the key set
+     * @return the validator
+     */
+    private static Oauth2AccessTokenValidator createValidator( List<String> listAudiences, String strJwks )
+    {
+        return new Oauth2AccessTokenValidator( new Oauth2JwksCache( "jwks", uri -> strJwks, 3600000L, 0L ), ISSUER, listAudiences, CLOCK_SKEW );
+    }
+
+    /**
+     * @return the claims of a valid token
+     */
+    private static ObjectNode claims( )
+    {
+        long lNow = System.currentTimeMillis( ) / 1000L;
+
+        return MAPPER.createObjectNode( ).put( "iss", ISSUER ).put( "sub", "user" ).put( "aud", AUDIENCE ).put( "iat", lNow ).put( "exp", lNow + 300 );
+    }
+
+    /**
+     * Remove the expiry of claims
+     *
+     * @param claims
+     *            the claims
+     * @return the claims
+     */
+    private static ObjectNode withoutExpiry( ObjectNode claims )
+    {
+        claims.remove( "exp" );
+
+        return claims;
+    }
+
+    /**
+     * Set several audiences to claims
+     *
+     * @param claims
+     *            the claims
+     * @param audiences
+     *            the audiences
+     * @return the claims
+     */
+    private static ObjectNode withAudiences( ObjectNode claims, String... audiences )
+    {
+        ArrayNode array = claims.putArray( "aud" );
+        Arrays.stream( audiences ).forEach( array::add );
+
+        return claims;
+    }
+
+    /**
+     * Build the key set of keys
+     *
+     * @param keys
+     *            the keys
+     * @return the key set document
+     */
+    private static String jwks( TestKey... keys )
+    {
+        ObjectNode jwks = MAPPER.createObjectNode( );
+        ArrayNode array = jwks.putArray( "keys" );
+        Arrays.stream( keys ).forEach( key -> array.add( key._jwk ) );
+
+        return jwks.toString( );
+    }
+
+    /**
+     * Sign a token
+     *
+     * @param key
+     *            the key
+     * @param strAlgorithm
+     *            the JWS algorithm
+     * @param claims
+     *            the claims
+     * @return the token
+     * @throws GeneralSecurityException
+     *             if the token can not be signed
+     */
+    private static String sign( TestKey key, String strAlgorithm, ObjectNode claims ) throws GeneralSecurityException
+    {
+        String strSigned = encode( MAPPER.createObjectNode( ).put( "alg", strAlgorithm ).put( "typ", "JWT" ).put( "kid", key._strKid ) ) + "."
+                + encode( claims );
+        Signature signer = Signature.getInstance( "SHA" + strAlgorithm.substring( 2 ) + "with" + ( strAlgorithm.startsWith( "RS" ) ? "RSA" : "ECDSA" ) );
+        signer.initSign( key._privateKey );
+        signer.update( strSigned.getBytes( StandardCharsets.US_ASCII ) );
+        byte [ ] signature = signer.sign( );
+
+        return strSigned + "." + encode( ( key._nEcSize > 0 ) ? fromDer( signature, key._nEcSize ) : signature );
+    }
+
+    /**
+     * Convert a DER ECDSA signature of the JCA to the JWS format
+     *
+     * @param der
+     *            the DER signature
+     * @param nSize
+     *            the size of R and S
+     * @return R and S concatenated
+     */
+    private static byte [ ] fromDer( byte [ ] der, int nSize )
+    {
+        int nOffset = ( der [1] == (byte) 0x81 ) ? 3 : 2;
+        int nRLength = der [nOffset + 1];
+        byte [ ] r = unsigned( Arrays.copyOfRange( der, nOffset + 2, nOffset + 2 + nRLength ), nSize );
+        nOffset += 2 + nRLength;
+        byte [ ] s = unsigned( Arrays.copyOfRange( der, nOffset + 2, nOffset + 2 + der [nOffset + 1] ), nSize );
+
+        return concat( r, s );
+    }
+
+    /**
+     * Left pad a DER integer to a fixed size
+     *
+     * @param integer
+     *            the integer
+     * @param nSize
+     *            the size
+     * @return the unsigned big endian integer
+     */
+    private static byte [ ] unsigned( byte [ ] integer, int nSize )
+    {
+        byte [ ] bytes = new BigInteger( 1, integer ).toByteArray( );
+        int nStart = ( bytes.length > nSize ) ? bytes.length - nSize : 0;
+        byte [ ] result = new byte [ nSize];
+        System.arraycopy( bytes, nStart, result, nSize - ( bytes.length - nStart ), bytes.length - nStart );
+
+        return result;
+    }
+
+    /**
+     * Encode R and S with the JDK integers, the expected DER encoding
+     *
+     * @param r
+     *            R
+     * @param s
+     *            S
+     * @return the DER signature
+     */
+    private static byte [ ] expectedDer( byte [ ] r, byte [ ] s )
+    {
+        byte [ ] derR = new BigInteger( 1, r ).toByteArray( );
+        byte [ ] derS = new BigInteger( 1, s ).toByteArray( );
+        int nLength = derR.length + derS.length + 4;
+        ByteArrayOutputStream der = new ByteArrayOutputStream( );
+        der.write( 0x30 );
+
+        if ( nLength >= 0x80 )
+        {
+            der.write( 0x81 );
+        }
+
+        der.write( nLength );
+        der.write( 0x02 );
+        der.write( derR.length );
+        der.write( derR, 0, derR.length );
+        der.write( 0x02 );
+        der.write( derS.length );
+        der.write( derS, 0, derS.length );
+
+        return der.toByteArray( );
+    }
+
+    /**
+     * Build a value starting with some bytes, followed by random bytes
+     *
+     * @param nSize
+     *            the size
+     * @param leadingBytes
+     *            the leading bytes
+     * @return the value
+     */
+    private static byte [ ] value( int nSize, int... leadingBytes )
+    {
+        byte [ ] bytes = new byte [ nSize];
+        new Random( nSize ).nextBytes( bytes );
+
+        for ( int i = 0; i < leadingBytes.length; i++ )
+        {
+            bytes [i] = (byte) leadingBytes [i];
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Concatenate two arrays
+     *
+     * @param first
+     *            the first array
+     * @param second
+     *            the second array
+     * @return the concatenation
+     */
+    private static byte [ ] concat( byte [ ] first, byte [ ] second )
+    {
+        byte [ ] result = Arrays.copyOf( first, first.length + second.length );
+        System.arraycopy( second, 0, result, first.length, second.length );
+
+        return result;
+    }
+
+    /**
+     * Flip a bit in the middle of an array
+     *
+     * @param bytes
+     *            the array
+     * @return the array
+     */
+    private static byte [ ] flip( byte [ ] bytes )
+    {
+        bytes [bytes.length / 2] ^= 0x01;
+
+        return bytes;
+    }
+
+    /**
+     * @param json
+     *            a JSON document
+     * @return the base64url encoding of the document
+     */
+    private static String encode( ObjectNode json )
+    {
+        return encode( json.toString( ).getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    /**
+     * @param bytes
+     *            the bytes
+     * @return the base64url encoding of the bytes, without padding
+     */
+    private static String encode( byte [ ] bytes )
+    {
+        return Base64.getUrlEncoder( ).withoutPadding( ).encodeToString( bytes );
+    }
+
+    /**
+     * @param strBase64
+     *            a base64url string
+     * @return the decoded bytes
+     */
+    private static byte [ ] decode( String strBase64 )
+    {
+        return Base64.getUrlDecoder( ).decode( strBase64 );
+    }
+
+    /**
+     * Key pair of the test and its JSON Web Key
+     */
+    private static final class TestKey
+    {
+        private final String _strKid;
+        private final PrivateKey _privateKey;
+        private final int _nEcSize;
+        private final ObjectNode _jwk;
+
+        /**
+         * Constructor
+         *
+         * @param strKid
+         *            the key id
+         * @param privateKey
+         *            the private key
+         * @param nEcSize
+         *            the size of R and S for the EC keys, 0 otherwise
+         * @param jwk
+         *            the JSON Web Key of the public key
+         */
+        private TestKey( String strKid, PrivateKey privateKey, int nEcSize, ObjectNode jwk )
+        {
+            _strKid = strKid;
+            _privateKey = privateKey;
+            _nEcSize = nEcSize;
+            _jwk = jwk;
+        }
+
+        /**
+         * Generate a RSA key
+         *
+         * @param strKid
+         *            the key id
+         * @return the key
+         * @throws GeneralSecurityException
+         *             if the key can not be generated
+         */
+        static TestKey rsa( String strKid ) throws GeneralSecurityException
+        {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance( "RSA" );
+            generator.initialize( 2048 );
+            KeyPair keyPair = generator.generateKeyPair( );
+            RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic( );
+            ObjectNode jwk = MAPPER.createObjectNode( ).put( "kty", "RSA" ).put( "kid", strKid ).put( "use", "sig" )
+                    .put( "n", encode( unsigned( publicKey.getModulus( ).toByteArray( ), 256 ) ) )
+                    .put( "e", encode( publicKey.getPublicExponent( ).toByteArray( ) ) );
+
+            return new TestKey( strKid, keyPair.getPrivate( ), 0, jwk );
+        }
+
+        /**
+         * Generate an EC key
+         *
+         * @param strKid
+         *            the key id
+         * @param strCurve
+         *            the JWK name of the curve
+         * @param strJcaCurve
+         *            the JCA name of the curve
+         * @param nSize
+         *            the size of the coordinates
+         * @return the key
+         * @throws GeneralSecurityException
+         *             if the key can not be generated
+         */
+        static TestKey ec( String strKid, String strCurve, String strJcaCurve, int nSize ) throws GeneralSecurityException
+        {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance( "EC" );
+            generator.initialize( new ECGenParameterSpec( strJcaCurve ) );
+            KeyPair keyPair = generator.generateKeyPair( );
+            ECPublicKey publicKey = (ECPublicKey) keyPair.getPublic( );
+            ObjectNode jwk = MAPPER.createObjectNode( ).put( "kty", "EC" ).put( "kid", strKid ).put( "crv", strCurve )
+                    .put( "x", encode( unsigned( publicKey.getW( ).getAffineX( ).toByteArray( ), nSize ) ) )
+                    .put( "y", encode( unsigned( publicKey.getW( ).getAffineY( ).toByteArray( ), nSize ) ) );
+
+            return new TestKey( strKid, keyPair.getPrivate( ), nSize, jwk );
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Streaming extraction of the claims of the userinfo documents, compared with the extraction from the deserialized document : nested pointers, escapes,
+ * array indexes, missing paths, non-scalar values and malformed documents.
+ */
+public class Oauth2ClaimExtractorTest
+{
+    private static final ObjectMapper MAPPER = new ObjectMapper( );
+    private static final String [ ] NAMES = {
+            "a", "b", "0", "1", "a/b", "~", "c~1", ""
+    };
+    private static final String [ ] SEGMENTS = {
+            "a", "b", "0", "1", "01", "2", "-", "a~1b", "~0", "c~01", ""
+    };
+    private static final int DOCUMENTS = 5000;
+
+    /**
+     * Pointers to the members of nested objects, with or without the leading slash
+     *
+     * @throws IOException
+     *             if the extraction fails
+     */
+    @Test
+    public void testNestedPointers( ) throws IOException
+    {
+        String strJson = "{\"sub\":\"s1\",\"address\":{\"locality\":\"Paris\",\"country\":{\"code\":\"FR\"}},\"groups\":[\"g1\",\"g2\"]}";
+        Map<String, Object> mapClaims = extract( strJson, "sub", "address/locality", "/address/country/code", "address/country", "address/missing",
+                "missing/locality" );
+
+        assertEquals( "s1", mapClaims.get( "sub" ) );
+        assertEquals( "Paris", mapClaims.get( "address/locality" ) );
+        assertEquals( "FR", mapClaims.get( "/address/country/code" ) );
+        assertEquals( map( "code", "FR" ), mapClaims.get( "address/country" ) );
+        assertFalse( mapClaims.containsKey( "address/missing" ) );
+        assertFalse( mapClaims.containsKey( "missing/locality" ) );
+        assertEquals( 4, mapClaims.size( ) );
+    }
+
+    /**
+     * Escaped slashes and tildes in the pointers, and members named after a claim containing a slash
+     *
+     * @throws IOException
+     *             if the extraction fails
+     */
+    @Test
+    public void testEscapes( ) throws IOException
+    {
+        String strJson = "{\"a/b\":{\"c~d\":1,\"e\":2},\"x~1y\":3,\"https://example.org/roles\":[\"r\"],\"https:\":{\"\":{\"example.org\":{\"roles\":[]}}}}";
+        Map<String, Object> mapClaims = extract( strJson, "a~1b/c~0d", "/a~1b/e", "x~1y", "/x~1y", "https://example.org/roles", "a~01b/e" );
+
+        assertEquals( 1, mapClaims.get( "a~1b/c~0d" ) );
+        assertEquals( 2, mapClaims.get( "/a~1b/e" ) );
+        // a claim without slash is a name, whatever its tildes
+        assertEquals( 3, mapClaims.get( "x~1y" ) );
+        assertFalse( mapClaims.containsKey( "/x~1y" ) );
+        // the member named after the claim takes precedence over the value pointed to
+        assertEquals( Arrays.asList( "r" ), mapClaims.get( "https://example.org/roles" ) );
+        // ~01 is a tilde followed by 1
+        assertFalse( mapClaims.containsKey( "a~01b/e" ) );
+    }
+
+    /**
+     * Indexes of array elements, out of range or invalid indexes
+     *
+     * @throws IOException
+     *             if the extraction fails
+     */
+    @Test
+    public void testArrayIndexes( ) throws IOException
+    {
+        String strJson = "{\"groups\":[{\"name\":\"g0\"},{\"name\":\"g1\"}],\"emails\":[\"a@b\",\"c@d\"],\"matrix\":[[1,2],[3,4]]}";
+        Map<String, Object> mapClaims = extract( strJson, "groups/1/name", "/emails/0", "emails/2", "emails/01", "emails/-", "emails/x", "groups/0",
+                "/matrix/1/0" );
+
+        assertEquals( "g1", mapClaims.get( "groups/1/name" ) );
+        assertEquals( "a@b", mapClaims.get( "/emails/0" ) );
+        assertEquals( map( "name", "g0" ), mapClaims.get( "groups/0" ) );
+        assertEquals( 3, mapClaims.get( "/matrix/1/0" ) );
+        assertEquals( 4, mapClaims.size( ) );
+
+        // the indexes are also resolved in a materialized value
+        mapClaims = extract( strJson, "emails", "emails/1", "matrix", "matrix/0/1" );
+        assertEquals( "c@d", mapClaims.get( "emails/1" ) );
+        assertEquals( 2, mapClaims.get( "matrix/0/1" ) );
+    }
+
+    /**
+     * Paths through scalar values, null values, and values of every type
+     *
+     * @throws IOException
+     *             if the extraction fails
+     */
+    @Test
+    public void testValues( ) throws IOException
+    {
+        String strJson = "{\"name\":\"n\",\"nickname\":null,\"age\":42,\"id\":12345678901,\"score\":1.5,\"verified\":true,"
+                + "\"roles\":[\"r1\",{\"r\":2},null],\"profile\":{\"tags\":[],\"locale\":null}}";
+        Map<String, Object> mapClaims = extract( strJson, "name", "nickname", "age", "id", "score", "verified", "roles", "profile", "name/first",
+                "age/0", "profile/locale" );
+
+        assertEquals( "n", mapClaims.get( "name" ) );
+        assertFalse( mapClaims.containsKey( "nickname" ) );
+        assertEquals( 42, mapClaims.get( "age" ) );
+        assertEquals( 12345678901L, mapClaims.get( "id" ) );
+        assertEquals( 1.5, mapClaims.get( "score" ) );
+        assertEquals( Boolean.TRUE, mapClaims.get( "verified" ) );
+        assertEquals( Arrays.asList( "r1", map( "r", 2 ), null ), mapClaims.get( "roles" ) );
+        assertEquals( map( "tags", new ArrayList<>( ), "locale", null ), mapClaims.get( "profile" ) );
+        assertFalse( mapClaims.containsKey( "name/first" ) );
+        assertFalse( mapClaims.containsKey( "age/0" ) );
+        assertFalse( mapClaims.containsKey( "profile/locale" ) );
+    }
+
+    /**
+     * Malformed documents are rejected, even when the error is in a skipped value
+     */
+    @Test
+    public void testMalformedDocuments( )
+    {
+        Oauth2ClaimExtractor extractor = new Oauth2ClaimExtractor( MAPPER, Arrays.asList( "a", "b/c" ) );
+
+        for ( String strJson : Arrays.asList( "", "[]", "\"a\"", "42", "{", "{\"a\":", "{\"a\":1,}", "{\"a\" 1}", "{\"skipped\":[1,2}", "{\"a\":tru}",
+                "{\"b\":{\"c\":1,\"d\":[}}", "{\"b\":{\"c\":1", "{\"skipped\":\"unterminated}" ) )
+        {
+            try
+            {
+                extractor.extract( strJson );
+                fail( strJson );
+            }
+            catch( IOException e )
+            {
+                // rejected
+            }
+        }
+    }
+
+    /**
+     * The claims of random documents are the same as those of the extraction from the deserialized document
+     *
+     * @throws IOException
+     *             if the extraction fails
+     */
+    @Test
+    public void testParity( ) throws IOException
+    {
+        Random random = new Random( 19 );
+
+        for ( int i = 0; i < DOCUMENTS; i++ )
+        {
+            String strJson = MAPPER.writeValueAsString( randomObject( random, 3 ) );
+            Set<String> claims = new LinkedHashSet<>( );
+
+            for ( int nClaim = 0; nClaim < 8; nClaim++ )
+            {
+                claims.add( randomClaim( random ) );
+            }
+
+            Map<String, Object> expected = new Oauth2LegacyClaimExtraction( MAPPER, claims ).extract( strJson );
+
+            assertEquals( strJson + " " + claims, expected, new Oauth2ClaimExtractor( MAPPER, claims ).extract( strJson ) );
+        }
+    }
+
+    /**
+     * Extract claims
+     *
+     * @param strJson
+     *            the document
+     * @param claims
+     *            the claims
+     * @return the claims found, checked against the extraction from the deserialized document
+     * @throws IOException
+     *             if the extraction fails
+     */
+    private static Map<String, Object> extract( String strJson, String... claims ) throws IOException
+    {
+        Collection<String> listClaims = Arrays.asList( claims );
+        Map<String, Object> mapClaims = new Oauth2ClaimExtractor( MAPPER, listClaims ).extract( strJson );
+        assertEquals( new Oauth2LegacyClaimExtraction( MAPPER, listClaims ).extract( strJson ), mapClaims );
+
+        return mapClaims;
+    }
+
+    /**
+     * @param namesAndValues
+     *            names and values
+     * @return the map
+     */
+    private static Map<String, Object> map( Object... namesAndValues )
+    {
+        Map<String, Object> map = new HashMap<>( );
+
+        for ( int i = 0; i < namesAndValues.length; i += 2 )
+        {
+            map.put( (String) namesAndValues [i], namesAndValues [i + 1] );
+        }
+
+        return map;
+    }
+
+    /**
+     * Build a random claim : a name, or a pointer with or without the leading slash
+     *
+     * @param random
+     *            the random generator
+     * @return the claim
+     */
+    private static String randomClaim( Random random )
+    {
+        if ( random.nextInt( 4 ) == 0 )
+        {
+            return NAMES [random.nextInt( NAMES.length )];
+        }
+
+        StringBuilder sbClaim = new StringBuilder( random.nextBoolean( ) ? "/" : "" );
+        int nSegments = 1 + random.nextInt( 3 );
+
+        for ( int i = 0; i < nSegments; i++ )
+        {
+            sbClaim.append( i > 0 ? "/" : "" ).append( SEGMENTS [random.nextInt( SEGMENTS.length )] );
+        }
+
+        // a claim without slash is a name
+        return ( sbClaim.indexOf( "/" ) < 0 ) ? ( sbClaim + "/" + SEGMENTS [random.nextInt( SEGMENTS.length )] ) : sbClaim.toString( );
+    }
+
+    /**
+     * Build a random object
+     *
+     * @param random
+     *            the random generator
+     * @param nDepth
+     *            the maximum depth of the nested values
+     * @return the object
+     */
+    private static Map<String, Object> randomObject( Random random, int nDepth )
+    {
+        Map<String, Object> map = new LinkedHashMap<>( );
+        int nMembers = random.nextInt( 5 );
+
+        for ( int i = 0; i < nMembers; i++ )
+        {
+            map.put( NAMES [random.nextInt( NAMES.length )], randomValue( random, nDepth - 1 ) );
+        }
+
+        return map;
+    }
+
+    /**
+     * Build a random value
+     *
+     * @param random
+     *            the random generator
+     * @param nDepth
+     *            the maximum depth of the nested values
+     * @return the value
+     */
+    private static Object randomValue( Random random, int nDepth )
+    {
+        switch( random.nextInt( nDepth > 0 ? 8 : 6 ) )
+        {
+            case 0:
+                return null;
+            case 1:
+                return "v" + random.nextInt( 10 );
+            case 2:
+                return random.nextInt( 100 );
+            case 3:
+                return random.nextLong( );
+            case 4:
+                return random.nextDouble( );
+            case 5:
+                return random.nextBoolean( );
+            case 6:
+                return randomObject( random, nDepth );
+            default:
+                List<Object> list = new ArrayList<>( );
+                int nElements = random.nextInt( 4 );
+
+                for ( int i = 0; i < nElements; i++ )
+                {
+                    list.add( randomValue( random, nDepth - 1 ) );
+                }
+
+                return list;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Extraction of the claims as done by AuthDataClient.parse before {@link Oauth2ClaimExtractor}, kept as the reference of the extractor : the whole userinfo
+ * document is deserialized into a map, and the claims are read from it. The claims pointing to nested values, which were not supported then, are resolved
+ * on the tree of the document with the JSON Pointers of Jackson.
+ */
+final class Oauth2LegacyClaimExtraction
+{
+    private static final String POINTER_SEPARATOR = "/";
+
+    private final ObjectMapper _mapper;
+    private final Collection<String> _claims;
+
+    /**
+     * Constructor
+     *
+     * @param mapper
+     *            the mapper
+     * @param claims
+     *            the claims to extract
+     */
+    Oauth2LegacyClaimExtraction( ObjectMapper mapper, Collection<String> claims )
+    {
+        _mapper = mapper;
+        _claims = claims;
+    }
+
+    /**
+     * Extract the claims of a document
+     *
+     * @param strJson
+     *            the userinfo document
+     * @return the claims found, by claim
+     * @throws IOException
+     *             if the document is not a valid JSON object
+     */
+    Map<String, Object> extract( String strJson ) throws IOException
+    {
+        TypeReference<HashMap<String, Object>> typeRef = new TypeReference<HashMap<String, Object>>( )
+        {
+        };
+        Map<String, Object> mapUserInfo = _mapper.readValue( strJson, typeRef );
+        JsonNode document = _mapper.readTree( strJson );
+        Map<String, Object> mapClaims = new HashMap<>( );
+
+        for ( String strClaim : _claims )
+        {
+            Object value = mapUserInfo.get( strClaim );
+
+            if ( value == null && strClaim.contains( POINTER_SEPARATOR ) )
+            {
+                JsonNode node = document.at( strClaim.startsWith( POINTER_SEPARATOR ) ? strClaim : ( POINTER_SEPARATOR + strClaim ) );
+
+                if ( !node.isMissingNode( ) && !node.isNull( ) )
+                {
+                    value = _mapper.treeToValue( node, Object.class );
+                }
+            }
+
+            // null claims were put in the map, and made processAuthentication fail
+            if ( value != null )
+            {
+                mapClaims.put( strClaim, value );
+            }
+        }
+
+        return mapClaims;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.commons.lang3.StringUtils;
+
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.authentication.Oauth2User;
+import fr.paris.lutece.portal.service.security.LuteceUser;
+
+/**
+ * Mapping of the claims on the users as done by Oauth2Service.processAuthentication before {@link Oauth2UserProjection}, kept as the reference of the
+ * projection.
+ */
+final class Oauth2LegacyUserMapping
+{
+    private static final String SEPARATOR = ",";
+
+    private final String [ ] _userKeyNames;
+    private final Map<String, List<String>> _mapUserMapping;
+    private final String _strIdentityKeyAttribute;
+
+    /**
+     * Constructor
+     *
+     * @param userKeyNames
+     *            the claims holding the user name
+     * @param mapUserMapping
+     *            the Lutece user attributes of each claim
+     * @param strIdentityKeyAttribute
+     *            the claim holding the identity key, or null
+     */
+    Oauth2LegacyUserMapping( String [ ] userKeyNames, Map<String, List<String>> mapUserMapping, String strIdentityKeyAttribute )
+    {
+        _userKeyNames = userKeyNames;
+        _mapUserMapping = mapUserMapping;
+        _strIdentityKeyAttribute = strIdentityKeyAttribute;
+    }
+
+    /**
+     * Create the user of a set of claims
+     *
+     * @param mapUserInfo
+     *            the claims
+     * @return the user, or null if no claim holds the user name
+     */
+    @SuppressWarnings( "unchecked" )
+    Oauth2User createUser( Map<String, Object> mapUserInfo )
+    {
+        Oauth2User user = null;
+        for ( int i = 0; i < _userKeyNames.length; i++ )
+        {
+
+            if ( mapUserInfo.containsKey( _userKeyNames [i] ) )
+            {
+                user = new Oauth2User( (String) mapUserInfo.get( _userKeyNames [i] ), null, null );
+            }
+        }
+
+        if ( user != null )
+        {
+
+            for ( Entry<String, Object> entry : mapUserInfo.entrySet( ) )
+            {
+                if ( _mapUserMapping.containsKey( entry.getKey( ) ) )
+                {
+                    for ( String strUserInfo : _mapUserMapping.get( entry.getKey( ) ) )
+                    {
+
+                        Object val = entry.getValue( );
+                        if ( val instanceof ArrayList<?> )
+                        {
+
+                            StringBuffer strBufVal = new StringBuffer( );
+                            for ( String tabVal : (ArrayList<String>) val )
+                            {
+                                strBufVal.append( tabVal );
+                                strBufVal.append( SEPARATOR );
+                            }
+                            if ( strBufVal.length( ) > 0 )
+                            {
+                                user.setUserInfo( strUserInfo, strBufVal.substring( 0, strBufVal.length( ) - 1 ) );
+                            }
+
+                            user.setUserInfo( strUserInfo, strBufVal.toString( ) );
+
+                        }
+                        else
+                        {
+                            user.setUserInfo( strUserInfo, val.toString( ) );
+                        }
+                    }
+                }
+                // set Email in lutece User
+                if ( !StringUtils.isEmpty( user.getUserInfo( LuteceUser.HOME_INFO_ONLINE_EMAIL ) ) )
+                {
+                    user.setEmail( user.getUserInfo( LuteceUser.HOME_INFO_ONLINE_EMAIL ) );
+
+                }
+                else
+                    if ( !StringUtils.isEmpty( user.getUserInfo( LuteceUser.BUSINESS_INFO_ONLINE_EMAIL ) ) )
+                    {
+                        user.setEmail( user.getUserInfo( LuteceUser.BUSINESS_INFO_ONLINE_EMAIL ) );
+
+                    }
+
+            }
+
+            // add Identities Informations
+            // get Identity key the default key is the value of lutece user name
+            String strIdentityKey = user.getName( );
+            if ( _strIdentityKeyAttribute != null && mapUserInfo.containsKey( _strIdentityKeyAttribute ) )
+            {
+                strIdentityKey = mapUserInfo.get( _strIdentityKeyAttribute ).toString( );
+            }
+
+            user.setName( strIdentityKey );
+        }
+
+        return user;
+    }
+}
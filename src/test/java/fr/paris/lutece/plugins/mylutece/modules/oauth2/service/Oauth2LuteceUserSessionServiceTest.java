@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+/**
+ * Concurrent stress test of the session registries.
+ * <p>
+ * The sessions are added, checked, notified and removed by several threads at the same time; each session of a notified user must be found stale
+ * exactly once. The throughput of the read path is printed for an increasing number of threads, up to the number of cores.
+ * </p>
+ */
+public class Oauth2LuteceUserSessionServiceTest
+{
+    private static final int USERS = 1000;
+    private static final int SESSIONS_PER_USER = 4;
+    private static final int SESSIONS = USERS * SESSIONS_PER_USER;
+    private static final long MEASURE_DURATION = 200L;
+
+    /**
+     * Test the registry based on concurrent maps
+     *
+     * @throws Exception
+     *             if a thread fails
+     */
+    @Test
+    public void testConcurrentRegistry( ) throws Exception
+    {
+        stress( "concurrent", Oauth2LuteceUserSessionService::new );
+    }
+
+    /**
+     * Test the compact registry
+     *
+     * @throws Exception
+     *             if a thread fails
+     */
+    @Test
+    public void testCompactRegistry( ) throws Exception
+    {
+        stress( "compact", CompactOauth2LuteceUserSessionService::new );
+    }
+
+    /**
+     * Test the bounds of the compact registry : the least recently used sessions are evicted beyond the maximum, and the idle sessions are expired
+     *
+     * @throws Exception
+     *             if the test is interrupted
+     */
+    @Test
+    public void testCompactRegistryBounds( ) throws Exception
+    {
+        CompactOauth2LuteceUserSessionService registry = new CompactOauth2LuteceUserSessionService( );
+        registry.setMaxSessions( SESSIONS / 2 );
+        registry.setIdleTimeout( 1000L );
+        registry.setTickDuration( 100L );
+
+        try
+        {
+            for ( int i = 0; i < SESSIONS; i++ )
+            {
+                registry.addLuteceUserSession( user( i ), session( i ) );
+            }
+
+            assertEquals( SESSIONS / 2, registry.getStatistics( ).getSessionCount( ) );
+            assertEquals( "evictions", SESSIONS / 2, registry.getStatistics( ).getRemovedCount( ) );
+
+            long lDeadline = System.currentTimeMillis( ) + 10000L;
+
+            while ( registry.getStatistics( ).getSessionCount( ) > 0 && System.currentTimeMillis( ) < lDeadline )
+            {
+                Thread.sleep( 100L );
+            }
+
+            assertEquals( 0, registry.getStatistics( ).getSessionCount( ) );
+            assertEquals( 0, registry.getStatistics( ).getUserCount( ) );
+            assertEquals( "removals", SESSIONS, registry.getStatistics( ).getRemovedCount( ) );
+        }
+        finally
+        {
+            registry.destroy( );
+        }
+    }
+
+    /**
+     * Stress a registry
+     *
+     * @param strName
+     *            the name of the registry, for the report
+     * @param factory
+     *            the factory of the registry
+     * @throws Exception
+     *             if a thread fails
+     */
+    private static void stress( String strName, Supplier<AbstractOauth2LuteceUserSessionService> factory ) throws Exception
+    {
+        int nThreads = Math.max( 2, Runtime.getRuntime( ).availableProcessors( ) );
+        ExecutorService executor = Executors.newFixedThreadPool( nThreads );
+
+        try
+        {
+            AbstractOauth2LuteceUserSessionService registry = factory.get( );
+
+            // concurrent additions
+            runConcurrently( executor, nThreads, nThread -> {
+                for ( int i = nThread; i < SESSIONS; i += nThreads )
+                {
+                    registry.addLuteceUserSession( user( i ), session( i ) );
+                }
+
+                return null;
+            } );
+
+            assertEquals( SESSIONS, registry.getStatistics( ).getSessionCount( ) );
+            assertEquals( USERS, registry.getStatistics( ).getUserCount( ) );
+
+            for ( int i = 0; i < SESSIONS; i++ )
+            {
+                assertTrue( registry.isLuteceUserUpToDate( session( i ) ) );
+            }
+
+            // every thread checks every session while the users are notified : each session is stale exactly once
+            AtomicInteger nStale = new AtomicInteger( );
+            CountDownLatch notified = new CountDownLatch( 1 );
+
+            runConcurrently( executor, nThreads, nThread -> {
+                if ( nThread == 0 )
+                {
+                    for ( int i = 0; i < USERS; i++ )
+                    {
+                        registry.notifyLuteceUserUpdating( "user" + i );
+                    }
+
+                    notified.countDown( );
+                }
+
+                do
+                {
+                    for ( int i = 0; i < SESSIONS; i++ )
+                    {
+                        if ( !registry.isLuteceUserUpToDate( session( i ) ) )
+                        {
+                            nStale.incrementAndGet( );
+                        }
+                    }
+                }
+                while ( notified.getCount( ) > 0 );
+
+                return null;
+            } );
+
+            for ( int i = 0; i < SESSIONS; i++ )
+            {
+                if ( !registry.isLuteceUserUpToDate( session( i ) ) )
+                {
+                    nStale.incrementAndGet( );
+                }
+            }
+
+            assertEquals( "stale sessions", SESSIONS, nStale.get( ) );
+
+            // concurrent removals, each session being removed twice
+            runConcurrently( executor, nThreads, nThread -> {
+                for ( int i = nThread % 2; i < SESSIONS; i += 2 )
+                {
+                    registry.removeLuteceUserSession( session( i ) );
+                    registry.removeLuteceUserSession( session( SESSIONS - 1 - i ) );
+                }
+
+                return null;
+            } );
+
+            assertEquals( 0, registry.getStatistics( ).getSessionCount( ) );
+            assertEquals( 0, registry.getStatistics( ).getUserCount( ) );
+            assertEquals( "removals", SESSIONS, registry.getStatistics( ).getRemovedCount( ) );
+
+            measure( strName, executor, nThreads, factory.get( ) );
+        }
+        finally
+        {
+            executor.shutdownNow( );
+        }
+    }
+
+    /**
+     * Measure the throughput of the read path for 1 to n threads
+     *
+     * @param strName
+     *            the name of the registry
+     * @param executor
+     *            the executor
+     * @param nMaxThreads
+     *            the maximum number of threads
+     * @param registry
+     *            the registry
+     * @throws Exception
+     *             if a thread fails
+     */
+    private static void measure( String strName, ExecutorService executor, int nMaxThreads, AbstractOauth2LuteceUserSessionService registry )
+            throws Exception
+    {
+        for ( int i = 0; i < SESSIONS; i++ )
+        {
+            registry.addLuteceUserSession( user( i ), session( i ) );
+        }
+
+        for ( int nThreads = 1; nThreads <= nMaxThreads; nThreads *= 2 )
+        {
+            long lDeadline = System.nanoTime( ) + TimeUnit.MILLISECONDS.toNanos( MEASURE_DURATION );
+            List<Long> listCounts = runConcurrently( executor, nThreads, nThread -> {
+                long lCount = 0;
+
+                for ( int i = nThread; System.nanoTime( ) < lDeadline; i = ( i + 1 ) % SESSIONS )
+                {
+                    registry.isLuteceUserUpToDate( session( i ) );
+                    lCount++;
+                }
+
+                return lCount;
+            } );
+
+            long lTotal = listCounts.stream( ).mapToLong( Long::longValue ).sum( );
+            System.out.println( strName + " registry, " + nThreads + " threads : " + ( lTotal * 1000 / MEASURE_DURATION ) + " checks/s" );
+        }
+    }
+
+    /**
+     * Run a task on several threads, started at the same time
+     *
+     * @param executor
+     *            the executor
+     * @param nThreads
+     *            the number of threads
+     * @param task
+     *            the task, given the index of its thread
+     * @return the results of the threads
+     * @throws Exception
+     *             if a thread fails
+     */
+    private static <T> List<T> runConcurrently( ExecutorService executor, int nThreads, ThreadTask<T> task ) throws Exception
+    {
+        CountDownLatch start = new CountDownLatch( 1 );
+        List<Future<T>> listFutures = new ArrayList<>( nThreads );
+
+        for ( int i = 0; i < nThreads; i++ )
+        {
+            int nThread = i;
+            Callable<T> callable = ( ) -> {
+                start.await( );
+
+                return task.run( nThread );
+            };
+            listFutures.add( executor.submit( callable ) );
+        }
+
+        start.countDown( );
+
+        List<T> listResults = new ArrayList<>( nThreads );
+
+        for ( Future<T> future : listFutures )
+        {
+            listResults.add( future.get( 60, TimeUnit.SECONDS ) );
+        }
+
+        return listResults;
+    }
+
+    /**
+     * @param nSession
+     *            the index of a session
+     * @return the name of the user of the session
+     */
+    private static String user( int nSession )
+    {
+        return "user" + ( nSession % USERS );
+    }
+
+    /**
+     * @param nSession
+     *            the index of a session
+     * @return the id of the session
+     */
+    private static String session( int nSession )
+    {
+        return "session" + nSession;
+    }
+
+    /**
+     * Task run by a thread
+     *
+     * @param <T>
+     *            the type of the result
+     */
+    private interface ThreadTask<T>
+    {
+        /**
+         * Run the task
+         *
+         * @param nThread
+         *            the index of the thread
+         * @return the result
+         * @throws Exception
+         *             if the task fails
+         */
+        T run( int nThread ) throws Exception;
+    }
+}
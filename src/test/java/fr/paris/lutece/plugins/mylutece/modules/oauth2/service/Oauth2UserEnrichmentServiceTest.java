@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.authentication.Oauth2User;
+
+/**
+ * Enrichment of the users being logged in : the external infos of MyLutece apply to the user itself, whatever they read or set, and the attributes of the
+ * providers are added on top of them.
+ */
+public class Oauth2UserEnrichmentServiceTest
+{
+    private static final String USER_NAME = "user";
+    private static final String EXTERNAL_EMAIL = "external@example.org";
+    private static final String EXTERNAL_ROLE = "external_role";
+    private static final String ATTRIBUTE_NAME = "attribute";
+
+    /**
+     * The email, the roles and the attributes set by the external infos survive the enrichment by the providers
+     */
+    @Test
+    public void testExternalInfosWithProviders( )
+    {
+        IOauth2UserEnrichmentProvider provider = new IOauth2UserEnrichmentProvider( )
+        {
+            @Override
+            public String getName( )
+            {
+                return "test";
+            }
+
+            @Override
+            public Map<String, String> provideUserInfos( String strUserName, Map<String, String> mapUserInfos )
+            {
+                Map<String, String> mapProvidedInfos = new HashMap<>( );
+                mapProvidedInfos.put( ATTRIBUTE_NAME, "provider" );
+                mapProvidedInfos.put( "provided_" + strUserName, mapUserInfos.get( "idp" ) );
+
+                return mapProvidedInfos;
+            }
+        };
+        Oauth2UserEnrichmentService service = new Oauth2UserEnrichmentService( Collections.singletonList( provider ), getExternalInfosProvider( ) );
+        Oauth2User user = createUser( );
+
+        service.enrich( user );
+
+        assertExternalInfos( user );
+        assertEquals( "the attributes of the providers prevail", "provider", user.getUserInfo( ATTRIBUTE_NAME ) );
+        assertEquals( "idp value", user.getUserInfo( "provided_" + USER_NAME ) );
+        assertEquals( 1, service.getCallCount( ) );
+        assertEquals( 0, service.getTimeoutCount( ) + service.getFailureCount( ) + service.getRejectedCount( ) );
+    }
+
+    /**
+     * The failure of a provider does not affect the external infos
+     */
+    @Test
+    public void testExternalInfosWithFailingProvider( )
+    {
+        IOauth2UserEnrichmentProvider provider = new IOauth2UserEnrichmentProvider( )
+        {
+            @Override
+            public String getName( )
+            {
+                return "failing";
+            }
+
+            @Override
+            public Map<String, String> provideUserInfos( String strUserName, Map<String, String> mapUserInfos )
+            {
+                throw new IllegalStateException( "backend down" );
+            }
+        };
+        Oauth2UserEnrichmentService service = new Oauth2UserEnrichmentService( Arrays.asList( provider ), getExternalInfosProvider( ) );
+        Oauth2User user = createUser( );
+
+        service.enrich( user );
+
+        assertExternalInfos( user );
+        assertEquals( "external", user.getUserInfo( ATTRIBUTE_NAME ) );
+        assertEquals( 1, service.getFailureCount( ) );
+    }
+
+    /**
+     * Without any provider, the external infos are provided as before
+     */
+    @Test
+    public void testExternalInfosWithoutProvider( )
+    {
+        Oauth2UserEnrichmentService service = new Oauth2UserEnrichmentService( null, getExternalInfosProvider( ) );
+        Oauth2User user = createUser( );
+
+        service.enrich( user );
+
+        assertExternalInfos( user );
+        assertEquals( "external", user.getUserInfo( ATTRIBUTE_NAME ) );
+        assertEquals( 0, service.getCallCount( ) );
+    }
+
+    /**
+     * @return an external infos provider reading the user and setting its email, its roles and an attribute
+     */
+    private static Consumer<Oauth2User> getExternalInfosProvider( )
+    {
+        return user -> {
+            if ( USER_NAME.equals( user.getName( ) ) )
+            {
+                user.setEmail( EXTERNAL_EMAIL );
+                user.addRoles( Collections.singletonList( EXTERNAL_ROLE ) );
+                user.setUserInfo( ATTRIBUTE_NAME, "external" );
+            }
+        };
+    }
+
+    /**
+     * @return a user read from the identity provider
+     */
+    private static Oauth2User createUser( )
+    {
+        Oauth2User user = new Oauth2User( USER_NAME, null, null );
+        user.setUserInfo( "idp", "idp value" );
+
+        return user;
+    }
+
+    /**
+     * Check the external infos of a user
+     *
+     * @param user
+     *            the user
+     */
+    private static void assertExternalInfos( Oauth2User user )
+    {
+        assertEquals( EXTERNAL_EMAIL, user.getEmail( ) );
+        assertArrayEquals( new String [ ] {
+                EXTERNAL_ROLE
+        }, user.getRoles( ) );
+        assertEquals( "idp value", user.getUserInfo( "idp" ) );
+    }
+}
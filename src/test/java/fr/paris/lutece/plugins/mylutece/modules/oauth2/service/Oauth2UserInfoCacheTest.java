@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import fr.paris.lutece.plugins.oauth2.business.Token;
+
+/**
+ * Expiry of the cached userinfo documents : a document never lives past the expiry of its access token, computed from the exp claim of a JWT, from
+ * its iat claim and its lifetime, or from the time an opaque access token is first seen.
+ */
+public class Oauth2UserInfoCacheTest
+{
+    private static final String DATA_SERVER_URI = "https://idp/userinfo";
+    private static final long ONE_HOUR = 3600000L;
+
+    /**
+     * The document of a JWT access token is cached until its exp claim
+     */
+    @Test
+    public void testJwtExpiry( )
+    {
+        Oauth2UserInfoCache cache = new Oauth2UserInfoCache( ONE_HOUR, 100 );
+        AtomicInteger nLoads = new AtomicInteger( );
+        long lNow = System.currentTimeMillis( ) / 1000L;
+
+        Token token = token( jwt( "{\"sub\":\"u1\",\"exp\":" + ( lNow + 3600 ) + "}" ), 7200 );
+        cache.getUserInfo( DATA_SERVER_URI, token, loader( nLoads ) );
+        cache.getUserInfo( DATA_SERVER_URI, token, loader( nLoads ) );
+        assertEquals( "document of a valid JWT", 1, nLoads.get( ) );
+
+        Token expiredToken = token( jwt( "{\"sub\":\"u1\",\"exp\":" + ( lNow - 1 ) + "}" ), 3600 );
+        cache.getUserInfo( DATA_SERVER_URI, expiredToken, loader( nLoads ) );
+        cache.getUserInfo( DATA_SERVER_URI, expiredToken, loader( nLoads ) );
+        assertEquals( "document of an expired JWT", 3, nLoads.get( ) );
+    }
+
+    /**
+     * The lifetime of a JWT access token without exp claim starts at its iat claim, not at the time the document is cached
+     */
+    @Test
+    public void testJwtIssueTime( )
+    {
+        Oauth2UserInfoCache cache = new Oauth2UserInfoCache( ONE_HOUR, 100 );
+        AtomicInteger nLoads = new AtomicInteger( );
+        long lNow = System.currentTimeMillis( ) / 1000L;
+
+        Token token = token( jwt( "{\"sub\":\"u1\",\"iat\":" + ( lNow - 600 ) + "}" ), 300 );
+        cache.getUserInfo( DATA_SERVER_URI, token, loader( nLoads ) );
+        cache.getUserInfo( DATA_SERVER_URI, token, loader( nLoads ) );
+        assertEquals( "document of a token issued beyond its lifetime", 2, nLoads.get( ) );
+
+        Token validToken = token( jwt( "{\"sub\":\"u2\",\"iat\":" + ( lNow - 600 ) + "}" ), 1200 );
+        cache.getUserInfo( DATA_SERVER_URI, validToken, loader( nLoads ) );
+        cache.getUserInfo( DATA_SERVER_URI, validToken, loader( nLoads ) );
+        assertEquals( "document of a token within its lifetime", 3, nLoads.get( ) );
+    }
+
+    /**
+     * The documents of an opaque access token fetched again after the time to live keep the expiry of the token computed when it was first seen
+     *
+     * @throws InterruptedException
+     *             if the test is interrupted
+     */
+    @Test
+    public void testOpaqueTokenExpiry( ) throws InterruptedException
+    {
+        Oauth2UserInfoCache cache = new Oauth2UserInfoCache( 1000L, 100 );
+        AtomicInteger nLoads = new AtomicInteger( );
+        Token token = token( "opaque-access-token", 2 );
+        cache.getUserInfo( DATA_SERVER_URI, token( "other-access-token", 2 ), loader( new AtomicInteger( ) ) );
+        long lStart = System.currentTimeMillis( );
+
+        cache.getUserInfo( DATA_SERVER_URI, token, loader( nLoads ) );
+        cache.getUserInfo( DATA_SERVER_URI, token, loader( nLoads ) );
+        assertEquals( "document within the time to live", 1, nLoads.get( ) );
+
+        sleepUntil( lStart + 1300L );
+        cache.getUserInfo( DATA_SERVER_URI, token, loader( nLoads ) );
+        assertEquals( "document past the time to live", 2, nLoads.get( ) );
+
+        // the document fetched again would live until lStart + 2300 if its expiry started at its insertion
+        sleepUntil( lStart + 2250L );
+        cache.getUserInfo( DATA_SERVER_URI, token, loader( nLoads ) );
+        cache.getUserInfo( DATA_SERVER_URI, token, loader( nLoads ) );
+        assertEquals( "documents past the expiry of the token", 4, nLoads.get( ) );
+    }
+
+    /**
+     * The documents of an access token without lifetime are cached for the time to live
+     *
+     * @throws InterruptedException
+     *             if the test is interrupted
+     */
+    @Test
+    public void testUnknownExpiry( ) throws InterruptedException
+    {
+        Oauth2UserInfoCache cache = new Oauth2UserInfoCache( 1000L, 100 );
+        AtomicInteger nLoads = new AtomicInteger( );
+        Token token = token( "opaque-access-token", 0 );
+        cache.getUserInfo( DATA_SERVER_URI, token( "other-access-token", 0 ), loader( new AtomicInteger( ) ) );
+        long lStart = System.currentTimeMillis( );
+
+        cache.getUserInfo( DATA_SERVER_URI, token, loader( nLoads ) );
+        cache.getUserInfo( DATA_SERVER_URI, token, loader( nLoads ) );
+        assertEquals( "document within the time to live", 1, nLoads.get( ) );
+
+        sleepUntil( lStart + 1200L );
+        cache.getUserInfo( DATA_SERVER_URI, token, loader( nLoads ) );
+        cache.getUserInfo( DATA_SERVER_URI, token, loader( nLoads ) );
+        assertEquals( "document past the time to live", 2, nLoads.get( ) );
+    }
+
+    /**
+     * Create a loader counting the requests of the userinfo document
+     *
+     * @param nLoads
+     *            the counter
+     * @return the loader
+     */
+    private static Function<Token, String> loader( AtomicInteger nLoads )
+    {
+        return t -> "{\"sub\":\"u1\",\"load\":" + nLoads.incrementAndGet( ) + "}";
+    }
+
+    /**
+     * Wait until a given time
+     *
+     * @param lTime
+     *            the time
+     * @throws InterruptedException
+     *             if the wait is interrupted
+     */
+    private static void sleepUntil( long lTime ) throws InterruptedException
+    {
+        long lDelay;
+
+        while ( ( lDelay = lTime - System.currentTimeMillis( ) ) > 0 )
+        {
+            Thread.sleep( lDelay );
+        }
+    }
+
+    /**
+     * Create an unsigned JWT
+     *
+     * @param strClaims
+     *            the claims
+     * @return the JWT
+     */
+    private static String jwt( String strClaims )
+    {
+        Base64.Encoder encoder = Base64.getUrlEncoder( ).withoutPadding( );
+
+        return encoder.encodeToString( "{\"alg\":\"none\"}".getBytes( StandardCharsets.UTF_8 ) ) + "."
+                + encoder.encodeToString( strClaims.getBytes( StandardCharsets.UTF_8 ) ) + ".signature";
+    }
+
+    /**
+     * Create a token
+     *
+     * @param strAccessToken
+     *            the access token
+     * @param nExpiresIn
+     *            the lifetime of the access token in seconds
+     * @return the token
+     */
+    private static Token token( String strAccessToken, int nExpiresIn )
+    {
+        return new Token( )
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public String getAccessToken( )
+            {
+                return strAccessToken;
+            }
+
+            @Override
+            public int getExpiresIn( )
+            {
+                return nExpiresIn;
+            }
+        };
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fr.paris.lutece.plugins.oauth2.business.Token;
+
+/**
+ * Resolution of the claims of the users shared by the data clients : the userinfo document is requested only when the id token does not hold the claims.
+ */
+public class Oauth2UserInfoResolverTest
+{
+    private static final String [ ] USER_KEY_CLAIMS = {
+            "sub"
+    };
+    private static final String USER_INFO = "{\"sub\":\"u1\",\"email\":\"userinfo@example.org\",\"family_name\":\"Userinfo\"}";
+    private static final String ID_TOKEN_CLAIMS = "{\"sub\":\"u1\",\"email\":\"idtoken@example.org\",\"family_name\":\"IdToken\",\"iss\":\"https://idp\"}";
+
+    /**
+     * The claims of an id token holding every mapped claim are used without requesting the userinfo document
+     *
+     * @throws IOException
+     *             if the resolution fails
+     */
+    @Test
+    public void testIdTokenClaims( ) throws IOException
+    {
+        Oauth2UserInfoResolver resolver = createResolver( true, null );
+        Map<String, Object> mapUserInfo = resolver.getUserInfo( token( ID_TOKEN_CLAIMS ), x -> {
+            fail( "the userinfo document is requested" );
+
+            return null;
+        } );
+
+        assertEquals( "idtoken@example.org", mapUserInfo.get( "email" ) );
+        assertEquals( "IdToken", mapUserInfo.get( "family_name" ) );
+        assertFalse( "only the claims read by the authentication", mapUserInfo.containsKey( "iss" ) );
+    }
+
+    /**
+     * A mapped claim missing from the id token makes the userinfo document requested, and its claims used
+     *
+     * @throws IOException
+     *             if the resolution fails
+     */
+    @Test
+    public void testClaimMissingFromIdToken( ) throws IOException
+    {
+        Oauth2UserInfoResolver resolver = createResolver( true, null );
+        AtomicInteger nRequests = new AtomicInteger( );
+        Token token = token( "{\"sub\":\"u1\",\"email\":\"idtoken@example.org\"}" );
+        Map<String, Object> mapUserInfo = resolver.getUserInfo( token, userInfoLoader( token, nRequests ) );
+
+        assertEquals( 1, nRequests.get( ) );
+        assertEquals( "userinfo@example.org", mapUserInfo.get( "email" ) );
+        assertEquals( "Userinfo", mapUserInfo.get( "family_name" ) );
+
+        // a null claim is missing too
+        nRequests.set( 0 );
+        token = token( "{\"sub\":\"u1\",\"email\":\"idtoken@example.org\",\"family_name\":null}" );
+        assertEquals( "Userinfo", resolver.getUserInfo( token, userInfoLoader( token, nRequests ) ).get( "family_name" ) );
+        assertEquals( 1, nRequests.get( ) );
+    }
+
+    /**
+     * Only the configured claims are required in the id token
+     *
+     * @throws IOException
+     *             if the resolution fails
+     */
+    @Test
+    public void testRequiredClaims( ) throws IOException
+    {
+        Oauth2UserInfoResolver resolver = createResolver( true, new String [ ] {
+                "email"
+        } );
+        AtomicInteger nRequests = new AtomicInteger( );
+        Token token = token( "{\"sub\":\"u1\",\"email\":\"idtoken@example.org\"}" );
+
+        assertEquals( "idtoken@example.org", resolver.getUserInfo( token, userInfoLoader( token, nRequests ) ).get( "email" ) );
+        assertEquals( 0, nRequests.get( ) );
+
+        token = token( "{\"sub\":\"u1\",\"family_name\":\"IdToken\"}" );
+        assertEquals( "userinfo@example.org", resolver.getUserInfo( token, userInfoLoader( token, nRequests ) ).get( "email" ) );
+        assertEquals( 1, nRequests.get( ) );
+    }
+
+    /**
+     * The userinfo document is requested when the id token is not used or can not be read
+     *
+     * @throws IOException
+     *             if the resolution fails
+     */
+    @Test
+    public void testUserInfoRequested( ) throws IOException
+    {
+        String strEncodedClaims = Base64.getUrlEncoder( ).withoutPadding( ).encodeToString( ID_TOKEN_CLAIMS.getBytes( StandardCharsets.UTF_8 ) );
+        String strEncodedClaimsWithoutUserName = Base64.getUrlEncoder( )
+                .encodeToString( "{\"email\":\"idtoken@example.org\",\"family_name\":\"IdToken\"}".getBytes( StandardCharsets.UTF_8 ) );
+        // no id token, no claims, claims not in base64, not in JSON, and without user name
+        List<String> listIdTokens = Arrays.asList( null, "header", "header.%%%.signature", "header.bm90IGpzb24.signature",
+                "header." + strEncodedClaimsWithoutUserName );
+        Oauth2UserInfoResolver resolver = createResolver( true, null );
+
+        for ( String strIdToken : listIdTokens )
+        {
+            AtomicInteger nRequests = new AtomicInteger( );
+            Token token = tokenWithIdToken( strIdToken );
+
+            assertEquals( strIdToken, "userinfo@example.org", resolver.getUserInfo( token, userInfoLoader( token, nRequests ) ).get( "email" ) );
+            assertEquals( strIdToken, 1, nRequests.get( ) );
+        }
+
+        // id token only mode disabled
+        AtomicInteger nRequests = new AtomicInteger( );
+        Token token = tokenWithIdToken( "header." + strEncodedClaims + ".signature" );
+        Map<String, Object> mapUserInfo = createResolver( false, null ).getUserInfo( token, userInfoLoader( token, nRequests ) );
+
+        assertEquals( "userinfo@example.org", mapUserInfo.get( "email" ) );
+        assertEquals( 1, nRequests.get( ) );
+    }
+
+    /**
+     * Create a resolver mapping the email and the family name
+     *
+     * @param bIdTokenOnly
+     *            true if the users are created from the id token claims when possible
+     * @param requiredIdTokenClaims
+     *            the claims required in the id token, or null for every mapped claim
+     * @return the resolver
+     */
+    private static Oauth2UserInfoResolver createResolver( boolean bIdTokenOnly, String [ ] requiredIdTokenClaims )
+    {
+        Map<String, List<String>> mapAttributes = new HashMap<>( );
+        mapAttributes.put( "email", Arrays.asList( "user.home-info.online.email" ) );
+        mapAttributes.put( "family_name", Arrays.asList( "user.name.family" ) );
+        Oauth2UserProjection projection = new Oauth2UserProjection( USER_KEY_CLAIMS, mapAttributes, null );
+
+        return new Oauth2UserInfoResolver( new Oauth2ClaimExtractor( new ObjectMapper( ), projection.getClaims( ) ), projection, bIdTokenOnly,
+                ( requiredIdTokenClaims != null ) ? requiredIdTokenClaims : projection.getMappedClaims( ).toArray( new String [ 0] ) );
+    }
+
+    /**
+     * Create a loader of the userinfo document counting the requests
+     *
+     * @param expectedToken
+     *            the token whose document is requested
+     * @param nRequests
+     *            the count of requests
+     * @return the loader
+     */
+    private static Function<Token, String> userInfoLoader( Token expectedToken, AtomicInteger nRequests )
+    {
+        return token -> {
+            assertEquals( expectedToken, token );
+            nRequests.incrementAndGet( );
+
+            return USER_INFO;
+        };
+    }
+
+    /**
+     * Create a token whose id token holds claims
+     *
+     * @param strClaims
+     *            the claims of the id token
+     * @return the token
+     */
+    private static Token token( String strClaims )
+    {
+        return tokenWithIdToken( "header." + Base64.getUrlEncoder( ).withoutPadding( ).encodeToString( strClaims.getBytes( StandardCharsets.UTF_8 ) )
+                + ".signature" );
+    }
+
+    /**
+     * Create a token
+     *
+     * @param strIdToken
+     *            the id token, or null
+     * @return the token
+     */
+    private static Token tokenWithIdToken( String strIdToken )
+    {
+        return new Token( )
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public String getIdTokenString( )
+            {
+                return strIdToken;
+            }
+        };
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import fr.paris.lutece.plugins.mylutece.modules.oauth2.authentication.Oauth2User;
+import fr.paris.lutece.portal.service.security.LuteceUser;
+
+/**
+ * Equivalence of the projection of the claims with the mapping it replaced.
+ * <p>
+ * Random sets of claims, with list claims, several user key claims, an identity key and the email fallback, are projected by both : the users must have
+ * the same name, email and attributes. The list claims are the only expected difference, the former mapping keeping a trailing separator.
+ * </p>
+ */
+public class Oauth2UserProjectionTest
+{
+    private static final String [ ] USER_KEY_CLAIMS = {
+            "sub", "preferred_username", "login"
+    };
+    private static final String IDENTITY_KEY_CLAIM = "uid";
+    private static final String CLAIM_GROUPS = "groups";
+    private static final String CLAIM_HOME_EMAIL = "email";
+    private static final String CLAIM_BUSINESS_EMAIL = "business_email";
+    private static final String [ ] CLAIMS = {
+            "sub", "preferred_username", "login", "uid", "given_name", "family_name", CLAIM_HOME_EMAIL, CLAIM_BUSINESS_EMAIL, CLAIM_GROUPS, "unmapped"
+    };
+    private static final int ITERATIONS = 10000;
+
+    /**
+     * Compare the projection with the former mapping on random sets of claims
+     */
+    @Test
+    public void testEquivalence( )
+    {
+        Map<String, List<String>> mapAttributes = getAttributeMapping( );
+        Oauth2UserProjection projection = new Oauth2UserProjection( USER_KEY_CLAIMS, mapAttributes, IDENTITY_KEY_CLAIM );
+        Oauth2LegacyUserMapping legacyMapping = new Oauth2LegacyUserMapping( USER_KEY_CLAIMS, mapAttributes, IDENTITY_KEY_CLAIM );
+        Random random = new Random( 42 );
+
+        for ( int i = 0; i < ITERATIONS; i++ )
+        {
+            Map<String, Object> mapClaims = randomClaims( random );
+            Oauth2User expected = legacyMapping.createUser( mapClaims );
+            Oauth2User user = projection.createUser( mapClaims, null, null );
+
+            if ( expected == null )
+            {
+                assertNull( mapClaims.toString( ), user );
+
+                continue;
+            }
+
+            assertNotNull( mapClaims.toString( ), user );
+            assertEquals( mapClaims.toString( ), expected.getName( ), user.getName( ) );
+            assertEquals( mapClaims.toString( ), expected.getEmail( ), user.getEmail( ) );
+            assertEquals( mapClaims.toString( ), getExpectedUserInfos( expected, mapClaims, mapAttributes ), user.getUserInfos( ) );
+        }
+    }
+
+    /**
+     * The last user key claim found gives the user name, unless the identity key claim is found
+     */
+    @Test
+    public void testUserName( )
+    {
+        Oauth2UserProjection projection = new Oauth2UserProjection( USER_KEY_CLAIMS, getAttributeMapping( ), IDENTITY_KEY_CLAIM );
+        Map<String, Object> mapClaims = new HashMap<>( );
+        mapClaims.put( "sub", "subject" );
+        mapClaims.put( "preferred_username", "username" );
+
+        assertEquals( "username", projection.createUser( mapClaims, null, null ).getName( ) );
+
+        mapClaims.put( IDENTITY_KEY_CLAIM, "identity" );
+
+        assertEquals( "identity", projection.createUser( mapClaims, null, null ).getName( ) );
+        assertNull( projection.createUser( Collections.singletonMap( IDENTITY_KEY_CLAIM, "identity" ), null, null ) );
+    }
+
+    /**
+     * The business email is used when the home email is missing or empty, and the list claims are joined without trailing separator
+     */
+    @Test
+    public void testEmailAndLists( )
+    {
+        Oauth2UserProjection projection = new Oauth2UserProjection( USER_KEY_CLAIMS, getAttributeMapping( ), null );
+        Map<String, Object> mapClaims = new HashMap<>( );
+        mapClaims.put( "sub", "subject" );
+        mapClaims.put( CLAIM_HOME_EMAIL, "" );
+        mapClaims.put( CLAIM_BUSINESS_EMAIL, "business@example.org" );
+        mapClaims.put( CLAIM_GROUPS, new ArrayList<>( Arrays.asList( "a", "b", "c" ) ) );
+        Oauth2User user = projection.createUser( mapClaims, null, null );
+
+        assertEquals( "business@example.org", user.getEmail( ) );
+        assertEquals( "a,b,c", user.getUserInfo( "user.groups" ) );
+        assertEquals( "a,b,c", user.getUserInfo( "user.roles" ) );
+
+        mapClaims.put( CLAIM_HOME_EMAIL, "home@example.org" );
+
+        assertEquals( "home@example.org", projection.createUser( mapClaims, null, null ).getEmail( ) );
+    }
+
+    /**
+     * The claims required in an id token are the mapped claims and the identity key claim, not the user key claims
+     */
+    @Test
+    public void testMappedClaims( )
+    {
+        Oauth2UserProjection projection = new Oauth2UserProjection( USER_KEY_CLAIMS, getAttributeMapping( ), IDENTITY_KEY_CLAIM );
+
+        assertEquals( Arrays.asList( "given_name", "family_name", CLAIM_HOME_EMAIL, CLAIM_BUSINESS_EMAIL, CLAIM_GROUPS, IDENTITY_KEY_CLAIM ),
+                new ArrayList<>( projection.getMappedClaims( ) ) );
+    }
+
+    /**
+     * @return the attributes of each claim, a claim being mapped on two attributes
+     */
+    private static Map<String, List<String>> getAttributeMapping( )
+    {
+        Map<String, List<String>> mapAttributes = new LinkedHashMap<>( );
+        mapAttributes.put( "given_name", Collections.singletonList( "user.name.given" ) );
+        mapAttributes.put( "family_name", Collections.singletonList( "user.name.family" ) );
+        mapAttributes.put( CLAIM_HOME_EMAIL, Collections.singletonList( LuteceUser.HOME_INFO_ONLINE_EMAIL ) );
+        mapAttributes.put( CLAIM_BUSINESS_EMAIL, Collections.singletonList( LuteceUser.BUSINESS_INFO_ONLINE_EMAIL ) );
+        mapAttributes.put( CLAIM_GROUPS, Arrays.asList( "user.groups", "user.roles" ) );
+
+        return mapAttributes;
+    }
+
+    /**
+     * Build a random set of claims
+     *
+     * @param random
+     *            the random generator
+     * @return the claims, each one being present or not
+     */
+    private static Map<String, Object> randomClaims( Random random )
+    {
+        Map<String, Object> mapClaims = new HashMap<>( );
+
+        for ( String strClaim : CLAIMS )
+        {
+            if ( random.nextBoolean( ) )
+            {
+                continue;
+            }
+
+            if ( CLAIM_GROUPS.equals( strClaim ) )
+            {
+                // the JSON arrays are read as array lists
+                List<String> listGroups = new ArrayList<>( );
+
+                for ( int i = random.nextInt( 4 ); i > 0; i-- )
+                {
+                    listGroups.add( "group" + random.nextInt( 10 ) );
+                }
+
+                mapClaims.put( strClaim, listGroups );
+            }
+            else
+            {
+                mapClaims.put( strClaim, random.nextInt( 4 ) == 0 ? "" : ( strClaim + random.nextInt( 100 ) ) );
+            }
+        }
+
+        return mapClaims;
+    }
+
+    /**
+     * Get the attributes of the former mapping, without the trailing separator of the list claims
+     *
+     * @param user
+     *            the user of the former mapping
+     * @param mapClaims
+     *            the claims
+     * @param mapAttributes
+     *            the attributes of each claim
+     * @return the expected attributes
+     */
+    private static Map<String, String> getExpectedUserInfos( Oauth2User user, Map<String, Object> mapClaims, Map<String, List<String>> mapAttributes )
+    {
+        Map<String, String> mapUserInfos = new HashMap<>( user.getUserInfos( ) );
+
+        for ( Map.Entry<String, List<String>> entry : mapAttributes.entrySet( ) )
+        {
+            Object value = mapClaims.get( entry.getKey( ) );
+
+            if ( value instanceof List && !( (List<?>) value ).isEmpty( ) )
+            {
+                for ( String strAttribute : entry.getValue( ) )
+                {
+                    String strValue = mapUserInfos.get( strAttribute );
+                    mapUserInfos.put( strAttribute, strValue.substring( 0, strValue.length( ) - 1 ) );
+                }
+            }
+        }
+
+        return mapUserInfos;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.web;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import javax.servlet.http.HttpServletRequest;
+
+import fr.paris.lutece.util.url.UrlItem;
+
+/**
+ * White list of the prompt=none authentication as checked by MyluteceOauth2Filter before {@link PromptNoneWhiteList}, kept as the reference of the
+ * compiled white list. Only the resolution of the base url is given to the constructor.
+ */
+final class PromptNoneLegacyWhiteList
+{
+    private static final String URL_INTERROGATIVE = "?";
+    private static final String URL_AMPERSAND = "&";
+    private static final String URL_EQUAL = "=";
+    private static final String URL_STAR = "*";
+
+    private final List<String> _listUsePromptWhiteUrls;
+    private final Map<String, List<String>> _mapUsePromptWhiteHeaders;
+    private final Function<HttpServletRequest, String> _baseUrlProvider;
+
+    /**
+     * Constructor
+     *
+     * @param listUrlPatterns
+     *            the url patterns
+     * @param mapHeaders
+     *            the white listed values of each header
+     * @param baseUrlProvider
+     *            the provider of the base url of a request
+     */
+    PromptNoneLegacyWhiteList( List<String> listUrlPatterns, Map<String, List<String>> mapHeaders, Function<HttpServletRequest, String> baseUrlProvider )
+    {
+        _listUsePromptWhiteUrls = listUrlPatterns;
+        _mapUsePromptWhiteHeaders = mapHeaders;
+        _baseUrlProvider = baseUrlProvider;
+    }
+
+    /**
+     * Check if a request is white listed
+     *
+     * @param request
+     *            the request
+     * @return true if the request has a white listed header value or matches a white listed url
+     */
+    boolean isWhiteListed( HttpServletRequest request )
+    {
+        boolean bReturn = true;
+
+        // test headers white list
+        if ( _mapUsePromptWhiteHeaders != null && _mapUsePromptWhiteHeaders.size( ) > 0 )
+        {
+            bReturn = !_mapUsePromptWhiteHeaders.keySet( ).stream( ).anyMatch(
+                    x -> request.getHeader( x ) != null && _mapUsePromptWhiteHeaders.get( x ).stream( ).anyMatch( v -> v.equalsIgnoreCase( request.getHeader( x ) ) ) );
+
+        }
+        // test url white List
+        if ( bReturn && _listUsePromptWhiteUrls != null && _listUsePromptWhiteUrls.size( ) > 0 )
+        {
+            bReturn = !_listUsePromptWhiteUrls.stream( ).anyMatch( x -> matchUrl( request, x ) );
+        }
+
+        return !bReturn;
+    }
+
+    /**
+     * method to test if the URL matches the pattern
+     *
+     * @param request
+     *            the request
+     * @param strUrlPatern
+     *            the pattern
+     * @return true if the URL matches the pattern
+     */
+    private boolean matchUrl( HttpServletRequest request, String strUrlPatern )
+    {
+        boolean bMatch = false;
+
+        if ( strUrlPatern != null )
+        {
+            UrlItem url = new UrlItem( getResquestedUrl( request ) );
+
+            if ( strUrlPatern.contains( URL_INTERROGATIVE ) )
+            {
+                for ( String strParamPatternValue : strUrlPatern.substring( strUrlPatern.indexOf( URL_INTERROGATIVE ) + 1 ).split( URL_AMPERSAND ) )
+                {
+                    String [ ] arrayPatternParamValue = strParamPatternValue.split( URL_EQUAL );
+
+                    if ( ( arrayPatternParamValue != null ) && ( request.getParameter( arrayPatternParamValue [0] ) != null ) )
+                    {
+                        url.addParameter( arrayPatternParamValue [0], request.getParameter( arrayPatternParamValue [0] ) );
+                    }
+                }
+            }
+
+            if ( strUrlPatern.contains( URL_STAR ) )
+            {
+                String strUrlPaternLeftEnd = strUrlPatern.substring( 0, strUrlPatern.indexOf( URL_STAR ) );
+                String strAbsoluteUrlPattern = getAbsoluteUrl( request, strUrlPaternLeftEnd );
+                bMatch = url.getUrl( ).startsWith( strAbsoluteUrlPattern );
+            }
+            else
+            {
+                String strAbsoluteUrlPattern = getAbsoluteUrl( request, strUrlPatern );
+                bMatch = url.getUrl( ).equals( strAbsoluteUrlPattern );
+            }
+        }
+
+        return bMatch;
+    }
+
+    /**
+     * Returns the absolute url corresponding to the given one, if the later was found to be relative. An url starting with "http://" is absolute. A relative
+     * url should be given relatively to the webapp root.
+     *
+     * @param request
+     *            the http request (provides the base path if needed)
+     * @param strUrl
+     *            the url to transform
+     * @return the corresonding absolute url
+     *
+     */
+    private String getAbsoluteUrl( HttpServletRequest request, String strUrl )
+    {
+        if ( ( strUrl != null ) && !strUrl.startsWith( "http://" ) && !strUrl.startsWith( "https://" ) )
+        {
+            return _baseUrlProvider.apply( request ) + strUrl;
+        }
+        else
+        {
+            return strUrl;
+        }
+    }
+
+    /**
+     * Return the absolute representation of the requested url
+     *
+     * @param request
+     *            the http request (provides the base path if needed)
+     * @return the requested url has a string
+     *
+     */
+    private String getResquestedUrl( HttpServletRequest request )
+    {
+        return _baseUrlProvider.apply( request ) + request.getServletPath( ).substring( 1 );
+    }
+}
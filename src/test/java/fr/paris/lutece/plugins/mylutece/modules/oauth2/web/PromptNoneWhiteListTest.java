@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.mylutece.modules.oauth2.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Test;
+
+/**
+ * Compiled white list of the prompt=none authentication, compared with the matching done by the filter before, on relative and absolute url patterns,
+ * stars in the path or in the query, and header values.
+ */
+public class PromptNoneWhiteListTest
+{
+    private static final String HEADER_REQUESTED_WITH = "X-Requested-With";
+    private static final Function<HttpServletRequest, String> BASE_URL = request -> ( "other".equals( request.getServerName( ) ) ? "https://" : "http://" )
+            + request.getServerName( ) + "/site/";
+    private static final List<String> URL_PATTERNS = Arrays.asList( "jsp/site/Portal.jsp", "jsp/site/Portal.jsp?page=map",
+            "jsp/site/Portal.jsp?page=appointment&view=*", "jsp/site/Portal.jsp?page=s*", "jsp/site/Portal.jsp?page=search&query=", "rest/*",
+            "jsp/site/plugins/*/Do.jsp", "jsp/admin/*?page=x", "css/style.css?v=1&lang=fr", "Portal.jsp?page=", "http://localhost:8080/site/jsp/site/Portal.jsp",
+            "http://localhost:8080/site/jsp/site/Portal.jsp?page=map", "http://localhost:8080/site/jsp/site/Portal.jsp?page=appointment&view=*",
+            "http://localhost:8080/site/rest/*", "http://localhost:8080/sit*", "https://other/site/css/*", "https://other/site/Portal.jsp?page=map" );
+    private static final String [ ] SERVER_NAMES = {
+            "localhost:8080", "other", "localhost:8080/sit"
+    };
+    private static final String [ ] SERVLET_PATHS = {
+            "/jsp/site/Portal.jsp", "/jsp/site/Portal.jsp2", "/jsp/site/plugins/x/Do.jsp", "/jsp/admin/AdminMenu.jsp", "/rest", "/rest/", "/rest/api",
+            "/css/style.css", "/Portal.jsp", "/", "/e"
+    };
+    private static final String [ ] [ ] PARAMETER_VALUES = {
+            {
+                    "page", "map", "appointment", "search", "s", "", "map&view=form", "mapx"
+            }, {
+                    "view", "form", "", "*"
+            }, {
+                    "query", "", "a"
+            }, {
+                    "v", "1", "2"
+            }, {
+                    "lang", "", "fr"
+            }, {
+                    "extra", "1"
+            }
+    };
+    private static final String [ ] HEADER_VALUES = {
+            "XMLHttpRequest", "xmlhttprequest", "fetch"
+    };
+    private static final int REQUESTS = 20000;
+
+    /**
+     * Each pattern alone matches the same requests as before
+     */
+    @Test
+    public void testParityPerPattern( )
+    {
+        Random random = new Random( 7 );
+
+        for ( String strPattern : URL_PATTERNS )
+        {
+            List<String> listPatterns = Collections.singletonList( strPattern );
+            PromptNoneWhiteList whiteList = new PromptNoneWhiteList( listPatterns, Collections.emptyMap( ), BASE_URL );
+            PromptNoneLegacyWhiteList legacyWhiteList = new PromptNoneLegacyWhiteList( listPatterns, Collections.emptyMap( ), BASE_URL );
+            int nMatches = 0;
+
+            for ( int i = 0; i < REQUESTS; i++ )
+            {
+                HttpServletRequest request = randomRequest( random );
+                boolean bWhiteListed = legacyWhiteList.isWhiteListed( request );
+                assertEquals( strPattern + " " + describe( request ), bWhiteListed, whiteList.isWhiteListed( request ) );
+                nMatches += bWhiteListed ? 1 : 0;
+            }
+
+            assertTrue( strPattern + " matches no request", nMatches > 0 );
+        }
+    }
+
+    /**
+     * All the patterns and the headers together match the same requests as before
+     */
+    @Test
+    public void testParity( )
+    {
+        Map<String, List<String>> mapHeaders = new HashMap<>( );
+        mapHeaders.put( HEADER_REQUESTED_WITH, Arrays.asList( "XMLHttpRequest" ) );
+        PromptNoneWhiteList whiteList = new PromptNoneWhiteList( URL_PATTERNS, mapHeaders, BASE_URL );
+        PromptNoneLegacyWhiteList legacyWhiteList = new PromptNoneLegacyWhiteList( URL_PATTERNS, mapHeaders, BASE_URL );
+        Random random = new Random( 11 );
+
+        for ( int i = 0; i < REQUESTS; i++ )
+        {
+            HttpServletRequest request = randomRequest( random );
+            assertEquals( describe( request ), legacyWhiteList.isWhiteListed( request ), whiteList.isWhiteListed( request ) );
+        }
+    }
+
+    /**
+     * Matching of the wildcards, of the absolute and relative patterns and of the queries
+     */
+    @Test
+    public void testMatching( )
+    {
+        Map<String, List<String>> mapHeaders = new HashMap<>( );
+        mapHeaders.put( HEADER_REQUESTED_WITH, Arrays.asList( "XMLHttpRequest" ) );
+        List<String> listPatterns = Arrays.asList( "css/style.css", "jsp/site/Portal.jsp?page=map", "jsp/site/Portal.jsp?page=appointment&view=*",
+                "jsp/site/Portal.jsp?page=site*", "jsp/site/Portal.jsp?page=search&query=", "rest/*", "jsp/admin/*?page=x", "http://localhost:8080/site/e",
+                "https://other/site/Portal.jsp?page=map" );
+        PromptNoneWhiteList whiteList = new PromptNoneWhiteList( listPatterns, mapHeaders, BASE_URL );
+
+        // exact path, with the parameters absent from the pattern ignored
+        assertTrue( whiteList.isWhiteListed( request( "other", "/css/style.css", "extra", "1" ) ) );
+        assertFalse( whiteList.isWhiteListed( request( "other", "/css/style.css2" ) ) );
+
+        // query values, in the order of the pattern
+        assertTrue( whiteList.isWhiteListed( request( "other", "/jsp/site/Portal.jsp", "page", "map", "extra", "1" ) ) );
+        assertFalse( whiteList.isWhiteListed( request( "other", "/jsp/site/Portal.jsp", "page", "mapx" ) ) );
+        assertFalse( whiteList.isWhiteListed( request( "other", "/jsp/site/Portal.jsp" ) ) );
+        assertTrue( whiteList.isWhiteListed( request( "other", "/jsp/site/Portal.jsp", "page", "search", "query", "" ) ) );
+        assertFalse( whiteList.isWhiteListed( request( "other", "/jsp/site/Portal.jsp", "page", "search", "query", "a" ) ) );
+
+        // star in the query or in the path
+        assertTrue( whiteList.isWhiteListed( request( "other", "/jsp/site/Portal.jsp", "page", "appointment", "view", "form" ) ) );
+        assertFalse( whiteList.isWhiteListed( request( "other", "/jsp/site/Portal.jsp", "page", "appointment" ) ) );
+        assertTrue( whiteList.isWhiteListed( request( "other", "/jsp/site/Portal.jsp", "page", "sitemap" ) ) );
+        assertTrue( whiteList.isWhiteListed( request( "other", "/rest/api" ) ) );
+        assertFalse( whiteList.isWhiteListed( request( "other", "/rest" ) ) );
+        assertTrue( whiteList.isWhiteListed( request( "other", "/jsp/admin/AdminMenu.jsp" ) ) );
+
+        // absolute patterns depend on the base url
+        assertTrue( whiteList.isWhiteListed( request( "localhost:8080", "/e" ) ) );
+        assertFalse( whiteList.isWhiteListed( request( "other", "/e" ) ) );
+        assertTrue( whiteList.isWhiteListed( request( "other", "/Portal.jsp", "page", "map" ) ) );
+        assertFalse( whiteList.isWhiteListed( request( "localhost:8080", "/Portal.jsp", "page", "map" ) ) );
+
+        // header values are case insensitive
+        assertTrue( whiteList.isWhiteListed( request( "other", "/e", HEADER_REQUESTED_WITH, "xmlhttprequest" ) ) );
+        assertFalse( whiteList.isWhiteListed( request( "other", "/e", HEADER_REQUESTED_WITH, "fetch" ) ) );
+    }
+
+    /**
+     * Build a random request
+     *
+     * @param random
+     *            the random generator
+     * @return the request
+     */
+    private static HttpServletRequest randomRequest( Random random )
+    {
+        List<String> listNamesAndValues = new ArrayList<>( );
+
+        for ( String [ ] parameterValues : PARAMETER_VALUES )
+        {
+            // each parameter is absent half of the time
+            if ( random.nextBoolean( ) )
+            {
+                listNamesAndValues.add( parameterValues [0] );
+                listNamesAndValues.add( parameterValues [1 + random.nextInt( parameterValues.length - 1 )] );
+            }
+        }
+
+        if ( random.nextInt( 4 ) == 0 )
+        {
+            listNamesAndValues.add( HEADER_REQUESTED_WITH );
+            listNamesAndValues.add( HEADER_VALUES [random.nextInt( HEADER_VALUES.length )] );
+        }
+
+        return request( SERVER_NAMES [random.nextInt( SERVER_NAMES.length )], SERVLET_PATHS [random.nextInt( SERVLET_PATHS.length )],
+                listNamesAndValues.toArray( new String [ listNamesAndValues.size( )] ) );
+    }
+
+    /**
+     * Build a request
+     *
+     * @param strServerName
+     *            the server name, which gives the base url
+     * @param strServletPath
+     *            the servlet path
+     * @param namesAndValues
+     *            the names and values of the parameters and of the X-Requested-With header
+     * @return the request
+     */
+    private static HttpServletRequest request( String strServerName, String strServletPath, String... namesAndValues )
+    {
+        Map<String, String> mapValues = new HashMap<>( );
+
+        for ( int i = 0; i < namesAndValues.length; i += 2 )
+        {
+            mapValues.put( namesAndValues [i], namesAndValues [i + 1] );
+        }
+
+        String strDescription = strServerName + strServletPath + " " + mapValues;
+
+        return (HttpServletRequest) Proxy.newProxyInstance( PromptNoneWhiteListTest.class.getClassLoader( ), new Class<?> [ ] {
+                HttpServletRequest.class
+        }, ( proxy, method, args ) -> {
+            switch( method.getName( ) )
+            {
+                case "getServerName":
+                    return strServerName;
+                case "getServletPath":
+                    return strServletPath;
+                case "getParameter":
+                    return HEADER_REQUESTED_WITH.equals( args [0] ) ? null : mapValues.get( args [0] );
+                case "getHeader":
+                    return HEADER_REQUESTED_WITH.equalsIgnoreCase( (String) args [0] ) ? mapValues.get( HEADER_REQUESTED_WITH ) : null;
+                case "toString":
+                    return strDescription;
+                default:
+                    throw new UnsupportedOperationException( method.getName( ) );
+            }
+        } );
+    }
+
+    /**
+     * @param request
+     *            a request built by the test
+     * @return the description of the request
+     */
+    private static String describe( HttpServletRequest request )
+    {
+        return request.toString( );
+    }
+}